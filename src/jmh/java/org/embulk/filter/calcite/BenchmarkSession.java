@@ -0,0 +1,37 @@
+package org.embulk.filter.calcite;
+
+import java.util.concurrent.ExecutionException;
+import org.embulk.EmbulkEmbed;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.ExecInternal;
+import org.embulk.spi.ExecSessionInternal;
+
+/**
+ * An Embulk session for benchmarks. {@code PageReader}s and {@code PageBuilder}s are created
+ * through the session, and so they must be used in {@link #run(ExecAction)}.
+ */
+public final class BenchmarkSession implements AutoCloseable {
+
+    private final ExecSessionInternal session;
+
+    public BenchmarkSession() {
+        final EmbulkEmbed embed = new EmbulkEmbed.Bootstrap().initialize();
+        this.session = ExecSessionInternal.builderInternal(embed.getInjector()).build();
+    }
+
+    /**
+     * Runs an action in the session, and rethrows its exception as unchecked.
+     */
+    public <T> T run(ExecAction<T> action) {
+        try {
+            return ExecInternal.doWith(session, action);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        session.cleanup();
+    }
+}
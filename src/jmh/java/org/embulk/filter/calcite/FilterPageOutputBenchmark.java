@@ -0,0 +1,139 @@
+package org.embulk.filter.calcite;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@code FilterPageOutput.add()} of a task, i.e. decoding of {@code Page}s, execution of
+ * a query and encoding of result rows. JDBC execution reads results by the getters of
+ * {@code FilterColumnGetterFactory}, and direct execution writes them by {@code ColumnWriter}s.
+ *
+ * <p>An operation is an input row. Run with {@code -prof gc} to report bytes allocated per row as
+ * {@code gc.alloc.rate.norm}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(SyntheticPages.ROWS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FilterPageOutputBenchmark {
+
+    @Param({"8"})
+    public int columnCount;
+
+    @Param({"long,double,string,timestamp"})
+    public String columnTypes;
+
+    @Param({"0.0", "0.1"})
+    public double nullRatio;
+
+    @Param({"32768"})
+    public int pageBytes;
+
+    @Param({"projection", "filter", "expression", "like"})
+    public String queryShape;
+
+    @Param({"false", "true"})
+    public boolean directExecution;
+
+    @Param({"0"})
+    public int batchRows;
+
+    private BenchmarkSession session;
+    private List<Page> pages;
+    private PageOutput filterOutput;
+    private RowCountingOutput resultOutput;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        session = new BenchmarkSession();
+        session.run(() -> {
+            final Schema inputSchema = SyntheticPages.newSchema(columnCount, columnTypes);
+            pages = SyntheticPages.generate(inputSchema, nullRatio, pageBytes);
+
+            final ConfigSource config = CalciteFilterPlugin.CONFIG_MAPPER_FACTORY.newConfigSource()
+                    .set("query", SyntheticPages.newQuery(queryShape, inputSchema))
+                    .set("direct_execution", directExecution)
+                    .set("batch_rows", batchRows);
+            final CalciteFilterPlugin plugin = new CalciteFilterPlugin();
+            plugin.transaction(config, inputSchema,
+                    (TaskSource taskSource, Schema outputSchema) -> {
+                        resultOutput = new RowCountingOutput();
+                        filterOutput = plugin.open(taskSource, inputSchema, outputSchema,
+                                resultOutput);
+                    });
+            return null;
+        });
+    }
+
+    @Benchmark
+    public long add() {
+        return session.run(() -> {
+            for (Page page : pages) {
+                filterOutput.add(page);
+            }
+            return resultOutput.rows;
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        try {
+            session.run(() -> {
+                try {
+                    filterOutput.finish();
+                } finally {
+                    filterOutput.close();
+                }
+                for (Page page : pages) {
+                    page.release();
+                }
+                return null;
+            });
+        } finally {
+            session.close();
+        }
+    }
+
+    // Counts and releases result Pages
+    private static class RowCountingOutput implements PageOutput {
+
+        private long rows;
+
+        @Override
+        public void add(Page page) {
+            rows += PageReader.getRecordCount(page);
+            page.release();
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
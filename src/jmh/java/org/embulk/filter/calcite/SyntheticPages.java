@@ -0,0 +1,201 @@
+package org.embulk.filter.calcite;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.Column;
+import org.embulk.spi.Exec;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+import org.msgpack.value.ValueFactory;
+
+/**
+ * Generates {@code Page}s of random values for benchmarks.
+ *
+ * <p>The first column is {@code "id"} of long values from 0 to 999, and it's never null. The other
+ * columns are {@code "c1"}, {@code "c2"}, ... whose types are taken from a comma-separated list in
+ * turn, e.g. {@code "long,double,string,timestamp,json"}.
+ */
+public final class SyntheticPages {
+
+    /**
+     * The number of rows generated for a benchmark. Benchmarks process them in an invocation, so
+     * that an operation is a row.
+     */
+    public static final int ROWS = 10000;
+
+    private SyntheticPages() {
+    }
+
+    /**
+     * Returns a schema of {@code "id"} and columns of {@code columnTypes} in turn.
+     */
+    public static Schema newSchema(int columnCount, String columnTypes) {
+        final String[] types = columnTypes.split(",");
+        final Schema.Builder builder = Schema.builder().add("id", Types.LONG);
+        for (int i = 1; i < columnCount; i++) {
+            builder.add("c" + i, toType(types[(i - 1) % types.length].trim()));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Generates {@link #ROWS} rows into {@code Page}s. It's called in an Embulk session.
+     *
+     * @param schema    a schema created by {@link #newSchema(int, String)}.
+     * @param nullRatio a ratio of null values in columns except {@code "id"}.
+     * @param pageBytes the size of a buffer of a {@code Page}.
+     */
+    public static List<Page> generate(Schema schema, double nullRatio, int pageBytes) {
+        final Random random = new Random(0);
+        final ArrayList<Page> pages = new ArrayList<>();
+        final PageOutput output = new PageOutput() {
+            @Override
+            public void add(Page page) {
+                pages.add(page);
+            }
+
+            @Override
+            public void finish() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        final PageBuilder pageBuilder = Exec.getPageBuilder(newBufferAllocator(pageBytes), schema,
+                output);
+
+        final Instant base = Instant.parse("2017-01-01T00:00:00Z");
+        for (int row = 0; row < ROWS; row++) {
+            pageBuilder.setLong(0, random.nextInt(1000));
+            for (int i = 1; i < schema.getColumnCount(); i++) {
+                final Column column = schema.getColumn(i);
+                if (random.nextDouble() < nullRatio) {
+                    pageBuilder.setNull(column);
+                } else if (column.getType() == Types.LONG) {
+                    pageBuilder.setLong(column, random.nextLong());
+                } else if (column.getType() == Types.DOUBLE) {
+                    pageBuilder.setDouble(column, random.nextDouble() * 1000000);
+                } else if (column.getType() == Types.BOOLEAN) {
+                    pageBuilder.setBoolean(column, random.nextBoolean());
+                } else if (column.getType() == Types.STRING) {
+                    pageBuilder.setString(column, "embulk-" + random.nextInt(100000));
+                } else if (column.getType() == Types.TIMESTAMP) {
+                    pageBuilder.setTimestamp(column,
+                            base.plusMillis(random.nextInt(Integer.MAX_VALUE)));
+                } else {
+                    pageBuilder.setJson(column, ValueFactory.newMap(
+                            ValueFactory.newString("id"),
+                            ValueFactory.newInteger(random.nextInt(1000)),
+                            ValueFactory.newString("name"),
+                            ValueFactory.newString("embulk-" + random.nextInt(100000))));
+                }
+            }
+            pageBuilder.addRecord();
+        }
+        pageBuilder.finish();
+        return Collections.unmodifiableList(pages);
+    }
+
+    /**
+     * Builds a query of a shape over a schema created by {@link #newSchema(int, String)}.
+     *
+     * <ul>
+     * <li>{@code projection}: selects {@code "id"} and every other column.
+     * <li>{@code filter}: selects all columns of 10% of rows.
+     * <li>{@code expression}: computes arithmetic and string functions on each column.
+     * <li>{@code like}: selects rows that match a LIKE pattern.
+     * </ul>
+     */
+    public static String newQuery(String queryShape, Schema schema) {
+        final StringBuilder sql = new StringBuilder();
+        switch (queryShape) {
+            case "projection":
+                sql.append("SELECT \"id\"");
+                for (int i = 1; i < schema.getColumnCount(); i += 2) {
+                    sql.append(", \"").append(schema.getColumnName(i)).append('"');
+                }
+                return sql.append(" FROM $PAGES").toString();
+
+            case "filter":
+                return "SELECT * FROM $PAGES WHERE \"id\" < 100";
+
+            case "expression":
+                sql.append("SELECT \"id\" * 2 + 1 AS \"id\"");
+                for (int i = 1; i < schema.getColumnCount(); i++) {
+                    final Column column = schema.getColumn(i);
+                    final String name = '"' + column.getName() + '"';
+                    sql.append(", ");
+                    if (column.getType() == Types.LONG || column.getType() == Types.DOUBLE) {
+                        sql.append("CASE WHEN ").append(name).append(" > 0 THEN ").append(name)
+                                .append(" / 2 ELSE ").append(name).append(" * 2 END");
+                    } else if (column.getType() == Types.STRING) {
+                        sql.append("UPPER(SUBSTRING(").append(name).append(" FROM 8)) || '-x'");
+                    } else {
+                        sql.append(name);
+                    }
+                    sql.append(" AS ").append(name);
+                }
+                return sql.append(" FROM $PAGES").toString();
+
+            case "like":
+                for (Column column : schema.getColumns()) {
+                    if (column.getType() == Types.STRING) {
+                        return "SELECT * FROM $PAGES WHERE \"" + column.getName()
+                                + "\" LIKE '%42%'";
+                    }
+                }
+                return "SELECT * FROM $PAGES WHERE CAST(\"id\" AS VARCHAR) LIKE '%42%'";
+
+            default:
+                throw new IllegalArgumentException("Unknown query shape: " + queryShape);
+        }
+    }
+
+    private static Type toType(String name) {
+        switch (name) {
+            case "boolean":
+                return Types.BOOLEAN;
+            case "long":
+                return Types.LONG;
+            case "double":
+                return Types.DOUBLE;
+            case "string":
+                return Types.STRING;
+            case "timestamp":
+                return Types.TIMESTAMP;
+            case "json":
+                return Types.JSON;
+            default:
+                throw new IllegalArgumentException("Unknown column type: " + name);
+        }
+    }
+
+    // Buffers are allocated on the heap instead of by Exec.getBufferAllocator(), whose buffers
+    // are pooled and of the page size of the system config. Releasing a heap buffer does nothing,
+    // and so Pages generated once can be added in every invocation although the filter releases
+    // them.
+    @SuppressWarnings("deprecation") // Buffer.allocate is the only way to allocate on the heap
+    private static BufferAllocator newBufferAllocator(final int pageBytes) {
+        return new BufferAllocator() {
+            @Override
+            public Buffer allocate() {
+                return Buffer.allocate(pageBytes);
+            }
+
+            @Override
+            public Buffer allocate(int minimumCapacity) {
+                return Buffer.allocate(Math.max(pageBytes, minimumCapacity));
+            }
+        };
+    }
+}
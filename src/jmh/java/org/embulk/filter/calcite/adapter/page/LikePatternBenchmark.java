@@ -0,0 +1,77 @@
+package org.embulk.filter.calcite.adapter.page;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.calcite.runtime.SqlFunctions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares {@code LIKE} and {@code SIMILAR TO} evaluation by Calcite's {@code SqlFunctions},
+ * which translates and compiles a pattern for every value, with {@code LikePattern}, which
+ * conditions pushed down to scans of {@code $PAGES} use.
+ *
+ * <p>An operation is a value.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(LikePatternBenchmark.VALUES)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LikePatternBenchmark {
+
+    static final int VALUES = 10000;
+
+    // "similar:" patterns are SIMILAR TO, and others are LIKE
+    @Param({"%42%", "embulk-42%", "%42", "embulk-4_2%", "similar:embulk-(4|5)2%"})
+    public String pattern;
+
+    private String[] values;
+    private String sqlPattern;
+    private boolean similar;
+    private LikePattern compiled;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Random random = new Random(0);
+        values = new String[VALUES];
+        for (int i = 0; i < VALUES; i++) {
+            values[i] = "embulk-" + random.nextInt(100000); // as SyntheticPages generates
+        }
+        similar = pattern.startsWith("similar:");
+        sqlPattern = similar ? pattern.substring("similar:".length()) : pattern;
+        compiled = similar
+                ? LikePattern.similar(sqlPattern, null)
+                : LikePattern.like(sqlPattern, null);
+    }
+
+    @Benchmark
+    public void calcite(final Blackhole blackhole) {
+        for (String value : values) {
+            blackhole.consume(similar
+                    ? SqlFunctions.similar(value, sqlPattern)
+                    : SqlFunctions.like(value, sqlPattern));
+        }
+    }
+
+    @Benchmark
+    public void compiled(final Blackhole blackhole) {
+        for (String value : values) {
+            blackhole.consume(compiled.matches(value));
+        }
+    }
+}
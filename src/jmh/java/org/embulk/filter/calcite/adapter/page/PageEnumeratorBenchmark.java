@@ -0,0 +1,107 @@
+package org.embulk.filter.calcite.adapter.page;
+
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import org.apache.calcite.util.ImmutableBitSet;
+import org.embulk.filter.calcite.BenchmarkSession;
+import org.embulk.filter.calcite.SyntheticPages;
+import org.embulk.spi.Page;
+import org.embulk.spi.Schema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures decoding of {@code Page}s into rows by {@code PageEnumerator} and {@code PageConverter}
+ * as scans of {@code $PAGES} do.
+ *
+ * <p>An operation is a row. Run with {@code -prof gc} to report bytes allocated per row as
+ * {@code gc.alloc.rate.norm}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(SyntheticPages.ROWS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PageEnumeratorBenchmark {
+
+    @Param({"8"})
+    public int columnCount;
+
+    @Param({"long,double,string,timestamp"})
+    public String columnTypes;
+
+    @Param({"0.0", "0.1"})
+    public double nullRatio;
+
+    @Param({"32768"})
+    public int pageBytes;
+
+    // "all" decodes all columns, and "id" decodes only the first column as pruned scans do
+    @Param({"all", "id"})
+    public String referencedColumns;
+
+    private BenchmarkSession session;
+    private List<Page> pages;
+    private PageBinding binding;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        session = new BenchmarkSession();
+        session.run(() -> {
+            final Schema schema = SyntheticPages.newSchema(columnCount, columnTypes);
+            pages = SyntheticPages.generate(schema, nullRatio, pageBytes);
+            binding = new PageBinding(schema, TimeZone.getTimeZone("UTC"),
+                    "all".equals(referencedColumns)
+                            ? ImmutableBitSet.range(schema.getColumnCount())
+                            : ImmutableBitSet.of(0));
+            return null;
+        });
+    }
+
+    @Benchmark
+    public void enumerate(final Blackhole blackhole) {
+        session.run(() -> {
+            binding.setPages(pages);
+            final PageEnumerator enumerator = binding.acquireEnumerator(null);
+            try {
+                while (enumerator.moveNext()) {
+                    blackhole.consume(enumerator.current());
+                }
+            } finally {
+                enumerator.close();
+            }
+            return null;
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        try {
+            session.run(() -> {
+                binding.close();
+                for (Page page : pages) {
+                    page.release();
+                }
+                return null;
+            });
+        } finally {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.embulk.filter.calcite.adapter.page;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.calcite.avatica.util.DateTimeUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares parsing strings into timestamps by Calcite's {@code CAST(string AS TIMESTAMP)}, by
+ * {@code DateTimeFormatter}, and by {@code TimestampFunctions}, which {@code TO_TIMESTAMP} uses.
+ *
+ * <p>An operation is a value.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(TimestampParseBenchmark.VALUES)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimestampParseBenchmark {
+
+    static final int VALUES = 10000;
+
+    // "local" is yyyy-MM-dd HH:mm:ss, and "offset" has an ISO 8601 offset. CAST always parses
+    // the local strings of the same timestamps because it doesn't accept offsets.
+    @Param({"local", "offset"})
+    public String shape;
+
+    private String[] values;
+    private String[] localValues;
+    private DateTimeFormatter formatter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final Random random = new Random(0);
+        final boolean offset = shape.equals("offset");
+        final DateTimeFormatter local = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        formatter = offset ? DateTimeFormatter.ISO_OFFSET_DATE_TIME : local;
+        values = new String[VALUES];
+        localValues = new String[VALUES];
+        for (int i = 0; i < VALUES; i++) {
+            final Instant instant = Instant.ofEpochSecond(1400000000L + random.nextInt(100000000));
+            localValues[i] = local.format(instant.atOffset(ZoneOffset.UTC));
+            values[i] = offset
+                    ? instant.atOffset(ZoneOffset.ofHours(9)).toString()
+                    : localValues[i];
+        }
+    }
+
+    @Benchmark
+    public void calcite(final Blackhole blackhole) {
+        for (String value : localValues) {
+            blackhole.consume(DateTimeUtils.timestampStringToUnixDate(value));
+        }
+    }
+
+    @Benchmark
+    public void formatter(final Blackhole blackhole) {
+        for (String value : values) {
+            blackhole.consume(formatter.parse(value));
+        }
+    }
+
+    @Benchmark
+    public void toTimestamp(final Blackhole blackhole) {
+        for (String value : values) {
+            blackhole.consume(TimestampFunctions.toTimestamp(value, "UTC"));
+        }
+    }
+}
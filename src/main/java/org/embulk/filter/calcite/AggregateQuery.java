@@ -0,0 +1,285 @@
+package org.embulk.filter.calcite;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TimeZone;
+import org.apache.calcite.config.CalciteConnectionConfig;
+import org.apache.calcite.config.CalciteConnectionConfigImpl;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Linq4j;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelRoot;
+import org.apache.calcite.rel.core.Aggregate;
+import org.apache.calcite.rel.core.AggregateCall;
+import org.apache.calcite.rel.core.Filter;
+import org.apache.calcite.rel.core.Project;
+import org.apache.calcite.rel.core.Sort;
+import org.apache.calcite.rel.core.TableScan;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexLiteral;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.schema.SchemaPlus;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.apache.calcite.tools.Frameworks;
+import org.apache.calcite.tools.Planner;
+import org.apache.calcite.util.Pair;
+import org.embulk.filter.calcite.adapter.page.PageBinding;
+import org.embulk.filter.calcite.adapter.page.PageSchema;
+
+/**
+ * A query whose aggregation applies to all rows of a task instead of each batch of Pages.
+ *
+ * <p>The plan is split at its {@code Aggregate}. The input of the aggregate, i.e. scans, filters
+ * and projections of {@code $PAGES}, is executed for each batch of Pages, and its rows are
+ * accumulated by {@code GroupAggregator}. The rest of the plan, e.g. {@code HAVING},
+ * {@code ORDER BY} and projections of aggregated values, is executed only once for the final
+ * groups when the task finishes.
+ *
+ * <p>{@code TUMBLE} and {@code HOP} in group keys are assigned by the runner instead of Calcite.
+ * The aggregate input returns their timestamps as they are, and the rest of the plan is executed
+ * for the groups of each window.
+ *
+ * <p>An {@code AggregateQuery} doesn't have any mutable state, and can be shared by tasks.
+ */
+class AggregateQuery {
+
+    private final BindableQuery inputQuery;
+    private final BindableQuery outputQuery;
+    private final RelDataType inputRowType;
+    private final int[] keyFields;
+    private final List<AggregateCall> calls;
+    private final Window window;
+
+    private AggregateQuery(BindableQuery inputQuery, BindableQuery outputQuery,
+                           RelDataType inputRowType, int[] keyFields, List<AggregateCall> calls,
+                           Window window) {
+        this.inputQuery = inputQuery;
+        this.outputQuery = outputQuery;
+        this.inputRowType = inputRowType;
+        this.keyFields = keyFields;
+        this.calls = calls;
+        this.window = window;
+    }
+
+    /**
+     * Parses, validates and splits a query at its aggregate, and compiles both parts.
+     *
+     * @param query      a query string
+     * @param props      connection properties
+     * @param pageSchema a schema that has {@code $PAGES} and lookup tables
+     * @return an {@code AggregateQuery} object
+     * @throws UnsupportedOperationException if the query cannot be aggregated through a task
+     * @throws Exception if the query cannot be prepared
+     */
+    static AggregateQuery prepare(String query, Properties props, PageSchema pageSchema)
+            throws Exception {
+        final CalciteConnectionConfig config = new CalciteConnectionConfigImpl(props);
+        final TimeZone timeZone = TimeZone.getTimeZone(config.timeZone());
+        final SchemaPlus rootSchema = Frameworks.createRootSchema(true);
+        final Planner planner = BindableQuery.newPlanner(config, rootSchema, pageSchema);
+        try {
+            final RelRoot root = planner.rel(planner.validate(planner.parse(query)));
+
+            // Nodes above the aggregate are applied to the final groups
+            final Deque<RelNode> upperNodes = new ArrayDeque<>();
+            RelNode node = root.project();
+            while (!(node instanceof Aggregate)) {
+                if (!(node instanceof Project || node instanceof Filter || node instanceof Sort)) {
+                    throw unsupported(query, node);
+                }
+                RowsTable.checkExpressions(query, node);
+                upperNodes.push(node);
+                node = node.getInput(0);
+            }
+
+            final Aggregate aggregate = (Aggregate) node;
+            if (aggregate.getGroupType() != Aggregate.Group.SIMPLE) {
+                throw unsupported(query, aggregate);
+            }
+            final Pair<RelNode, Window> windowed = extractWindow(query, aggregate);
+            final RelNode input = windowed.left;
+            final TableScan scan = RowsTable.findScan(query, input);
+            // throws UnsupportedOperationException for unsupported aggregate calls
+            GroupAggregator.create(input.getRowType(), aggregate.getGroupSet().toArray(),
+                    aggregate.getAggCallList());
+
+            final BindableQuery inputQuery = BindableQuery.compile(planner, input,
+                    input.getRowType(), rootSchema, timeZone);
+
+            // The aggregate is replaced by a scan of groups that GroupAggregator returns
+            final RelNode upper = RowsTable.replace(rootSchema, scan, aggregate, upperNodes);
+            final BindableQuery outputQuery = BindableQuery.compile(planner, upper,
+                    root.validatedRowType, rootSchema, timeZone);
+
+            return new AggregateQuery(inputQuery, outputQuery, input.getRowType(),
+                    aggregate.getGroupSet().toArray(), aggregate.getAggCallList(), windowed.right);
+        } finally {
+            planner.close();
+        }
+    }
+
+    // Finds TUMBLE or HOP in group keys. Calcite cannot evaluate them, so the projection under the
+    // aggregate is rewritten to return the timestamp as is, and windows are assigned by the runner.
+    private static Pair<RelNode, Window> extractWindow(String query, Aggregate aggregate) {
+        final RelNode input = aggregate.getInput();
+        if (!(input instanceof Project)) {
+            return Pair.of(input, null);
+        }
+
+        final Project project = (Project) input;
+        final ArrayList<RexNode> projects = new ArrayList<>(project.getProjects());
+        Window window = null;
+        for (int key : aggregate.getGroupSet()) {
+            final RexNode expr = projects.get(key);
+            if (!expr.isA(EnumSet.of(SqlKind.TUMBLE, SqlKind.HOP))) {
+                continue;
+            }
+            if (window != null) {
+                throw new UnsupportedOperationException(
+                        "Cannot group by multiple windows in query: " + query);
+            }
+
+            final List<RexNode> operands = ((RexCall) expr).getOperands();
+            for (RexNode operand : operands.subList(1, operands.size())) {
+                if (!(operand instanceof RexLiteral)) {
+                    throw new UnsupportedOperationException(
+                            "Window intervals must be literals in query: " + query);
+                }
+            }
+            if (expr.isA(SqlKind.TUMBLE)) {
+                // TUMBLE(timestamp, size [, align])
+                final long size = millisOf(operands.get(1), query);
+                window = new Window(key, size, size,
+                        operands.size() > 2 ? millisOf(operands.get(2), query) : 0L);
+            } else {
+                // HOP(timestamp, slide, size [, align])
+                window = new Window(key, millisOf(operands.get(2), query),
+                        millisOf(operands.get(1), query),
+                        operands.size() > 3 ? millisOf(operands.get(3), query) : 0L);
+            }
+            if (window.size <= 0 || window.slide <= 0) {
+                throw new UnsupportedOperationException(
+                        "Window intervals must be positive in query: " + query);
+            }
+            projects.set(key, project.getCluster().getRexBuilder()
+                    .ensureType(expr.getType(), operands.get(0), true));
+        }
+        if (window == null) {
+            return Pair.of(input, null);
+        }
+        return Pair.of(project.copy(project.getTraitSet(), project.getInput(), projects,
+                project.getRowType()), window);
+    }
+
+    // Day-time intervals are milliseconds. Year-month ones are months, whose lengths vary.
+    private static long millisOf(RexNode literal, String query) {
+        if (SqlTypeName.YEAR_INTERVAL_TYPES.contains(literal.getType().getSqlTypeName())) {
+            throw new UnsupportedOperationException(
+                    "Window intervals must be of days, hours, minutes or seconds in query: "
+                            + query);
+        }
+        return ((Number) ((RexLiteral) literal).getValue2()).longValue();
+    }
+
+    private static UnsupportedOperationException unsupported(String query, RelNode node) {
+        return new UnsupportedOperationException(String.format(Locale.ENGLISH,
+                "Cannot aggregate through a task by '%s' in query: %s", node.getRelTypeName(),
+                query));
+    }
+
+    RelDataType getRowType() {
+        return outputQuery.getRowType();
+    }
+
+    RelDataType getInputRowType() {
+        return inputRowType;
+    }
+
+    /**
+     * Returns optimized plans of the query of rows that are aggregated through a task, and of the
+     * query of the results, in the format of {@code EXPLAIN PLAN}.
+     */
+    String getPlan() {
+        return "Input:\n" + inputQuery.getPlan() + "Output:\n" + outputQuery.getPlan();
+    }
+
+    /**
+     * Returns the time window that rows are grouped by, or {@code null} if the query doesn't group
+     * rows by {@code TUMBLE} nor {@code HOP}.
+     *
+     * @return a {@code Window} object or {@code null}
+     */
+    Window getWindow() {
+        return window;
+    }
+
+    /**
+     * Creates an aggregator that holds groups of a task.
+     *
+     * @return a new {@code GroupAggregator} object
+     */
+    GroupAggregator newAggregator() {
+        return GroupAggregator.create(inputRowType, keyFields, calls);
+    }
+
+    /**
+     * Returns rows to be aggregated from {@code Page}s bound by {@code binding}.
+     *
+     * @param binding a {@code PageBinding} that {@code $PAGES} reads
+     * @return a {@code Enumerable} of input rows
+     */
+    Enumerable<Object> bindInput(PageBinding binding) {
+        return inputQuery.bind(binding);
+    }
+
+    /**
+     * Returns the query results for the final groups of a task.
+     *
+     * @param aggregator an aggregator that all rows of the task are added to
+     * @return a {@code Enumerable} of result rows
+     */
+    Enumerable<Object> bindOutput(GroupAggregator aggregator) {
+        return outputQuery.bind(Collections.<String, Object>singletonMap(RowsTable.PARAMETER,
+                Linq4j.asEnumerable(aggregator.getGroups())));
+    }
+
+    /**
+     * A tumbling or hopping window over a timestamp field of the aggregate input. Timestamps are
+     * milliseconds in Calcite's internal representation. A window starts at multiples of
+     * {@code slide} shifted by {@code align}, and covers {@code size} milliseconds from the start.
+     * Tumbling windows have the same {@code slide} as their {@code size}.
+     */
+    static final class Window {
+
+        final int field;
+        final long size;
+        final long slide;
+        final long align;
+
+        private Window(int field, long size, long slide, long align) {
+            this.field = field;
+            this.size = size;
+            this.slide = slide;
+            this.align = align;
+        }
+
+        /**
+         * Returns the start of the last window that contains a timestamp. Earlier windows that
+         * contain it start every {@code slide} milliseconds before it while they end after it.
+         *
+         * @param timestamp a timestamp
+         * @return the start of the window
+         */
+        long lastStartOf(long timestamp) {
+            return timestamp - Math.floorMod(timestamp - align, slide);
+        }
+    }
+}
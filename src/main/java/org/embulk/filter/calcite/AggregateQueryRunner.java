@@ -0,0 +1,66 @@
+package org.embulk.filter.calcite;
+
+import java.util.List;
+import org.apache.calcite.linq4j.Enumerator;
+import org.embulk.filter.calcite.adapter.page.PageBinding;
+import org.embulk.filter.calcite.writer.ColumnWriter;
+import org.embulk.spi.PageBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes an {@code AggregateQuery} through a task. Rows of every batch of Pages are added into
+ * groups held by the runner, and the query results of the final groups are written into a
+ * {@code PageBuilder} when the task finishes.
+ */
+class AggregateQueryRunner implements QueryRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(AggregateQueryRunner.class);
+
+    private final PageBuilder pageBuilder;
+    private final List<ColumnWriter> writers;
+    private final AggregateQuery aggregateQuery;
+    private final GroupAggregator aggregator;
+    private final boolean scalarRows;
+
+    AggregateQueryRunner(PageBuilder pageBuilder,
+                         List<ColumnWriter> writers,
+                         AggregateQuery aggregateQuery) {
+        this.pageBuilder = pageBuilder;
+        this.writers = writers;
+        this.aggregateQuery = aggregateQuery;
+        this.aggregator = aggregateQuery.newAggregator();
+        this.scalarRows = aggregateQuery.getInputRowType().getFieldCount() == 1;
+    }
+
+    @Override
+    public void run(PageBinding binding) {
+        final Enumerator<Object> enumerator = aggregateQuery.bindInput(binding).enumerator();
+        try {
+            final Object[] scalarRow = new Object[1];
+            while (enumerator.moveNext()) {
+                final Object current = enumerator.current();
+                if (scalarRows && !(current instanceof Object[])) {
+                    // a row of a single column is represented as its value
+                    scalarRow[0] = current;
+                    aggregator.add(scalarRow);
+                } else {
+                    aggregator.add((Object[]) current);
+                }
+            }
+        } finally {
+            enumerator.close();
+        }
+    }
+
+    @Override
+    public void finish() {
+        log.debug("Writes results of {} groups", aggregator.getGroupCount());
+        DirectQueryRunner.writeRows(aggregateQuery.bindOutput(aggregator), pageBuilder, writers);
+    }
+
+    @Override
+    public void close() {
+        // AggregateQuery is shared by tasks, and groups are released with this runner.
+    }
+}
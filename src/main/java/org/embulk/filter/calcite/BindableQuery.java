@@ -0,0 +1,352 @@
+package org.embulk.filter.calcite;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.calcite.DataContext;
+import org.apache.calcite.adapter.enumerable.EnumerableConvention;
+import org.apache.calcite.adapter.enumerable.EnumerableInterpretable;
+import org.apache.calcite.adapter.enumerable.EnumerableInterpreterRule;
+import org.apache.calcite.adapter.enumerable.EnumerableRel;
+import org.apache.calcite.adapter.enumerable.EnumerableRules;
+import org.apache.calcite.adapter.java.JavaTypeFactory;
+import org.apache.calcite.config.CalciteConnectionConfig;
+import org.apache.calcite.config.CalciteConnectionConfigImpl;
+import org.apache.calcite.interpreter.Bindables;
+import org.apache.calcite.jdbc.CalciteSchema;
+import org.apache.calcite.jdbc.JavaTypeFactoryImpl;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.QueryProvider;
+import org.apache.calcite.plan.RelOptRule;
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.prepare.CalciteCatalogReader;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelRoot;
+import org.apache.calcite.rel.metadata.DefaultRelMetadataProvider;
+import org.apache.calcite.rel.rules.ProjectTableScanRule;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.runtime.Bindable;
+import org.apache.calcite.schema.SchemaPlus;
+import org.apache.calcite.sql.SqlNode;
+import org.apache.calcite.sql.SqlOperatorTable;
+import org.apache.calcite.sql.fun.SqlStdOperatorTable;
+import org.apache.calcite.sql.parser.SqlParser;
+import org.apache.calcite.sql.util.ChainedSqlOperatorTable;
+import org.apache.calcite.tools.Frameworks;
+import org.apache.calcite.tools.Planner;
+import org.apache.calcite.tools.Program;
+import org.apache.calcite.tools.Programs;
+import org.embulk.filter.calcite.adapter.page.PageBinding;
+import org.embulk.filter.calcite.adapter.page.PageSchema;
+import org.embulk.filter.calcite.adapter.page.PageTable;
+
+/**
+ * A query that is planned and compiled into Calcite's {@code Bindable} without JDBC. Binding it
+ * returns an {@code Enumerable} of result rows in Calcite's internal representation, which
+ * {@code ColumnWriter}s write into {@code PageBuilder} directly.
+ *
+ * <p>The {@code Bindable} doesn't have any mutable state. A {@code BindableQuery} can be shared
+ * by tasks running concurrently. Pages are bound to each execution by a {@code PageBinding} in its
+ * {@code DataContext}.
+ */
+class BindableQuery {
+
+    private final SchemaPlus rootSchema;
+    private final JavaTypeFactory typeFactory;
+    private final TimeZone timeZone;
+    private final RelDataType rowType;
+    private final Map<String, Object> internalParameters;
+    private final Bindable<Object> bindable;
+    private final List<MemoizedExpression> memoizedExpressions;
+    private final String plan;
+    private final OperatorStats operatorStats; // of no executions, or null if it's not profiled
+
+    private BindableQuery(SchemaPlus rootSchema, JavaTypeFactory typeFactory, TimeZone timeZone,
+                          RelDataType rowType, Map<String, Object> internalParameters,
+                          Bindable<Object> bindable, List<MemoizedExpression> memoizedExpressions,
+                          String plan, OperatorStats operatorStats) {
+        this.rootSchema = rootSchema;
+        this.typeFactory = typeFactory;
+        this.timeZone = timeZone;
+        this.rowType = rowType;
+        this.internalParameters = internalParameters;
+        this.bindable = bindable;
+        this.memoizedExpressions = memoizedExpressions;
+        this.plan = plan;
+        this.operatorStats = operatorStats;
+    }
+
+    /**
+     * Parses, validates, optimizes and compiles a query against {@code $PAGES}. Costly expressions
+     * of projections are memoized by {@code MemoizedExpression}.
+     *
+     * @param query      a query string
+     * @param props      connection properties. Lexical policies and 'timeZone' are applied as the
+     *                   JDBC connection does.
+     * @param pageSchema a schema that has {@code $PAGES} and lookup tables
+     * @return a {@code BindableQuery} object
+     * @throws Exception if the query cannot be prepared
+     */
+    static BindableQuery prepare(String query, Properties props, PageSchema pageSchema)
+            throws Exception {
+        return prepare(query, props, pageSchema, false, true);
+    }
+
+    /**
+     * Prepares a query whose operators are measured by {@code OperatorStats} if {@code profiled}.
+     * Its expressions are not memoized unless {@code memoized}, e.g. when {@code memo_cache_size}
+     * is 0, so that they're evaluated as they are.
+     *
+     * @see #prepare(String, Properties, PageSchema)
+     */
+    static BindableQuery prepare(String query, Properties props, PageSchema pageSchema,
+                                 boolean profiled, boolean memoized) throws Exception {
+        final CalciteConnectionConfig config = new CalciteConnectionConfigImpl(props);
+        final SchemaPlus rootSchema = Frameworks.createRootSchema(true);
+        final Planner planner = newPlanner(config, rootSchema, pageSchema);
+        try {
+            final SqlNode validated = planner.validate(planner.parse(query));
+            final RelRoot root = planner.rel(validated);
+            final ArrayList<MemoizedExpression> memoizedExpressions = new ArrayList<>();
+            final RelNode rel;
+            // This is a workaround to avoid NPE caused by commons-compiler v2.7.6
+            final ClassLoader cl = Thread.currentThread().getContextClassLoader();
+            Thread.currentThread().setContextClassLoader(BindableQuery.class.getClassLoader());
+            try {
+                rel = memoized
+                        ? MemoizedExpression.memoize(root.project(), memoizedExpressions)
+                        : root.project();
+            } finally {
+                Thread.currentThread().setContextClassLoader(cl);
+            }
+            return compile(planner, rel, root.validatedRowType, rootSchema,
+                    TimeZone.getTimeZone(config.timeZone()),
+                    Collections.unmodifiableList(memoizedExpressions), profiled);
+        } finally {
+            planner.close();
+        }
+    }
+
+    /**
+     * Optimizes and compiles a logical plan that {@code planner} has converted.
+     *
+     * @param planner    a planner that is created by {@link #newPlanner} and converted {@code rel}
+     * @param rel        a logical plan
+     * @param rowType    a row type of the query results
+     * @param rootSchema a root schema that {@code planner} refers
+     * @param timeZone   a time zone of the connection
+     * @return a {@code BindableQuery} object
+     * @throws Exception if the plan cannot be compiled
+     */
+    static BindableQuery compile(Planner planner, RelNode rel, RelDataType rowType,
+                                 SchemaPlus rootSchema, TimeZone timeZone) throws Exception {
+        return compile(planner, rel, rowType, rootSchema, timeZone, Collections.emptyList(), false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static BindableQuery compile(Planner planner, RelNode rel, RelDataType rowType,
+                                         SchemaPlus rootSchema, TimeZone timeZone,
+                                         List<MemoizedExpression> memoizedExpressions,
+                                         boolean profiled) throws Exception {
+        final RelNode optimized = planner.transform(0,
+                planner.getEmptyTraitSet().replace(EnumerableConvention.INSTANCE), rel);
+        final String plan = RelOptUtil.toString(optimized);
+
+        RelNode executed = optimized;
+        OperatorStats operatorStats = null;
+        if (profiled) {
+            final ArrayList<String> operators = new ArrayList<>();
+            final ArrayList<Integer> parents = new ArrayList<>();
+            executed = ProfiledRel.profile(optimized, operators, parents);
+            operatorStats = new OperatorStats(Collections.unmodifiableList(operators),
+                    parents.stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        // This is a workaround to avoid NPE caused by commons-compiler v2.7.6
+        final ClassLoader cl = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(BindableQuery.class.getClassLoader());
+        // Objects that generated code refers through DataContext, e.g. interpreted nodes, are
+        // stashed in internal parameters.
+        final HashMap<String, Object> internalParameters = new HashMap<>();
+        internalParameters.put(MemoizedExpression.EXPRESSIONS, memoizedExpressions);
+        final Bindable<Object> bindable;
+        try {
+            bindable = EnumerableInterpretable.toBindable(internalParameters, null,
+                    (EnumerableRel) executed, EnumerableRel.Prefer.ARRAY);
+        } finally {
+            Thread.currentThread().setContextClassLoader(cl);
+        }
+
+        return new BindableQuery(rootSchema, (JavaTypeFactory) planner.getTypeFactory(), timeZone,
+                rowType, Collections.unmodifiableMap(internalParameters), bindable,
+                memoizedExpressions, plan, operatorStats);
+    }
+
+    static Planner newPlanner(CalciteConnectionConfig config, SchemaPlus rootSchema,
+                              PageSchema pageSchema) {
+        final SchemaPlus defaultSchema = rootSchema.add("page", pageSchema);
+        // Functions of the schema are looked up through a catalog reader as the JDBC driver does.
+        // Frameworks' planner looks up only the operator table by itself.
+        final CalciteCatalogReader catalogReader = new CalciteCatalogReader(
+                CalciteSchema.from(rootSchema), config.caseSensitive(), ImmutableList.of("page"),
+                new JavaTypeFactoryImpl());
+        return Frameworks.getPlanner(Frameworks.newConfigBuilder()
+                .defaultSchema(defaultSchema)
+                .parserConfig(SqlParser.configBuilder()
+                        .setQuoting(config.quoting())
+                        .setUnquotedCasing(config.unquotedCasing())
+                        .setQuotedCasing(config.quotedCasing())
+                        .setCaseSensitive(config.caseSensitive())
+                        .setConformance(config.conformance())
+                        .build())
+                .operatorTable(ChainedSqlOperatorTable.of(
+                        config.fun(SqlOperatorTable.class, SqlStdOperatorTable.instance()),
+                        catalogReader))
+                .programs(newProgram())
+                .build());
+    }
+
+    private static Program newProgram() {
+        // The same phases as Programs.standard() but with rules explicitly because Frameworks'
+        // planner doesn't register any rules by itself. Table scan rules are added to the default
+        // rule set as the JDBC driver does.
+        final ArrayList<RelOptRule> rules = new ArrayList<>(Programs.RULE_SET);
+        rules.add(EnumerableRules.ENUMERABLE_TABLE_SCAN_RULE);
+        rules.add(Bindables.BINDABLE_TABLE_SCAN_RULE);
+        rules.add(EnumerableInterpreterRule.INSTANCE);
+        rules.add(ProjectTableScanRule.INSTANCE);
+        rules.add(ProjectTableScanRule.INTERPRETER);
+        rules.add(EnumerableRules.ENUMERABLE_UNCOLLECT_RULE);
+        rules.add(EnumerableRules.ENUMERABLE_CORRELATE_RULE);
+        return Programs.sequence(
+                Programs.subQuery(DefaultRelMetadataProvider.INSTANCE),
+                Programs.ofRules(rules),
+                Programs.calc(DefaultRelMetadataProvider.INSTANCE));
+    }
+
+    RelDataType getRowType() {
+        return rowType;
+    }
+
+    /**
+     * Returns the optimized plan in the format of {@code EXPLAIN PLAN}.
+     */
+    String getPlan() {
+        return plan;
+    }
+
+    /**
+     * Returns new stats of operators of the query for a task, or null if it's not profiled.
+     */
+    OperatorStats newOperatorStats() {
+        return operatorStats != null ? operatorStats.newEmpty() : null;
+    }
+
+    /**
+     * Returns a new memo of expressions of the query for a task, or null if the query doesn't
+     * have memoized expressions.
+     *
+     * @param maxEntries the maximum number of results of each expression
+     */
+    ExpressionMemo newExpressionMemo(int maxEntries) {
+        return memoizedExpressions.isEmpty()
+                ? null
+                : new ExpressionMemo(memoizedExpressions, maxEntries);
+    }
+
+    /**
+     * Binds the query to a new {@code DataContext} that has {@code binding}, and returns its
+     * results. A result row is an {@code Object[]}, or an {@code Object} when the query returns
+     * only a column.
+     *
+     * @param binding a {@code PageBinding} that {@code $PAGES} reads
+     * @return a {@code Enumerable} object
+     */
+    Enumerable<Object> bind(PageBinding binding) {
+        return bind(Collections.<String, Object>singletonMap(PageTable.BINDING, binding));
+    }
+
+    /**
+     * Binds the query with a memo of its expressions and stats of its operators, and returns its
+     * results.
+     *
+     * @param binding a {@code PageBinding} that {@code $PAGES} reads
+     * @param memo    an {@code ExpressionMemo} of the task, or null to evaluate expressions
+     *                directly
+     * @param stats   an {@code OperatorStats} of the task, or null not to measure operators
+     * @return a {@code Enumerable} object
+     */
+    Enumerable<Object> bind(PageBinding binding, ExpressionMemo memo, OperatorStats stats) {
+        if (memo == null && stats == null) {
+            return bind(binding);
+        }
+        final HashMap<String, Object> parameters = new HashMap<>();
+        parameters.put(PageTable.BINDING, binding);
+        parameters.put(ExpressionMemo.KEY, memo);
+        parameters.put(OperatorStats.KEY, stats);
+        return bind(parameters);
+    }
+
+    /**
+     * Binds the query to a new {@code DataContext} that has {@code parameters} in addition to
+     * the standard variables. Tables that the query scans can read them from the context.
+     *
+     * @param parameters named values that are put into the context
+     * @return a {@code Enumerable} object
+     */
+    Enumerable<Object> bind(Map<String, Object> parameters) {
+        final PageDataContext context = new PageDataContext(rootSchema, typeFactory, timeZone,
+                internalParameters);
+        context.map.putAll(parameters);
+        return bindable.bind(context);
+    }
+
+    // It follows DataContextImpl in CalciteConnectionImpl.
+    private static class PageDataContext implements DataContext {
+
+        private final SchemaPlus rootSchema;
+        private final JavaTypeFactory typeFactory;
+        private final Map<String, Object> map;
+
+        private PageDataContext(SchemaPlus rootSchema, JavaTypeFactory typeFactory,
+                                TimeZone timeZone, Map<String, Object> internalParameters) {
+            this.rootSchema = rootSchema;
+            this.typeFactory = typeFactory;
+
+            final long time = System.currentTimeMillis();
+            final long offset = timeZone.getOffset(time);
+            this.map = new HashMap<>(internalParameters);
+            map.put(Variable.UTC_TIMESTAMP.camelName, time);
+            map.put(Variable.CURRENT_TIMESTAMP.camelName, time + offset);
+            map.put(Variable.LOCAL_TIMESTAMP.camelName, time + offset);
+            map.put(Variable.TIME_ZONE.camelName, timeZone);
+            map.put(Variable.CANCEL_FLAG.camelName, new AtomicBoolean(false));
+        }
+
+        @Override
+        public SchemaPlus getRootSchema() {
+            return rootSchema;
+        }
+
+        @Override
+        public JavaTypeFactory getTypeFactory() {
+            return typeFactory;
+        }
+
+        @Override
+        public QueryProvider getQueryProvider() {
+            return null;
+        }
+
+        @Override
+        public Object get(String name) {
+            return map.get(name);
+        }
+    }
+}
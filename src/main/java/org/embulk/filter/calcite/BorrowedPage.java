@@ -0,0 +1,151 @@
+package org.embulk.filter.calcite;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Page;
+import org.msgpack.value.ImmutableValue;
+
+/**
+ * A view of a Page that a {@code PageReader} can read without releasing it. A {@code PageReader}
+ * releases the buffer of a Page when it moves to the next one or it's closed, and so outputs that
+ * read Pages and then pass them through read their views instead.
+ *
+ * <p>The view shares the buffer and references of the Page. It must not be read after the Page
+ * is released.
+ */
+final class BorrowedPage extends Page {
+
+    private final Page page;
+    private final BorrowedBuffer buffer;
+
+    BorrowedPage(Page page) {
+        this.page = page;
+        this.buffer = new BorrowedBuffer(page.buffer());
+    }
+
+    /**
+     * Returns views of Pages, e.g. of a batch that the owner releases after a query reads it.
+     */
+    static List<Page> of(List<Page> pages) {
+        final ArrayList<Page> borrowed = new ArrayList<>(pages.size());
+        for (Page page : pages) {
+            borrowed.add(new BorrowedPage(page));
+        }
+        return borrowed;
+    }
+
+    /**
+     * Releases Pages that the caller owns.
+     */
+    static void releaseAll(List<Page> pages) {
+        for (Page page : pages) {
+            page.release();
+        }
+    }
+
+    @Override
+    public Page setStringReferences(List<String> values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Page setValueReferences(List<ImmutableValue> values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<String> getStringReferences() {
+        return page.getStringReferences();
+    }
+
+    @Override
+    public List<ImmutableValue> getValueReferences() {
+        return page.getValueReferences();
+    }
+
+    @Override
+    public String getStringReference(int index) {
+        return page.getStringReference(index);
+    }
+
+    @Override
+    public ImmutableValue getValueReference(int index) {
+        return page.getValueReference(index);
+    }
+
+    @Override
+    public void release() {
+        // the owner of the Page releases it
+    }
+
+    @Override
+    public Buffer buffer() {
+        return buffer;
+    }
+
+    private static final class BorrowedBuffer extends Buffer {
+
+        private final Buffer buffer;
+
+        private BorrowedBuffer(Buffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public byte[] array() {
+            return buffer.array();
+        }
+
+        @Override
+        public int offset() {
+            return buffer.offset();
+        }
+
+        @Override
+        public Buffer offset(int offset) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int limit() {
+            return buffer.limit();
+        }
+
+        @Override
+        public Buffer limit(int limit) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int capacity() {
+            return buffer.capacity();
+        }
+
+        @Override
+        public void setBytes(int index, byte[] source, int sourceIndex, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void setBytes(int index, Buffer source, int sourceIndex, int length) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void getBytes(int index, byte[] dest, int destIndex, int length) {
+            buffer.getBytes(index, dest, destIndex, length);
+        }
+
+        @Override
+        public void getBytes(int index, Buffer dest, int destIndex, int length) {
+            buffer.getBytes(index, dest, destIndex, length);
+        }
+
+        @Override
+        public void release() {
+            // the owner of the Page releases it
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package org.embulk.filter.calcite;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Function;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.time.DateTimeException;
@@ -18,26 +22,40 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.SplittableRandom;
 import java.util.TimeZone;
+import java.util.UUID;
+import org.apache.calcite.jdbc.CalciteConnection;
 import org.apache.calcite.jdbc.Driver;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeField;
+import org.apache.calcite.runtime.Hook;
+import org.apache.calcite.schema.SchemaPlus;
+import org.apache.calcite.util.ImmutableBitSet;
 import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskSource;
+import org.embulk.filter.calcite.adapter.page.LookupTable;
+import org.embulk.filter.calcite.adapter.page.PageBinding;
 import org.embulk.filter.calcite.adapter.page.PageSchema;
 import org.embulk.filter.calcite.adapter.page.PageSchemaFactory;
 import org.embulk.filter.calcite.adapter.page.PageTable;
 import org.embulk.filter.calcite.getter.FilterColumnGetterFactory;
+import org.embulk.filter.calcite.writer.ColumnWriter;
+import org.embulk.filter.calcite.writer.ColumnWriterFactory;
 import org.embulk.input.jdbc.JdbcColumn;
 import org.embulk.input.jdbc.JdbcColumnOption;
 import org.embulk.input.jdbc.JdbcSchema;
 import org.embulk.input.jdbc.getter.ColumnGetter;
 import org.embulk.input.jdbc.getter.ColumnGetterFactory;
 import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.Column;
 import org.embulk.spi.Exec;
 import org.embulk.spi.FilterPlugin;
 import org.embulk.spi.Page;
 import org.embulk.spi.PageBuilder;
 import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
 import org.embulk.spi.Schema;
 import org.embulk.util.config.Config;
 import org.embulk.util.config.ConfigDefault;
@@ -46,12 +64,16 @@ import org.embulk.util.config.ConfigMapperFactory;
 import org.embulk.util.config.Task;
 import org.embulk.util.config.TaskMapper;
 import org.embulk.util.config.modules.ZoneIdModule;
+import org.embulk.util.config.units.SchemaConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class CalciteFilterPlugin implements FilterPlugin {
     protected static final ConfigMapperFactory CONFIG_MAPPER_FACTORY =
-            ConfigMapperFactory.builder().addDefaultModules().addModule(ZoneIdModule.withLegacyNames()).build();
+            ConfigMapperFactory.builder()
+                    .addDefaultModules()
+                    .addModule(ZoneIdModule.withLegacyNames())
+                    .build();
 
     protected static final ConfigMapper CONFIG_MAPPER = CONFIG_MAPPER_FACTORY.createConfigMapper();
     protected static final TaskMapper TASK_MAPPER = CONFIG_MAPPER_FACTORY.createTaskMapper();
@@ -61,31 +83,79 @@ public class CalciteFilterPlugin implements FilterPlugin {
     @Override
     public void transaction(ConfigSource config, Schema inputSchema, FilterPlugin.Control control) {
         final PluginTask task = CONFIG_MAPPER.map(config, PluginTask.class);
+        validateWorkerThreads(task);
+        validateMetricsSamplingInterval(task);
+        validateStringDictionarySize(task);
+        validateMemoCacheSize(task);
+        validateDedup(task);
+        validateSampleRatio(task);
 
-        Properties props = System.getProperties(); // TODO should be configured as config option
+        // The query of this run filters rows by the high-water mark of the previous runs
+        task.setConfiguredQuery(task.getQuery());
+        final Optional<HighWaterMark> highWaterMark = getHighWaterMark(task, inputSchema);
+        final Long lastHighWaterMark = highWaterMark.isPresent()
+                ? highWaterMark.get().load(Paths.get(task.getStateFile().get()))
+                : null;
+        if (highWaterMark.isPresent()) {
+            log.info("High-water mark of the previous runs: {}", lastHighWaterMark);
+            task.setQuery(highWaterMark.get().replacePlaceholder(task.getQuery(),
+                    lastHighWaterMark));
+        }
+
+        // Properties are owned by the task so that filters with different options can run in
+        // the same JVM.
+        final Properties props = new Properties();
         setupPropertiesFromTransaction(task, props);
 
-        // Set input schema in PageSchema
-        PageSchema.schema = inputSchema;
+        final Map<String, LookupTable> lookupTables = loadLookupTables(task);
+
+        // The query is only validated for its schema. Tasks decode columns that it references.
+        final ValidatedQuery validatedQuery = validateQuery(task, props, inputSchema, lookupTables);
+        task.setReferencedColumns(validatedQuery.getReferencedColumns().asList());
+        task.setTaskLimit(getTaskLimit(task, validatedQuery));
+
+        // Fails fast for queries that cannot be executed through a task. Their schema is built
+        // from the plan that is split for the execution.
+        RelDataType taskRowType = null;
+        if (isTaskSort(task)) {
+            taskRowType = getSortQuery(task, inputSchema, lookupTables, props).getRowType();
+        } else if (isTaskAggregation(task)) {
+            taskRowType = getAggregateQuery(task, inputSchema, lookupTables, props).getRowType();
+        }
+
+        if (task.getExplain()) {
+            explainQuery(task, props, inputSchema, lookupTables);
+        }
 
-        // Set page converter as TLS variable in PageTable
-        PageTable.pageConverter.set(newPageConverter(task, inputSchema));
+        final JdbcSchema querySchema = getQuerySchema(
+                taskRowType != null ? taskRowType : validatedQuery.getRowType());
+        task.setQuerySchema(querySchema);
 
-        final String jdbcUrl = buildJdbcUrl();
-        log.info(String.format(Locale.ENGLISH, "Generated Jdbc URL: %s", jdbcUrl));
+        final Schema outputSchema = buildOutputSchema(task, querySchema);
+        getDedupColumns(task, outputSchema);
+        if (taskRowType != null) {
+            newTaskColumnWriters(new ColumnWriterFactory(null),
+                    outputSchema, taskRowType);
+        }
 
+        // Metrics of tasks that run in this JVM are summed up for the job
+        final String jobId = UUID.randomUUID().toString();
+        task.setJobId(jobId);
+        TaskMetrics.startJob(jobId);
+        HighWaterMark.startJob(jobId);
         try {
-            JdbcSchema querySchema;
-            try (Connection conn = newConnection(jdbcUrl, props)) { // SQLException by conn.close()
-                querySchema = getQuerySchema(task, conn);
-                task.setQuerySchema(querySchema);
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
+            control.run(task.dump(), outputSchema);
+            if (highWaterMark.isPresent()) {
+                saveHighWaterMark(task, highWaterMark.get(), lastHighWaterMark,
+                        HighWaterMark.endJob(jobId));
             }
-
-            control.run(task.dump(), buildOutputSchema(task, querySchema));
         } finally {
-            PageTable.pageConverter.remove();
+            HighWaterMark.discardJob(jobId);
+            final TaskMetrics jobMetrics = TaskMetrics.endJob(jobId);
+            log.info("Metrics of tasks in this JVM: {}", jobMetrics);
+            if (jobMetrics.getOperatorStats() != null) {
+                log.info("Operators of tasks in this JVM:\n{}", jobMetrics.getOperatorStats());
+            }
         }
     }
 
@@ -102,13 +172,42 @@ public class CalciteFilterPlugin implements FilterPlugin {
         props.putAll(options);
     }
 
-    private PageConverter newPageConverter(PluginTask task, Schema inputSchema) {
-        return new PageConverter(inputSchema, TimeZone.getTimeZone(task.getDefaultTimeZone()));
+    private PageBinding newPageBinding(PluginTask task, Schema inputSchema,
+                                       ImmutableBitSet referencedColumns, TaskMetrics metrics) {
+        final StringDictionary stringDictionary = task.getStringDictionarySize() > 0
+                ? new StringDictionary(task.getStringDictionarySize(), inputSchema.getColumnCount())
+                : null;
+        final PageBinding binding = new PageBinding(inputSchema,
+                TimeZone.getTimeZone(task.getDefaultTimeZone()), referencedColumns, metrics,
+                stringDictionary);
+        binding.setSampler(task.getSampleRatio(), task.getSampleSeed().isPresent()
+                ? new SplittableRandom(task.getSampleSeed().get())
+                : new SplittableRandom());
+        return binding;
     }
 
-    private Connection newConnection(String jdbcUrl, Properties props) {
+    // Creates a connection that has its own PageSchema as the default schema. The input schema
+    // and lookup tables are passed to PageSchemaFactory by its operand.
+    private Connection newConnection(Properties props, Schema inputSchema,
+                                     Map<String, LookupTable> lookupTables,
+                                     ZoneId defaultTimeZone) {
+        final String jdbcUrl = "jdbc:calcite:";
         try {
-            return new Driver().connect(jdbcUrl, props);
+            final Connection conn = new Driver().connect(jdbcUrl, props);
+            try {
+                final SchemaPlus rootSchema = conn.unwrap(CalciteConnection.class).getRootSchema();
+                final HashMap<String, Object> operand = new HashMap<>();
+                operand.put(PageSchemaFactory.SCHEMA, inputSchema);
+                operand.put(PageSchemaFactory.LOOKUP_TABLES, lookupTables);
+                operand.put(PageSchemaFactory.TIME_ZONE, defaultTimeZone);
+                rootSchema.add("page",
+                        PageSchemaFactory.INSTANCE.create(rootSchema, "page", operand));
+                conn.setSchema("page");
+                return conn;
+            } catch (SQLException | RuntimeException e) {
+                conn.close();
+                throw e;
+            }
         } catch (SQLException e) {
             String message = String.format(Locale.ENGLISH,
                     "Cannot create connections by Jdbc URL: %s", jdbcUrl);
@@ -116,79 +215,43 @@ public class CalciteFilterPlugin implements FilterPlugin {
         }
     }
 
+    // Returns $PAGES of the schema that newConnection adds to the connection
+    private static PageTable getPageTable(Connection conn) throws SQLException {
+        return (PageTable) conn.unwrap(CalciteConnection.class).getRootSchema().getSubSchema("page")
+                .getTable("$PAGES");
+    }
+
+    // Queries are only validated in transaction, and so errors of queries that cannot be compiled
+    // are reported here
     private PreparedStatement createPreparedStatement(Connection conn, String query) {
         try {
             return conn.prepareStatement(query);
         } catch (SQLException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private String buildJdbcUrl() {
-        // build a json model to apply Page storage adaptor
-        // @see https://github.com/apache/calcite/blob/master/example/csv/src/test/resources/model.json
-
-        final HashMap<String, Object> map = new HashMap<>();
-        map.put("version", "1.0");
-        map.put("defaultSchema", "page");
-
-        final ArrayList<Map<String, String>> schemas = new ArrayList<>();
-        final HashMap<String, String> schema = new HashMap<>();
-        schema.put("name", "page");
-        schema.put("type", "custom");
-        schema.put("factory", PageSchemaFactory.class.getName());
-        schemas.add(schema);
-
-        map.put("schemas", schemas);
-
-        final String jsonModel;
-        try {
-            jsonModel = (new ObjectMapper()).writeValueAsString(map);
-        } catch (final JsonProcessingException ex) {
-            throw new RuntimeException("Unexpected fatal error.", ex);
-        }
-
-        // build Jdbc URL
-        return String.format(Locale.ENGLISH, "jdbc:calcite:model=inline:%s", jsonModel);
-    }
-
-    private JdbcSchema getQuerySchema(PluginTask task, Connection conn)
-            throws SQLException {
-        try (Statement stat = conn.createStatement(); // SQLException thrown by conn.close()
-             ResultSet result = executeQuery(stat,
-                     task.getQuery())) { // SQLException thrown by rs.close()
-            return getQuerySchema(result.getMetaData());
+            try {
+                conn.close();
+            } catch (SQLException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw new ConfigException("Cannot prepare a query: " + query, e);
         }
     }
 
-    private JdbcSchema getQuerySchema(ResultSetMetaData metadata)
-            throws SQLException {
+    // Builds the same schema as JDBC ResultSetMetaData that Calcite returns for the row type
+    private JdbcSchema getQuerySchema(RelDataType rowType) {
         final ArrayList<JdbcColumn> columns = new ArrayList<>();
-        for (int i = 0; i < metadata.getColumnCount(); i++) {
-            int index = i + 1; // JDBC column index begins from 1
+        for (RelDataTypeField field : rowType.getFieldList()) {
+            final RelDataType type = field.getType();
             columns.add(new JdbcColumn(
-                    metadata.getColumnLabel(index),
-                    metadata.getColumnTypeName(index),
-                    metadata.getColumnType(index),
-                    metadata.getPrecision(index),
-                    metadata.getScale(index)));
+                    field.getName(),
+                    type.getSqlTypeName().getName(),
+                    type.getSqlTypeName().getJdbcOrdinal(),
+                    type.getPrecision() == RelDataType.PRECISION_NOT_SPECIFIED
+                            ? 0 : type.getPrecision(),
+                    type.getScale() == RelDataType.SCALE_NOT_SPECIFIED ? 0 : type.getScale()));
         }
         return new JdbcSchema(Collections.unmodifiableList(columns));
     }
 
-    private ResultSet executeQuery(Statement stat, String query) {
-        // This is a workaround to avoid NPE caused by commons-compiler v2.7.6
-        ClassLoader cl = Thread.currentThread().getContextClassLoader();
-        Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
-        try {
-            return stat.executeQuery(query);
-        } catch (SQLException e) {
-            throw new ConfigException("Cannot execute a query: " + query, e);
-        } finally {
-            Thread.currentThread().setContextClassLoader(cl);
-        }
-    }
-
     private Schema buildOutputSchema(PluginTask task, JdbcSchema querySchema) {
         ColumnGetterFactory factory = newColumnGetterFactory(task, Optional.<PageBuilder>empty());
         List<ColumnGetter> getters = newColumnGetters(factory, querySchema);
@@ -223,27 +286,504 @@ public class CalciteFilterPlugin implements FilterPlugin {
         return CONFIG_MAPPER.map(CONFIG_MAPPER_FACTORY.newConfigSource(), JdbcColumnOption.class);
     }
 
+    private ValidatedQuery validateQuery(PluginTask task, Properties props, Schema inputSchema,
+                                         Map<String, LookupTable> lookupTables) {
+        try {
+            return ValidatedQuery.validate(task.getQuery(), props,
+                    new PageSchema(inputSchema, lookupTables, task.getDefaultTimeZone()));
+        } catch (Exception e) {
+            throw new ConfigException("Cannot validate a query: " + task.getQuery(), e);
+        }
+    }
+
+    private Optional<BindableQuery> prepareBindableQuery(PluginTask task, Properties props,
+                                                         Schema inputSchema,
+                                                         Map<String, LookupTable> lookupTables) {
+        try {
+            return Optional.of(BindableQuery.prepare(task.getQuery(), props,
+                    new PageSchema(inputSchema, lookupTables, task.getDefaultTimeZone()),
+                    task.getExplain(), task.getMemoCacheSize() > 0));
+        } catch (Exception e) {
+            log.warn(String.format(Locale.ENGLISH,
+                    "Falls back to JDBC execution because the query cannot be executed directly: "
+                            + "%s", task.getQuery()), e);
+            return Optional.empty();
+        }
+    }
+
+    // Logs the plan of the query as tasks execute it, and Java code that is generated for it
+    private void explainQuery(PluginTask task, Properties props, Schema inputSchema,
+                              Map<String, LookupTable> lookupTables) {
+        final ArrayList<Object> sources = new ArrayList<>();
+        final StringBuilder plan = new StringBuilder();
+        final Function<Object, Void> addSource = source -> {
+            sources.add(source);
+            return null;
+        };
+        try (Hook.Closeable ignored = Hook.JAVA_PLAN.addThread(addSource);
+             Connection conn = newConnection(props, inputSchema, lookupTables,
+                     task.getDefaultTimeZone())) {
+            plan.append(explain(conn, "EXPLAIN PLAN WITH TYPE FOR " + task.getQuery()));
+            final PageSchema pageSchema = new PageSchema(inputSchema, lookupTables,
+                    task.getDefaultTimeZone());
+            final Optional<BindableQuery> bindableQuery = task.getDirectExecution()
+                    ? prepareBindableQuery(task, props, inputSchema, lookupTables)
+                    : Optional.empty();
+            if (isTaskSort(task)) {
+                plan.append(SortQuery.prepare(task.getQuery(), props, pageSchema).getPlan());
+            } else if (isTaskAggregation(task)) {
+                plan.append(AggregateQuery.prepare(task.getQuery(), props, pageSchema).getPlan());
+            } else if (bindableQuery.isPresent()) {
+                plan.append(bindableQuery.get().getPlan());
+            } else {
+                plan.append(explain(conn, "EXPLAIN PLAN FOR " + task.getQuery()));
+                // Preparing the statement generates code
+                conn.prepareStatement(task.getQuery()).close();
+            }
+        } catch (Exception e) {
+            log.warn(String.format(Locale.ENGLISH, "Cannot explain query: %s", task.getQuery()), e);
+            return;
+        }
+        log.info("Plan of the query:\n{}", plan);
+        for (Object source : sources) {
+            log.info("Java code generated for the query:\n{}", source);
+        }
+    }
+
+    private static String explain(Connection conn, String explainQuery) throws SQLException {
+        final StringBuilder builder = new StringBuilder();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(explainQuery)) {
+            while (rs.next()) {
+                builder.append(rs.getString(1));
+                if (builder.charAt(builder.length() - 1) != '\n') {
+                    builder.append('\n');
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    private Map<String, LookupTable> loadLookupTables(PluginTask task) {
+        final HashMap<String, LookupTable> lookupTables = new HashMap<>();
+        for (LookupTableTask table : task.getLookupTables()) {
+            if (table.getName().equals("$PAGES") || lookupTables.containsKey(table.getName())) {
+                throw new ConfigException(String.format(Locale.ENGLISH,
+                        "Duplicate table name '%s' in lookup_tables", table.getName()));
+            }
+            lookupTables.put(table.getName(), loadLookupTable(task, table));
+        }
+        return Collections.unmodifiableMap(lookupTables);
+    }
+
+    private LookupTable loadLookupTable(PluginTask task, LookupTableTask table) {
+        final Path path = Paths.get(table.getPath());
+        final String format = table.getFormat().orElse(
+                path.getFileName().toString().endsWith(".jsonl") ? "jsonl" : "csv");
+        final Schema columns = table.getColumns().toSchema();
+        try {
+            final FileTime lastModified = Files.getLastModifiedTime(path);
+            return PreparedQueryCache.INSTANCE.getLookupTable(path, lastModified, format, columns,
+                    table.getKey(), task.getDefaultTimeZone(), () -> {
+                        try {
+                            return LookupTable.load(path, format, columns, table.getKey(),
+                                    TimeZone.getTimeZone(task.getDefaultTimeZone()));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+        } catch (IOException | UncheckedIOException | IllegalArgumentException e) {
+            throw new ConfigException(String.format(Locale.ENGLISH,
+                    "Cannot load lookup table '%s' from %s", table.getName(), path), e);
+        }
+    }
+
+    private boolean isTaskAggregation(PluginTask task) {
+        switch (task.getAggregationScope()) {
+            case "batch":
+                return false;
+            case "task":
+                return true;
+            default:
+                throw new ConfigException(String.format(Locale.ENGLISH,
+                        "Unknown aggregation_scope '%s'. Supported values are 'batch' and 'task'.",
+                        task.getAggregationScope()));
+        }
+    }
+
+    private boolean isTaskSort(PluginTask task) {
+        switch (task.getSortScope()) {
+            case "batch":
+                return false;
+            case "task":
+                if (isTaskAggregation(task)) {
+                    throw new ConfigException(
+                            "aggregation_scope and sort_scope cannot be 'task' at the same time.");
+                }
+                return true;
+            default:
+                throw new ConfigException(String.format(Locale.ENGLISH,
+                        "Unknown sort_scope '%s'. Supported values are 'batch' and 'task'.",
+                        task.getSortScope()));
+        }
+    }
+
+    private boolean isTaskLimit(PluginTask task) {
+        switch (task.getLimitScope()) {
+            case "batch":
+                return false;
+            case "task":
+                if (isTaskAggregation(task) || isTaskSort(task)) {
+                    throw new ConfigException("limit_scope cannot be 'task' with "
+                            + "aggregation_scope: task or sort_scope: task.");
+                }
+                return true;
+            default:
+                throw new ConfigException(String.format(Locale.ENGLISH,
+                        "Unknown limit_scope '%s'. Supported values are 'batch' and 'task'.",
+                        task.getLimitScope()));
+        }
+    }
+
+    // Returns LIMIT of the query that is applied through a task. Each batch of Pages returns at
+    // most this number of rows, and a task emits the first rows of them.
+    private Optional<Long> getTaskLimit(PluginTask task, ValidatedQuery validatedQuery) {
+        if (!isTaskLimit(task)) {
+            return Optional.empty();
+        }
+        if (validatedQuery.getLimit() == null) {
+            throw new ConfigException(String.format(Locale.ENGLISH,
+                    "limit_scope: task requires a query that ends with LIMIT without ORDER BY "
+                            + "nor OFFSET: %s", task.getQuery()));
+        }
+        return Optional.of(validatedQuery.getLimit());
+    }
+
+    private void validateWorkerThreads(PluginTask task) {
+        if (task.getWorkerThreads() < 0) {
+            throw new ConfigException(String.format(Locale.ENGLISH,
+                    "worker_threads must not be negative: %d", task.getWorkerThreads()));
+        }
+        if (task.getWorkerThreads() > 0 && (isTaskAggregation(task) || isTaskSort(task))) {
+            // States of a task are updated by batches in order
+            throw new ConfigException("worker_threads cannot be used with "
+                    + "aggregation_scope: task or sort_scope: task.");
+        }
+    }
+
+    private void validateMetricsSamplingInterval(PluginTask task) {
+        if (task.getMetricsSamplingInterval() < 0) {
+            throw new ConfigException(String.format(Locale.ENGLISH,
+                    "metrics_sampling_interval must not be negative: %d",
+                    task.getMetricsSamplingInterval()));
+        }
+    }
+
+    private void validateDedup(PluginTask task) {
+        if (task.getDedupMemoryBytes() <= 0) {
+            throw new ConfigException(String.format(Locale.ENGLISH,
+                    "dedup_memory_bytes must be positive: %d", task.getDedupMemoryBytes()));
+        }
+        switch (task.getDedupMode()) {
+            case "hash_set":
+            case "bloom_filter":
+                return;
+            default:
+                throw new ConfigException(String.format(Locale.ENGLISH,
+                        "Unknown dedup_mode '%s'. "
+                                + "Supported values are 'hash_set' and 'bloom_filter'.",
+                        task.getDedupMode()));
+        }
+    }
+
+    private void validateSampleRatio(PluginTask task) {
+        if (!(task.getSampleRatio() > 0.0 && task.getSampleRatio() <= 1.0)) {
+            throw new ConfigException(String.format(Locale.ENGLISH,
+                    "sample_ratio must be greater than 0 and at most 1: %s",
+                    task.getSampleRatio()));
+        }
+    }
+
+    private Optional<HighWaterMark> getHighWaterMark(PluginTask task, Schema inputSchema) {
+        if (!task.getHighWaterMarkColumn().isPresent()) {
+            return Optional.empty();
+        }
+        if (!task.getStateFile().isPresent()) {
+            throw new ConfigException("state_file is required for high_water_mark_column.");
+        }
+        if (task.getSampleRatio() < 1.0) {
+            // The high-water mark would advance over records that are not sampled
+            throw new ConfigException("sample_ratio cannot be used with high_water_mark_column.");
+        }
+        return Optional.of(HighWaterMark.of(inputSchema, task.getHighWaterMarkColumn().get()));
+    }
+
+    // Saves the maximum of the high-water marks of the previous runs and this run. It's saved
+    // only when all tasks succeed.
+    private void saveHighWaterMark(PluginTask task, HighWaterMark highWaterMark,
+                                   Long last, Long current) {
+        final Long value = last == null ? current
+                : current == null ? last
+                : Long.valueOf(Math.max(last, current));
+        highWaterMark.save(Paths.get(task.getStateFile().get()), value);
+        log.info("Saved high-water mark: {}", value);
+    }
+
+    // Looks up columns of dedup_columns in the output schema
+    private List<Column> getDedupColumns(PluginTask task, Schema outputSchema) {
+        final ArrayList<Column> columns = new ArrayList<>();
+        for (String name : task.getDedupColumns()) {
+            columns.add(outputSchema.lookupColumn(name));
+        }
+        return columns;
+    }
+
+    private void validateStringDictionarySize(PluginTask task) {
+        if (task.getStringDictionarySize() < 0) {
+            throw new ConfigException(String.format(Locale.ENGLISH,
+                    "string_dictionary_size must not be negative: %d",
+                    task.getStringDictionarySize()));
+        }
+    }
+
+    private void validateMemoCacheSize(PluginTask task) {
+        if (task.getMemoCacheSize() < 0) {
+            throw new ConfigException(String.format(Locale.ENGLISH,
+                    "memo_cache_size must not be negative: %d", task.getMemoCacheSize()));
+        }
+    }
+
+    private AggregateQuery getAggregateQuery(PluginTask task, Schema inputSchema,
+                                             Map<String, LookupTable> lookupTables,
+                                             Properties props) {
+        return PreparedQueryCache.INSTANCE.getAggregate(task.getConfiguredQuery(),
+                task.getQuery(), inputSchema, task.getDefaultTimeZone(), task.getOptions(),
+                lookupTables, () -> {
+                    try {
+                        return AggregateQuery.prepare(task.getQuery(), props, new PageSchema(
+                                inputSchema, lookupTables, task.getDefaultTimeZone()));
+                    } catch (Exception e) {
+                        throw new ConfigException(String.format(Locale.ENGLISH,
+                                "Cannot aggregate rows through a task by query: %s",
+                                task.getQuery()), e);
+                    }
+                });
+    }
+
+    private SortQuery getSortQuery(PluginTask task, Schema inputSchema,
+                                   Map<String, LookupTable> lookupTables, Properties props) {
+        return PreparedQueryCache.INSTANCE.getSort(task.getConfiguredQuery(),
+                task.getQuery(), inputSchema, task.getDefaultTimeZone(), task.getOptions(),
+                lookupTables, () -> {
+                    try {
+                        return SortQuery.prepare(task.getQuery(), props, new PageSchema(
+                                inputSchema, lookupTables, task.getDefaultTimeZone()));
+                    } catch (Exception e) {
+                        throw new ConfigException(String.format(Locale.ENGLISH,
+                                "Cannot sort rows through a task by query: %s",
+                                task.getQuery()), e);
+                    }
+                });
+    }
+
+    private List<ColumnWriter> newTaskColumnWriters(ColumnWriterFactory factory,
+                                                    Schema outputSchema,
+                                                    RelDataType rowType) {
+        try {
+            return newColumnWriters(factory, outputSchema, rowType);
+        } catch (UnsupportedOperationException e) {
+            // Queries executed through a task cannot fall back to JDBC
+            throw new ConfigException(e.getMessage(), e);
+        }
+    }
+
+    private List<ColumnWriter> newColumnWriters(ColumnWriterFactory factory,
+                                                Schema outputSchema,
+                                                RelDataType rowType) {
+        if (rowType.getFieldCount() != outputSchema.getColumnCount()) {
+            throw new UnsupportedOperationException(String.format(Locale.ENGLISH,
+                    "The query returns %d columns while the output schema has %d columns",
+                    rowType.getFieldCount(), outputSchema.getColumnCount()));
+        }
+
+        final ArrayList<ColumnWriter> writers = new ArrayList<>();
+        for (int i = 0; i < outputSchema.getColumnCount(); i++) {
+            writers.add(factory.newColumnWriter(outputSchema.getColumn(i),
+                    rowType.getFieldList().get(i).getType()));
+        }
+        return Collections.unmodifiableList(writers);
+    }
+
     @Override
     public PageOutput open(TaskSource taskSource, Schema inputSchema, Schema outputSchema,
                            PageOutput output) {
         final PluginTask task = TASK_MAPPER.map(taskSource, PluginTask.class);
 
-        // Set input schema in PageSchema for various types of executor plugins
-        PageSchema.schema = inputSchema;
+        final long start = System.nanoTime();
+        final TaskMetrics metrics = new TaskMetrics(task.getMetricsSamplingInterval());
+        PageOutput resultOutput = new RowCountingPageOutput(output, metrics);
+        LimitPageOutput limitOutput = null;
+        if (task.getTaskLimit().isPresent()) {
+            limitOutput = new LimitPageOutput(outputSchema, task.getTaskLimit().get(), resultOutput,
+                    getPageBuilder(Exec.getBufferAllocator(), outputSchema, resultOutput));
+            resultOutput = limitOutput;
+        }
+        if (!task.getDedupColumns().isEmpty()) {
+            final SeenKeySet seenKeys = "bloom_filter".equals(task.getDedupMode())
+                    ? SeenKeySet.newBloomFilter(task.getDedupMemoryBytes())
+                    : SeenKeySet.newHashSet(task.getDedupMemoryBytes());
+            resultOutput = new DedupPageOutput(outputSchema, getDedupColumns(task, outputSchema),
+                    seenKeys, resultOutput,
+                    getPageBuilder(Exec.getBufferAllocator(), outputSchema, resultOutput));
+        }
+        PageOutput filterOutput = newFilterPageOutput(task, inputSchema, outputSchema,
+                resultOutput, metrics);
+        if (task.getHighWaterMarkColumn().isPresent()) {
+            filterOutput = HighWaterMark.of(inputSchema, task.getHighWaterMarkColumn().get())
+                    .newTrackingOutput(inputSchema, task.getJobId(), filterOutput);
+        }
+        if (limitOutput != null) {
+            // Input Pages are not queried anymore once the limit is reached
+            filterOutput = limitOutput.newInputOutput(filterOutput);
+        }
+        metrics.addPrepareNanos(System.nanoTime() - start);
+        return filterOutput;
+    }
+
+    private PageOutput newFilterPageOutput(PluginTask task, Schema inputSchema, Schema outputSchema,
+                                           PageOutput output, TaskMetrics metrics) {
+        final Map<String, LookupTable> lookupTables = loadLookupTables(task);
+
+        final Properties props = new Properties();
+        setupProperties(task, props);
+
+        // Only columns referenced by the query are decoded from Pages
+        final ImmutableBitSet referencedColumns = ImmutableBitSet.of(task.getReferencedColumns());
+
+        if (isTaskAggregation(task)) {
+            final PageBuilder pageBuilder = getPageBuilder(Exec.getBufferAllocator(), outputSchema,
+                    output);
+            final AggregateQuery aggregateQuery = getAggregateQuery(task, inputSchema, lookupTables,
+                    props);
+            final List<ColumnWriter> writers = newTaskColumnWriters(
+                    new ColumnWriterFactory(pageBuilder), outputSchema,
+                    aggregateQuery.getRowType());
+            final QueryRunner queryRunner = aggregateQuery.getWindow() != null
+                    ? new WindowAggregateQueryRunner(pageBuilder, writers, aggregateQuery,
+                            task.getWatermarkDelaySeconds() * 1000L)
+                    : new AggregateQueryRunner(pageBuilder, writers, aggregateQuery);
+            return new FilterPageOutput(pageBuilder,
+                    newPageBinding(task, inputSchema, referencedColumns, metrics),
+                    queryRunner,
+                    metrics,
+                    task.getJobId(),
+                    task.getBatchRows(),
+                    task.getBatchBytes());
+        }
+
+        if (isTaskSort(task)) {
+            final PageBuilder pageBuilder = getPageBuilder(Exec.getBufferAllocator(), outputSchema,
+                    output);
+            final SortQuery sortQuery = getSortQuery(task, inputSchema, lookupTables, props);
+            final List<ColumnWriter> writers = newTaskColumnWriters(
+                    new ColumnWriterFactory(pageBuilder), outputSchema,
+                    sortQuery.getRowType());
+            return new FilterPageOutput(pageBuilder,
+                    newPageBinding(task, inputSchema, referencedColumns, metrics),
+                    new SortQueryRunner(pageBuilder, writers, sortQuery, task.getSortMemoryBytes()),
+                    metrics,
+                    task.getJobId(),
+                    task.getBatchRows(),
+                    task.getBatchBytes());
+        }
+
+        if (task.getWorkerThreads() > 0) {
+            // Each worker owns its binding, query runner and PageBuilder
+            final ArrayList<QueryWorkerPool.Worker> workers = new ArrayList<>();
+            try {
+                for (int i = 0; i < task.getWorkerThreads(); i++) {
+                    final QueryWorkerPool.PageBuffer buffer = new QueryWorkerPool.PageBuffer();
+                    final PageBuilder pageBuilder = getPageBuilder(Exec.getBufferAllocator(),
+                            outputSchema, buffer);
+                    workers.add(new QueryWorkerPool.Worker(pageBuilder,
+                            buffer,
+                            newPageBinding(task, inputSchema, referencedColumns,
+                                    new TaskMetrics(task.getMetricsSamplingInterval())),
+                            newQueryRunner(task, inputSchema, outputSchema, lookupTables, props,
+                                    pageBuilder)));
+                }
+            } catch (RuntimeException e) {
+                for (QueryWorkerPool.Worker worker : workers) {
+                    worker.close();
+                }
+                throw e;
+            }
+            return new FilterPageOutput(
+                    new QueryWorkerPool(Collections.unmodifiableList(workers), output),
+                    metrics,
+                    task.getJobId(),
+                    task.getBatchRows(),
+                    task.getBatchBytes());
+        }
+
+        final PageBuilder pageBuilder = getPageBuilder(Exec.getBufferAllocator(), outputSchema,
+                output);
+        return new FilterPageOutput(pageBuilder,
+                newPageBinding(task, inputSchema, referencedColumns, metrics),
+                newQueryRunner(task, inputSchema, outputSchema, lookupTables, props, pageBuilder),
+                metrics,
+                task.getJobId(),
+                task.getBatchRows(),
+                task.getBatchBytes());
+    }
+
+    // Creates a runner that executes the query for each batch of Pages and writes into pageBuilder
+    private QueryRunner newQueryRunner(PluginTask task, Schema inputSchema, Schema outputSchema,
+                                       Map<String, LookupTable> lookupTables, Properties props,
+                                       PageBuilder pageBuilder) {
+        if (task.getDirectExecution()) {
+            final Optional<BindableQuery> bindableQuery = PreparedQueryCache.INSTANCE.getBindable(
+                    task.getConfiguredQuery(), task.getQuery(), inputSchema,
+                    task.getDefaultTimeZone(), task.getOptions(), lookupTables, task.getExplain(),
+                    task.getMemoCacheSize() > 0,
+                    () -> prepareBindableQuery(task, props, inputSchema, lookupTables));
+            if (bindableQuery.isPresent()) {
+                final ColumnWriterFactory writerFactory = new ColumnWriterFactory(pageBuilder);
+                try {
+                    final List<ColumnWriter> writers = newColumnWriters(writerFactory, outputSchema,
+                            bindableQuery.get().getRowType());
+                    return new DirectQueryRunner(pageBuilder, writers, bindableQuery.get(),
+                            task.getMemoCacheSize());
+                } catch (UnsupportedOperationException e) {
+                    log.warn("Falls back to JDBC execution: {}", e.getMessage());
+                }
+            }
+        }
 
-        final PageBuilder pageBuilder = getPageBuilder(Exec.getBufferAllocator(), outputSchema, output);
-        PageConverter pageConverter = newPageConverter(task, inputSchema);
         ColumnGetterFactory factory = newColumnGetterFactory(task, Optional.of(pageBuilder));
         List<ColumnGetter> getters = newColumnGetters(factory, task.getQuerySchema());
-        Properties props = System.getProperties(); // TODO should be configured as config option
-        setupProperties(task, props);
-        final Connection conn = newConnection(buildJdbcUrl(), props);
-        final PreparedStatement preparedStatement = createPreparedStatement(conn, task.getQuery());
-        return new FilterPageOutput(outputSchema,
-                pageBuilder,
-                pageConverter,
-                getters,
-                preparedStatement); // Transfer ownership of preparedStatement to FilterPageOutput
+        final PreparedQueryCache.PreparedQuery preparedQuery = PreparedQueryCache.INSTANCE.acquire(
+                task.getConfiguredQuery(), task.getQuery(), inputSchema, task.getDefaultTimeZone(),
+                task.getOptions(), lookupTables, () -> {
+                    final Connection conn = newConnection(props, inputSchema, lookupTables,
+                            task.getDefaultTimeZone());
+                    return createPreparedStatement(conn, task.getQuery());
+                });
+        boolean transferred = false;
+        try {
+            // Transfer ownership of preparedQuery to the runner
+            final JdbcQueryRunner runner = new JdbcQueryRunner(outputSchema, pageBuilder, getters,
+                    preparedQuery, getPageTable(preparedQuery.getStatement().getConnection()));
+            transferred = true;
+            return runner;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (!transferred) {
+                preparedQuery.invalidate();
+                preparedQuery.close();
+            }
+        }
     }
 
     public interface PluginTask
@@ -252,6 +792,15 @@ public class CalciteFilterPlugin implements FilterPlugin {
         @Config("query")
         public String getQuery();
 
+        // $HIGH_WATER_MARK in the query is replaced in transaction
+        public void setQuery(String query);
+
+        // The query before $HIGH_WATER_MARK is replaced. Prepared queries are cached by it, so
+        // that a run with a new high-water mark replaces those of the previous run.
+        public String getConfiguredQuery();
+
+        public void setConfiguredQuery(String configuredQuery);
+
         @Config("default_timezone")
         @ConfigDefault("\"UTC\"")
         public ZoneId getDefaultTimeZone();
@@ -260,78 +809,357 @@ public class CalciteFilterPlugin implements FilterPlugin {
 
         public void setQuerySchema(JdbcSchema querySchema);
 
+        // Indexes of input columns that the query references. They're found in transaction.
+        public List<Integer> getReferencedColumns();
+
+        public void setReferencedColumns(List<Integer> referencedColumns);
+
+        // Executes the query by compiled Calcite Bindable and writes results into Pages directly
+        // instead of JDBC ResultSet. It falls back to JDBC when the query cannot be executed so.
+        @Config("direct_execution")
+        @ConfigDefault("false")
+        public boolean getDirectExecution();
+
+        // Logs the optimized plan of the query and Java code generated for it in transaction, and
+        // measures rows and time of its operators by direct_execution. They're logged when a task
+        // finishes.
+        @Config("explain")
+        @ConfigDefault("false")
+        public boolean getExplain();
+
         // TODO support jdbc Url properties
         // TODO support column_options: option
 
         @Config("options")
         @ConfigDefault("{}")
         public Map<String, String> getOptions();
+
+        // Pages are buffered until the number of their records reaches batch_rows, or their size
+        // reaches batch_bytes. The query is then executed once for all of the buffered Pages.
+        // Both of them 0 means that the query is executed for every Page.
+        @Config("batch_rows")
+        @ConfigDefault("0")
+        public int getBatchRows();
+
+        @Config("batch_bytes")
+        @ConfigDefault("0")
+        public long getBatchBytes();
+
+        // Batches of Pages are executed by this number of worker threads in a task, and their
+        // results are emitted in the order of the batches. 0 means that they're executed by the
+        // thread that adds Pages.
+        @Config("worker_threads")
+        @ConfigDefault("0")
+        public int getWorkerThreads();
+
+        // 'batch' applies aggregations in the query to each batch of Pages. 'task' applies them to
+        // all rows of a task, and emits the final groups when the task finishes.
+        @Config("aggregation_scope")
+        @ConfigDefault("\"batch\"")
+        public String getAggregationScope();
+
+        // Windows of TUMBLE and HOP are emitted when the latest timestamp in a task passes their
+        // ends by this delay. Rows that arrive after their windows are emitted are dropped.
+        @Config("watermark_delay_seconds")
+        @ConfigDefault("0")
+        public long getWatermarkDelaySeconds();
+
+        // 'batch' applies ORDER BY, DISTINCT and LIMIT in the query to each batch of Pages. 'task'
+        // applies them to all rows of a task, and emits the sorted rows when the task finishes.
+        @Config("sort_scope")
+        @ConfigDefault("\"batch\"")
+        public String getSortScope();
+
+        // Rows sorted through a task are spilled into temporary files when their estimated size
+        // in memory reaches this value.
+        @Config("sort_memory_bytes")
+        @ConfigDefault("67108864")
+        public long getSortMemoryBytes();
+
+        // Tables loaded from local files, which the query can join with $PAGES by their names.
+        // They're loaded once in the JVM and shared by tasks.
+        @Config("lookup_tables")
+        @ConfigDefault("[]")
+        public List<LookupTableTask> getLookupTables();
+
+        // Time to decode and write rows is measured for every this number of Pages read by the
+        // query, e.g. 1 for all Pages. 0 disables it. Other metrics are always collected, and
+        // logged when a task is closed.
+        @Config("metrics_sampling_interval")
+        @ConfigDefault("0")
+        public int getMetricsSamplingInterval();
+
+        // Result rows whose values of these columns have been seen in the task are dropped. The
+        // first row of each key is emitted as soon as it's written.
+        @Config("dedup_columns")
+        @ConfigDefault("[]")
+        public List<String> getDedupColumns();
+
+        // 'hash_set' tracks hashes of keys exactly until they reach dedup_memory_bytes.
+        // 'bloom_filter' uses dedup_memory_bytes from the start, and may drop unique rows.
+        @Config("dedup_mode")
+        @ConfigDefault("\"hash_set\"")
+        public String getDedupMode();
+
+        @Config("dedup_memory_bytes")
+        @ConfigDefault("67108864")
+        public long getDedupMemoryBytes();
+
+        // The maximum value of this long or timestamp input column is saved into state_file when
+        // a run succeeds. $HIGH_WATER_MARK in the query is replaced with the saved value.
+        @Config("high_water_mark_column")
+        @ConfigDefault("null")
+        public Optional<String> getHighWaterMarkColumn();
+
+        @Config("state_file")
+        @ConfigDefault("null")
+        public Optional<String> getStateFile();
+
+        // 'batch' applies LIMIT in the query to each batch of Pages. 'task' applies it to all rows
+        // of a task, and stops executing the query once the limit is reached. The query must end
+        // with LIMIT without ORDER BY nor OFFSET.
+        @Config("limit_scope")
+        @ConfigDefault("\"batch\"")
+        public String getLimitScope();
+
+        // LIMIT of the query for limit_scope: task. It's found in transaction.
+        public Optional<Long> getTaskLimit();
+
+        public void setTaskLimit(Optional<Long> taskLimit);
+
+        // Scans of $PAGES read each record with this probability, and skip the others before
+        // they're filtered and decoded. sample_seed makes the sample reproducible.
+        @Config("sample_ratio")
+        @ConfigDefault("1.0")
+        public double getSampleRatio();
+
+        @Config("sample_seed")
+        @ConfigDefault("null")
+        public Optional<Long> getSampleSeed();
+
+        // Strings read from Pages are decoded into canonical instances, so that values repeated
+        // over rows share objects. This is the maximum number of them for each task or worker
+        // thread. 0 disables it.
+        @Config("string_dictionary_size")
+        @ConfigDefault("65536")
+        public int getStringDictionarySize();
+
+        // Results of costly expressions of a column in projections are cached by input values
+        // for each task or worker thread by direct_execution. This is the maximum number of them
+        // for each expression. 0 disables it.
+        @Config("memo_cache_size")
+        @ConfigDefault("4096")
+        public int getMemoCacheSize();
+
+        // Metrics of tasks are summed up by this ID in the JVM. It's generated in transaction.
+        public String getJobId();
+
+        public void setJobId(String jobId);
+    }
+
+    public interface LookupTableTask
+            extends Task {
+
+        @Config("name")
+        public String getName();
+
+        @Config("path")
+        public String getPath();
+
+        // 'csv' or 'jsonl'. Files whose names end with '.jsonl' are 'jsonl', and others are 'csv'
+        // by default.
+        @Config("format")
+        @ConfigDefault("null")
+        public Optional<String> getFormat();
+
+        @Config("columns")
+        public SchemaConfig getColumns();
+
+        // A column that the query joins the table on. The table is indexed by it.
+        @Config("key")
+        public String getKey();
     }
 
     private class FilterPageOutput
             implements PageOutput {
 
-        private final Schema outputSchema;
         private final PageBuilder pageBuilder;
-        private final PageConverter pageConverter;
-        private final List<ColumnGetter> getters;
-        private final PreparedStatement preparedStatement;
-
-        private FilterPageOutput(Schema outputSchema,
-                                 PageBuilder pageBuilder,
-                                 PageConverter pageConverter,
-                                 List<ColumnGetter> getters,
-                                 PreparedStatement preparedStatement) {
-            this.outputSchema = outputSchema;
+        private final PageBinding binding;
+        private final QueryRunner queryRunner;
+        private final QueryWorkerPool workerPool;
+        private final TaskMetrics metrics;
+        private final String jobId;
+        private final int batchRows;
+        private final long batchBytes;
+
+        private final ArrayList<Page> bufferedPages;
+        private long bufferedRows;
+        private long bufferedBytes;
+        private boolean closed;
+
+        private FilterPageOutput(PageBuilder pageBuilder,
+                                 PageBinding binding,
+                                 QueryRunner queryRunner,
+                                 TaskMetrics metrics,
+                                 String jobId,
+                                 int batchRows,
+                                 long batchBytes) {
             this.pageBuilder = pageBuilder;
-            this.pageConverter = pageConverter;
-            this.getters = getters;
-            this.preparedStatement = preparedStatement;
+            this.binding = binding;
+            this.queryRunner = queryRunner;
+            this.workerPool = null;
+            this.metrics = metrics;
+            this.jobId = jobId;
+            this.batchRows = batchRows;
+            this.batchBytes = batchBytes;
+            this.bufferedPages = new ArrayList<>();
+            this.bufferedRows = 0;
+            this.bufferedBytes = 0;
+        }
+
+        private FilterPageOutput(QueryWorkerPool workerPool,
+                                 TaskMetrics metrics,
+                                 String jobId,
+                                 int batchRows,
+                                 long batchBytes) {
+            this.pageBuilder = null;
+            this.binding = null;
+            this.queryRunner = null;
+            this.workerPool = workerPool;
+            this.metrics = metrics;
+            this.jobId = jobId;
+            this.batchRows = batchRows;
+            this.batchBytes = batchBytes;
+            this.bufferedPages = new ArrayList<>();
+            this.bufferedRows = 0;
+            this.bufferedBytes = 0;
         }
 
         @Override
         public void add(Page page) {
-            // Set page converter as TLS variable in PageTable
-            PageTable.pageConverter.set(pageConverter);
+            final int rows = PageReader.getRecordCount(page);
+            final int bytes = page.buffer().limit();
+            metrics.addInput(rows, bytes);
+            if (batchRows <= 0 && batchBytes <= 0) {
+                executeQuery(Collections.singletonList(page));
+                return;
+            }
 
-            // Set page as TLS variable in PageTable
-            PageTable.page.set(page);
+            bufferedPages.add(page);
+            bufferedRows += rows;
+            bufferedBytes += bytes;
+            if ((batchRows > 0 && bufferedRows >= batchRows)
+                    || (batchBytes > 0 && bufferedBytes >= batchBytes)) {
+                flushBufferedPages();
+            }
+        }
 
+        private void flushBufferedPages() {
+            if (bufferedPages.isEmpty()) {
+                return;
+            }
 
-            try (ResultSet result = preparedStatement.executeQuery()) {
-                while (result.next()) {
-                    for (int i = 0; i < getters.size(); i++) {
-                        int index = i + 1; // JDBC column index begins from 1
-                        getters.get(i).getAndSet(result, index, outputSchema.getColumn(i));
-                    }
-                    pageBuilder.addRecord();
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException(e); // TODO better exception handling? error messages?
+            try {
+                executeQuery(bufferedPages);
+            } finally {
+                bufferedPages.clear();
+                bufferedRows = 0;
+                bufferedBytes = 0;
+            }
+        }
+
+        private void executeQuery(List<Page> pages) {
+            if (workerPool != null) {
+                workerPool.submit(pages);
+                return;
+            }
+
+            // The query reads views of the Pages, and they're released here even if it doesn't
+            // read all of them, e.g. by LIMIT or by a failure
+            metrics.startBatch();
+            binding.setPages(BorrowedPage.of(pages));
+            try {
+                queryRunner.run(binding);
             } finally {
-                PageTable.pageConverter.remove();
-                PageTable.page.remove();
+                binding.setPages(Collections.<Page>emptyList());
+                metrics.endBatch();
+                BorrowedPage.releaseAll(pages);
             }
         }
 
         @Override
         public void finish() {
+            flushBufferedPages();
+            if (workerPool != null) {
+                workerPool.finish();
+                return;
+            }
+            queryRunner.finish();
             pageBuilder.finish();
         }
 
         @Override
         public void close() {
-            pageBuilder.close();
             try {
-                preparedStatement.close();
-            } catch (SQLException e) {
-                throw new RuntimeException(e);
+                // Pages of a batch that wasn't executed because the task failed
+                BorrowedPage.releaseAll(bufferedPages);
+                bufferedPages.clear();
+                if (workerPool != null) {
+                    workerPool.close();
+                } else {
+                    pageBuilder.close();
+                    binding.close();
+                    queryRunner.close();
+                }
+            } finally {
+                // close() can be called more than once
+                if (!closed) {
+                    closed = true;
+                    if (workerPool != null) {
+                        workerPool.mergeMetricsInto(metrics);
+                    }
+                    log.info("Metrics of a task: {}", metrics);
+                    if (metrics.getOperatorStats() != null) {
+                        log.info("Operators of a task:\n{}", metrics.getOperatorStats());
+                    }
+                    TaskMetrics.addToJob(jobId, metrics);
+                }
             }
         }
     }
 
+    // Counts rows of result Pages into the metrics of a task
+    private static class RowCountingPageOutput
+            implements PageOutput {
+
+        private final PageOutput output;
+        private final TaskMetrics metrics;
+
+        private RowCountingPageOutput(PageOutput output, TaskMetrics metrics) {
+            this.output = output;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void add(Page page) {
+            metrics.addOutput(PageReader.getRecordCount(page));
+            output.add(page);
+        }
+
+        @Override
+        public void finish() {
+            output.finish();
+        }
+
+        @Override
+        public void close() {
+            output.close();
+        }
+    }
+
     @SuppressWarnings("deprecation")
-    private static PageBuilder getPageBuilder(final BufferAllocator bufferAllocator, final Schema schema, final PageOutput output) {
+    private static PageBuilder getPageBuilder(final BufferAllocator bufferAllocator,
+                                              final Schema schema, final PageOutput output) {
         if (HAS_EXEC_GET_PAGE_BUILDER) {
             return Exec.getPageBuilder(bufferAllocator, schema, output);
         } else {
@@ -341,7 +1169,8 @@ public class CalciteFilterPlugin implements FilterPlugin {
 
     private static boolean hasExecGetPageBuilder() {
         try {
-            Exec.class.getMethod("getPageBuilder", BufferAllocator.class, Schema.class, PageOutput.class);
+            Exec.class.getMethod("getPageBuilder", BufferAllocator.class, Schema.class,
+                    PageOutput.class);
         } catch (final NoSuchMethodException ex) {
             return false;
         }
@@ -0,0 +1,193 @@
+package org.embulk.filter.calcite;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Locale;
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drops result rows whose keys have been seen in the task. The first row of a key is emitted as
+ * soon as its Page is added, so that the latency doesn't depend on the input. Keys are tracked
+ * by their 64-bit hashes in a {@code SeenKeySet}.
+ *
+ * <p>A Page without duplicates is passed through as it is. Otherwise its other rows are copied
+ * into a new Page.
+ */
+class DedupPageOutput implements PageOutput {
+
+    private static final Logger log = LoggerFactory.getLogger(DedupPageOutput.class);
+
+    private final Schema schema;
+    private final Column[] keyColumns;
+    private final SeenKeySet seenKeys;
+    private final PageOutput output; // Pages without duplicates are added directly
+    private final PageBuilder pageBuilder; // unique rows of Pages that have duplicates
+    private final PageReader pageReader;
+    private final KeyHasher keyHasher;
+    private final RowCopier rowCopier;
+
+    private long rows;
+    private long duplicates;
+    private boolean saturationLogged;
+
+    /**
+     * Creates an output that drops duplicates.
+     *
+     * @param schema      a {@code Schema} of result Pages
+     * @param keyColumns  columns of keys in {@code schema}
+     * @param seenKeys    a set of hashes of keys that the task has seen
+     * @param output      an output that unique rows are added into
+     * @param pageBuilder a {@code PageBuilder} of {@code schema} into {@code output}
+     */
+    DedupPageOutput(Schema schema, List<Column> keyColumns, SeenKeySet seenKeys, PageOutput output,
+                    PageBuilder pageBuilder) {
+        this.schema = schema;
+        this.keyColumns = keyColumns.toArray(new Column[0]);
+        this.seenKeys = seenKeys;
+        this.output = output;
+        this.pageBuilder = pageBuilder;
+        this.pageReader = PageConverter.newPageReader(schema);
+        this.keyHasher = new KeyHasher(pageReader);
+        this.rowCopier = new RowCopier(pageReader, pageBuilder);
+    }
+
+    @Override
+    public void add(Page page) {
+        final int recordCount = PageReader.getRecordCount(page);
+        boolean[] duplicated = null;
+        final Page borrowed = new BorrowedPage(page); // page itself may be passed through
+        pageReader.setPage(borrowed);
+        for (int i = 0; pageReader.nextRecord(); i++) {
+            if (!seenKeys.add(keyHasher.hash(keyColumns))) {
+                if (duplicated == null) {
+                    duplicated = new boolean[recordCount];
+                }
+                duplicated[i] = true;
+                duplicates++;
+            }
+        }
+        rows += recordCount;
+        logSaturation();
+
+        if (duplicated == null) {
+            output.add(page);
+            return;
+        }
+
+        pageReader.setPage(borrowed);
+        for (int i = 0; pageReader.nextRecord(); i++) {
+            if (!duplicated[i]) {
+                schema.visitColumns(rowCopier);
+                pageBuilder.addRecord();
+            }
+        }
+        pageBuilder.flush();
+        page.release();
+    }
+
+    @Override
+    public void finish() {
+        pageBuilder.finish();
+        log.info(String.format(Locale.ENGLISH,
+                "Dropped %d duplicates of %d rows (duplicate ratio %.4f) with %d bytes of "
+                        + "seen keys%s.",
+                duplicates, rows, rows > 0 ? (double) duplicates / rows : 0.0,
+                seenKeys.getMemoryBytes(),
+                seenKeys.isSaturated() ? ", which reached the memory limit" : ""));
+    }
+
+    @Override
+    public void close() {
+        try {
+            pageReader.close();
+        } finally {
+            pageBuilder.close();
+        }
+    }
+
+    private void logSaturation() {
+        if (!saturationLogged && seenKeys.isSaturated()) {
+            saturationLogged = true;
+            log.warn("Seen keys reached dedup_memory_bytes: {} bytes. "
+                    + "Rows of new keys are not deduplicated anymore.", seenKeys.getMemoryBytes());
+        }
+    }
+
+    // Hashes values of key columns of the current record into 64 bits
+    private static final class KeyHasher implements ColumnVisitor {
+
+        private static final long PRIME = 0x100000001b3L; // of FNV-1a
+        private static final long NULL = 0x9e3779b97f4a7c15L;
+
+        private final PageReader pageReader;
+        private long hash;
+
+        private KeyHasher(PageReader pageReader) {
+            this.pageReader = pageReader;
+        }
+
+        long hash(Column[] columns) {
+            hash = 0xcbf29ce484222325L;
+            for (Column column : columns) {
+                if (pageReader.isNull(column)) {
+                    add(NULL);
+                } else {
+                    column.visit(this);
+                }
+            }
+            return SeenKeySet.mix(hash);
+        }
+
+        private void add(long value) {
+            hash = (hash ^ value) * PRIME;
+        }
+
+        private void add(String value) {
+            add(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * PRIME;
+            }
+        }
+
+        @Override
+        public void booleanColumn(Column column) {
+            add(pageReader.getBoolean(column) ? 1L : 2L);
+        }
+
+        @Override
+        public void longColumn(Column column) {
+            add(pageReader.getLong(column));
+        }
+
+        @Override
+        public void doubleColumn(Column column) {
+            add(Double.doubleToLongBits(pageReader.getDouble(column)));
+        }
+
+        @Override
+        public void stringColumn(Column column) {
+            add(pageReader.getString(column));
+        }
+
+        @Override
+        public void timestampColumn(Column column) {
+            final Instant instant = PageConverter.getTimestampInstant(pageReader,
+                    column.getIndex());
+            add(instant.getEpochSecond());
+            add(instant.getNano());
+        }
+
+        @Override
+        public void jsonColumn(Column column) {
+            add(pageReader.getJson(column).toJson());
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package org.embulk.filter.calcite;
+
+import java.util.List;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.embulk.filter.calcite.adapter.page.PageBinding;
+import org.embulk.filter.calcite.writer.ColumnWriter;
+import org.embulk.spi.PageBuilder;
+
+/**
+ * Executes a query by a compiled {@code BindableQuery}, and writes its result rows into a
+ * {@code PageBuilder} by {@code ColumnWriter}s without JDBC.
+ */
+class DirectQueryRunner implements QueryRunner {
+
+    private final PageBuilder pageBuilder;
+    private final List<ColumnWriter> writers;
+    private final BindableQuery bindableQuery;
+    private final ExpressionMemo expressionMemo; // null if the query has no memoized expressions
+    private final OperatorStats operatorStats; // null if the query is not profiled
+
+    /**
+     * Creates a runner.
+     *
+     * @param pageBuilder    a {@code PageBuilder} that result rows are written into
+     * @param writers        column writers of the output schema
+     * @param bindableQuery  a compiled query
+     * @param memoCacheSize  the maximum number of results of each memoized expression. 0 disables
+     *                       caching them.
+     */
+    DirectQueryRunner(PageBuilder pageBuilder,
+                      List<ColumnWriter> writers,
+                      BindableQuery bindableQuery,
+                      int memoCacheSize) {
+        this.pageBuilder = pageBuilder;
+        this.writers = writers;
+        this.bindableQuery = bindableQuery;
+        this.expressionMemo = memoCacheSize > 0
+                ? bindableQuery.newExpressionMemo(memoCacheSize)
+                : null;
+        this.operatorStats = bindableQuery.newOperatorStats();
+    }
+
+    @Override
+    public void run(PageBinding binding) {
+        try {
+            writeRows(bindableQuery.bind(binding, expressionMemo, operatorStats), pageBuilder,
+                    writers, binding.getMetrics());
+        } finally {
+            if (expressionMemo != null && binding.getMetrics() != null) {
+                expressionMemo.addLookupsTo(binding.getMetrics());
+            }
+            if (operatorStats != null && binding.getMetrics() != null) {
+                binding.getMetrics().addOperatorStats(operatorStats);
+            }
+        }
+    }
+
+    /**
+     * Writes result rows of a compiled query into {@code PageBuilder}.
+     *
+     * @param rows        result rows in Calcite's internal representation
+     * @param pageBuilder a {@code PageBuilder} object
+     * @param writers     column writers of the output schema
+     */
+    static void writeRows(Enumerable<Object> rows, PageBuilder pageBuilder,
+                          List<ColumnWriter> writers) {
+        writeRows(rows, pageBuilder, writers, null);
+    }
+
+    /**
+     * Writes result rows of a compiled query into {@code PageBuilder}, and measures writes while
+     * rows of a sampled Page are read.
+     *
+     * @param rows        result rows in Calcite's internal representation
+     * @param pageBuilder a {@code PageBuilder} object
+     * @param writers     column writers of the output schema
+     * @param metrics     metrics of the task, or null not to measure writes
+     */
+    static void writeRows(Enumerable<Object> rows, PageBuilder pageBuilder,
+                          List<ColumnWriter> writers, TaskMetrics metrics) {
+        final Enumerator<Object> enumerator = rows.enumerator();
+        try {
+            while (enumerator.moveNext()) {
+                if (metrics != null && metrics.isSampling()) {
+                    final long start = System.nanoTime();
+                    writeRow(enumerator.current(), pageBuilder, writers);
+                    metrics.addWriteNanos(System.nanoTime() - start);
+                } else {
+                    writeRow(enumerator.current(), pageBuilder, writers);
+                }
+            }
+        } finally {
+            enumerator.close();
+        }
+    }
+
+    private static void writeRow(Object current, PageBuilder pageBuilder,
+                                 List<ColumnWriter> writers) {
+        final int columnCount = writers.size();
+        if (columnCount == 1 && !(current instanceof Object[])) {
+            // a row of a single column is represented as its value
+            writers.get(0).write(current);
+        } else {
+            final Object[] row = (Object[]) current;
+            for (int i = 0; i < columnCount; i++) {
+                writers.get(i).write(row[i]);
+            }
+        }
+        pageBuilder.addRecord();
+    }
+
+    @Override
+    public void close() {
+        // BindableQuery is shared by tasks, and nothing to release here.
+    }
+}
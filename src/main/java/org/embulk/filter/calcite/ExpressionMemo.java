@@ -0,0 +1,129 @@
+package org.embulk.filter.calcite;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.calcite.DataContext;
+
+/**
+ * Results of memoized expressions by their input values in a task. Code generated for a
+ * {@code BindableQuery} calls {@link #evaluate} instead of evaluating a costly expression of a
+ * column, so that a repeated value costs a hash lookup.
+ *
+ * <p>Each expression has an LRU cache of at most {@code maxEntries} results. An expression is not
+ * cached anymore when most of its first lookups miss, because its inputs don't repeat. The first
+ * lookups are four times as many as {@code maxEntries}, so that a cache is warmed up and filled
+ * before it's judged.
+ *
+ * <p>This is not thread-safe. Each {@code DirectQueryRunner} has its own.
+ */
+public final class ExpressionMemo {
+
+    // Name of the memo in DataContext
+    static final String KEY = "expressionMemo";
+
+    private static final long MIN_SAMPLE_LOOKUPS = 1024;
+    private static final Object NULL = new Object();
+
+    private final List<MemoizedExpression> expressions;
+    private final Cache[] caches;
+    private long hits;
+    private long misses;
+
+    /**
+     * Creates empty caches of expressions.
+     *
+     * @param expressions memoized expressions of a query
+     * @param maxEntries  the maximum number of results of each expression
+     */
+    ExpressionMemo(List<MemoizedExpression> expressions, int maxEntries) {
+        this.expressions = expressions;
+        this.caches = new Cache[expressions.size()];
+        for (int i = 0; i < caches.length; i++) {
+            caches[i] = new Cache(maxEntries);
+        }
+    }
+
+    /**
+     * Returns the result of a memoized expression for an input value. It's evaluated directly when
+     * the execution doesn't have a memo.
+     *
+     * @param root  a {@code DataContext} of the execution
+     * @param id    the ID of the expression
+     * @param input a value of the input column, which may be null
+     * @return the result in Calcite's internal representation
+     */
+    @SuppressWarnings("unchecked")
+    public static Object evaluate(DataContext root, int id, Object input) {
+        final ExpressionMemo memo = (ExpressionMemo) root.get(KEY);
+        if (memo == null) {
+            return ((List<MemoizedExpression>) root.get(MemoizedExpression.EXPRESSIONS)).get(id)
+                    .evaluate(root, input);
+        }
+        return memo.get(root, id, input);
+    }
+
+    private Object get(DataContext root, int id, Object input) {
+        final Cache cache = caches[id];
+        if (cache.disabled) {
+            return expressions.get(id).evaluate(root, input);
+        }
+        final Object key = input != null ? input : NULL;
+        final Object cached = cache.get(key);
+        if (cached != null) {
+            hits++;
+            cache.countLookup(false);
+            return cached == NULL ? null : cached;
+        }
+
+        misses++;
+        final Object result = expressions.get(id).evaluate(root, input);
+        cache.put(key, result != null ? result : NULL);
+        cache.countLookup(true);
+        return result;
+    }
+
+    /**
+     * Adds hits and misses since the last call to metrics.
+     */
+    void addLookupsTo(TaskMetrics metrics) {
+        metrics.addMemoLookups(hits, misses);
+        hits = 0;
+        misses = 0;
+    }
+
+    private static class Cache extends LinkedHashMap<Object, Object> {
+
+        private final int maxEntries;
+        private final long sampleLookups;
+        private long lookups;
+        private long misses;
+        private boolean disabled;
+
+        private Cache(int maxEntries) {
+            super(16, 0.75f, true); // in access order
+            this.maxEntries = maxEntries;
+            this.sampleLookups = Math.max(MIN_SAMPLE_LOOKUPS, 4L * maxEntries);
+        }
+
+        // Disables the cache when most of its first lookups miss
+        private void countLookup(boolean miss) {
+            if (lookups >= sampleLookups) {
+                return;
+            }
+            lookups++;
+            if (miss) {
+                misses++;
+            }
+            if (lookups == sampleLookups && misses > sampleLookups / 2) {
+                disabled = true;
+                clear();
+            }
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+            return size() > maxEntries;
+        }
+    }
+}
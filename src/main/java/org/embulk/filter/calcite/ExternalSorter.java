@@ -0,0 +1,563 @@
+package org.embulk.filter.calcite;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.Value;
+
+/**
+ * Sorts rows that don't fit in memory. Rows are buffered on heap until their estimated size
+ * reaches the memory budget. Then they're sorted and spilled into a temporary file as a run. Runs
+ * are compressed by Deflate, and they're memory-mapped when they're merged. At most
+ * {@link #MAX_FAN_IN} runs are merged at once, so that more runs are merged into intermediate runs
+ * beforehand.
+ *
+ * <p>Rows are in Calcite's internal representation. Values must be {@code null}, {@code Long},
+ * {@code Integer}, {@code Short}, {@code Byte}, {@code Double}, {@code Float}, {@code Boolean},
+ * {@code String}, {@code BigDecimal} or msgpack {@code Value} of json.
+ *
+ * <p>The sort is stable. Rows that the comparator regards as equal are returned in the order
+ * that they are added.
+ */
+class ExternalSorter implements AutoCloseable {
+
+    private static final byte NULL = 0;
+    private static final byte LONG = 1;
+    private static final byte INTEGER = 2;
+    private static final byte SHORT = 3;
+    private static final byte BYTE = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte FLOAT = 6;
+    private static final byte TRUE = 7;
+    private static final byte FALSE = 8;
+    private static final byte STRING = 9;
+    private static final byte DECIMAL = 10;
+    private static final byte JSON = 11;
+
+    /**
+     * The maximum number of runs that are merged at once, including rows on heap. Each of them
+     * has an inflater and a buffer.
+     */
+    static final int MAX_FAN_IN = 16;
+
+    private final Comparator<Object[]> comparator;
+    private final boolean distinct;
+    private final long memoryBytes;
+
+    private final ArrayList<Object[]> rows;
+    private long rowBytes;
+    private final ArrayList<Path> runs;
+    private final ArrayList<RunReader> readers;
+
+    private long rowCount;
+    private int runCount;
+    private long peakMemoryBytes;
+    private long spilledBytes;
+
+    /**
+     * Creates a sorter.
+     *
+     * @param comparator  an order of rows
+     * @param distinct    {@code true} to return only the first of rows that the comparator regards
+     *                    as equal
+     * @param memoryBytes a budget of estimated bytes of rows buffered on heap
+     */
+    ExternalSorter(Comparator<Object[]> comparator, boolean distinct, long memoryBytes) {
+        this.comparator = comparator;
+        this.distinct = distinct;
+        this.memoryBytes = memoryBytes;
+        this.rows = new ArrayList<>();
+        this.rowBytes = 0;
+        this.runs = new ArrayList<>();
+        this.readers = new ArrayList<>();
+    }
+
+    /**
+     * Adds a row. The sorter keeps the array, so the caller must not modify it.
+     *
+     * @param row a row
+     */
+    void add(Object[] row) {
+        rows.add(row);
+        rowCount++;
+        rowBytes += estimateBytes(row);
+        if (rowBytes >= memoryBytes) {
+            spill();
+        }
+    }
+
+    /**
+     * Returns all rows in order. It can be called only once.
+     *
+     * @return an iterator of sorted rows
+     */
+    Iterator<Object[]> sorted() {
+        peakMemoryBytes = Math.max(peakMemoryBytes, rowBytes);
+        rows.sort(comparator);
+
+        // The oldest runs are merged first and replaced by the merged run to keep the sort stable
+        while (runs.size() >= MAX_FAN_IN) {
+            final List<Path> merging = new ArrayList<>(runs.subList(0, MAX_FAN_IN));
+            final Path merged;
+            try {
+                merged = writeRun(merge(merging, null));
+            } finally {
+                closeReaders();
+            }
+            runs.subList(0, MAX_FAN_IN).clear();
+            runs.add(0, merged);
+            for (Path run : merging) {
+                deleteRun(run);
+            }
+        }
+        return merge(runs, rows.iterator());
+    }
+
+    // Merges runs and rows on heap that follow them, and skips duplicates of DISTINCT
+    private Iterator<Object[]> merge(List<Path> runsToMerge, Iterator<Object[]> rest) {
+        final ArrayList<Iterator<Object[]>> iterators = new ArrayList<>(runsToMerge.size() + 1);
+        for (Path run : runsToMerge) {
+            final RunReader reader = new RunReader(run);
+            readers.add(reader);
+            iterators.add(reader);
+        }
+        if (rest != null) {
+            iterators.add(rest);
+        }
+
+        final Iterator<Object[]> merged = iterators.size() == 1
+                ? iterators.get(0)
+                : new MergeIterator(iterators);
+        return distinct ? new DistinctIterator(merged) : merged;
+    }
+
+    long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Returns the number of runs spilled from heap. Intermediate runs of merges are not counted,
+     * but their bytes are counted by {@link #getSpilledBytes()}.
+     */
+    int getRunCount() {
+        return runCount;
+    }
+
+    long getPeakMemoryBytes() {
+        return Math.max(peakMemoryBytes, rowBytes);
+    }
+
+    long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    @Override
+    public void close() {
+        rows.clear();
+        closeReaders();
+        for (Path run : runs) {
+            deleteRun(run);
+        }
+        runs.clear();
+    }
+
+    // Buffers of runs are unmapped before their files are deleted
+    private void closeReaders() {
+        for (RunReader reader : readers) {
+            reader.close();
+        }
+        readers.clear();
+    }
+
+    private static void deleteRun(Path run) {
+        try {
+            Files.deleteIfExists(run);
+        } catch (IOException e) {
+            // the file is left in the temporary directory
+        }
+    }
+
+    private void spill() {
+        peakMemoryBytes = Math.max(peakMemoryBytes, rowBytes);
+        rows.sort(comparator);
+        runs.add(writeRun(rows.iterator()));
+        runCount++;
+        rows.clear();
+        rowBytes = 0;
+    }
+
+    // Writes sorted rows into a new temporary file
+    private Path writeRun(Iterator<Object[]> sortedRows) {
+        Path run = null;
+        try {
+            run = Files.createTempFile("embulk-filter-calcite-", ".run");
+            final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(run)), deflater, 65536))) {
+                Object[] previous = null;
+                while (sortedRows.hasNext()) {
+                    final Object[] row = sortedRows.next();
+                    // duplicates don't have to be spilled
+                    if (distinct && previous != null && comparator.compare(previous, row) == 0) {
+                        continue;
+                    }
+                    writeRow(out, row);
+                    previous = row;
+                }
+                out.writeInt(-1); // the end of the run
+            } finally {
+                deflater.end();
+            }
+            spilledBytes += Files.size(run);
+            return run;
+        } catch (IOException e) {
+            if (run != null) {
+                deleteRun(run);
+            }
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void writeRow(DataOutputStream out, Object[] row) throws IOException {
+        out.writeInt(row.length);
+        for (Object value : row) {
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value instanceof Long) {
+                out.writeByte(LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Integer) {
+                out.writeByte(INTEGER);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Short) {
+                out.writeByte(SHORT);
+                out.writeShort((Short) value);
+            } else if (value instanceof Byte) {
+                out.writeByte(BYTE);
+                out.writeByte((Byte) value);
+            } else if (value instanceof Double) {
+                out.writeByte(DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof Float) {
+                out.writeByte(FLOAT);
+                out.writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                out.writeByte((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof String) {
+                out.writeByte(STRING);
+                writeBytes(out, ((String) value).getBytes(StandardCharsets.UTF_8));
+            } else if (value instanceof BigDecimal) {
+                out.writeByte(DECIMAL);
+                writeBytes(out, value.toString().getBytes(StandardCharsets.UTF_8));
+            } else if (value instanceof Value) {
+                out.writeByte(JSON);
+                try (MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+                    packer.packValue((Value) value);
+                    writeBytes(out, packer.toByteArray());
+                }
+            } else {
+                throw new UnsupportedOperationException(
+                        "Cannot spill a value of " + value.getClass());
+            }
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static Object[] readRow(DataInputStream in, int length) throws IOException {
+        final Object[] row = new Object[length];
+        for (int i = 0; i < row.length; i++) {
+            final byte type = in.readByte();
+            switch (type) {
+                case NULL:
+                    break;
+                case LONG:
+                    row[i] = in.readLong();
+                    break;
+                case INTEGER:
+                    row[i] = in.readInt();
+                    break;
+                case SHORT:
+                    row[i] = in.readShort();
+                    break;
+                case BYTE:
+                    row[i] = in.readByte();
+                    break;
+                case DOUBLE:
+                    row[i] = in.readDouble();
+                    break;
+                case FLOAT:
+                    row[i] = in.readFloat();
+                    break;
+                case TRUE:
+                    row[i] = Boolean.TRUE;
+                    break;
+                case FALSE:
+                    row[i] = Boolean.FALSE;
+                    break;
+                case STRING:
+                    row[i] = new String(readBytes(in), StandardCharsets.UTF_8);
+                    break;
+                case DECIMAL:
+                    row[i] = new BigDecimal(new String(readBytes(in), StandardCharsets.UTF_8));
+                    break;
+                case JSON:
+                    try (MessageUnpacker unpacker = MessagePack.newDefaultUnpacker(readBytes(in))) {
+                        row[i] = unpacker.unpackValue();
+                    }
+                    break;
+                default:
+                    throw new IOException("Broken run: unknown type " + type);
+            }
+        }
+        return row;
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    // A rough estimation of heap bytes that a row retains
+    private static long estimateBytes(Object[] row) {
+        long bytes = 16 + 8L * row.length;
+        for (Object value : row) {
+            if (value instanceof String) {
+                bytes += 40 + 2L * ((String) value).length();
+            } else if (value instanceof BigDecimal || value instanceof Value) {
+                bytes += 64;
+            } else if (value != null && !(value instanceof Boolean)) {
+                bytes += 16;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Releases a memory-mapped buffer without waiting for GC, so that its file can be deleted
+     * even on Windows and the address space isn't retained. The buffer must not be read any more.
+     * It's left to GC if the JVM doesn't allow it.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            // Java 9 and later
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // falls back to Java 8
+        }
+        try {
+            final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // left to GC
+        }
+    }
+
+    // Reads rows of a run from a memory-mapped file
+    private static class RunReader implements Iterator<Object[]> {
+
+        private final DataInputStream in;
+        private MappedByteBuffer buffer;
+        private Object[] next;
+
+        RunReader(Path run) {
+            try (FileChannel channel = FileChannel.open(run, StandardOpenOption.READ)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.in = new DataInputStream(new BufferedInputStream(
+                    new InflaterInputStream(new ByteBufferInputStream(buffer))));
+            advance();
+        }
+
+        private void advance() {
+            try {
+                final int length = in.readInt();
+                if (length < 0) {
+                    close();
+                    return;
+                }
+                next = readRow(in, length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Object[] next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            final Object[] current = next;
+            advance();
+            return current;
+        }
+
+        void close() {
+            next = null;
+            try {
+                in.close(); // releases the inflater
+            } catch (IOException e) {
+                // nothing to do for a memory-mapped buffer
+            }
+            if (buffer != null) {
+                unmap(buffer);
+                buffer = null;
+            }
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, n);
+            return n;
+        }
+    }
+
+    // Merges sorted iterators. Ties are broken by the order of iterators to keep the sort stable.
+    private class MergeIterator implements Iterator<Object[]> {
+
+        private final PriorityQueue<Cursor> queue;
+
+        MergeIterator(List<Iterator<Object[]>> iterators) {
+            this.queue = new PriorityQueue<>(iterators.size(), (a, b) -> {
+                final int c = comparator.compare(a.row, b.row);
+                return c != 0 ? c : Integer.compare(a.index, b.index);
+            });
+            for (int i = 0; i < iterators.size(); i++) {
+                final Iterator<Object[]> iterator = iterators.get(i);
+                if (iterator.hasNext()) {
+                    queue.add(new Cursor(i, iterator));
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public Object[] next() {
+            final Cursor cursor = queue.poll();
+            if (cursor == null) {
+                throw new NoSuchElementException();
+            }
+            final Object[] row = cursor.row;
+            if (cursor.iterator.hasNext()) {
+                cursor.row = cursor.iterator.next();
+                queue.add(cursor);
+            }
+            return row;
+        }
+    }
+
+    private static class Cursor {
+
+        private final int index;
+        private final Iterator<Object[]> iterator;
+        private Object[] row;
+
+        Cursor(int index, Iterator<Object[]> iterator) {
+            this.index = index;
+            this.iterator = iterator;
+            this.row = iterator.next();
+        }
+    }
+
+    // Skips rows equal to the previous one
+    private class DistinctIterator implements Iterator<Object[]> {
+
+        private final Iterator<Object[]> iterator;
+        private Object[] next;
+
+        DistinctIterator(Iterator<Object[]> iterator) {
+            this.iterator = iterator;
+            this.next = iterator.hasNext() ? iterator.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Object[] next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            final Object[] current = next;
+            next = null;
+            while (iterator.hasNext()) {
+                final Object[] row = iterator.next();
+                if (comparator.compare(current, row) != 0) {
+                    next = row;
+                    break;
+                }
+            }
+            return current;
+        }
+    }
+}
@@ -0,0 +1,524 @@
+package org.embulk.filter.calcite;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import org.apache.calcite.rel.core.AggregateCall;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.type.SqlTypeName;
+
+/**
+ * Accumulates rows into groups of {@code Aggregate} and holds their states until the task finishes.
+ * Rows are given in Calcite's internal representation, and results are returned so, too.
+ *
+ * <p>Groups are indexed by a hash table that is open-addressed over primitive {@code long}s when
+ * the group key is a single integral, boolean or timestamp column. Aggregate states are kept in
+ * primitive arrays indexed by group numbers.
+ */
+class GroupAggregator {
+
+    private final int[] keyFields;
+    private final Accumulator[] accumulators;
+
+    // Either of them indexes groups
+    private final LongIntHashMap longIndex;
+    private final HashMap<Object, Integer> objectIndex;
+    private int nullGroup;
+
+    private final ArrayList<Object[]> groupKeys;
+
+    private GroupAggregator(int[] keyFields, boolean longKey, Accumulator[] accumulators) {
+        this.keyFields = keyFields;
+        this.accumulators = accumulators;
+        this.longIndex = longKey ? new LongIntHashMap() : null;
+        this.objectIndex = longKey ? null : new HashMap<>();
+        this.nullGroup = -1;
+        this.groupKeys = new ArrayList<>();
+    }
+
+    /**
+     * Creates an aggregator for {@code Aggregate} that has a simple group set.
+     *
+     * @param inputRowType a row type of the aggregate input
+     * @param keyFields    indexes of group key fields in input rows
+     * @param calls        aggregate calls
+     * @return a {@code GroupAggregator} object
+     * @throws UnsupportedOperationException if any of aggregate calls is not supported
+     */
+    static GroupAggregator create(RelDataType inputRowType, int[] keyFields,
+                                  List<AggregateCall> calls) {
+        final Accumulator[] accumulators = new Accumulator[calls.size()];
+        for (int i = 0; i < accumulators.length; i++) {
+            accumulators[i] = newAccumulator(inputRowType, calls.get(i));
+        }
+        final boolean longKey = keyFields.length == 1
+                && isLongKeyType(
+                        inputRowType.getFieldList().get(keyFields[0]).getType().getSqlTypeName());
+        return new GroupAggregator(keyFields, longKey, accumulators);
+    }
+
+    /**
+     * Adds a row into the group that it belongs to.
+     *
+     * @param row an input row
+     */
+    void add(Object[] row) {
+        final int group = groupOf(row);
+        for (Accumulator accumulator : accumulators) {
+            accumulator.add(group, row);
+        }
+    }
+
+    /**
+     * Returns rows of groups. A row has group keys followed by results of aggregate calls as
+     * {@code Aggregate} returns. An aggregate without group keys returns a row even if no rows
+     * are added.
+     *
+     * @return a list of rows
+     */
+    List<Object[]> getGroups() {
+        if (keyFields.length == 0 && groupKeys.isEmpty()) {
+            newGroup(new Object[0]);
+        }
+
+        final ArrayList<Object[]> groups = new ArrayList<>(groupKeys.size());
+        for (int group = 0; group < groupKeys.size(); group++) {
+            final Object[] row = Arrays.copyOf(groupKeys.get(group),
+                    keyFields.length + accumulators.length);
+            for (int i = 0; i < accumulators.length; i++) {
+                row[keyFields.length + i] = accumulators[i].result(group);
+            }
+            groups.add(row);
+        }
+        return Collections.unmodifiableList(groups);
+    }
+
+    int getGroupCount() {
+        return groupKeys.size();
+    }
+
+    private int groupOf(Object[] row) {
+        if (longIndex != null) {
+            final Object value = row[keyFields[0]];
+            if (value == null) {
+                if (nullGroup < 0) {
+                    nullGroup = newGroup(row);
+                }
+                return nullGroup;
+            }
+
+            final long key = value instanceof Boolean
+                    ? ((Boolean) value ? 1L : 0L)
+                    : ((Number) value).longValue();
+            int group = longIndex.get(key);
+            if (group < 0) {
+                group = newGroup(row);
+                longIndex.put(key, group);
+            }
+            return group;
+        }
+
+        final Object key;
+        if (keyFields.length == 1) {
+            key = row[keyFields[0]];
+        } else {
+            final Object[] values = new Object[keyFields.length];
+            for (int i = 0; i < keyFields.length; i++) {
+                values[i] = row[keyFields[i]];
+            }
+            key = Arrays.asList(values);
+        }
+        final Integer group = objectIndex.get(key);
+        if (group != null) {
+            return group;
+        }
+        final int newGroup = newGroup(row);
+        objectIndex.put(key, newGroup);
+        return newGroup;
+    }
+
+    private int newGroup(Object[] row) {
+        final Object[] keys = new Object[keyFields.length];
+        for (int i = 0; i < keyFields.length; i++) {
+            keys[i] = row[keyFields[i]];
+        }
+        final int group = groupKeys.size();
+        groupKeys.add(keys);
+        for (Accumulator accumulator : accumulators) {
+            accumulator.ensureCapacity(group + 1);
+        }
+        return group;
+    }
+
+    private static boolean isLongKeyType(SqlTypeName type) {
+        switch (type) {
+            case TINYINT:
+            case SMALLINT:
+            case INTEGER:
+            case BIGINT:
+            case BOOLEAN:
+            case TIMESTAMP:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static Accumulator newAccumulator(RelDataType inputRowType, AggregateCall call) {
+        if (call.isDistinct() || call.filterArg >= 0) {
+            throw new UnsupportedOperationException(
+                    "DISTINCT and FILTER are not supported in aggregate calls: " + call);
+        }
+
+        final List<Integer> args = call.getArgList();
+        final SqlTypeName returnType = call.getType().getSqlTypeName();
+        switch (call.getAggregation().getKind()) {
+            case COUNT:
+                return new CountAccumulator(args);
+            case SUM:
+            case SUM0:
+            case AVG:
+                final SqlTypeName argType = inputRowType.getFieldList().get(args.get(0)).getType()
+                        .getSqlTypeName();
+                final boolean zeroIfEmpty = call.getAggregation().getKind() == SqlKind.SUM0;
+                final boolean average = call.getAggregation().getKind() == SqlKind.AVG;
+                switch (argType) {
+                    case TINYINT:
+                    case SMALLINT:
+                    case INTEGER:
+                    case BIGINT:
+                        return new LongSumAccumulator(args.get(0), returnType, zeroIfEmpty,
+                                average);
+                    case FLOAT:
+                    case REAL:
+                    case DOUBLE:
+                        return new DoubleSumAccumulator(args.get(0), returnType, zeroIfEmpty,
+                                average);
+                    case DECIMAL:
+                        if (!average) {
+                            return new DecimalSumAccumulator(args.get(0), zeroIfEmpty);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                break;
+            case MIN:
+                return new MinMaxAccumulator(args.get(0), 1);
+            case MAX:
+                return new MinMaxAccumulator(args.get(0), -1);
+            default:
+                break;
+        }
+        throw new UnsupportedOperationException(String.format(Locale.ENGLISH,
+                "Aggregate call is not supported: %s", call));
+    }
+
+    // Converts a long value into Calcite's internal representation of the type
+    private static Object toExact(long value, SqlTypeName type) {
+        switch (type) {
+            case TINYINT:
+                return (byte) value;
+            case SMALLINT:
+                return (short) value;
+            case INTEGER:
+                return (int) value;
+            case DECIMAL:
+                return BigDecimal.valueOf(value);
+            case FLOAT:
+            case DOUBLE:
+                return (double) value;
+            case REAL:
+                return (float) value;
+            default:
+                return value;
+        }
+    }
+
+    // Converts a double value into Calcite's internal representation of the type
+    private static Object toApproximate(double value, SqlTypeName type) {
+        if (type == SqlTypeName.REAL) {
+            return (float) value;
+        }
+        return value;
+    }
+
+    private abstract static class Accumulator {
+
+        protected int capacity;
+
+        void ensureCapacity(int groups) {
+            if (groups > capacity) {
+                capacity = Math.max(groups, Math.max(16, capacity * 2));
+                grow(capacity);
+            }
+        }
+
+        abstract void grow(int capacity);
+
+        abstract void add(int group, Object[] row);
+
+        abstract Object result(int group);
+    }
+
+    // COUNT(*) and COUNT(args) that counts rows where all args are not null
+    private static class CountAccumulator extends Accumulator {
+
+        private final int[] args;
+        private long[] counts = new long[0];
+
+        CountAccumulator(List<Integer> args) {
+            this.args = args.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        @Override
+        void grow(int capacity) {
+            counts = Arrays.copyOf(counts, capacity);
+        }
+
+        @Override
+        void add(int group, Object[] row) {
+            for (int arg : args) {
+                if (row[arg] == null) {
+                    return;
+                }
+            }
+            counts[group]++;
+        }
+
+        @Override
+        Object result(int group) {
+            return counts[group];
+        }
+    }
+
+    // SUM, $SUM0 and AVG over integral values
+    private static class LongSumAccumulator extends Accumulator {
+
+        private final int arg;
+        private final SqlTypeName returnType;
+        private final boolean zeroIfEmpty;
+        private final boolean average;
+        private long[] sums = new long[0];
+        private long[] counts = new long[0];
+
+        LongSumAccumulator(int arg, SqlTypeName returnType, boolean zeroIfEmpty, boolean average) {
+            this.arg = arg;
+            this.returnType = returnType;
+            this.zeroIfEmpty = zeroIfEmpty;
+            this.average = average;
+        }
+
+        @Override
+        void grow(int capacity) {
+            sums = Arrays.copyOf(sums, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+
+        @Override
+        void add(int group, Object[] row) {
+            final Object value = row[arg];
+            if (value != null) {
+                sums[group] += ((Number) value).longValue();
+                counts[group]++;
+            }
+        }
+
+        @Override
+        Object result(int group) {
+            if (counts[group] == 0) {
+                return zeroIfEmpty ? toExact(0L, returnType) : null;
+            }
+            return toExact(average ? sums[group] / counts[group] : sums[group], returnType);
+        }
+    }
+
+    // SUM, $SUM0 and AVG over approximate numeric values
+    private static class DoubleSumAccumulator extends Accumulator {
+
+        private final int arg;
+        private final SqlTypeName returnType;
+        private final boolean zeroIfEmpty;
+        private final boolean average;
+        private double[] sums = new double[0];
+        private long[] counts = new long[0];
+
+        DoubleSumAccumulator(int arg, SqlTypeName returnType, boolean zeroIfEmpty,
+                             boolean average) {
+            this.arg = arg;
+            this.returnType = returnType;
+            this.zeroIfEmpty = zeroIfEmpty;
+            this.average = average;
+        }
+
+        @Override
+        void grow(int capacity) {
+            sums = Arrays.copyOf(sums, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+
+        @Override
+        void add(int group, Object[] row) {
+            final Object value = row[arg];
+            if (value != null) {
+                sums[group] += ((Number) value).doubleValue();
+                counts[group]++;
+            }
+        }
+
+        @Override
+        Object result(int group) {
+            if (counts[group] == 0) {
+                return zeroIfEmpty ? toApproximate(0.0, returnType) : null;
+            }
+            return toApproximate(average ? sums[group] / counts[group] : sums[group], returnType);
+        }
+    }
+
+    // SUM and $SUM0 over DECIMAL values
+    private static class DecimalSumAccumulator extends Accumulator {
+
+        private final int arg;
+        private final boolean zeroIfEmpty;
+        private BigDecimal[] sums = new BigDecimal[0];
+
+        DecimalSumAccumulator(int arg, boolean zeroIfEmpty) {
+            this.arg = arg;
+            this.zeroIfEmpty = zeroIfEmpty;
+        }
+
+        @Override
+        void grow(int capacity) {
+            sums = Arrays.copyOf(sums, capacity);
+        }
+
+        @Override
+        void add(int group, Object[] row) {
+            final Object value = row[arg];
+            if (value != null) {
+                sums[group] = sums[group] == null
+                        ? (BigDecimal) value
+                        : sums[group].add((BigDecimal) value);
+            }
+        }
+
+        @Override
+        Object result(int group) {
+            if (sums[group] == null && zeroIfEmpty) {
+                return BigDecimal.ZERO;
+            }
+            return sums[group];
+        }
+    }
+
+    // MIN and MAX. sign is 1 for MIN and -1 for MAX.
+    private static class MinMaxAccumulator extends Accumulator {
+
+        private final int arg;
+        private final int sign;
+        private Object[] values = new Object[0];
+
+        MinMaxAccumulator(int arg, int sign) {
+            this.arg = arg;
+            this.sign = sign;
+        }
+
+        @Override
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        void add(int group, Object[] row) {
+            final Object value = row[arg];
+            if (value == null) {
+                return;
+            }
+            final Object current = values[group];
+            if (current == null || sign * ((Comparable<Object>) value).compareTo(current) < 0) {
+                values[group] = value;
+            }
+        }
+
+        @Override
+        Object result(int group) {
+            return values[group];
+        }
+    }
+
+    /**
+     * An open-addressed hash map from {@code long} keys to non-negative {@code int} values with
+     * linear probing. It doesn't box keys nor allocate entries.
+     */
+    private static class LongIntHashMap {
+
+        private long[] keys;
+        private int[] values;
+        private int mask;
+        private int shift;
+        private int size;
+
+        LongIntHashMap() {
+            allocate(64);
+        }
+
+        int get(long key) {
+            int slot = slotOf(key);
+            while (values[slot] >= 0) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        void put(long key, int value) {
+            if ((size + 1) * 2 > keys.length) {
+                rehash();
+            }
+            int slot = slotOf(key);
+            while (values[slot] >= 0) {
+                if (keys[slot] == key) {
+                    values[slot] = value;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+        }
+
+        private int slotOf(long key) {
+            // Fibonacci hashing takes the high bits, which depend on all bits of the key
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            values = new int[capacity];
+            Arrays.fill(values, -1);
+            mask = capacity - 1;
+            shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        }
+
+        private void rehash() {
+            final long[] oldKeys = keys;
+            final int[] oldValues = values;
+            allocate(oldKeys.length * 2);
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] >= 0) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package org.embulk.filter.calcite;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.embulk.config.ConfigException;
+import org.embulk.spi.Column;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.LongType;
+import org.embulk.spi.type.TimestampType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The maximum value of an input column through runs of a job. It's saved into a state file when
+ * a run succeeds, and the next run replaces {@code $HIGH_WATER_MARK} in the query with it as a
+ * literal, e.g. {@code WHERE "time" > $HIGH_WATER_MARK}, so that rows processed by the previous
+ * runs are skipped by a comparison pushed down to scans of {@code $PAGES}.
+ *
+ * <p>A value is a long, or milliseconds since the epoch of a timestamp. Tasks update the maximum
+ * of their job in the JVM as {@code TaskMetrics} does, and so tasks in other JVMs are ignored.
+ * A warning is logged when no tasks have finished in the JVM, e.g. with an executor that runs
+ * them in other processes, because the value is not advanced then.
+ */
+final class HighWaterMark {
+
+    static final String PLACEHOLDER = "$HIGH_WATER_MARK";
+
+    private static final Logger log = LoggerFactory.getLogger(HighWaterMark.class);
+
+    private static final ConcurrentHashMap<String, Job> JOBS = new ConcurrentHashMap<>();
+    private static final DateTimeFormatter TIMESTAMP_LITERAL =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS", Locale.ENGLISH)
+                    .withZone(ZoneOffset.UTC);
+    private static final String MIN_TIMESTAMP_LITERAL = "0001-01-01 00:00:00.000";
+
+    private final String columnName;
+    private final boolean timestamp;
+
+    private HighWaterMark(String columnName, boolean timestamp) {
+        this.columnName = columnName;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Returns a high-water mark of a column of the input schema.
+     *
+     * @throws ConfigException if the column doesn't exist, or it's not long nor timestamp
+     */
+    static HighWaterMark of(Schema inputSchema, String columnName) {
+        final Column column = inputSchema.lookupColumn(columnName);
+        if (column.getType() instanceof LongType) {
+            return new HighWaterMark(columnName, false);
+        } else if (column.getType() instanceof TimestampType) {
+            return new HighWaterMark(columnName, true);
+        }
+        throw new ConfigException(String.format(Locale.ENGLISH,
+                "high_water_mark_column must be a long or timestamp column: %s", columnName));
+    }
+
+    /**
+     * Replaces {@code $HIGH_WATER_MARK} in a query with a literal of a value. A value that is
+     * null, i.e. no runs have succeeded, is replaced with the minimum value. Placeholders in
+     * string literals, quoted identifiers and comments are kept as they are.
+     *
+     * @throws ConfigException if the query has no placeholders to replace
+     */
+    String replacePlaceholder(String query, Long value) {
+        final String literal;
+        if (timestamp) {
+            literal = String.format(Locale.ENGLISH, "TIMESTAMP '%s'", value != null
+                    ? TIMESTAMP_LITERAL.format(Instant.ofEpochMilli(value))
+                    : MIN_TIMESTAMP_LITERAL);
+        } else {
+            // Long.MIN_VALUE cannot be written as a literal because its negation overflows
+            literal = Long.toString(value != null ? value : Long.MIN_VALUE + 1);
+        }
+
+        final StringBuilder replaced = new StringBuilder(query.length());
+        boolean found = false;
+        int index = 0;
+        while (index < query.length()) {
+            final int end = skipQuoted(query, index);
+            if (end > index) {
+                replaced.append(query, index, end);
+                index = end;
+            } else if (query.startsWith(PLACEHOLDER, index)) {
+                replaced.append(literal);
+                index += PLACEHOLDER.length();
+                found = true;
+            } else {
+                replaced.append(query.charAt(index));
+                index++;
+            }
+        }
+        if (!found) {
+            throw new ConfigException(String.format(Locale.ENGLISH,
+                    "high_water_mark_column requires %s in the query out of string literals and "
+                            + "quoted identifiers: %s", PLACEHOLDER, query));
+        }
+        return replaced.toString();
+    }
+
+    // Returns the end of a string literal, a quoted identifier or a comment that starts at index,
+    // or index if none of them starts there. Quotes in them are escaped by doubling them.
+    private static int skipQuoted(String query, int index) {
+        final char c = query.charAt(index);
+        if (c == '\'' || c == '"') {
+            int end = index + 1;
+            while (end < query.length()) {
+                if (query.charAt(end) != c) {
+                    end++;
+                } else if (end + 1 < query.length() && query.charAt(end + 1) == c) {
+                    end += 2;
+                } else {
+                    return end + 1;
+                }
+            }
+            return query.length();
+        } else if (query.startsWith("--", index)) {
+            final int end = query.indexOf('\n', index);
+            return end < 0 ? query.length() : end;
+        } else if (query.startsWith("/*", index)) {
+            final int end = query.indexOf("*/", index + 2);
+            return end < 0 ? query.length() : end + 2;
+        }
+        return index;
+    }
+
+    /**
+     * Loads the value from a state file.
+     *
+     * @return the value, or null if the file doesn't exist
+     * @throws ConfigException if the file is not of the column
+     */
+    Long load(Path stateFile) {
+        if (!Files.exists(stateFile)) {
+            return null;
+        }
+        try {
+            final ObjectNode state = (ObjectNode) new ObjectMapper().readTree(stateFile.toFile());
+            if (!columnName.equals(state.path("column").asText())) {
+                throw new ConfigException(String.format(Locale.ENGLISH,
+                        "State file '%s' is of column '%s', not of '%s'", stateFile,
+                        state.path("column").asText(), columnName));
+            }
+            return state.get("value").isNull() ? null : state.get("value").asLong();
+        } catch (IOException | ClassCastException | NullPointerException e) {
+            throw new ConfigException("Cannot read a state file: " + stateFile, e);
+        }
+    }
+
+    /**
+     * Saves a value into a state file. It's replaced atomically where the file system supports.
+     */
+    void save(Path stateFile, Long value) {
+        final ObjectNode state = new ObjectMapper().createObjectNode();
+        state.put("column", columnName);
+        state.put("value", value);
+        if (timestamp && value != null) {
+            state.put("timestamp", Instant.ofEpochMilli(value).toString());
+        }
+        try {
+            final Path parent = stateFile.toAbsolutePath().getParent();
+            final Path temp = Files.createTempFile(parent, stateFile.getFileName().toString(),
+                    ".tmp");
+            try {
+                new ObjectMapper().writeValue(temp.toFile(), state);
+                Files.move(temp, stateFile, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write a state file: " + stateFile, e);
+        }
+    }
+
+    /**
+     * Starts to collect the maximum of tasks in this JVM for a job.
+     */
+    static void startJob(String jobId) {
+        JOBS.put(jobId, new Job());
+    }
+
+    /**
+     * Ends to collect the maximum for a job that has succeeded, and returns it, or null if no tasks
+     * have values. It warns if no tasks have finished in this JVM.
+     */
+    static Long endJob(String jobId) {
+        final Job job = JOBS.remove(jobId);
+        if (job == null) {
+            return null;
+        }
+        if (job.tasks.get() == 0) {
+            log.warn("No tasks have finished in this JVM, and so the high-water mark is not "
+                    + "advanced. Tasks that run in other JVMs are not counted.");
+        }
+        return job.max.get() == Long.MIN_VALUE ? null : job.max.get();
+    }
+
+    /**
+     * Stops collecting the maximum for a job without returning it, e.g. when the job has failed.
+     */
+    static void discardJob(String jobId) {
+        JOBS.remove(jobId);
+    }
+
+    private static void addToJob(String jobId, long value) {
+        final Job job = JOBS.get(jobId);
+        if (job != null) {
+            job.max.accumulateAndGet(value, Math::max);
+            job.tasks.incrementAndGet();
+        }
+    }
+
+    private static class Job {
+
+        private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+        private final AtomicInteger tasks = new AtomicInteger();
+    }
+
+    /**
+     * Returns an output that finds the maximum value in input Pages of a task before it passes
+     * them to {@code output}. The maximum is added to the job when the task finishes.
+     */
+    PageOutput newTrackingOutput(Schema inputSchema, String jobId, PageOutput output) {
+        return new TrackingOutput(inputSchema, inputSchema.lookupColumn(columnName), timestamp,
+                jobId, output);
+    }
+
+    private static class TrackingOutput implements PageOutput {
+
+        private final int index;
+        private final boolean timestamp;
+        private final String jobId;
+        private final PageOutput output;
+        private final PageReader pageReader;
+        private long max;
+
+        private TrackingOutput(Schema schema, Column column, boolean timestamp, String jobId,
+                               PageOutput output) {
+            this.index = column.getIndex();
+            this.timestamp = timestamp;
+            this.jobId = jobId;
+            this.output = output;
+            this.pageReader = PageConverter.newPageReader(schema);
+            this.max = Long.MIN_VALUE;
+        }
+
+        @Override
+        public void add(Page page) {
+            pageReader.setPage(new BorrowedPage(page));
+            while (pageReader.nextRecord()) {
+                if (!pageReader.isNull(index)) {
+                    final long value = timestamp
+                            ? PageConverter.getEpochMilli(pageReader, index)
+                            : pageReader.getLong(index);
+                    if (value > max) {
+                        max = value;
+                    }
+                }
+            }
+            output.add(page);
+        }
+
+        @Override
+        public void finish() {
+            output.finish();
+            addToJob(jobId, max);
+        }
+
+        @Override
+        public void close() {
+            try {
+                pageReader.close();
+            } finally {
+                output.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.embulk.filter.calcite;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import org.embulk.filter.calcite.adapter.page.PageBinding;
+import org.embulk.filter.calcite.adapter.page.PageTable;
+import org.embulk.input.jdbc.getter.ColumnGetter;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.Schema;
+
+/**
+ * Executes a query by a JDBC prepared statement, and writes its {@code ResultSet} into a
+ * {@code PageBuilder} by {@code ColumnGetter}s. Pages are bound to {@code $PAGES} of the
+ * connection that the statement owns.
+ */
+class JdbcQueryRunner implements QueryRunner {
+
+    private final Schema outputSchema;
+    private final PageBuilder pageBuilder;
+    private final List<ColumnGetter> getters;
+    private final PreparedQueryCache.PreparedQuery preparedQuery;
+    private final PageTable pageTable;
+
+    JdbcQueryRunner(Schema outputSchema,
+                    PageBuilder pageBuilder,
+                    List<ColumnGetter> getters,
+                    PreparedQueryCache.PreparedQuery preparedQuery,
+                    PageTable pageTable) {
+        this.outputSchema = outputSchema;
+        this.pageBuilder = pageBuilder;
+        this.getters = getters;
+        this.preparedQuery = preparedQuery;
+        this.pageTable = pageTable;
+    }
+
+    @Override
+    public void run(PageBinding binding) {
+        final TaskMetrics metrics = binding.getMetrics();
+        pageTable.bind(binding);
+        boolean succeeded = false;
+        try (ResultSet result = preparedQuery.getStatement().executeQuery()) {
+            while (result.next()) {
+                // Writes are measured while rows of a sampled Page are read
+                if (metrics.isSampling()) {
+                    final long start = System.nanoTime();
+                    writeRow(result);
+                    metrics.addWriteNanos(System.nanoTime() - start);
+                } else {
+                    writeRow(result);
+                }
+            }
+            succeeded = true;
+        } catch (SQLException e) {
+            throw new RuntimeException(e); // TODO better exception handling? error messages?
+        } finally {
+            // The statement isn't returned to the cache after any failure, e.g. of a column getter
+            // or of the PageBuilder, because its result set might not be closed cleanly
+            if (!succeeded) {
+                preparedQuery.invalidate();
+            }
+            pageTable.bind(null);
+        }
+    }
+
+    private void writeRow(ResultSet result) throws SQLException {
+        for (int i = 0; i < getters.size(); i++) {
+            int index = i + 1; // JDBC column index begins from 1
+            getters.get(i).getAndSet(result, index, outputSchema.getColumn(i));
+        }
+        pageBuilder.addRecord();
+    }
+
+    @Override
+    public void close() {
+        preparedQuery.close(); // Return the statement to the cache for other tasks
+    }
+}
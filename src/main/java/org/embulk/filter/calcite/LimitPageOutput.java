@@ -0,0 +1,119 @@
+package org.embulk.filter.calcite;
+
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+
+/**
+ * Emits at most {@code limit} result rows through a task. Rows after the limit are dropped, and
+ * {@link #newInputOutput(PageOutput)} stops passing input Pages to the query once the limit is
+ * reached, so that the rest of the input is neither decoded nor queried.
+ */
+class LimitPageOutput implements PageOutput {
+
+    private final long limit;
+    private final PageOutput output;
+    private final PageBuilder pageBuilder; // the first rows of the Page that reaches the limit
+    private final PageReader pageReader;
+    private final RowCopier rowCopier;
+    private final Schema schema;
+
+    private long rows;
+    // Result Pages and input Pages are added on the task thread. Results of worker threads are
+    // forwarded by QueryWorkerPool on the thread that submits input Pages.
+    private boolean reached;
+
+    /**
+     * Creates an output that limits result rows.
+     *
+     * @param schema      a {@code Schema} of result Pages
+     * @param limit       the maximum number of rows
+     * @param output      an output that rows are added into
+     * @param pageBuilder a {@code PageBuilder} of {@code schema} into {@code output}
+     */
+    LimitPageOutput(Schema schema, long limit, PageOutput output, PageBuilder pageBuilder) {
+        this.schema = schema;
+        this.limit = limit;
+        this.output = output;
+        this.pageBuilder = pageBuilder;
+        this.pageReader = PageConverter.newPageReader(schema);
+        this.rowCopier = new RowCopier(pageReader, pageBuilder);
+        this.reached = limit <= 0;
+    }
+
+    /**
+     * Returns an output that passes input Pages to {@code filterOutput} until the limit is
+     * reached, and drops them after that.
+     */
+    PageOutput newInputOutput(PageOutput filterOutput) {
+        return new InputOutput(filterOutput);
+    }
+
+    @Override
+    public void add(Page page) {
+        if (reached) {
+            page.release();
+            return;
+        }
+
+        final int recordCount = PageReader.getRecordCount(page);
+        if (rows + recordCount < limit) {
+            rows += recordCount;
+            output.add(page);
+            return;
+        }
+
+        pageReader.setPage(page); // released by the next setPage or close
+        while (rows < limit && pageReader.nextRecord()) {
+            schema.visitColumns(rowCopier);
+            pageBuilder.addRecord();
+            rows++;
+        }
+        pageBuilder.flush();
+        reached = true;
+    }
+
+    @Override
+    public void finish() {
+        pageBuilder.finish();
+    }
+
+    @Override
+    public void close() {
+        try {
+            pageReader.close();
+        } finally {
+            pageBuilder.close();
+        }
+    }
+
+    private class InputOutput implements PageOutput {
+
+        private final PageOutput filterOutput;
+
+        private InputOutput(PageOutput filterOutput) {
+            this.filterOutput = filterOutput;
+        }
+
+        @Override
+        public void add(Page page) {
+            if (reached) {
+                page.release();
+            } else {
+                filterOutput.add(page);
+            }
+        }
+
+        @Override
+        public void finish() {
+            filterOutput.finish();
+        }
+
+        @Override
+        public void close() {
+            filterOutput.close();
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package org.embulk.filter.calcite;
+
+import com.google.common.collect.ImmutableList;
+import java.lang.reflect.Type;
+import java.util.List;
+import org.apache.calcite.DataContext;
+import org.apache.calcite.adapter.enumerable.CallImplementor;
+import org.apache.calcite.adapter.enumerable.NullPolicy;
+import org.apache.calcite.adapter.enumerable.RexImpTable;
+import org.apache.calcite.adapter.enumerable.RexToLixTranslator;
+import org.apache.calcite.adapter.java.JavaTypeFactory;
+import org.apache.calcite.linq4j.QueryProvider;
+import org.apache.calcite.linq4j.function.Function1;
+import org.apache.calcite.linq4j.tree.Expression;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.linq4j.tree.Primitive;
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelShuttleImpl;
+import org.apache.calcite.rel.logical.LogicalProject;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.rex.RexBuilder;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexCorrelVariable;
+import org.apache.calcite.rex.RexDynamicParam;
+import org.apache.calcite.rex.RexExecutorImpl;
+import org.apache.calcite.rex.RexFieldAccess;
+import org.apache.calcite.rex.RexInputRef;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.rex.RexOver;
+import org.apache.calcite.rex.RexShuttle;
+import org.apache.calcite.rex.RexSubQuery;
+import org.apache.calcite.rex.RexVisitorImpl;
+import org.apache.calcite.schema.FunctionParameter;
+import org.apache.calcite.schema.ImplementableFunction;
+import org.apache.calcite.schema.ScalarFunction;
+import org.apache.calcite.schema.SchemaPlus;
+import org.apache.calcite.sql.SqlFunction;
+import org.apache.calcite.sql.SqlIdentifier;
+import org.apache.calcite.sql.parser.SqlParserPos;
+import org.apache.calcite.sql.type.InferTypes;
+import org.apache.calcite.sql.type.OperandTypes;
+import org.apache.calcite.sql.type.ReturnTypes;
+import org.apache.calcite.sql.type.SqlTypeFamily;
+import org.apache.calcite.sql.type.SqlTypeUtil;
+import org.apache.calcite.sql.validate.SqlUserDefinedFunction;
+import org.apache.calcite.util.ImmutableBitSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An expression of a projection whose results are cached by its input value. A deterministic
+ * expression of a single input column is memoized when it's costly, i.e. it calls a function of
+ * strings or of the schema such as {@code JSON_STRING} or {@code TO_TIMESTAMP}, it's {@code CASE}
+ * or {@code LIKE}, or it has many calls. The largest such expression is replaced with a call of
+ * {@code ExpressionMemo.evaluate()}, and it's compiled on its own to be evaluated on misses.
+ *
+ * <p>Columns of JSON values are not memoized because hashing a value costs as much as most of
+ * expressions on it.
+ */
+final class MemoizedExpression {
+
+    private static final Logger log = LoggerFactory.getLogger(MemoizedExpression.class);
+
+    // Name of the list of memoized expressions in internal parameters of DataContext
+    static final String EXPRESSIONS = "memoizedExpressions";
+
+    private static final int MIN_CALLS = 4;
+
+    private final String description;
+    private final Function1<DataContext, Object[]> function;
+
+    private MemoizedExpression(String description, Function1<DataContext, Object[]> function) {
+        this.description = description;
+        this.function = function;
+    }
+
+    /**
+     * Replaces costly expressions of projections in a logical plan with calls of
+     * {@code ExpressionMemo.evaluate()}.
+     *
+     * @param rel         a logical plan
+     * @param expressions a list that memoized expressions are added into. An index is the ID of
+     *                    an expression.
+     * @return the rewritten plan
+     */
+    static RelNode memoize(RelNode rel, List<MemoizedExpression> expressions) {
+        final RelNode memoized = rel.accept(new RelShuttleImpl() {
+            @Override
+            public RelNode visit(LogicalProject project) {
+                final LogicalProject visited = (LogicalProject) super.visit(project);
+                final Memoizer memoizer = new Memoizer(visited.getCluster().getRexBuilder(),
+                        expressions);
+                final List<RexNode> projects = memoizer.apply(visited.getProjects());
+                return memoizer.changed
+                        ? visited.copy(visited.getTraitSet(), visited.getInput(), projects,
+                                visited.getRowType())
+                        : visited;
+            }
+        });
+        if (!expressions.isEmpty()) {
+            log.info("Memoizes {} expressions by their inputs: {}", expressions.size(),
+                    expressions);
+        }
+        return memoized;
+    }
+
+    /**
+     * Evaluates the expression for an input value.
+     *
+     * @param root  a {@code DataContext} of the execution
+     * @param input a value of the input column in Calcite's internal representation
+     * @return the result in Calcite's internal representation
+     */
+    Object evaluate(DataContext root, Object input) {
+        return function.apply(new InputDataContext(root, new Object[] {input}))[0];
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    // Replaces the largest costly expressions top-down
+    private static class Memoizer extends RexShuttle {
+
+        private final RexBuilder rexBuilder;
+        private final List<MemoizedExpression> expressions;
+        private boolean changed;
+
+        private Memoizer(RexBuilder rexBuilder, List<MemoizedExpression> expressions) {
+            this.rexBuilder = rexBuilder;
+            this.expressions = expressions;
+        }
+
+        @Override
+        public RexNode visitCall(RexCall call) {
+            final ImmutableBitSet inputs = RelOptUtil.InputFinder.bits(call);
+            if (inputs.cardinality() == 1 && isMemoizable(call) && isCostly(call)) {
+                final RexNode memoized = memoize(call, inputs.nth(0));
+                if (memoized != null) {
+                    changed = true;
+                    return memoized;
+                }
+            }
+            return super.visitCall(call);
+        }
+
+        private RexNode memoize(RexCall call, int index) {
+            final RexInputRef input = rexBuilder.makeInputRef(findInputType(call, index), index);
+            if (!isMemoizableInput(input.getType())) {
+                return null;
+            }
+
+            // The expression is compiled with its input as the only field of a row
+            final RexNode body = call.accept(new RexShuttle() {
+                @Override
+                public RexNode visitInputRef(RexInputRef inputRef) {
+                    return rexBuilder.makeInputRef(inputRef.getType(), 0);
+                }
+            });
+            final RelDataTypeFactory typeFactory = rexBuilder.getTypeFactory();
+            final RelDataType rowType = typeFactory.builder().add("$0", input.getType()).build();
+            final Function1<DataContext, Object[]> function;
+            try {
+                function = new RexExecutorImpl(null)
+                        .getExecutable(rexBuilder, ImmutableList.of(body), rowType)
+                        .getFunction();
+            } catch (RuntimeException e) {
+                log.debug("Cannot compile an expression to memoize: " + call, e);
+                return null;
+            }
+
+            final int id = expressions.size();
+            expressions.add(new MemoizedExpression(call.toString(), function));
+            final JavaTypeFactory javaTypeFactory = (JavaTypeFactory) typeFactory;
+            final MemoFunction memoFunction = new MemoFunction(id, call.getType(), input.getType(),
+                    javaTypeFactory.getJavaClass(call.getType()));
+            final SqlUserDefinedFunction operator = new SqlUserDefinedFunction(
+                    new SqlIdentifier("$MEMO" + id, SqlParserPos.ZERO),
+                    ReturnTypes.explicit(call.getType()), InferTypes.FIRST_KNOWN, OperandTypes.ANY,
+                    ImmutableList.of(input.getType()), memoFunction);
+            return rexBuilder.makeCall(call.getType(), operator, ImmutableList.<RexNode>of(input));
+        }
+    }
+
+    private static RelDataType findInputType(RexNode node, int index) {
+        final RelDataType[] type = new RelDataType[1];
+        node.accept(new RexVisitorImpl<Void>(true) {
+            @Override
+            public Void visitInputRef(RexInputRef inputRef) {
+                if (inputRef.getIndex() == index) {
+                    type[0] = inputRef.getType();
+                }
+                return null;
+            }
+        });
+        return type[0];
+    }
+
+    // Results of values of the same type are equal only when the values are equal
+    private static boolean isMemoizableInput(RelDataType type) {
+        switch (type.getSqlTypeName()) {
+            case ANY:
+            case OTHER:
+            case ARRAY:
+            case MAP:
+            case MULTISET:
+            case ROW:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    // Deterministic and doesn't depend on anything but the input
+    private static boolean isMemoizable(RexNode node) {
+        final boolean[] memoizable = {true};
+        node.accept(new RexVisitorImpl<Void>(true) {
+            @Override
+            public Void visitCall(RexCall call) {
+                if (!call.getOperator().isDeterministic()
+                        || call.getOperator().isDynamicFunction()) {
+                    memoizable[0] = false;
+                    return null;
+                }
+                return super.visitCall(call);
+            }
+
+            @Override
+            public Void visitOver(RexOver over) {
+                memoizable[0] = false;
+                return null;
+            }
+
+            @Override
+            public Void visitCorrelVariable(RexCorrelVariable correlVariable) {
+                memoizable[0] = false;
+                return null;
+            }
+
+            @Override
+            public Void visitDynamicParam(RexDynamicParam dynamicParam) {
+                memoizable[0] = false;
+                return null;
+            }
+
+            @Override
+            public Void visitFieldAccess(RexFieldAccess fieldAccess) {
+                memoizable[0] = false;
+                return null;
+            }
+
+            @Override
+            public Void visitSubQuery(RexSubQuery subQuery) {
+                memoizable[0] = false;
+                return null;
+            }
+        });
+        return memoizable[0];
+    }
+
+    // Costs more than a hash lookup of its input
+    private static boolean isCostly(RexNode node) {
+        final int[] calls = {0};
+        final boolean[] costly = {false};
+        node.accept(new RexVisitorImpl<Void>(true) {
+            @Override
+            public Void visitCall(RexCall call) {
+                calls[0]++;
+                if (isCostlyCall(call)) {
+                    costly[0] = true;
+                }
+                return super.visitCall(call);
+            }
+        });
+        return costly[0] || calls[0] >= MIN_CALLS;
+    }
+
+    private static boolean isCostlyCall(RexCall call) {
+        switch (call.getKind()) {
+            case CASE:
+            case LIKE:
+            case SIMILAR:
+                return true;
+            case CAST:
+                // Parses a string
+                return SqlTypeUtil.inCharFamily(call.getOperands().get(0).getType())
+                        && !SqlTypeUtil.inCharFamily(call.getType());
+            default:
+                break;
+        }
+        if (call.getOperator() instanceof SqlUserDefinedFunction) {
+            return true;
+        }
+        if (call.getOperator() instanceof SqlFunction) {
+            // Functions of strings, e.g. SUBSTRING, UPPER and TRIM
+            if (SqlTypeUtil.inCharFamily(call.getType())) {
+                return true;
+            }
+            for (RexNode operand : call.getOperands()) {
+                if (operand.getType().getFamily() == SqlTypeFamily.CHARACTER) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // A function of a memoized expression. Generated code calls ExpressionMemo.evaluate() with
+    // the ID of the expression, and converts its result into the Java class of the expression.
+    private static class MemoFunction implements ScalarFunction, ImplementableFunction {
+
+        private final RelDataType returnType;
+        private final List<FunctionParameter> parameters;
+        private final CallImplementor implementor;
+
+        MemoFunction(int id, RelDataType returnType, RelDataType inputType, Type javaClass) {
+            this.returnType = returnType;
+            this.parameters = ImmutableList.of(new Parameter(inputType));
+            this.implementor = RexImpTable.createImplementor((translator, call, operands) -> {
+                final Expression result = Expressions.call(ExpressionMemo.class, "evaluate",
+                        DataContext.ROOT, Expressions.constant(id),
+                        Expressions.box(operands.get(0)));
+                return RexToLixTranslator.convert(
+                        Expressions.convert_(result, Primitive.box(javaClass)), javaClass);
+            }, NullPolicy.NONE, false);
+        }
+
+        @Override
+        public RelDataType getReturnType(RelDataTypeFactory typeFactory) {
+            return returnType;
+        }
+
+        @Override
+        public List<FunctionParameter> getParameters() {
+            return parameters;
+        }
+
+        @Override
+        public CallImplementor getImplementor() {
+            return implementor;
+        }
+    }
+
+    private static class Parameter implements FunctionParameter {
+
+        private final RelDataType type;
+
+        Parameter(RelDataType type) {
+            this.type = type;
+        }
+
+        @Override
+        public int getOrdinal() {
+            return 0;
+        }
+
+        @Override
+        public String getName() {
+            return "input";
+        }
+
+        @Override
+        public RelDataType getType(RelDataTypeFactory typeFactory) {
+            return type;
+        }
+
+        @Override
+        public boolean isOptional() {
+            return false;
+        }
+    }
+
+    // Delegates to the DataContext of the execution, and has the input value as a row
+    private static class InputDataContext implements DataContext {
+
+        private final DataContext root;
+        private final Object[] inputRecord;
+
+        private InputDataContext(DataContext root, Object[] inputRecord) {
+            this.root = root;
+            this.inputRecord = inputRecord;
+        }
+
+        @Override
+        public SchemaPlus getRootSchema() {
+            return root.getRootSchema();
+        }
+
+        @Override
+        public JavaTypeFactory getTypeFactory() {
+            return root.getTypeFactory();
+        }
+
+        @Override
+        public QueryProvider getQueryProvider() {
+            return root.getQueryProvider();
+        }
+
+        @Override
+        public Object get(String name) {
+            return "inputRecord".equals(name) ? inputRecord : root.get(name);
+        }
+    }
+}
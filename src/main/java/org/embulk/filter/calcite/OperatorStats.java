@@ -0,0 +1,157 @@
+package org.embulk.filter.calcite;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import org.apache.calcite.DataContext;
+import org.apache.calcite.linq4j.AbstractEnumerable;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+
+/**
+ * Rows and time of operators of a plan that {@code ProfiledRel} measures. Time of an operator is
+ * measured while its results are built, and around {@code enumerator()} and {@code moveNext()} of
+ * them, and so it includes time of its inputs. Its own time is the total minus totals of its
+ * inputs.
+ *
+ * <p>This is not thread-safe. Each {@code DirectQueryRunner} has its own, and they're added into
+ * {@code TaskMetrics}.
+ */
+public final class OperatorStats {
+
+    // Name of the stats in DataContext
+    static final String KEY = "operatorStats";
+
+    private final List<String> operators;
+    private final int[] parents;
+    private final long[] opens;
+    private final long[] rows;
+    private final long[] nanos;
+
+    /**
+     * Creates empty stats of operators.
+     *
+     * @param operators names of operators in pre-order, indented by their depths
+     * @param parents   indexes of parents of operators, or -1 for the root
+     */
+    OperatorStats(List<String> operators, int[] parents) {
+        this.operators = operators;
+        this.parents = parents;
+        this.opens = new long[operators.size()];
+        this.rows = new long[operators.size()];
+        this.nanos = new long[operators.size()];
+    }
+
+    /**
+     * Returns results of an operator that are measured when the execution has stats.
+     *
+     * @param root       a {@code DataContext} of the execution
+     * @param id         the ID of the operator
+     * @param startNanos {@code System.nanoTime()} before the results are built
+     * @param input      results of the operator
+     * @return an {@code Enumerable} of the same rows
+     */
+    public static <T> Enumerable<T> wrap(DataContext root, int id, long startNanos,
+                                         Enumerable<T> input) {
+        final OperatorStats stats = (OperatorStats) root.get(KEY);
+        if (stats == null) {
+            return input;
+        }
+        stats.nanos[id] += System.nanoTime() - startNanos;
+        return new AbstractEnumerable<T>() {
+            @Override
+            public Enumerator<T> enumerator() {
+                final long start = System.nanoTime();
+                final Enumerator<T> enumerator = input.enumerator();
+                stats.nanos[id] += System.nanoTime() - start;
+                stats.opens[id]++;
+                return new ProfiledEnumerator<>(stats, id, enumerator);
+            }
+        };
+    }
+
+    /**
+     * Adds stats since the last call to {@code other} of the same plan, and clears them.
+     */
+    void addTo(OperatorStats other) {
+        other.add(this);
+        Arrays.fill(opens, 0);
+        Arrays.fill(rows, 0);
+        Arrays.fill(nanos, 0);
+    }
+
+    /**
+     * Returns empty stats of the same plan.
+     */
+    OperatorStats newEmpty() {
+        return new OperatorStats(operators, parents);
+    }
+
+    void add(OperatorStats other) {
+        if (!operators.equals(other.operators)) {
+            return; // of another plan
+        }
+        for (int i = 0; i < operators.size(); i++) {
+            opens[i] += other.opens[i];
+            rows[i] += other.rows[i];
+            nanos[i] += other.nanos[i];
+        }
+    }
+
+    @Override
+    public String toString() {
+        final long[] selfNanos = nanos.clone();
+        for (int i = 0; i < parents.length; i++) {
+            if (parents[i] >= 0) {
+                selfNanos[parents[i]] -= nanos[i];
+            }
+        }
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < operators.size(); i++) {
+            builder.append(String.format(Locale.ENGLISH,
+                    "%s: opens=%d, rows=%d, total_ms=%.3f, self_ms=%.3f%n",
+                    operators.get(i), opens[i], rows[i], nanos[i] / 1e6,
+                    Math.max(selfNanos[i], 0) / 1e6));
+        }
+        return builder.toString();
+    }
+
+    private static class ProfiledEnumerator<T> implements Enumerator<T> {
+
+        private final OperatorStats stats;
+        private final int id;
+        private final Enumerator<T> enumerator;
+
+        private ProfiledEnumerator(OperatorStats stats, int id, Enumerator<T> enumerator) {
+            this.stats = stats;
+            this.id = id;
+            this.enumerator = enumerator;
+        }
+
+        @Override
+        public T current() {
+            return enumerator.current();
+        }
+
+        @Override
+        public boolean moveNext() {
+            final long start = System.nanoTime();
+            final boolean moved = enumerator.moveNext();
+            stats.nanos[id] += System.nanoTime() - start;
+            if (moved) {
+                stats.rows[id]++;
+            }
+            return moved;
+        }
+
+        @Override
+        public void reset() {
+            enumerator.reset();
+        }
+
+        @Override
+        public void close() {
+            enumerator.close();
+        }
+    }
+}
@@ -1,10 +1,10 @@
 package org.embulk.filter.calcite;
 
-import java.math.BigDecimal;
 import java.time.Instant;
 import java.util.TimeZone;
 import org.embulk.spi.Column;
 import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.Exec;
 import org.embulk.spi.PageReader;
 import org.embulk.spi.Schema;
 
@@ -16,11 +16,29 @@ public class PageConverter implements ColumnVisitor {
 
     private final TimeZone defaultTimeZone;
     private final Object[] row;
+    // Boxed values of the previous rows by column index. They're reused while a column has the
+    // same value in consecutive rows, e.g. in sorted or low-cardinality columns.
+    private final Object[] lastValues;
+    private final StringDictionary stringDictionary; // null if strings are not canonicalized
     private PageReader pageReader;
 
     public PageConverter(Schema schema, TimeZone defaultTimeZone) {
+        this(schema, defaultTimeZone, null);
+    }
+
+    /**
+     * Creates a converter that decodes strings into their canonical instances in the dictionary.
+     *
+     * @param schema           a {@code Schema} of Pages
+     * @param defaultTimeZone  a default time zone
+     * @param stringDictionary a dictionary of strings, or null
+     */
+    public PageConverter(Schema schema, TimeZone defaultTimeZone,
+                         StringDictionary stringDictionary) {
         this.defaultTimeZone = defaultTimeZone;
         this.row = new Object[schema.getColumnCount()];
+        this.lastValues = new Object[schema.getColumnCount()];
+        this.stringDictionary = stringDictionary;
     }
 
     public Object[] getRow() {
@@ -31,6 +49,15 @@ public class PageConverter implements ColumnVisitor {
         this.pageReader = pageReader;
     }
 
+    /**
+     * Notifies that the {@code PageReader} has moved to another Page.
+     */
+    public void startPage() {
+        if (stringDictionary != null) {
+            stringDictionary.startPage();
+        }
+    }
+
     @Override
     public void booleanColumn(Column column) {
         // Embulk's boolean is converted into Java's boolean
@@ -44,23 +71,36 @@ public class PageConverter implements ColumnVisitor {
 
     @Override
     public void longColumn(Column column) {
-        // Embulk's long is converted into long type
+        // Embulk's long is converted into java.lang.Long
         int i = column.getIndex();
         if (pageReader.isNull(i)) {
             row[i] = null;
         } else {
-            row[i] = pageReader.getLong(i);
+            final long value = pageReader.getLong(i);
+            final Long last = (Long) lastValues[i];
+            if (last != null && last == value) {
+                row[i] = last;
+            } else {
+                row[i] = lastValues[i] = value;
+            }
         }
     }
 
     @Override
     public void doubleColumn(Column column) {
-        // Embulk's double is converted into java.math.BigDecimal
+        // Embulk's double is converted into java.lang.Double as PageFieldType declares
         int i = column.getIndex();
         if (pageReader.isNull(i)) {
             row[i] = null;
         } else {
-            row[i] = new BigDecimal(pageReader.getDouble(i));
+            final double value = pageReader.getDouble(i);
+            final Double last = (Double) lastValues[i];
+            if (last != null
+                    && Double.doubleToRawLongBits(last) == Double.doubleToRawLongBits(value)) {
+                row[i] = last;
+            } else {
+                row[i] = lastValues[i] = value;
+            }
         }
     }
 
@@ -70,6 +110,8 @@ public class PageConverter implements ColumnVisitor {
         int i = column.getIndex();
         if (pageReader.isNull(i)) {
             row[i] = null;
+        } else if (stringDictionary != null) {
+            row[i] = stringDictionary.get(i, pageReader.getString(i));
         } else {
             row[i] = pageReader.getString(i);
         }
@@ -81,23 +123,52 @@ public class PageConverter implements ColumnVisitor {
         if (pageReader.isNull(i)) {
             row[i] = null;
         } else {
-            // Embulk's timestamp is converted into java.sql.Timestmap
-            final Instant instant = getInstant(pageReader, i);
-            long milliseconds = instant.getEpochSecond() * 1000 + instant.getNano() / 1000000;
-            java.sql.Timestamp ts = new java.sql.Timestamp(milliseconds);
-            ts.setNanos(instant.getNano());
-            row[i] = ts;
+            // Embulk's timestamp is converted into milliseconds since epoch as java.lang.Long,
+            // that is Calcite's internal representation of TIMESTAMP.
+            final long value = getEpochMilli(pageReader, i);
+            final Long last = (Long) lastValues[i];
+            if (last != null && last == value) {
+                row[i] = last;
+            } else {
+                row[i] = lastValues[i] = value;
+            }
         }
     }
 
     @Override
     public void jsonColumn(Column column) {
-        // Embulk's json is converted into Java's string
+        // Embulk's json is passed as msgpack Value without serializing it
         int i = column.getIndex();
         if (pageReader.isNull(i)) {
             row[i] = null;
         } else {
-            row[i] = pageReader.getJson(i).toJson();
+            row[i] = pageReader.getJson(i);
+        }
+    }
+
+    /**
+     * Returns a timestamp value in the current record as milliseconds since epoch.
+     *
+     * @param pageReader a {@code PageReader} object
+     * @param index      a column index
+     * @return milliseconds since epoch
+     */
+    public static long getEpochMilli(final PageReader pageReader, final int index) {
+        return getTimestampInstant(pageReader, index).toEpochMilli();
+    }
+
+    /**
+     * Returns a timestamp value in the current record as {@code Instant}.
+     *
+     * @param pageReader a {@code PageReader} object
+     * @param index      a column index
+     * @return an {@code Instant} object
+     */
+    public static Instant getTimestampInstant(final PageReader pageReader, final int index) {
+        if (HAS_GET_TIMESTAMP_INSTANT) {
+            return pageReader.getTimestampInstant(index);
+        } else {
+            return getInstant(pageReader, index);
         }
     }
 
@@ -105,4 +176,41 @@ public class PageConverter implements ColumnVisitor {
     private static Instant getInstant(final PageReader pageReader, final int index) {
         return pageReader.getTimestamp(index).getInstant();
     }
+
+    /**
+     * Creates a {@code PageReader} of the schema in the way that the running Embulk supports.
+     *
+     * @param schema a {@code Schema} of Pages
+     * @return a {@code PageReader} object
+     */
+    @SuppressWarnings("deprecation")
+    public static PageReader newPageReader(final Schema schema) {
+        if (HAS_EXEC_GET_PAGE_READER) {
+            return Exec.getPageReader(schema);
+        } else {
+            return new PageReader(schema);
+        }
+    }
+
+    private static boolean hasExecGetPageReader() {
+        try {
+            Exec.class.getMethod("getPageReader", Schema.class);
+        } catch (final NoSuchMethodException ex) {
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean hasGetTimestampInstant() {
+        try {
+            PageReader.class.getMethod("getTimestampInstant", int.class);
+        } catch (final NoSuchMethodException ex) {
+            return false;
+        }
+        return true;
+    }
+
+    private static final boolean HAS_GET_TIMESTAMP_INSTANT = hasGetTimestampInstant();
+
+    private static final boolean HAS_EXEC_GET_PAGE_READER = hasExecGetPageReader();
 }
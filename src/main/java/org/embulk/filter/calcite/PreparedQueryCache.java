@@ -0,0 +1,453 @@
+package org.embulk.filter.calcite;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import org.embulk.filter.calcite.adapter.page.LookupTable;
+import org.embulk.spi.Schema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide pool of Calcite prepared statements. Preparing a statement parses, validates and
+ * optimizes a query, and compiles the plan by Janino. The pool allows tasks in the same JVM to
+ * reuse statements that other tasks have already prepared for the same query, input schema and
+ * options.
+ *
+ * <p>A statement is owned by at most one task at a time. It's acquired in
+ * {@code FilterPlugin#open} and returned to the pool when the task closes its
+ * {@code PageOutput}.
+ *
+ * <p>It also caches {@code BindableQuery}s for the direct execution, and {@code AggregateQuery}s
+ * and {@code SortQuery}s for the execution through a task. They are shared by tasks because they
+ * don't have any mutable state. So are {@code LookupTable}s, which are loaded once for all tasks.
+ * A lookup table is loaded again when its file is modified, and queries that are prepared with
+ * the previous one are evicted.
+ *
+ * <p>Queries are cached by the query as configured, before {@code $HIGH_WATER_MARK} is replaced.
+ * A run with a new high-water mark replaces the entries of the previous run instead of adding
+ * new ones. Each kind of entries is bounded, and the least recently used ones are evicted. Idle
+ * statements of an evicted entry are closed.
+ */
+class PreparedQueryCache {
+
+    static final PreparedQueryCache INSTANCE = new PreparedQueryCache(64,
+            Math.max(2, Runtime.getRuntime().availableProcessors() * 2));
+
+    private static final Logger log = LoggerFactory.getLogger(PreparedQueryCache.class);
+
+    private final int maxIdleStatementsPerKey;
+    private final LruMap<Key, IdleStatements> idleStatements;
+    private final LruMap<Key, Entry<Optional<BindableQuery>>> bindableQueries;
+    private final LruMap<Key, Entry<AggregateQuery>> aggregateQueries;
+    private final LruMap<Key, Entry<SortQuery>> sortQueries;
+    private final LruMap<List<Object>, LoadedTable> lookupTables;
+
+    PreparedQueryCache(int maxEntries, int maxIdleStatementsPerKey) {
+        this.maxIdleStatementsPerKey = maxIdleStatementsPerKey;
+        this.idleStatements = new LruMap<>(maxEntries, IdleStatements::close);
+        this.bindableQueries = new LruMap<>(maxEntries, entry -> { });
+        this.aggregateQueries = new LruMap<>(maxEntries, entry -> { });
+        this.sortQueries = new LruMap<>(maxEntries, entry -> { });
+        this.lookupTables = new LruMap<>(maxEntries, loaded -> evictQueriesWith(loaded.table));
+    }
+
+    /**
+     * Acquires a prepared statement for the query. A new statement is prepared by
+     * {@code factory} only when the pool doesn't have an idle one.
+     *
+     * @param configuredQuery a query as configured, which the statement is cached by
+     * @param query           the query to prepare, where {@code $HIGH_WATER_MARK} is replaced
+     * @param inputSchema     an input schema that {@code $PAGES} has
+     * @param timeZone        a default time zone configured for the connection
+     * @param options         connection properties configured by 'options' option
+     * @param lookupTables    lookup tables that the query can join with {@code $PAGES}
+     * @param factory         a function that creates a new connection and prepares the query on it
+     * @return a {@code PreparedQuery} that must be closed by the caller
+     */
+    PreparedQuery acquire(String configuredQuery, String query, Schema inputSchema, ZoneId timeZone,
+                          Map<String, String> options, Map<String, LookupTable> lookupTables,
+                          Supplier<PreparedStatement> factory) {
+        final Key key = new Key(configuredQuery, inputSchema, timeZone, options, lookupTables);
+        IdleStatements idle = idleStatements.get(key);
+        if (idle == null || !idle.query.equals(query)) {
+            idle = idleStatements.putIfAbsent(key, new IdleStatements(query),
+                    other -> other.query.equals(query));
+        }
+        PreparedStatement statement = idle.poll();
+        if (statement != null) {
+            log.debug("Reuse a prepared statement for query: {}", query);
+        } else {
+            statement = factory.get();
+        }
+        return new PreparedQuery(idle, statement);
+    }
+
+    /**
+     * Returns a {@code BindableQuery} for the query. It's usually prepared by {@code factory} once
+     * in the JVM, including when the query cannot be prepared for the direct execution.
+     *
+     * @param profiled true if operators of the query are measured by {@code OperatorStats}
+     * @param memoized true if costly expressions of the query are memoized
+     * @param factory  a function that prepares the query, or returns empty if it cannot
+     * @return a {@code BindableQuery}, or empty if the query cannot be executed directly
+     */
+    Optional<BindableQuery> getBindable(String configuredQuery, String query, Schema inputSchema,
+                                        ZoneId timeZone, Map<String, String> options,
+                                        Map<String, LookupTable> lookupTables,
+                                        boolean profiled, boolean memoized,
+                                        Supplier<Optional<BindableQuery>> factory) {
+        final Key key = new Key(configuredQuery, inputSchema, timeZone, options, lookupTables,
+                profiled, memoized);
+        return get(bindableQueries, key, query, factory);
+    }
+
+    /**
+     * Returns an {@code AggregateQuery} for the query. It's usually prepared by {@code factory}
+     * once in the JVM unless {@code factory} throws an exception.
+     *
+     * @param factory a function that prepares the query
+     * @return an {@code AggregateQuery}
+     */
+    AggregateQuery getAggregate(String configuredQuery, String query, Schema inputSchema,
+                                ZoneId timeZone, Map<String, String> options,
+                                Map<String, LookupTable> lookupTables,
+                                Supplier<AggregateQuery> factory) {
+        final Key key = new Key(configuredQuery, inputSchema, timeZone, options, lookupTables);
+        return get(aggregateQueries, key, query, factory);
+    }
+
+    /**
+     * Returns a {@code SortQuery} for the query. It's usually prepared by {@code factory} once in
+     * the JVM unless {@code factory} throws an exception.
+     *
+     * @param factory a function that prepares the query
+     * @return a {@code SortQuery}
+     */
+    SortQuery getSort(String configuredQuery, String query, Schema inputSchema, ZoneId timeZone,
+                      Map<String, String> options, Map<String, LookupTable> lookupTables,
+                      Supplier<SortQuery> factory) {
+        final Key key = new Key(configuredQuery, inputSchema, timeZone, options, lookupTables);
+        return get(sortQueries, key, query, factory);
+    }
+
+    // Queries are prepared outside of the lock of the map, so that preparing one doesn't block
+    // lookups of others. Tasks that miss the same query at the same time may prepare it twice,
+    // and only one of them is cached.
+    private static <V> V get(LruMap<Key, Entry<V>> map, Key key, String query,
+                             Supplier<V> factory) {
+        final Entry<V> cached = map.get(key);
+        if (cached != null && cached.query.equals(query)) {
+            return cached.value;
+        }
+        final Entry<V> prepared = new Entry<>(query, factory.get());
+        return map.putIfAbsent(key, prepared, other -> other.query.equals(query)).value;
+    }
+
+    /**
+     * Returns a {@code LookupTable} loaded from a file. It's usually loaded by {@code factory} once
+     * in the JVM for the same definition, and loaded again when the file is modified.
+     *
+     * @param path         a path of the file
+     * @param lastModified the last modified time of the file
+     * @param format       a format of the file
+     * @param columns      columns of the table
+     * @param keyColumn    a name of the key column
+     * @param timeZone     a default time zone configured for the connection
+     * @param factory      a function that loads the table
+     * @return a {@code LookupTable}
+     */
+    LookupTable getLookupTable(Path path, FileTime lastModified, String format, Schema columns,
+                               String keyColumn, ZoneId timeZone, Supplier<LookupTable> factory) {
+        final List<Object> key = Arrays.<Object>asList(path.toAbsolutePath().normalize(), format,
+                columns, keyColumn, timeZone);
+        final LoadedTable cached = lookupTables.get(key);
+        if (cached != null && cached.lastModified.equals(lastModified)) {
+            return cached.table;
+        }
+        log.info("Loading a lookup table from {}", path);
+        final LoadedTable loaded = new LoadedTable(lastModified, factory.get());
+        return lookupTables.putIfAbsent(key, loaded,
+                other -> other.lastModified.equals(lastModified)).table;
+    }
+
+    // Evicts queries that are prepared with a lookup table that is replaced or evicted, so that
+    // they don't keep it
+    private void evictQueriesWith(LookupTable table) {
+        idleStatements.removeIf(key -> key.references(table));
+        bindableQueries.removeIf(key -> key.references(table));
+        aggregateQueries.removeIf(key -> key.references(table));
+        sortQueries.removeIf(key -> key.references(table));
+    }
+
+    private void release(IdleStatements idle, PreparedStatement statement) {
+        if (!idle.offer(statement, maxIdleStatementsPerKey)) {
+            closeStatement(statement);
+        }
+    }
+
+    private static void closeStatement(PreparedStatement statement) {
+        try {
+            final Connection conn = statement.getConnection();
+            try {
+                statement.close();
+            } finally {
+                conn.close();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    class PreparedQuery implements AutoCloseable {
+
+        private final IdleStatements idle;
+        private final PreparedStatement statement;
+        private boolean reusable;
+        private boolean closed;
+
+        private PreparedQuery(IdleStatements idle, PreparedStatement statement) {
+            this.idle = idle;
+            this.statement = statement;
+            this.reusable = true;
+            this.closed = false;
+        }
+
+        PreparedStatement getStatement() {
+            return statement;
+        }
+
+        /**
+         * Prevents the statement from being returned to the pool. It should be called when the
+         * statement might be in an inconsistent state, e.g. after its execution failed.
+         */
+        void invalidate() {
+            this.reusable = false;
+        }
+
+        @Override
+        public void close() {
+            // A PageOutput can be closed more than once. The statement must not be released twice.
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (reusable) {
+                release(idle, statement);
+            } else {
+                closeStatement(statement);
+            }
+        }
+    }
+
+    // Idle statements of a query. Statements released after it's evicted are closed.
+    private static class IdleStatements {
+
+        private final String query;
+        private final ArrayDeque<PreparedStatement> statements = new ArrayDeque<>();
+        private boolean closed;
+
+        private IdleStatements(String query) {
+            this.query = query;
+        }
+
+        private synchronized PreparedStatement poll() {
+            return statements.pollFirst();
+        }
+
+        // Returns false if the statement is not kept, and the caller closes it
+        private synchronized boolean offer(PreparedStatement statement, int maxStatements) {
+            if (closed || statements.size() >= maxStatements) {
+                return false;
+            }
+            statements.addFirst(statement);
+            return true;
+        }
+
+        private void close() {
+            final ArrayList<PreparedStatement> closing;
+            synchronized (this) {
+                closed = true;
+                closing = new ArrayList<>(statements);
+                statements.clear();
+            }
+            for (PreparedStatement statement : closing) {
+                try {
+                    closeStatement(statement);
+                } catch (RuntimeException e) {
+                    log.warn("Cannot close an evicted statement for query: " + query, e);
+                }
+            }
+        }
+    }
+
+    // A prepared query and the query string that it's prepared from
+    private static class Entry<V> {
+
+        private final String query;
+        private final V value;
+
+        private Entry(String query, V value) {
+            this.query = query;
+            this.value = value;
+        }
+    }
+
+    // A lookup table and the last modified time of the file that it's loaded from
+    private static class LoadedTable {
+
+        private final FileTime lastModified;
+        private final LookupTable table;
+
+        private LoadedTable(FileTime lastModified, LookupTable table) {
+            this.lastModified = lastModified;
+            this.table = table;
+        }
+    }
+
+    /**
+     * A map that evicts the least recently used entries over {@code maxEntries}. Evicted and
+     * replaced values are passed to {@code onEvict} outside of the lock.
+     */
+    private static class LruMap<K, V> {
+
+        private final int maxEntries;
+        private final Consumer<V> onEvict;
+        private final LinkedHashMap<K, V> map;
+
+        private LruMap(int maxEntries, Consumer<V> onEvict) {
+            this.maxEntries = maxEntries;
+            this.onEvict = onEvict;
+            this.map = new LinkedHashMap<>(16, 0.75f, true); // in access order
+        }
+
+        private synchronized V get(K key) {
+            return map.get(key);
+        }
+
+        /**
+         * Puts a value unless the map has a current value for the key. A value that is not
+         * current is replaced.
+         *
+         * @param current a predicate that tests if a value in the map is current
+         * @return the current value in the map
+         */
+        private V putIfAbsent(K key, V value, Predicate<? super V> current) {
+            final ArrayList<V> evicted = new ArrayList<>();
+            final V result;
+            synchronized (this) {
+                final V existing = map.get(key);
+                if (existing != null && current.test(existing)) {
+                    result = existing;
+                } else {
+                    if (existing != null) {
+                        evicted.add(existing);
+                    }
+                    map.put(key, value);
+                    result = value;
+                    final Iterator<V> eldest = map.values().iterator();
+                    while (map.size() > maxEntries) {
+                        evicted.add(eldest.next());
+                        eldest.remove();
+                    }
+                }
+            }
+            evicted.forEach(onEvict);
+            return result;
+        }
+
+        private void removeIf(Predicate<? super K> predicate) {
+            final ArrayList<V> evicted = new ArrayList<>();
+            synchronized (this) {
+                final Iterator<Map.Entry<K, V>> entries = map.entrySet().iterator();
+                while (entries.hasNext()) {
+                    final Map.Entry<K, V> entry = entries.next();
+                    if (predicate.test(entry.getKey())) {
+                        evicted.add(entry.getValue());
+                        entries.remove();
+                    }
+                }
+            }
+            evicted.forEach(onEvict);
+        }
+    }
+
+    private static class Key {
+
+        private final String query;
+        private final Schema inputSchema;
+        private final ZoneId timeZone;
+        private final Map<String, String> options;
+        private final Map<String, LookupTable> lookupTables;
+        private final boolean profiled;
+        private final boolean memoized;
+
+        private Key(String query, Schema inputSchema, ZoneId timeZone, Map<String, String> options,
+                    Map<String, LookupTable> lookupTables) {
+            this(query, inputSchema, timeZone, options, lookupTables, false, false);
+        }
+
+        private Key(String query, Schema inputSchema, ZoneId timeZone, Map<String, String> options,
+                    Map<String, LookupTable> lookupTables, boolean profiled, boolean memoized) {
+            this.query = query;
+            this.inputSchema = inputSchema;
+            this.timeZone = timeZone;
+            this.options = Collections.unmodifiableMap(new HashMap<>(options));
+            // Lookup tables are compared by identity. They're loaded only once for a definition
+            // until its file is modified.
+            this.lookupTables = Collections.unmodifiableMap(new HashMap<>(lookupTables));
+            this.profiled = profiled;
+            this.memoized = memoized;
+        }
+
+        private boolean references(LookupTable table) {
+            for (LookupTable referenced : lookupTables.values()) {
+                if (referenced == table) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return query.equals(other.query)
+                    && inputSchema.equals(other.inputSchema)
+                    && timeZone.equals(other.timeZone)
+                    && options.equals(other.options)
+                    && lookupTables.equals(other.lookupTables)
+                    && profiled == other.profiled
+                    && memoized == other.memoized;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(query, inputSchema, timeZone, options, lookupTables, profiled,
+                    memoized);
+        }
+    }
+}
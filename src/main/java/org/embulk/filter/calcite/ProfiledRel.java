@@ -0,0 +1,80 @@
+package org.embulk.filter.calcite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.calcite.DataContext;
+import org.apache.calcite.adapter.enumerable.EnumerableRel;
+import org.apache.calcite.adapter.enumerable.EnumerableRelImplementor;
+import org.apache.calcite.linq4j.tree.BlockBuilder;
+import org.apache.calcite.linq4j.tree.Expression;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.linq4j.tree.ParameterExpression;
+import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.SingleRel;
+
+/**
+ * An operator that passes rows of its input as they are, and measures them by
+ * {@code OperatorStats}. It's put above each operator of an optimized plan, whose results are
+ * wrapped by {@code OperatorStats.wrap()} in the generated code with time to build them.
+ */
+final class ProfiledRel extends SingleRel implements EnumerableRel {
+
+    private final int id;
+
+    private ProfiledRel(RelNode input, int id) {
+        super(input.getCluster(), input.getTraitSet(), input);
+        this.id = id;
+    }
+
+    /**
+     * Puts a {@code ProfiledRel} above each Enumerable operator of an optimized plan.
+     *
+     * @param rel       an optimized plan
+     * @param operators a list that names of operators are added into in pre-order, indented by
+     *                  their depths. An index is the ID of an operator.
+     * @param parents   a list that IDs of parents of operators are added into, or -1 for the root
+     * @return the plan that is measured
+     */
+    static RelNode profile(RelNode rel, List<String> operators, List<Integer> parents) {
+        return profile(rel, operators, parents, -1, 0);
+    }
+
+    private static RelNode profile(RelNode rel, List<String> operators, List<Integer> parents,
+                                   int parent, int depth) {
+        if (!(rel instanceof EnumerableRel)) {
+            // e.g. an input of EnumerableInterpreter, which is interpreted as a whole
+            return rel;
+        }
+        final int id = operators.size();
+        operators.add(String.join("", Collections.nCopies(depth, "  ")) + rel.getRelTypeName());
+        parents.add(parent);
+        final ArrayList<RelNode> inputs = new ArrayList<>();
+        for (RelNode input : rel.getInputs()) {
+            inputs.add(profile(input, operators, parents, id, depth + 1));
+        }
+        return new ProfiledRel(rel.copy(rel.getTraitSet(), inputs), id);
+    }
+
+    @Override
+    public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+        return new ProfiledRel(sole(inputs), id);
+    }
+
+    @Override
+    public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+        final Result result = implementor.visitChild(this, 0, (EnumerableRel) getInput(), pref);
+        final BlockBuilder builder = new BlockBuilder();
+        // Operators such as EnumerableAggregate evaluate their inputs eagerly while their results
+        // are built, and so building them is measured too. The start time is taken before them
+        // even if it's inlined into the arguments, which are evaluated from left to right.
+        final ParameterExpression start = Expressions.parameter(long.class,
+                builder.newName("start"));
+        builder.add(Expressions.declare(0, start, Expressions.call(System.class, "nanoTime")));
+        final Expression input = builder.append("profiled", result.block);
+        builder.add(Expressions.return_(null, Expressions.call(OperatorStats.class, "wrap",
+                DataContext.ROOT, Expressions.constant(id), start, input)));
+        return implementor.result(result.physType, builder.toBlock());
+    }
+}
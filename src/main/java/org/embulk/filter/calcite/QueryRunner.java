@@ -0,0 +1,22 @@
+package org.embulk.filter.calcite;
+
+import org.embulk.filter.calcite.adapter.page.PageBinding;
+
+/**
+ * Executes a query for {@code Page}s bound by {@code PageBinding} and writes its results into a
+ * {@code PageBuilder}.
+ */
+interface QueryRunner extends AutoCloseable {
+
+    void run(PageBinding binding);
+
+    /**
+     * Writes results that are held across executions, if any, when the task finishes. It's called
+     * after the last execution of {@link #run(PageBinding)}.
+     */
+    default void finish() {
+    }
+
+    @Override
+    void close();
+}
@@ -0,0 +1,242 @@
+package org.embulk.filter.calcite;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.embulk.filter.calcite.adapter.page.PageBinding;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageOutput;
+
+/**
+ * Executes a query for batches of {@code Page}s on worker threads of a task, and emits their
+ * results into the {@code PageOutput} in the order that the batches are submitted.
+ *
+ * <p>Each {@link Worker} owns its {@code PageBinding}, {@code QueryRunner} and {@code PageBuilder},
+ * so that it decodes Pages and executes the query without sharing any state with the others.
+ * Result Pages are built on the worker thread, and forwarded to the {@code PageOutput} on the
+ * thread that submits batches. Decoding of a batch overlaps with the execution of the others.
+ *
+ * <p>At most twice as many batches as workers are pending. {@link #submit(List)} blocks until the
+ * oldest batch completes when the limit is reached.
+ *
+ * <p>Input Pages of a batch are owned by the worker that executes it, and released when the
+ * execution ends. Input Pages of batches that haven't started when the pool is closed are
+ * released by {@link #close()}.
+ */
+class QueryWorkerPool implements AutoCloseable {
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final PageOutput output;
+    private final List<Worker> workers;
+    private final BlockingQueue<Worker> idleWorkers;
+    private final ExecutorService executor;
+    private final ArrayDeque<Batch> pendingBatches;
+    private final int maxPendingBatches;
+
+    QueryWorkerPool(List<Worker> workers, PageOutput output) {
+        this.output = output;
+        this.workers = workers;
+        this.idleWorkers = new ArrayBlockingQueue<>(workers.size(), false, workers);
+        this.executor = Executors.newFixedThreadPool(workers.size(), runnable -> {
+            final Thread thread = new Thread(runnable,
+                    "embulk-filter-calcite-worker-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pendingBatches = new ArrayDeque<>();
+        this.maxPendingBatches = workers.size() * 2;
+    }
+
+    /**
+     * Submits a batch of Pages, and emits results of completed batches in order.
+     *
+     * @param pages Pages of a batch. The list is copied.
+     */
+    void submit(List<Page> pages) {
+        final List<Page> input = new ArrayList<>(pages);
+        pendingBatches.add(new Batch(input, executor.submit(() -> execute(input))));
+        while (!pendingBatches.isEmpty() && (pendingBatches.size() > maxPendingBatches
+                || pendingBatches.peek().result.isDone())) {
+            emit(pendingBatches.poll().result);
+        }
+    }
+
+    /**
+     * Waits for all of submitted batches, and emits their results.
+     */
+    void finish() {
+        while (!pendingBatches.isEmpty()) {
+            emit(pendingBatches.poll().result);
+        }
+        output.finish();
+    }
+
+    private List<Page> execute(List<Page> pages) throws InterruptedException {
+        // never waits because there are as many workers as threads
+        final Worker worker = idleWorkers.take();
+        try {
+            return worker.execute(pages);
+        } finally {
+            idleWorkers.add(worker);
+        }
+    }
+
+    private void emit(Future<List<Page>> batch) {
+        final List<Page> pages;
+        try {
+            pages = batch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        for (Page page : pages) {
+            output.add(page);
+        }
+    }
+
+    /**
+     * Adds metrics of workers to the metrics of the task. It's called after the pool is closed.
+     */
+    void mergeMetricsInto(TaskMetrics metrics) {
+        for (Worker worker : workers) {
+            metrics.merge(worker.binding.getMetrics());
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            // Pending batches are discarded when the task fails
+            final List<Runnable> notStarted = executor.shutdownNow();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (Batch batch : pendingBatches) {
+                if (notStarted.contains(batch.result)) {
+                    BorrowedPage.releaseAll(batch.input); // never executed by a worker
+                } else if (batch.result.isDone() && !batch.result.isCancelled()) {
+                    try {
+                        BorrowedPage.releaseAll(batch.result.get());
+                    } catch (InterruptedException | ExecutionException e) {
+                        // nothing to release
+                    }
+                }
+            }
+            pendingBatches.clear();
+            for (Worker worker : workers) {
+                worker.close();
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * A set of objects to execute the query on a worker thread. Its {@code PageBuilder} must write
+     * into the {@link PageBuffer}, and its {@code QueryRunner} must write into the
+     * {@code PageBuilder}.
+     */
+    static class Worker implements AutoCloseable {
+
+        private final PageBuilder pageBuilder;
+        private final PageBuffer buffer;
+        private final PageBinding binding;
+        private final QueryRunner queryRunner;
+
+        Worker(PageBuilder pageBuilder, PageBuffer buffer, PageBinding binding,
+                QueryRunner queryRunner) {
+            this.pageBuilder = pageBuilder;
+            this.buffer = buffer;
+            this.binding = binding;
+            this.queryRunner = queryRunner;
+        }
+
+        private List<Page> execute(List<Page> pages) {
+            binding.getMetrics().startBatch();
+            binding.setPages(BorrowedPage.of(pages));
+            try {
+                queryRunner.run(binding);
+                pageBuilder.flush();
+                return buffer.drain();
+            } finally {
+                binding.setPages(Collections.<Page>emptyList());
+                binding.getMetrics().endBatch();
+                BorrowedPage.releaseAll(pages);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                pageBuilder.close();
+            } finally {
+                binding.close();
+                queryRunner.close();
+            }
+        }
+    }
+
+    // Input Pages of a batch and the future of its result Pages
+    private static class Batch {
+
+        private final List<Page> input;
+        private final Future<List<Page>> result;
+
+        private Batch(List<Page> input, Future<List<Page>> result) {
+            this.input = input;
+            this.result = result;
+        }
+    }
+
+    /**
+     * A {@code PageOutput} that holds Pages built by a worker until they're emitted.
+     */
+    static class PageBuffer implements PageOutput {
+
+        private final ArrayList<Page> pages = new ArrayList<>();
+
+        private List<Page> drain() {
+            final List<Page> drained = new ArrayList<>(pages);
+            pages.clear();
+            return drained;
+        }
+
+        @Override
+        public void add(Page page) {
+            pages.add(page);
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void close() {
+            for (Page page : pages) {
+                page.release();
+            }
+            pages.clear();
+        }
+    }
+}
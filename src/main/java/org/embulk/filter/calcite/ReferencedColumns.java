@@ -0,0 +1,70 @@
+package org.embulk.filter.calcite;
+
+import java.util.List;
+import org.apache.calcite.plan.RelOptUtil;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelVisitor;
+import org.apache.calcite.rel.core.Project;
+import org.apache.calcite.rel.core.RelFactories;
+import org.apache.calcite.rel.core.TableScan;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.rex.RexUtil;
+import org.apache.calcite.sql2rel.RelFieldTrimmer;
+import org.apache.calcite.util.ImmutableBitSet;
+import org.embulk.filter.calcite.adapter.page.PageTable;
+
+/**
+ * Finds columns of {@code $PAGES} that a query references, so that {@code PageConverter} decodes
+ * only them for each row.
+ *
+ * <p>The query is converted into a logical plan, and unused fields are trimmed from it. Then each
+ * scan of {@code $PAGES} is followed by a projection of referenced columns. If a scan cannot be
+ * analyzed, all columns are regarded as referenced. Scans of lookup tables are ignored.
+ */
+class ReferencedColumns {
+
+    private ReferencedColumns() {
+    }
+
+    /**
+     * Returns indexes of columns that a query references.
+     *
+     * @param rel         a logical plan of the query that a planner has converted
+     * @param columnCount the number of columns of {@code $PAGES}
+     * @return a set of column indexes
+     */
+    static ImmutableBitSet find(RelNode rel, int columnCount) {
+        final RelNode trimmed = new RelFieldTrimmer(null,
+                RelFactories.LOGICAL_BUILDER.create(rel.getCluster(), null)).trim(rel);
+        return findScans(trimmed, columnCount);
+    }
+
+    private static ImmutableBitSet findScans(RelNode rel, final int columnCount) {
+        final ImmutableBitSet all = ImmutableBitSet.range(columnCount);
+        final ImmutableBitSet.Builder builder = ImmutableBitSet.builder();
+        new RelVisitor() {
+            @Override
+            public void visit(RelNode node, int ordinal, RelNode parent) {
+                if (RexUtil.SubQueryFinder.find(getExpressions(node)) != null) {
+                    // scans in sub-queries aren't visited
+                    builder.addAll(all);
+                } else if (node instanceof TableScan
+                        && node.getTable().unwrap(PageTable.class) != null) {
+                    // a projection refers only to columns in its expressions. Other parents, e.g. a
+                    // filter, pass all columns through.
+                    builder.addAll(parent instanceof Project
+                            ? RelOptUtil.InputFinder.bits(((Project) parent).getProjects(), null)
+                            : all);
+                }
+                super.visit(node, ordinal, parent);
+            }
+        }.go(rel);
+        return builder.build();
+    }
+
+    // Calcite 1.13 has no replacement of getChildExps() that covers expressions of all nodes
+    @SuppressWarnings("deprecation")
+    private static List<RexNode> getExpressions(RelNode node) {
+        return node.getChildExps();
+    }
+}
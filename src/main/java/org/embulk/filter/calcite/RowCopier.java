@@ -0,0 +1,76 @@
+package org.embulk.filter.calcite;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageReader;
+
+/**
+ * Copies values of the current record of a {@code PageReader} into a {@code PageBuilder} of the
+ * same schema. Call {@code schema.visitColumns(copier)} and then {@code addRecord()}.
+ */
+class RowCopier implements ColumnVisitor {
+
+    private final PageReader pageReader;
+    private final PageBuilder pageBuilder;
+
+    RowCopier(PageReader pageReader, PageBuilder pageBuilder) {
+        this.pageReader = pageReader;
+        this.pageBuilder = pageBuilder;
+    }
+
+    @Override
+    public void booleanColumn(Column column) {
+        if (pageReader.isNull(column)) {
+            pageBuilder.setNull(column);
+        } else {
+            pageBuilder.setBoolean(column, pageReader.getBoolean(column));
+        }
+    }
+
+    @Override
+    public void longColumn(Column column) {
+        if (pageReader.isNull(column)) {
+            pageBuilder.setNull(column);
+        } else {
+            pageBuilder.setLong(column, pageReader.getLong(column));
+        }
+    }
+
+    @Override
+    public void doubleColumn(Column column) {
+        if (pageReader.isNull(column)) {
+            pageBuilder.setNull(column);
+        } else {
+            pageBuilder.setDouble(column, pageReader.getDouble(column));
+        }
+    }
+
+    @Override
+    public void stringColumn(Column column) {
+        if (pageReader.isNull(column)) {
+            pageBuilder.setNull(column);
+        } else {
+            pageBuilder.setString(column, pageReader.getString(column));
+        }
+    }
+
+    @Override
+    public void timestampColumn(Column column) {
+        if (pageReader.isNull(column)) {
+            pageBuilder.setNull(column);
+        } else {
+            pageBuilder.setTimestamp(column,
+                    PageConverter.getTimestampInstant(pageReader, column.getIndex()));
+        }
+    }
+
+    @Override
+    public void jsonColumn(Column column) {
+        if (pageReader.isNull(column)) {
+            pageBuilder.setNull(column);
+        } else {
+            pageBuilder.setJson(column, pageReader.getJson(column));
+        }
+    }
+}
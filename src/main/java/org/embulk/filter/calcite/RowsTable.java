@@ -0,0 +1,148 @@
+package org.embulk.filter.calcite;
+
+import com.google.common.collect.ImmutableList;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import org.apache.calcite.DataContext;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.plan.RelOptTable;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.Filter;
+import org.apache.calcite.rel.core.Join;
+import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.rel.core.Project;
+import org.apache.calcite.rel.core.TableScan;
+import org.apache.calcite.rel.logical.LogicalTableScan;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.rex.RexOver;
+import org.apache.calcite.rex.RexUtil;
+import org.apache.calcite.schema.ScannableTable;
+import org.apache.calcite.schema.SchemaPlus;
+import org.apache.calcite.schema.impl.AbstractTable;
+import org.embulk.filter.calcite.adapter.page.LookupTable;
+import org.embulk.filter.calcite.adapter.page.PageTable;
+
+/**
+ * A table that scans rows passed through {@code DataContext}. It replaces a part of a plan whose
+ * results the plugin computes through a task instead of Calcite, e.g. groups of the task-wide
+ * aggregation. Rows are in Calcite's internal representation.
+ */
+class RowsTable extends AbstractTable implements ScannableTable {
+
+    // a parameter name of DataContext that has an Enumerable<Object[]> of rows
+    static final String PARAMETER = "embulk.rows";
+
+    private static final String NAME = "$ROWS";
+
+    private final RelDataType rowType;
+
+    private RowsTable(RelDataType rowType) {
+        this.rowType = rowType;
+    }
+
+    /**
+     * Replaces a node of a plan by a scan of {@code RowsTable}, and copies nodes above it on the
+     * scan. The table is registered in the {@code page} schema of {@code rootSchema}.
+     *
+     * @param rootSchema a root schema that the plan is converted with
+     * @param scan       a scan of {@code $PAGES} in the plan
+     * @param node       a node to be replaced. Its row type is the row type of the table.
+     * @param upperNodes nodes above {@code node}, from the nearest one to the root
+     * @return the root of a new plan
+     */
+    static RelNode replace(SchemaPlus rootSchema, TableScan scan, RelNode node,
+                           Deque<RelNode> upperNodes) {
+        rootSchema.getSubSchema("page").add(NAME, new RowsTable(node.getRowType()));
+        final RelOptTable table = scan.getTable().getRelOptSchema()
+                .getTableForMember(ImmutableList.of("page", NAME));
+        RelNode upper = LogicalTableScan.create(node.getCluster(), table);
+        while (!upperNodes.isEmpty()) {
+            final RelNode upperNode = upperNodes.pop();
+            upper = upperNode.copy(upperNode.getTraitSet(), ImmutableList.of(upper));
+        }
+        return upper;
+    }
+
+    /**
+     * Finds the scan of {@code $PAGES} under projections, filters and joins with lookup tables.
+     * Rows of such a plan can be computed for each batch of Pages independently.
+     *
+     * @param query a query string for error messages
+     * @param node  a node of a plan
+     * @return the scan
+     * @throws UnsupportedOperationException if the plan has other nodes
+     */
+    static TableScan findScan(String query, RelNode node) {
+        while (true) {
+            if (node instanceof Project || node instanceof Filter) {
+                checkExpressions(query, node);
+                node = node.getInput(0);
+            } else if (node instanceof Join && isLookup(((Join) node).getRight())
+                    && EnumSet.of(JoinRelType.INNER, JoinRelType.LEFT)
+                            .contains(((Join) node).getJoinType())) {
+                checkExpressions(query, node);
+                node = ((Join) node).getLeft();
+            } else if (node instanceof Join && isLookup(((Join) node).getLeft())
+                    && ((Join) node).getJoinType() == JoinRelType.INNER) {
+                checkExpressions(query, node);
+                node = ((Join) node).getRight();
+            } else {
+                break;
+            }
+        }
+        if (!(node instanceof TableScan) || node.getTable().unwrap(PageTable.class) == null) {
+            throw unsupported(query, node);
+        }
+        return (TableScan) node;
+    }
+
+    // a scan of a lookup table under projections and filters
+    private static boolean isLookup(RelNode node) {
+        while (node instanceof Project || node instanceof Filter) {
+            node = node.getInput(0);
+        }
+        return node instanceof TableScan && node.getTable().unwrap(LookupTable.class) != null;
+    }
+
+    /**
+     * Checks that expressions of a node are evaluated row by row, i.e. they have neither
+     * sub-queries nor window functions.
+     *
+     * @param query a query string for error messages
+     * @param node  a node of a plan
+     * @throws UnsupportedOperationException if the node has such expressions
+     */
+    static void checkExpressions(String query, RelNode node) {
+        final List<RexNode> expressions = getExpressions(node);
+        if (RexUtil.SubQueryFinder.find(expressions) != null
+                || RexOver.containsOver(expressions, null)) {
+            throw unsupported(query, node);
+        }
+    }
+
+    // Calcite 1.13 has no replacement of getChildExps() that covers expressions of all nodes
+    @SuppressWarnings("deprecation")
+    private static List<RexNode> getExpressions(RelNode node) {
+        return node.getChildExps();
+    }
+
+    private static UnsupportedOperationException unsupported(String query, RelNode node) {
+        return new UnsupportedOperationException(String.format(Locale.ENGLISH,
+                "Cannot execute '%s' through a task in query: %s", node.getRelTypeName(), query));
+    }
+
+    @Override
+    public RelDataType getRowType(RelDataTypeFactory typeFactory) {
+        return rowType;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Enumerable<Object[]> scan(DataContext root) {
+        return (Enumerable<Object[]>) root.get(PARAMETER);
+    }
+}
@@ -0,0 +1,186 @@
+package org.embulk.filter.calcite;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * A set of 64-bit hashes of keys that a task has seen. Hashes are stored off heap in a direct
+ * buffer, so that a large set doesn't burden the garbage collector, and its memory is bounded.
+ *
+ * <p>{@link #newHashSet(long)} is an open-addressed hash set with linear probing. It's exact up to
+ * collisions of 64-bit hashes. It doubles its capacity as hashes are added until the capacity
+ * reaches the memory limit, and then it's saturated: new hashes are not added anymore, so that
+ * their keys are regarded as unseen every time.
+ *
+ * <p>{@link #newBloomFilter(long)} is a Bloom filter that uses all of the memory from the start.
+ * It never grows, but it regards unseen keys as seen with a probability that increases as keys
+ * are added.
+ *
+ * <p>This is not thread-safe.
+ */
+abstract class SeenKeySet {
+
+    /**
+     * Adds a hash, and returns true if it has not been seen.
+     *
+     * @param hash a hash of a key
+     * @return {@code true} if the hash is new
+     */
+    abstract boolean add(long hash);
+
+    /**
+     * Returns bytes of off-heap memory that this set uses.
+     */
+    abstract long getMemoryBytes();
+
+    /**
+     * Returns true if this set couldn't add hashes because of the memory limit.
+     */
+    abstract boolean isSaturated();
+
+    static SeenKeySet newHashSet(long maxMemoryBytes) {
+        return new HashSet(maxMemoryBytes);
+    }
+
+    static SeenKeySet newBloomFilter(long memoryBytes) {
+        return new BloomFilter(memoryBytes);
+    }
+
+    // The finalizer of MurmurHash3, which spreads bits of a hash over all bits
+    static long mix(long hash) {
+        long h = hash;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static LongBuffer allocate(int slots) {
+        return ByteBuffer.allocateDirect(slots * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+
+    private static final class HashSet extends SeenKeySet {
+
+        private static final int INITIAL_SLOTS = 1 << 16;
+        private static final long EMPTY = 0L; // a hash of 0 is stored as 1
+
+        private final long maxSlots;
+        private LongBuffer slots;
+        private int mask;
+        private int size;
+        private boolean saturated;
+
+        private HashSet(long maxMemoryBytes) {
+            // Slots are a power of 2, and a direct buffer has at most Integer.MAX_VALUE bytes
+            this.maxSlots = Long.highestOneBit(
+                    Math.max(Math.min(maxMemoryBytes, Integer.MAX_VALUE) / 8, 1));
+            final int initialSlots = (int) Math.min(INITIAL_SLOTS, maxSlots);
+            this.slots = allocate(initialSlots);
+            this.mask = initialSlots - 1;
+        }
+
+        @Override
+        boolean add(long hash) {
+            final long h = hash == EMPTY ? 1L : hash;
+            int i = (int) mix(h) & mask;
+            while (true) {
+                final long stored = slots.get(i);
+                if (stored == h) {
+                    return false;
+                } else if (stored == EMPTY) {
+                    break;
+                }
+                i = (i + 1) & mask;
+            }
+
+            // Keeps the load factor at most 3/4, and a slot empty at least
+            if ((size + 1) * 4L > (mask + 1) * 3L) {
+                if ((mask + 1) * 2L > maxSlots) {
+                    saturated = true;
+                    return true;
+                }
+                grow();
+                i = (int) mix(h) & mask;
+                while (slots.get(i) != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+            }
+            slots.put(i, h);
+            size++;
+            return true;
+        }
+
+        private void grow() {
+            final LongBuffer old = slots;
+            final int newSlots = (mask + 1) * 2;
+            slots = allocate(newSlots);
+            mask = newSlots - 1;
+            for (int j = 0; j < old.capacity(); j++) {
+                final long stored = old.get(j);
+                if (stored != EMPTY) {
+                    int i = (int) mix(stored) & mask;
+                    while (slots.get(i) != EMPTY) {
+                        i = (i + 1) & mask;
+                    }
+                    slots.put(i, stored);
+                }
+            }
+        }
+
+        @Override
+        long getMemoryBytes() {
+            return slots.capacity() * 8L;
+        }
+
+        @Override
+        boolean isSaturated() {
+            return saturated;
+        }
+    }
+
+    private static final class BloomFilter extends SeenKeySet {
+
+        private static final int HASH_FUNCTIONS = 4;
+
+        private final LongBuffer words;
+        private final long bits;
+
+        private BloomFilter(long memoryBytes) {
+            final int wordCount = (int) Math.max(Math.min(memoryBytes, Integer.MAX_VALUE) / 8, 1);
+            this.words = allocate(wordCount);
+            this.bits = wordCount * 64L;
+        }
+
+        @Override
+        boolean add(long hash) {
+            // Positions are derived from two hashes as Kirsch and Mitzenmacher's double hashing
+            final long h1 = mix(hash);
+            final long h2 = mix(h1) | 1L;
+            boolean added = false;
+            for (int i = 0; i < HASH_FUNCTIONS; i++) {
+                final long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bits;
+                final int word = (int) (bit >>> 6);
+                final long mask = 1L << bit;
+                final long value = words.get(word);
+                if ((value & mask) == 0) {
+                    words.put(word, value | mask);
+                    added = true;
+                }
+            }
+            return added;
+        }
+
+        @Override
+        long getMemoryBytes() {
+            return words.capacity() * 8L;
+        }
+
+        @Override
+        boolean isSaturated() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package org.embulk.filter.calcite;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TimeZone;
+import org.apache.calcite.config.CalciteConnectionConfig;
+import org.apache.calcite.config.CalciteConnectionConfigImpl;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Linq4j;
+import org.apache.calcite.rel.RelFieldCollation;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelRoot;
+import org.apache.calcite.rel.core.Aggregate;
+import org.apache.calcite.rel.core.Project;
+import org.apache.calcite.rel.core.Sort;
+import org.apache.calcite.rel.core.TableScan;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeField;
+import org.apache.calcite.rex.RexLiteral;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.schema.SchemaPlus;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.apache.calcite.tools.Frameworks;
+import org.apache.calcite.tools.Planner;
+import org.apache.calcite.util.ImmutableBitSet;
+import org.embulk.filter.calcite.adapter.page.PageBinding;
+import org.embulk.filter.calcite.adapter.page.PageSchema;
+
+/**
+ * A query whose {@code ORDER BY}, {@code DISTINCT} and {@code LIMIT} apply to all rows of a task
+ * instead of each batch of Pages.
+ *
+ * <p>The plan is split at its {@code Sort}, or at its {@code Aggregate} of {@code DISTINCT}. The
+ * input of them, i.e. scans, filters and projections of {@code $PAGES}, is executed for each
+ * batch of Pages, and its rows are sorted by {@code ExternalSorter}. Projections above them are
+ * executed for the sorted rows when the task finishes.
+ *
+ * <p>A {@code SortQuery} doesn't have any mutable state, and can be shared by tasks.
+ */
+class SortQuery {
+
+    private final BindableQuery inputQuery;
+    private final BindableQuery outputQuery;
+    private final RelDataType inputRowType;
+    private final Comparator<Object[]> comparator;
+    private final boolean distinct;
+    private final int offset;
+    private final int fetch;
+
+    private SortQuery(BindableQuery inputQuery, BindableQuery outputQuery, RelDataType inputRowType,
+                      Comparator<Object[]> comparator, boolean distinct, int offset, int fetch) {
+        this.inputQuery = inputQuery;
+        this.outputQuery = outputQuery;
+        this.inputRowType = inputRowType;
+        this.comparator = comparator;
+        this.distinct = distinct;
+        this.offset = offset;
+        this.fetch = fetch;
+    }
+
+    /**
+     * Parses, validates and splits a query at its sort or distinct, and compiles both parts.
+     *
+     * @param query      a query string
+     * @param props      connection properties
+     * @param pageSchema a schema that has {@code $PAGES} and lookup tables
+     * @return a {@code SortQuery} object
+     * @throws UnsupportedOperationException if the query cannot be sorted through a task, e.g. it
+     *                                       sorts rows by json values
+     * @throws Exception if the query cannot be prepared
+     */
+    static SortQuery prepare(String query, Properties props, PageSchema pageSchema)
+            throws Exception {
+        final CalciteConnectionConfig config = new CalciteConnectionConfigImpl(props);
+        final TimeZone timeZone = TimeZone.getTimeZone(config.timeZone());
+        final SchemaPlus rootSchema = Frameworks.createRootSchema(true);
+        final Planner planner = BindableQuery.newPlanner(config, rootSchema, pageSchema);
+        try {
+            final RelRoot root = planner.rel(planner.validate(planner.parse(query)));
+
+            // Projections above the sort are applied to the sorted rows
+            final Deque<RelNode> upperNodes = new ArrayDeque<>();
+            RelNode node = root.project();
+            while (node instanceof Project) {
+                RowsTable.checkExpressions(query, node);
+                upperNodes.push(node);
+                node = node.getInput(0);
+            }
+
+            final RelNode replaced = node;
+            final List<RelFieldCollation> collations = new ArrayList<>();
+            int offset = 0;
+            int fetch = -1;
+            if (node instanceof Sort) {
+                final Sort sort = (Sort) node;
+                collations.addAll(sort.getCollation().getFieldCollations());
+                offset = sort.offset == null ? 0 : intValueOf(query, sort.offset);
+                fetch = sort.fetch == null ? -1 : intValueOf(query, sort.fetch);
+                node = sort.getInput();
+            }
+
+            final boolean distinct = isDistinct(node);
+            if (distinct) {
+                // DISTINCT sorts rows by all fields after sort keys, and skips duplicates
+                final ImmutableBitSet sortKeys = ImmutableBitSet.of(fieldsOf(collations));
+                for (int i = 0; i < node.getRowType().getFieldCount(); i++) {
+                    if (!sortKeys.get(i)) {
+                        collations.add(new RelFieldCollation(i));
+                    }
+                }
+                node = node.getInput(0);
+            } else if (replaced == node) {
+                throw new UnsupportedOperationException(String.format(Locale.ENGLISH,
+                        "Cannot sort through a task by '%s' in query: %s",
+                        node.getRelTypeName(), query));
+            }
+
+            final RelNode input = node;
+            checkSortKeys(query, input.getRowType(), collations);
+            final TableScan scan = RowsTable.findScan(query, input);
+            final BindableQuery inputQuery = BindableQuery.compile(planner, input,
+                    input.getRowType(), rootSchema, timeZone);
+
+            // The sort is replaced by a scan of rows that ExternalSorter returns
+            final RelNode upper = RowsTable.replace(rootSchema, scan, replaced, upperNodes);
+            final BindableQuery outputQuery = BindableQuery.compile(planner, upper,
+                    root.validatedRowType, rootSchema, timeZone);
+
+            return new SortQuery(inputQuery, outputQuery, input.getRowType(),
+                    new RowComparator(collations), distinct, offset, fetch);
+        } finally {
+            planner.close();
+        }
+    }
+
+    // An aggregate without aggregate calls that groups rows by all fields
+    private static boolean isDistinct(RelNode node) {
+        if (!(node instanceof Aggregate)) {
+            return false;
+        }
+        final Aggregate aggregate = (Aggregate) node;
+        return aggregate.getGroupType() == Aggregate.Group.SIMPLE
+                && aggregate.getAggCallList().isEmpty()
+                && aggregate.getGroupSet().equals(
+                        ImmutableBitSet.range(aggregate.getInput().getRowType().getFieldCount()));
+    }
+
+    // Values of sort keys are compared as Comparable, which json values aren't
+    private static void checkSortKeys(String query, RelDataType rowType,
+                                      List<RelFieldCollation> collations) {
+        for (RelFieldCollation collation : collations) {
+            final RelDataTypeField field = rowType.getFieldList().get(collation.getFieldIndex());
+            final SqlTypeName typeName = field.getType().getSqlTypeName();
+            if (typeName == null || !isComparable(typeName)) {
+                throw new UnsupportedOperationException(String.format(Locale.ENGLISH,
+                        "Cannot sort through a task by '%s' of type %s in query: %s",
+                        field.getName(), field.getType(), query));
+            }
+        }
+    }
+
+    private static boolean isComparable(SqlTypeName typeName) {
+        switch (typeName) {
+            case ANY:
+            case ARRAY:
+            case MAP:
+            case MULTISET:
+            case ROW:
+            case OTHER:
+            case STRUCTURED:
+            case DISTINCT:
+            case CURSOR:
+            case COLUMN_LIST:
+            case SYMBOL:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private static List<Integer> fieldsOf(List<RelFieldCollation> collations) {
+        final ArrayList<Integer> fields = new ArrayList<>();
+        for (RelFieldCollation collation : collations) {
+            fields.add(collation.getFieldIndex());
+        }
+        return fields;
+    }
+
+    private static int intValueOf(String query, RexNode node) {
+        if (!(node instanceof RexLiteral)) {
+            throw new UnsupportedOperationException(
+                    "OFFSET and FETCH must be literals in query: " + query);
+        }
+        return RexLiteral.intValue(node);
+    }
+
+    RelDataType getRowType() {
+        return outputQuery.getRowType();
+    }
+
+    RelDataType getInputRowType() {
+        return inputRowType;
+    }
+
+    /**
+     * Returns optimized plans of the query of rows that are sorted through a task, and of the query
+     * of the results, in the format of {@code EXPLAIN PLAN}.
+     */
+    String getPlan() {
+        return "Input:\n" + inputQuery.getPlan() + "Output:\n" + outputQuery.getPlan();
+    }
+
+    /**
+     * Creates a sorter that holds rows of a task.
+     *
+     * @param memoryBytes a budget of estimated bytes of rows buffered on heap
+     * @return a new {@code ExternalSorter} object
+     */
+    ExternalSorter newSorter(long memoryBytes) {
+        return new ExternalSorter(comparator, distinct, memoryBytes);
+    }
+
+    /**
+     * Returns rows to be sorted from {@code Page}s bound by {@code binding}.
+     *
+     * @param binding a {@code PageBinding} that {@code $PAGES} reads
+     * @return a {@code Enumerable} of input rows
+     */
+    Enumerable<Object> bindInput(PageBinding binding) {
+        return inputQuery.bind(binding);
+    }
+
+    /**
+     * Returns the query results for the sorted rows of a task. {@code OFFSET} and {@code FETCH}
+     * are applied to them.
+     *
+     * @param sorted sorted rows that {@code ExternalSorter} returns
+     * @return a {@code Enumerable} of result rows
+     */
+    Enumerable<Object> bindOutput(Iterator<Object[]> sorted) {
+        Enumerable<Object[]> rows = Linq4j.asEnumerable(() -> sorted);
+        if (offset > 0) {
+            rows = rows.skip(offset);
+        }
+        if (fetch >= 0) {
+            rows = rows.take(fetch);
+        }
+        return outputQuery.bind(
+                Collections.<String, Object>singletonMap(RowsTable.PARAMETER, rows));
+    }
+
+    // Compares rows by field collations as EnumerableSort does
+    private static class RowComparator implements Comparator<Object[]> {
+
+        private final int[] fields;
+        private final boolean[] descending;
+        private final boolean[] nullsFirst;
+
+        RowComparator(List<RelFieldCollation> collations) {
+            this.fields = new int[collations.size()];
+            this.descending = new boolean[collations.size()];
+            this.nullsFirst = new boolean[collations.size()];
+            for (int i = 0; i < collations.size(); i++) {
+                final RelFieldCollation collation = collations.get(i);
+                fields[i] = collation.getFieldIndex();
+                descending[i] = collation.getDirection() == RelFieldCollation.Direction.DESCENDING
+                        || collation.getDirection()
+                                == RelFieldCollation.Direction.STRICTLY_DESCENDING;
+                final RelFieldCollation.NullDirection nullDirection =
+                        collation.nullDirection == RelFieldCollation.NullDirection.UNSPECIFIED
+                                ? collation.getDirection().defaultNullDirection()
+                                : collation.nullDirection;
+                nullsFirst[i] = nullDirection == RelFieldCollation.NullDirection.FIRST;
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public int compare(Object[] a, Object[] b) {
+            for (int i = 0; i < fields.length; i++) {
+                final Object x = a[fields[i]];
+                final Object y = b[fields[i]];
+                final int c;
+                if (x == null || y == null) {
+                    if (x == y) {
+                        continue;
+                    }
+                    c = (x == null) == nullsFirst[i] ? -1 : 1;
+                } else {
+                    final int d = ((Comparable<Object>) x).compareTo(y);
+                    c = descending[i] ? -d : d;
+                }
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return 0;
+        }
+    }
+}
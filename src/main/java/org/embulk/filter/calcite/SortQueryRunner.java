@@ -0,0 +1,68 @@
+package org.embulk.filter.calcite;
+
+import java.util.List;
+import org.apache.calcite.linq4j.Enumerator;
+import org.embulk.filter.calcite.adapter.page.PageBinding;
+import org.embulk.filter.calcite.writer.ColumnWriter;
+import org.embulk.spi.PageBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes a {@code SortQuery} through a task. Rows of every batch of Pages are added into an
+ * {@code ExternalSorter}, and the query results of the sorted rows are written into a
+ * {@code PageBuilder} when the task finishes.
+ */
+class SortQueryRunner implements QueryRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(SortQueryRunner.class);
+
+    private final PageBuilder pageBuilder;
+    private final List<ColumnWriter> writers;
+    private final SortQuery sortQuery;
+    private final ExternalSorter sorter;
+    private final boolean scalarRows;
+
+    SortQueryRunner(PageBuilder pageBuilder,
+                    List<ColumnWriter> writers,
+                    SortQuery sortQuery,
+                    long memoryBytes) {
+        this.pageBuilder = pageBuilder;
+        this.writers = writers;
+        this.sortQuery = sortQuery;
+        this.sorter = sortQuery.newSorter(memoryBytes);
+        this.scalarRows = sortQuery.getInputRowType().getFieldCount() == 1;
+    }
+
+    @Override
+    public void run(PageBinding binding) {
+        final Enumerator<Object> enumerator = sortQuery.bindInput(binding).enumerator();
+        try {
+            while (enumerator.moveNext()) {
+                final Object current = enumerator.current();
+                if (scalarRows && !(current instanceof Object[])) {
+                    // a row of a single column is represented as its value
+                    sorter.add(new Object[] {current});
+                } else {
+                    // the array can be reused by the enumerator
+                    sorter.add(((Object[]) current).clone());
+                }
+            }
+        } finally {
+            enumerator.close();
+        }
+    }
+
+    @Override
+    public void finish() {
+        DirectQueryRunner.writeRows(sortQuery.bindOutput(sorter.sorted()), pageBuilder, writers);
+        log.info("Sorted {} rows with {} bytes in memory at peak. "
+                + "{} runs were spilled in {} bytes.", sorter.getRowCount(),
+                sorter.getPeakMemoryBytes(), sorter.getRunCount(), sorter.getSpilledBytes());
+    }
+
+    @Override
+    public void close() {
+        sorter.close();
+    }
+}
@@ -0,0 +1,103 @@
+package org.embulk.filter.calcite;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * Canonical instances of string values read from Pages. Values that repeat over rows and Pages,
+ * e.g. status codes and host names, are decoded into the same {@code String} objects, so that
+ * {@code String.equals()} in filters, joins and groupings returns by their references and their
+ * hash codes are computed once. They're also written into output Pages as they are.
+ *
+ * <p>A Page has a table of its strings, and {@code PageReader} returns the same objects for the
+ * same entries of the table. Entries of the current Page are mapped to canonical instances by
+ * their identities, so that a value is looked up by its contents only once for each Page.
+ *
+ * <p>The number of canonical instances is limited. Columns that have as many distinct values as
+ * rows are not looked up after their first values, because they don't repeat.
+ *
+ * <p>This is not thread-safe. Each {@code PageBinding} has its own.
+ */
+public final class StringDictionary {
+
+    private static final int SAMPLE_ROWS = 1024;
+
+    private final int maxSize;
+    private final HashMap<String, String> values;
+    private final IdentityHashMap<String, String> pageValues; // entries of the current Page
+    private final int[] lookups; // by column index
+    private final int[] misses;
+    private final boolean[] disabled;
+
+    /**
+     * Creates an empty dictionary.
+     *
+     * @param maxSize     the maximum number of canonical instances
+     * @param columnCount the number of columns in the input schema
+     */
+    public StringDictionary(int maxSize, int columnCount) {
+        this.maxSize = maxSize;
+        this.values = new HashMap<>();
+        this.pageValues = new IdentityHashMap<>();
+        this.lookups = new int[columnCount];
+        this.misses = new int[columnCount];
+        this.disabled = new boolean[columnCount];
+    }
+
+    /**
+     * Starts to read a Page. Entries of the previous Page are forgotten.
+     */
+    void startPage() {
+        if (!pageValues.isEmpty()) {
+            pageValues.clear();
+        }
+    }
+
+    /**
+     * Returns the canonical instance of a value of a column.
+     *
+     * @param index a column index
+     * @param value a non-null value that {@code PageReader} returns
+     * @return the canonical instance, or {@code value} itself if it's not in the dictionary
+     */
+    String get(int index, String value) {
+        if (disabled[index]) {
+            return value;
+        }
+        final String known = pageValues.get(value);
+        if (known != null) {
+            return known;
+        }
+
+        String canonical = values.get(value);
+        if (canonical == null) {
+            canonical = value;
+            if (values.size() < maxSize) {
+                values.put(value, value);
+            }
+            countLookup(index, true);
+        } else {
+            countLookup(index, false);
+        }
+        pageValues.put(value, canonical);
+        return canonical;
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    // Disables a column when most of its first values are new
+    private void countLookup(int index, boolean miss) {
+        if (lookups[index] >= SAMPLE_ROWS) {
+            return;
+        }
+        lookups[index]++;
+        if (miss) {
+            misses[index]++;
+        }
+        if (lookups[index] == SAMPLE_ROWS && misses[index] > SAMPLE_ROWS / 2) {
+            disabled[index] = true;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package org.embulk.filter.calcite;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counters and timers of a task. They're accumulated into primitive fields, so that collecting
+ * them doesn't allocate objects.
+ *
+ * <p>Pages, rows and bytes are counted, and time and allocated bytes of executions are measured
+ * for each batch of Pages. Time to decode rows from Pages and to write result rows into Pages is
+ * measured only for sampled Pages, i.e. every {@code samplingInterval}-th Page read by queries,
+ * because it's measured for each row. Result rows are written while rows of a Page are read by
+ * queries except aggregations and sorts through a task, and so their writes are sampled together.
+ * Lookups of memoized expressions and stats of operators are added after each execution.
+ *
+ * <p>This is not thread-safe. Each worker of a task has its own, and they're merged when the task
+ * is closed.
+ */
+public final class TaskMetrics {
+
+    private static final ConcurrentHashMap<String, TaskMetrics> JOBS = new ConcurrentHashMap<>();
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+    private static final boolean ALLOCATED_BYTES_SUPPORTED = isAllocatedBytesSupported();
+
+    private final int samplingInterval;
+
+    private long prepareNanos;
+    private long pagesIn;
+    private long rowsIn;
+    private long bytesIn;
+    private long rowsOut;
+    private long batches;
+    private long executeNanos;
+    private long allocatedBytes;
+    private long memoHits;
+    private long memoMisses;
+    private OperatorStats operatorStats; // null if operators are not measured
+
+    private long pagesRead;
+    private long sampledPages;
+    private long sampledRowsIn;
+    private long decodeNanos;
+    private long sampledRowsOut;
+    private long writeNanos;
+    private boolean sampling;
+
+    private long batchStartNanos;
+    private long batchStartAllocatedBytes;
+
+    /**
+     * Creates metrics of a task.
+     *
+     * @param samplingInterval Time to decode and write rows is measured for every this number of
+     *                         Pages read by queries. 0 disables it.
+     */
+    public TaskMetrics(int samplingInterval) {
+        this.samplingInterval = samplingInterval;
+    }
+
+    void addPrepareNanos(long nanos) {
+        prepareNanos += nanos;
+    }
+
+    void addInput(int rows, int bytes) {
+        pagesIn++;
+        rowsIn += rows;
+        bytesIn += bytes;
+    }
+
+    void addOutput(int rows) {
+        rowsOut += rows;
+    }
+
+    void addMemoLookups(long hits, long misses) {
+        memoHits += hits;
+        memoMisses += misses;
+    }
+
+    /**
+     * Adds stats of operators since the last call, and clears them.
+     */
+    void addOperatorStats(OperatorStats stats) {
+        if (operatorStats == null) {
+            operatorStats = stats.newEmpty();
+        }
+        stats.addTo(operatorStats);
+    }
+
+    /**
+     * Returns stats of operators, or null if they're not measured.
+     */
+    OperatorStats getOperatorStats() {
+        return operatorStats;
+    }
+
+    void startBatch() {
+        batchStartNanos = System.nanoTime();
+        batchStartAllocatedBytes = getCurrentThreadAllocatedBytes();
+    }
+
+    void endBatch() {
+        batches++;
+        executeNanos += System.nanoTime() - batchStartNanos;
+        if (batchStartAllocatedBytes >= 0) {
+            allocatedBytes += getCurrentThreadAllocatedBytes() - batchStartAllocatedBytes;
+        }
+    }
+
+    /**
+     * Starts to read a Page by a query, and returns true if the Page is sampled.
+     */
+    public boolean startPage() {
+        sampling = samplingInterval > 0 && pagesRead++ % samplingInterval == 0;
+        if (sampling) {
+            sampledPages++;
+        }
+        return sampling;
+    }
+
+    /**
+     * Ends to read a Page by a query.
+     */
+    public void endPage() {
+        sampling = false;
+    }
+
+    /**
+     * Returns true while rows of a sampled Page are read.
+     */
+    public boolean isSampling() {
+        return sampling;
+    }
+
+    public void addDecodeNanos(long nanos) {
+        sampledRowsIn++;
+        decodeNanos += nanos;
+    }
+
+    void addWriteNanos(long nanos) {
+        sampledRowsOut++;
+        writeNanos += nanos;
+    }
+
+    void merge(TaskMetrics other) {
+        prepareNanos += other.prepareNanos;
+        pagesIn += other.pagesIn;
+        rowsIn += other.rowsIn;
+        bytesIn += other.bytesIn;
+        rowsOut += other.rowsOut;
+        batches += other.batches;
+        executeNanos += other.executeNanos;
+        allocatedBytes += other.allocatedBytes;
+        memoHits += other.memoHits;
+        memoMisses += other.memoMisses;
+        if (other.operatorStats != null) {
+            if (operatorStats == null) {
+                operatorStats = other.operatorStats.newEmpty();
+            }
+            operatorStats.add(other.operatorStats);
+        }
+        pagesRead += other.pagesRead;
+        sampledPages += other.sampledPages;
+        sampledRowsIn += other.sampledRowsIn;
+        decodeNanos += other.decodeNanos;
+        sampledRowsOut += other.sampledRowsOut;
+        writeNanos += other.writeNanos;
+    }
+
+    /**
+     * Starts to collect metrics of tasks in this JVM for a job.
+     */
+    static void startJob(String jobId) {
+        JOBS.put(jobId, new TaskMetrics(0));
+    }
+
+    /**
+     * Adds metrics of a task to its job. They're ignored if the job runs in another JVM.
+     */
+    static void addToJob(String jobId, TaskMetrics metrics) {
+        final TaskMetrics job = JOBS.get(jobId);
+        if (job != null) {
+            synchronized (job) {
+                job.merge(metrics);
+            }
+        }
+    }
+
+    /**
+     * Ends to collect metrics of tasks for a job, and returns the sum of them.
+     */
+    static TaskMetrics endJob(String jobId) {
+        final TaskMetrics job = JOBS.remove(jobId);
+        if (job == null) {
+            return new TaskMetrics(0);
+        }
+        final TaskMetrics sum = new TaskMetrics(0);
+        synchronized (job) {
+            sum.merge(job);
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.ENGLISH,
+                "pages_in=%d, rows_in=%d, bytes_in=%d, rows_out=%d, selectivity=%.4f, batches=%d, "
+                        + "prepare_ms=%.3f, execute_ms=%.3f",
+                pagesIn, rowsIn, bytesIn, rowsOut, rowsIn > 0 ? (double) rowsOut / rowsIn : 0.0,
+                batches, prepareNanos / 1e6, executeNanos / 1e6));
+        if (ALLOCATED_BYTES_SUPPORTED) {
+            builder.append(String.format(Locale.ENGLISH, ", allocated_bytes=%d", allocatedBytes));
+        }
+        if (memoHits + memoMisses > 0) {
+            builder.append(String.format(Locale.ENGLISH,
+                    ", memo_hits=%d, memo_misses=%d, memo_hit_rate=%.4f", memoHits, memoMisses,
+                    (double) memoHits / (memoHits + memoMisses)));
+        }
+        if (sampledPages > 0) {
+            builder.append(String.format(Locale.ENGLISH,
+                    ", sampled_pages=%d, decode_ns_per_row=%.1f, write_ns_per_row=%.1f",
+                    sampledPages,
+                    sampledRowsIn > 0 ? (double) decodeNanos / sampledRowsIn : 0.0,
+                    sampledRowsOut > 0 ? (double) writeNanos / sampledRowsOut : 0.0));
+        }
+        return builder.toString();
+    }
+
+    // Bytes allocated by the current thread, or -1 if the JVM doesn't measure them
+    private static long getCurrentThreadAllocatedBytes() {
+        if (!ALLOCATED_BYTES_SUPPORTED) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) THREAD_MX_BEAN)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static boolean isAllocatedBytesSupported() {
+        try {
+            if (THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean) {
+                final com.sun.management.ThreadMXBean bean =
+                        (com.sun.management.ThreadMXBean) THREAD_MX_BEAN;
+                return bean.isThreadAllocatedMemorySupported()
+                        && bean.isThreadAllocatedMemoryEnabled();
+            }
+        } catch (LinkageError e) {
+            // com.sun.management is not available in this JVM
+        }
+        return false;
+    }
+}
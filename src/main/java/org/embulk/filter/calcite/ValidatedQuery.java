@@ -0,0 +1,97 @@
+package org.embulk.filter.calcite;
+
+import java.util.Properties;
+import org.apache.calcite.config.CalciteConnectionConfigImpl;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.RelRoot;
+import org.apache.calcite.rel.core.Sort;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rex.RexLiteral;
+import org.apache.calcite.tools.Frameworks;
+import org.apache.calcite.tools.Planner;
+import org.apache.calcite.util.ImmutableBitSet;
+import org.embulk.filter.calcite.adapter.page.PageSchema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A query that is parsed and validated, but neither optimized nor compiled. Its row type is the
+ * same as JDBC {@code ResultSetMetaData} of the query, so that the output schema is built in
+ * {@code FilterPlugin#transaction} without executing the query. Columns of {@code $PAGES} that
+ * the query references are found from the same plan, and passed to tasks.
+ */
+class ValidatedQuery {
+
+    private static final Logger log = LoggerFactory.getLogger(ValidatedQuery.class);
+
+    private final RelDataType rowType;
+    private final ImmutableBitSet referencedColumns;
+    private final Long limit;
+
+    private ValidatedQuery(RelDataType rowType, ImmutableBitSet referencedColumns, Long limit) {
+        this.rowType = rowType;
+        this.referencedColumns = referencedColumns;
+        this.limit = limit;
+    }
+
+    /**
+     * Parses and validates a query against {@code $PAGES}, and converts it into a logical plan.
+     *
+     * @param query      a query string
+     * @param props      connection properties
+     * @param pageSchema a schema that has {@code $PAGES} and lookup tables
+     * @return a {@code ValidatedQuery} object
+     * @throws Exception if the query cannot be parsed or validated
+     */
+    static ValidatedQuery validate(String query, Properties props, PageSchema pageSchema)
+            throws Exception {
+        final Planner planner = BindableQuery.newPlanner(new CalciteConnectionConfigImpl(props),
+                Frameworks.createRootSchema(true), pageSchema);
+        try {
+            final RelRoot root = planner.rel(planner.validate(planner.parse(query)));
+            final int columnCount = pageSchema.getPageTable().getSchema().getColumnCount();
+            ImmutableBitSet referencedColumns;
+            try {
+                referencedColumns = ReferencedColumns.find(root.rel, columnCount);
+                log.debug("Columns referenced by the query: {}", referencedColumns);
+            } catch (Exception e) {
+                log.debug("Cannot find columns referenced by the query. "
+                        + "All columns are decoded.", e);
+                referencedColumns = ImmutableBitSet.range(columnCount);
+            }
+            return new ValidatedQuery(root.validatedRowType, referencedColumns,
+                    findLimit(root.rel));
+        } finally {
+            planner.close();
+        }
+    }
+
+    // Returns the number of rows of LIMIT at the top of the query without ORDER BY and OFFSET
+    private static Long findLimit(RelNode rel) {
+        if (!(rel instanceof Sort)) {
+            return null;
+        }
+        final Sort sort = (Sort) rel;
+        if (!sort.getCollation().getFieldCollations().isEmpty() || sort.offset != null
+                || !(sort.fetch instanceof RexLiteral)) {
+            return null;
+        }
+        return ((RexLiteral) sort.fetch).getValueAs(Long.class);
+    }
+
+    RelDataType getRowType() {
+        return rowType;
+    }
+
+    ImmutableBitSet getReferencedColumns() {
+        return referencedColumns;
+    }
+
+    /**
+     * Returns the number of rows of {@code LIMIT} at the top of the query, or null if the query
+     * doesn't end with {@code LIMIT}, or it has {@code ORDER BY} or {@code OFFSET} there.
+     */
+    Long getLimit() {
+        return limit;
+    }
+}
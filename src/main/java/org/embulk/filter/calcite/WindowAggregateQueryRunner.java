@@ -0,0 +1,132 @@
+package org.embulk.filter.calcite;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.calcite.linq4j.Enumerator;
+import org.embulk.filter.calcite.adapter.page.PageBinding;
+import org.embulk.filter.calcite.writer.ColumnWriter;
+import org.embulk.spi.PageBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executes an {@code AggregateQuery} that groups rows by a time window. Each open window has its
+ * own groups. The watermark is the latest timestamp that the task has seen minus the delay, and
+ * it advances every batch of Pages. Windows that end at or before the watermark are emitted and
+ * released, so that only windows open in the delay are kept in memory.
+ *
+ * <p>Rows that belong to windows already passed by the watermark are late, and they're dropped.
+ * Rows whose timestamp is null don't belong to any window, and they're dropped, too.
+ */
+class WindowAggregateQueryRunner implements QueryRunner {
+
+    private static final Logger log = LoggerFactory.getLogger(WindowAggregateQueryRunner.class);
+
+    private final PageBuilder pageBuilder;
+    private final List<ColumnWriter> writers;
+    private final AggregateQuery aggregateQuery;
+    private final AggregateQuery.Window window;
+    private final long delayMillis;
+    private final boolean scalarRows;
+
+    // Open windows by their starts
+    private final TreeMap<Long, GroupAggregator> windows;
+    private long latestTimestamp;
+    private long watermark;
+    private long lateRows;
+
+    WindowAggregateQueryRunner(PageBuilder pageBuilder,
+                               List<ColumnWriter> writers,
+                               AggregateQuery aggregateQuery,
+                               long delayMillis) {
+        this.pageBuilder = pageBuilder;
+        this.writers = writers;
+        this.aggregateQuery = aggregateQuery;
+        this.window = aggregateQuery.getWindow();
+        this.delayMillis = delayMillis;
+        this.scalarRows = aggregateQuery.getInputRowType().getFieldCount() == 1;
+        this.windows = new TreeMap<>();
+        this.latestTimestamp = Long.MIN_VALUE;
+        this.watermark = Long.MIN_VALUE;
+        this.lateRows = 0;
+    }
+
+    @Override
+    public void run(PageBinding binding) {
+        final Enumerator<Object> enumerator = aggregateQuery.bindInput(binding).enumerator();
+        try {
+            while (enumerator.moveNext()) {
+                final Object current = enumerator.current();
+                // a row of a single column is represented as its value
+                add(scalarRows && !(current instanceof Object[])
+                        ? new Object[] {current}
+                        : (Object[]) current);
+            }
+        } finally {
+            enumerator.close();
+        }
+
+        if (latestTimestamp != Long.MIN_VALUE) {
+            watermark = Math.max(watermark, latestTimestamp - delayMillis);
+            emitWindows(watermark);
+        }
+    }
+
+    private void add(Object[] current) {
+        final Object value = current[window.field];
+        if (value == null) {
+            return;
+        }
+
+        final long timestamp = ((Number) value).longValue();
+        latestTimestamp = Math.max(latestTimestamp, timestamp);
+        // The row is added into every window that contains it. Its timestamp is replaced by the
+        // window start, which is the group key that the query returns, in a copy of the row
+        // because the enumerator owns it.
+        final Object[] row = current.clone();
+        for (long start = window.lastStartOf(timestamp); start > timestamp - window.size;
+                start -= window.slide) {
+            if (start + window.size <= watermark) {
+                lateRows++;
+                continue;
+            }
+            GroupAggregator aggregator = windows.get(start);
+            if (aggregator == null) {
+                aggregator = aggregateQuery.newAggregator();
+                windows.put(start, aggregator);
+            }
+            row[window.field] = start;
+            aggregator.add(row);
+        }
+    }
+
+    // Emits windows that end at or before the watermark in the order of their starts
+    private void emitWindows(long watermark) {
+        Map.Entry<Long, GroupAggregator> first;
+        while ((first = windows.firstEntry()) != null
+                && first.getKey() + window.size <= watermark) {
+            windows.pollFirstEntry();
+            DirectQueryRunner.writeRows(aggregateQuery.bindOutput(first.getValue()), pageBuilder,
+                    writers);
+        }
+    }
+
+    @Override
+    public void finish() {
+        for (GroupAggregator aggregator : windows.values()) {
+            DirectQueryRunner.writeRows(aggregateQuery.bindOutput(aggregator), pageBuilder,
+                    writers);
+        }
+        windows.clear();
+        if (lateRows > 0) {
+            log.warn("Dropped {} late rows for windows that the watermark had passed. "
+                    + "Consider increasing watermark_delay_seconds.", lateRows);
+        }
+    }
+
+    @Override
+    public void close() {
+        // Open windows are released with this runner.
+    }
+}
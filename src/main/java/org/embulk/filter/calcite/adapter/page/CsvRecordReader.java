@@ -0,0 +1,111 @@
+package org.embulk.filter.calcite.adapter.page;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reads records of CSV in RFC 4180, which are separated by commas and may be quoted by double
+ * quotes. Unquoted empty values are read as nulls so that they're distinguished from quoted
+ * empty strings.
+ */
+class CsvRecordReader {
+
+    private final Reader reader;
+    private int lines;
+    private int lineNumber;
+    private int peeked;
+
+    CsvRecordReader(Reader reader) {
+        this.reader = reader;
+        this.lines = 0;
+        this.lineNumber = 0;
+        this.peeked = -2;
+    }
+
+    /**
+     * Returns the line number where the last record starts, beginning from 1.
+     *
+     * @return a line number
+     */
+    int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return values of the record, or {@code null} at the end of the input
+     * @throws IOException if the input cannot be read
+     * @throws IllegalArgumentException if a quoted value isn't closed
+     */
+    List<String> next() throws IOException {
+        int c = read();
+        if (c < 0) {
+            return null;
+        }
+        lineNumber = lines + 1;
+
+        final ArrayList<String> values = new ArrayList<>();
+        final StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        while (true) {
+            if (c == '"' && value.length() == 0 && !quoted) {
+                quoted = true;
+                while (true) {
+                    c = read();
+                    if (c < 0) {
+                        throw new IllegalArgumentException(String.format(Locale.ENGLISH,
+                                "A quoted value of the record at line %d is not closed",
+                                lineNumber));
+                    } else if (c == '"') {
+                        if (peek() != '"') {
+                            break;
+                        }
+                        read();
+                    } else if (c == '\n') {
+                        lines++;
+                    }
+                    value.append((char) c);
+                }
+                c = read();
+                continue;
+            }
+
+            if (c < 0 || c == ',' || c == '\n' || c == '\r') {
+                values.add(value.length() == 0 && !quoted ? null : value.toString());
+                value.setLength(0);
+                quoted = false;
+                if (c == ',') {
+                    c = read();
+                    continue;
+                }
+                if (c == '\r' && peek() == '\n') {
+                    read();
+                }
+                lines++;
+                return values;
+            }
+            value.append((char) c);
+            c = read();
+        }
+    }
+
+    private int read() throws IOException {
+        if (peeked != -2) {
+            final int c = peeked;
+            peeked = -2;
+            return c;
+        }
+        return reader.read();
+    }
+
+    private int peek() throws IOException {
+        if (peeked == -2) {
+            peeked = reader.read();
+        }
+        return peeked;
+    }
+}
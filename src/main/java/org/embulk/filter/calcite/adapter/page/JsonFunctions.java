@@ -0,0 +1,327 @@
+package org.embulk.filter.calcite.adapter.page;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.collect.ImmutableMultimap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.calcite.adapter.enumerable.CallImplementor;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.schema.Function;
+import org.apache.calcite.schema.FunctionParameter;
+import org.apache.calcite.schema.ImplementableFunction;
+import org.apache.calcite.schema.ScalarFunction;
+import org.apache.calcite.schema.impl.ScalarFunctionImpl;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+
+/**
+ * Functions on json values. A json column is an {@code ANY} column of msgpack {@code Value}s
+ * that {@code PageReader} returns, so that queries access them without serializing and parsing
+ * JSON text. Paths are compiled once for each distinct string, and they're evaluated only on the
+ * values that they walk through.
+ *
+ * <p>A path begins with {@code $}, and is followed by {@code .name}, {@code ['name']} or
+ * {@code [index]}. A path that doesn't match returns null.
+ *
+ * <ul>
+ * <li>{@code JSON_GET(json, path)} returns a json value.
+ * <li>{@code JSON_STRING(json, path)} returns a string, or JSON text of a non-string value.
+ * <li>{@code JSON_LONG(json, path)}, {@code JSON_DOUBLE(json, path)} and
+ * {@code JSON_BOOLEAN(json, path)} return a value of the type, or null for values of others.
+ * <li>{@code JSON_ELEMENTS(json, path)} returns elements of an array as {@code ARRAY}, so that
+ * {@code UNNEST} returns them as rows.
+ * <li>{@code JSON_PARSE(string)} parses JSON text into a json value.
+ * </ul>
+ */
+public class JsonFunctions {
+
+    /**
+     * Functions that are registered into {@code PageSchema}.
+     */
+    static final ImmutableMultimap<String, Function> FUNCTIONS =
+            ImmutableMultimap.<String, Function>builder()
+                .put("JSON_GET", ScalarFunctionImpl.create(JsonFunctions.class, "jsonGet"))
+                .put("JSON_STRING", ScalarFunctionImpl.create(JsonFunctions.class, "jsonString"))
+                .put("JSON_LONG", ScalarFunctionImpl.create(JsonFunctions.class, "jsonLong"))
+                .put("JSON_DOUBLE", ScalarFunctionImpl.create(JsonFunctions.class, "jsonDouble"))
+                .put("JSON_BOOLEAN", ScalarFunctionImpl.create(JsonFunctions.class, "jsonBoolean"))
+                .put("JSON_ELEMENTS", new ElementsFunction(
+                        (ScalarFunctionImpl) ScalarFunctionImpl.create(JsonFunctions.class,
+                                "jsonElements")))
+                .put("JSON_PARSE", ScalarFunctionImpl.create(JsonFunctions.class, "jsonParse"))
+                .build();
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final ConcurrentHashMap<String, Object[]> PATHS = new ConcurrentHashMap<>();
+    private static final int MAX_CACHED_PATHS = 1024;
+
+    private JsonFunctions() {
+    }
+
+    public static Object jsonGet(Object json, String path) {
+        return get(json, path);
+    }
+
+    /**
+     * Implements {@code JSON_STRING}. Values other than strings are returned as JSON texts.
+     */
+    public static String jsonString(Object json, String path) {
+        final Value value = get(json, path);
+        if (value == null || value.isNilValue()) {
+            return null;
+        }
+        return value.isStringValue() ? value.asStringValue().asString() : value.toJson();
+    }
+
+    /**
+     * Implements {@code JSON_LONG}. Values other than numbers are returned as null.
+     */
+    public static Long jsonLong(Object json, String path) {
+        final Value value = get(json, path);
+        if (value == null || !value.isNumberValue()) {
+            return null;
+        }
+        return value.asNumberValue().toLong();
+    }
+
+    /**
+     * Implements {@code JSON_DOUBLE}. Values other than numbers are returned as null.
+     */
+    public static Double jsonDouble(Object json, String path) {
+        final Value value = get(json, path);
+        if (value == null || !value.isNumberValue()) {
+            return null;
+        }
+        return value.asNumberValue().toDouble();
+    }
+
+    /**
+     * Implements {@code JSON_BOOLEAN}. Values other than booleans are returned as null.
+     */
+    public static Boolean jsonBoolean(Object json, String path) {
+        final Value value = get(json, path);
+        if (value == null || !value.isBooleanValue()) {
+            return null;
+        }
+        return value.asBooleanValue().getBoolean();
+    }
+
+    /**
+     * Implements {@code JSON_ELEMENTS}. Values other than arrays are returned as null.
+     */
+    public static List<Value> jsonElements(Object json, String path) {
+        final Value value = get(json, path);
+        if (value == null || !value.isArrayValue()) {
+            return null;
+        }
+        return value.asArrayValue().list(); // a view of the array without copying elements
+    }
+
+    /**
+     * Implements {@code JSON_PARSE}.
+     *
+     * @throws IllegalArgumentException if {@code text} is not a JSON text
+     */
+    public static Object jsonParse(String text) {
+        if (text == null) {
+            return null;
+        }
+        try (JsonParser parser = JSON_FACTORY.createParser(text)) {
+            final JsonToken token = parser.nextToken();
+            if (token == null) {
+                return null;
+            }
+            return parse(parser, token);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid JSON text: " + text, e);
+        }
+    }
+
+    /**
+     * Converts a value of an {@code ANY} field into a json value. Values of functions are already
+     * json values, and others are converted by their Java types.
+     *
+     * @param value a non-null value
+     * @return a json value
+     */
+    public static Value toJsonValue(Object value) {
+        if (value instanceof Value) {
+            return (Value) value;
+        } else if (value instanceof String) {
+            return ValueFactory.newString((String) value);
+        } else if (value instanceof Boolean) {
+            return ValueFactory.newBoolean((Boolean) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            return ValueFactory.newFloat(((Number) value).doubleValue());
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            return ValueFactory.newInteger(((Number) value).longValue());
+        } else if (value instanceof List) {
+            final ArrayList<Value> elements = new ArrayList<>();
+            for (Object element : (List<?>) value) {
+                elements.add(element == null ? ValueFactory.newNil() : toJsonValue(element));
+            }
+            return ValueFactory.newArray(elements);
+        }
+        return ValueFactory.newString(value.toString());
+    }
+
+    private static Value parse(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case START_OBJECT: {
+                final ArrayList<Value> kvs = new ArrayList<>();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    kvs.add(ValueFactory.newString(parser.getCurrentName()));
+                    kvs.add(parse(parser, parser.nextToken()));
+                }
+                return ValueFactory.newMap(kvs.toArray(new Value[0]));
+            }
+            case START_ARRAY: {
+                final ArrayList<Value> elements = new ArrayList<>();
+                for (JsonToken next = parser.nextToken(); next != JsonToken.END_ARRAY;
+                        next = parser.nextToken()) {
+                    elements.add(parse(parser, next));
+                }
+                return ValueFactory.newArray(elements);
+            }
+            case VALUE_STRING:
+                return ValueFactory.newString(parser.getText());
+            case VALUE_NUMBER_INT:
+                return parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER
+                        ? ValueFactory.newInteger(parser.getBigIntegerValue())
+                        : ValueFactory.newInteger(parser.getLongValue());
+            case VALUE_NUMBER_FLOAT:
+                return ValueFactory.newFloat(parser.getDoubleValue());
+            case VALUE_TRUE:
+                return ValueFactory.newBoolean(true);
+            case VALUE_FALSE:
+                return ValueFactory.newBoolean(false);
+            case VALUE_NULL:
+                return ValueFactory.newNil();
+            default:
+                throw new IOException("Unexpected token: " + token);
+        }
+    }
+
+    // Walks a path through a json value
+    private static Value get(Object json, String path) {
+        if (!(json instanceof Value) || path == null) {
+            return null;
+        }
+        Value value = (Value) json;
+        for (Object step : compile(path)) {
+            if (step instanceof Value) {
+                if (!value.isMapValue()) {
+                    return null;
+                }
+                value = value.asMapValue().map().get(step);
+            } else {
+                if (!value.isArrayValue()) {
+                    return null;
+                }
+                final int index = (Integer) step;
+                final List<Value> list = value.asArrayValue().list();
+                value = index < list.size() ? list.get(index) : null;
+            }
+            if (value == null) {
+                return null;
+            }
+        }
+        return value;
+    }
+
+    // Steps of a path are msgpack strings of keys or Integers of indexes
+    private static Object[] compile(String path) {
+        final Object[] cached = PATHS.get(path);
+        if (cached != null) {
+            return cached;
+        }
+        final Object[] steps = parsePath(path);
+        if (PATHS.size() < MAX_CACHED_PATHS) {
+            PATHS.put(path, steps);
+        }
+        return steps;
+    }
+
+    private static Object[] parsePath(String path) {
+        if (!path.startsWith("$")) {
+            throw invalidPath(path);
+        }
+        final ArrayList<Object> steps = new ArrayList<>();
+        int i = 1;
+        while (i < path.length()) {
+            final char c = path.charAt(i);
+            if (c == '.') {
+                int end = i + 1;
+                while (end < path.length() && path.charAt(end) != '.' && path.charAt(end) != '[') {
+                    end++;
+                }
+                if (end == i + 1) {
+                    throw invalidPath(path);
+                }
+                steps.add(ValueFactory.newString(path.substring(i + 1, end)));
+                i = end;
+            } else if (c == '[') {
+                final int end = path.indexOf(']', i);
+                if (end < 0) {
+                    throw invalidPath(path);
+                }
+                final String token = path.substring(i + 1, end).trim();
+                if (token.length() >= 2 && (token.startsWith("'") && token.endsWith("'")
+                        || token.startsWith("\"") && token.endsWith("\""))) {
+                    steps.add(ValueFactory.newString(token.substring(1, token.length() - 1)));
+                } else {
+                    try {
+                        steps.add(Integer.parseInt(token));
+                    } catch (NumberFormatException e) {
+                        throw invalidPath(path);
+                    }
+                }
+                i = end + 1;
+            } else {
+                throw invalidPath(path);
+            }
+        }
+        return steps.toArray();
+    }
+
+    private static IllegalArgumentException invalidPath(String path) {
+        return new IllegalArgumentException(String.format(Locale.ENGLISH,
+                "Invalid JSON path: %s", path));
+    }
+
+    // JSON_ELEMENTS returns ARRAY of ANY, which Calcite doesn't infer from List of the method
+    private static class ElementsFunction implements ScalarFunction, ImplementableFunction {
+
+        private final ScalarFunctionImpl delegate;
+
+        ElementsFunction(ScalarFunctionImpl delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public RelDataType getReturnType(RelDataTypeFactory typeFactory) {
+            final RelDataType any = typeFactory.createTypeWithNullability(
+                    typeFactory.createSqlType(SqlTypeName.ANY), true);
+            return typeFactory.createTypeWithNullability(typeFactory.createArrayType(any, -1),
+                    true);
+        }
+
+        @Override
+        public List<FunctionParameter> getParameters() {
+            return delegate.getParameters();
+        }
+
+        @Override
+        public CallImplementor getImplementor() {
+            return delegate.getImplementor();
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package org.embulk.filter.calcite.adapter.page;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+/**
+ * A compiled pattern of {@code LIKE} or {@code SIMILAR TO}. Calcite 1.13 translates a pattern
+ * into a Java regular expression and compiles it for every row. Patterns are compiled once in the
+ * JVM here instead.
+ *
+ * <p>{@code LIKE} patterns that are a literal with {@code %} only at its start and/or end, e.g.
+ * {@code '%EMBULK%'}, {@code 'prefix%'} and {@code '%suffix'}, are matched by {@code String}
+ * methods without regular expressions. Others are translated into regular expressions in the
+ * same manner as Calcite's {@code Like}, so that they match the same values as Calcite's
+ * evaluation. {@code %} is translated into {@code (?s:.*)}, and so it matches line terminators as
+ * the {@code String} methods do. Only {@code _} doesn't match them, and patterns with it are
+ * always translated.
+ *
+ * <p>Compiled patterns are cached in the JVM. The least recently used ones are evicted when the
+ * cache is full.
+ */
+abstract class LikePattern {
+
+    private static final int MAX_CACHED_PATTERNS = 1024;
+    private static final Map<Key, LikePattern> PATTERNS = Collections.synchronizedMap(
+            new LinkedHashMap<Key, LikePattern>(16, 0.75f, true) { // in access order
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, LikePattern> eldest) {
+                    return size() > MAX_CACHED_PATTERNS;
+                }
+            });
+
+    // Characters escaped in regular expressions, and special ones in SIMILAR TO patterns. '.' is
+    // not escaped, as Calcite 1.13 doesn't, so that patterns match the same values.
+    private static final String JAVA_REGEX_SPECIALS = "[]()|^-+*?{}$\\";
+    private static final String SQL_SIMILAR_SPECIALS = "[]()|^-+*_%?{}";
+    // Character classes in SIMILAR TO patterns and their regular expressions
+    private static final String[] REG_CHAR_CLASSES = {
+        "[:ALPHA:]", "\\p{Alpha}",
+        "[:alpha:]", "\\p{Alpha}",
+        "[:UPPER:]", "\\p{Upper}",
+        "[:upper:]", "\\p{Upper}",
+        "[:LOWER:]", "\\p{Lower}",
+        "[:lower:]", "\\p{Lower}",
+        "[:DIGIT:]", "\\d",
+        "[:digit:]", "\\d",
+        "[:SPACE:]", " ",
+        "[:space:]", " ",
+        "[:WHITESPACE:]", "\\s",
+        "[:whitespace:]", "\\s",
+        "[:ALNUM:]", "\\p{Alnum}",
+        "[:alnum:]", "\\p{Alnum}",
+    };
+
+    abstract boolean matches(String value);
+
+    /**
+     * Returns a compiled {@code LIKE} pattern.
+     *
+     * @param pattern a SQL pattern
+     * @param escape  an escape character, or null
+     * @return a {@code LikePattern}, or null if the pattern is invalid or cannot be compiled
+     */
+    static LikePattern like(String pattern, String escape) {
+        return get(new Key(false, pattern, escape));
+    }
+
+    /**
+     * Returns a compiled {@code SIMILAR TO} pattern.
+     *
+     * @param pattern a SQL pattern
+     * @param escape  an escape character, or null
+     * @return a {@code LikePattern}, or null if the pattern is invalid or cannot be compiled
+     */
+    static LikePattern similar(String pattern, String escape) {
+        return get(new Key(true, pattern, escape));
+    }
+
+    private static LikePattern get(Key key) {
+        final LikePattern cached = PATTERNS.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final LikePattern compiled = key.similar ? compileSimilar(key) : compileLike(key);
+        if (compiled != null) {
+            PATTERNS.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    private static LikePattern compileLike(Key key) {
+        if (key.escape != null && key.escape.length() != 1) {
+            return null;
+        }
+        final String pattern = key.pattern;
+        final char escape = key.escape != null ? key.escape.charAt(0) : 0; // as Calcite does
+        if (escape == '%' || escape == '_') {
+            return compileRegex(key);
+        }
+
+        // Finds a literal between an optional leading % and an optional trailing %
+        final boolean leading = pattern.startsWith("%");
+        final StringBuilder literal = new StringBuilder();
+        boolean trailing = false;
+        for (int i = leading ? 1 : 0; i < pattern.length(); i++) {
+            final char c = pattern.charAt(i);
+            if (c == escape) {
+                if (i + 1 >= pattern.length()) {
+                    return null; // Calcite rejects it
+                }
+                final char next = pattern.charAt(++i);
+                if (next != '%' && next != '_' && next != escape) {
+                    return null;
+                }
+                literal.append(next);
+            } else if (c == '%' && i == pattern.length() - 1) {
+                trailing = true;
+            } else if (c == '%' || c == '_') {
+                return compileRegex(key);
+            } else {
+                literal.append(c);
+            }
+        }
+        final String value = literal.toString();
+        if (leading && trailing) {
+            return new Contains(value);
+        } else if (leading) {
+            return new EndsWith(value);
+        } else if (trailing) {
+            return new StartsWith(value);
+        } else {
+            return new Equals(value);
+        }
+    }
+
+    private static LikePattern compileSimilar(Key key) {
+        return compileRegex(key);
+    }
+
+    private static LikePattern compileRegex(Key key) {
+        if (key.escape != null && key.escape.length() != 1) {
+            return null;
+        }
+        final char escape = key.escape != null ? key.escape.charAt(0) : 0;
+        try {
+            final String regex = key.similar
+                    ? similarToRegex(key.pattern, escape)
+                    : likeToRegex(key.pattern, escape);
+            return new Regex(Pattern.compile(regex));
+        } catch (RuntimeException e) {
+            return null; // Calcite reports the invalid pattern when it evaluates it
+        }
+    }
+
+    // Translates a LIKE pattern as Calcite's Like.sqlToRegexLike does
+    private static String likeToRegex(String pattern, char escape) {
+        final int length = pattern.length();
+        final StringBuilder regex = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            final char c = pattern.charAt(i);
+            if (JAVA_REGEX_SPECIALS.indexOf(c) >= 0) {
+                regex.append('\\');
+            }
+            if (c == escape) {
+                if (i == length - 1) {
+                    throw invalidEscapeSequence(pattern, i);
+                }
+                final char next = pattern.charAt(i + 1);
+                if (next != '_' && next != '%' && next != escape) {
+                    throw invalidEscapeSequence(pattern, i);
+                }
+                regex.append(next);
+                i++;
+            } else if (c == '_') {
+                regex.append('.');
+            } else if (c == '%') {
+                regex.append("(?s:.*)");
+            } else {
+                regex.append(c);
+            }
+        }
+        return regex.toString();
+    }
+
+    // Translates a SIMILAR TO pattern as Calcite's Like.sqlToRegexSimilar does
+    private static String similarToRegex(String pattern, char escape) {
+        checkSimilarEscapes(pattern, escape);
+        final int length = pattern.length();
+        final StringBuilder regex = new StringBuilder(length * 2);
+        boolean inEnumeration = false;
+        for (int i = 0; i < length; i++) {
+            final char c = pattern.charAt(i);
+            if (c == escape) {
+                if (i == length - 1) {
+                    throw invalidEscapeSequence(pattern, i);
+                }
+                final char next = pattern.charAt(i + 1);
+                if (SQL_SIMILAR_SPECIALS.indexOf(next) >= 0) {
+                    if (JAVA_REGEX_SPECIALS.indexOf(next) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(next);
+                } else if (next == escape) {
+                    regex.append(next);
+                } else {
+                    throw invalidEscapeSequence(pattern, i);
+                }
+                i++;
+            } else {
+                switch (c) {
+                    case '_':
+                        regex.append('.');
+                        break;
+                    case '%':
+                        regex.append("(?s:.*)");
+                        break;
+                    case '[':
+                        regex.append('[');
+                        inEnumeration = true;
+                        i = appendCharEnumeration(pattern, regex, i, escape);
+                        break;
+                    case ']':
+                        if (!inEnumeration) {
+                            throw invalidRegularExpression(pattern, i);
+                        }
+                        inEnumeration = false;
+                        regex.append(']');
+                        break;
+                    case '\\':
+                        regex.append("\\\\");
+                        break;
+                    case '$':
+                        regex.append("\\$"); // special in regular expressions, but not in SQL
+                        break;
+                    default:
+                        regex.append(c);
+                        break;
+                }
+            }
+        }
+        if (inEnumeration) {
+            throw invalidRegularExpression(pattern, length);
+        }
+        return regex.toString();
+    }
+
+    // Checks escapes of a SIMILAR TO pattern by SQL 2003 Part 2 Section 8.6 General Rule 3
+    private static void checkSimilarEscapes(String pattern, char escape) {
+        if (escape == 0) {
+            return;
+        }
+        if (SQL_SIMILAR_SPECIALS.indexOf(escape) >= 0) {
+            for (int i = 0; i < pattern.length(); i++) {
+                if (pattern.charAt(i) == escape) {
+                    if (i == pattern.length() - 1) {
+                        throw invalidEscapeSequence(pattern, i);
+                    }
+                    final char next = pattern.charAt(i + 1);
+                    if (SQL_SIMILAR_SPECIALS.indexOf(next) < 0 && next != escape) {
+                        throw invalidEscapeSequence(pattern, i);
+                    }
+                }
+            }
+        }
+        if (escape == ':') {
+            int position = pattern.indexOf("[:");
+            if (position >= 0) {
+                position = pattern.indexOf(":]");
+            }
+            if (position < 0) {
+                throw invalidEscapeSequence(pattern, position);
+            }
+        }
+    }
+
+    // Appends characters of [...] after '[' at the position, and returns the position of the last
+    // one before ']'
+    private static int appendCharEnumeration(String pattern, StringBuilder regex, int position,
+                                             char escape) {
+        int i;
+        for (i = position + 1; i < pattern.length(); i++) {
+            final char c = pattern.charAt(i);
+            if (c == ']') {
+                return i - 1;
+            } else if (c == escape) {
+                i++;
+                final char next = pattern.charAt(i);
+                if (SQL_SIMILAR_SPECIALS.indexOf(next) >= 0) {
+                    if (JAVA_REGEX_SPECIALS.indexOf(next) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(next);
+                } else if (next == escape) {
+                    regex.append(next);
+                } else {
+                    throw invalidRegularExpression(pattern, i);
+                }
+            } else if (c == '-' || c == '^') {
+                regex.append(c);
+            } else if (pattern.startsWith("[:", i)) {
+                boolean found = false;
+                for (int j = 0; j < REG_CHAR_CLASSES.length; j += 2) {
+                    if (pattern.startsWith(REG_CHAR_CLASSES[j], i)) {
+                        regex.append(REG_CHAR_CLASSES[j + 1]);
+                        i += REG_CHAR_CLASSES[j].length() - 1;
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    throw invalidRegularExpression(pattern, i);
+                }
+            } else if (SQL_SIMILAR_SPECIALS.indexOf(c) >= 0) {
+                throw invalidRegularExpression(pattern, i);
+            } else {
+                regex.append(c);
+            }
+        }
+        return i - 1;
+    }
+
+    private static IllegalArgumentException invalidEscapeSequence(String pattern, int position) {
+        return new IllegalArgumentException(String.format(Locale.ENGLISH,
+                "Invalid escape sequence '%s', %d", pattern, position));
+    }
+
+    private static IllegalArgumentException invalidRegularExpression(String pattern, int position) {
+        return new IllegalArgumentException(String.format(Locale.ENGLISH,
+                "Invalid regular expression '%s', %d", pattern, position));
+    }
+
+    private static final class Equals extends LikePattern {
+        private final String literal;
+
+        private Equals(String literal) {
+            this.literal = literal;
+        }
+
+        @Override
+        boolean matches(String value) {
+            return value.equals(literal);
+        }
+    }
+
+    private static final class StartsWith extends LikePattern {
+        private final String literal;
+
+        private StartsWith(String literal) {
+            this.literal = literal;
+        }
+
+        @Override
+        boolean matches(String value) {
+            return value.startsWith(literal);
+        }
+    }
+
+    private static final class EndsWith extends LikePattern {
+        private final String literal;
+
+        private EndsWith(String literal) {
+            this.literal = literal;
+        }
+
+        @Override
+        boolean matches(String value) {
+            return value.endsWith(literal);
+        }
+    }
+
+    private static final class Contains extends LikePattern {
+        private final String literal;
+
+        private Contains(String literal) {
+            this.literal = literal;
+        }
+
+        @Override
+        boolean matches(String value) {
+            return value.contains(literal);
+        }
+    }
+
+    private static final class Regex extends LikePattern {
+        private final Pattern pattern;
+
+        private Regex(Pattern pattern) {
+            this.pattern = pattern;
+        }
+
+        @Override
+        boolean matches(String value) {
+            return pattern.matcher(value).matches();
+        }
+    }
+
+    private static final class Key {
+        private final boolean similar;
+        private final String pattern;
+        private final String escape;
+
+        private Key(boolean similar, String pattern, String escape) {
+            this.similar = similar;
+            this.pattern = pattern;
+            this.escape = escape;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return similar == other.similar && pattern.equals(other.pattern)
+                    && Objects.equals(escape, other.escape);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(similar, pattern, escape);
+        }
+    }
+}
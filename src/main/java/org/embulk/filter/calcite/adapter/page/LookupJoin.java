@@ -0,0 +1,84 @@
+package org.embulk.filter.calcite.adapter.page;
+
+import com.google.common.collect.ImmutableSet;
+import java.lang.reflect.Method;
+import org.apache.calcite.adapter.enumerable.EnumerableRel;
+import org.apache.calcite.adapter.enumerable.EnumerableRelImplementor;
+import org.apache.calcite.adapter.enumerable.JavaRowFormat;
+import org.apache.calcite.adapter.enumerable.PhysType;
+import org.apache.calcite.adapter.enumerable.PhysTypeImpl;
+import org.apache.calcite.adapter.java.JavaTypeFactory;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.tree.BlockBuilder;
+import org.apache.calcite.linq4j.tree.Expression;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.linq4j.tree.Types;
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptCost;
+import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.CorrelationId;
+import org.apache.calcite.rel.core.Join;
+import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.rel.metadata.RelMetadataQuery;
+import org.apache.calcite.rex.RexNode;
+
+/**
+ * A join of rows with a {@link LookupTable} on its key column. It probes the index of the table
+ * for each left row, so that the cost doesn't depend on the size of the table. The right input is
+ * always a scan of the table, and it's not executed.
+ *
+ * <p>The condition is an equality of a left field and the key column. Inner and left outer joins
+ * are supported.
+ */
+class LookupJoin extends Join implements EnumerableRel {
+
+    private static final Method JOIN_METHOD = Types.lookupMethod(LookupTable.class, "join",
+            Enumerable.class, int.class, boolean.class, boolean.class);
+
+    private final LookupTable lookupTable;
+
+    LookupJoin(RelOptCluster cluster, RelTraitSet traitSet, RelNode left, RelNode right,
+               RexNode condition, JoinRelType joinType, LookupTable lookupTable) {
+        super(cluster, traitSet, left, right, condition, ImmutableSet.<CorrelationId>of(),
+                joinType);
+        this.lookupTable = lookupTable;
+    }
+
+    @Override
+    public LookupJoin copy(RelTraitSet traitSet, RexNode condition, RelNode left, RelNode right,
+                           JoinRelType joinType, boolean semiJoinDone) {
+        return new LookupJoin(getCluster(), traitSet, left, right, condition, joinType,
+                lookupTable);
+    }
+
+    @Override
+    public RelOptCost computeSelfCost(RelOptPlanner planner, RelMetadataQuery mq) {
+        // A probe for each left row. EnumerableJoin costs more because it reads all right rows.
+        return planner.getCostFactory().makeCost(mq.getRowCount(getLeft()), 0, 0);
+    }
+
+    @Override
+    public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+        final JavaTypeFactory typeFactory = implementor.getTypeFactory();
+        final BlockBuilder builder = new BlockBuilder();
+        final Result leftResult = implementor.visitChild(this, 0, (EnumerableRel) getLeft(),
+                Prefer.ARRAY);
+        final PhysType leftPhysType = PhysTypeImpl.of(typeFactory, getLeft().getRowType(),
+                JavaRowFormat.ARRAY);
+        final Expression left = leftResult.physType.convertTo(
+                builder.append("left", leftResult.block), leftPhysType);
+
+        final int leftKey = analyzeCondition().leftKeys.get(0);
+        builder.add(Expressions.return_(null, Expressions.call(
+                implementor.stash(lookupTable, LookupTable.class), JOIN_METHOD,
+                left,
+                Expressions.constant(leftKey),
+                Expressions.constant(getJoinType() == JoinRelType.LEFT),
+                Expressions.constant(leftPhysType.getFormat() == JavaRowFormat.SCALAR))));
+
+        final PhysType physType = PhysTypeImpl.of(typeFactory, getRowType(), JavaRowFormat.ARRAY);
+        return implementor.result(physType, builder.toBlock());
+    }
+}
@@ -0,0 +1,167 @@
+package org.embulk.filter.calcite.adapter.page;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.calcite.adapter.enumerable.EnumerableConvention;
+import org.apache.calcite.plan.RelOptRule;
+import org.apache.calcite.plan.RelOptRuleCall;
+import org.apache.calcite.plan.RelOptRuleOperand;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.JoinInfo;
+import org.apache.calcite.rel.core.JoinRelType;
+import org.apache.calcite.rel.logical.LogicalJoin;
+import org.apache.calcite.rel.logical.LogicalProject;
+import org.apache.calcite.rel.rules.JoinCommuteRule;
+import org.apache.calcite.rel.type.RelDataTypeField;
+import org.apache.calcite.rex.RexBuilder;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexInputRef;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.rex.RexShuttle;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.fun.SqlStdOperatorTable;
+import org.apache.calcite.tools.RelBuilder;
+import org.apache.calcite.util.mapping.IntPair;
+
+/**
+ * Rules that convert a {@code LogicalJoin} with a scan of {@link LookupTable} into a
+ * {@link LookupJoin}.
+ *
+ * <p>{@code INSTANCE} matches a scan on the right side, and {@code PROJECT} matches a projection
+ * of a scan there, e.g. casts of join keys that the validator adds. The join must have an equality
+ * of a left field and the key column. Projected expressions are evaluated above the
+ * {@code LookupJoin}, and so are other conditions of an inner join. {@code SWAP} matches a scan on
+ * the left side of an inner join, and swaps the inputs so that the other rules match the join.
+ * The JDBC driver doesn't commute joins by itself.
+ */
+class LookupJoinRule extends RelOptRule {
+
+    static final LookupJoinRule INSTANCE = new LookupJoinRule(
+            operand(LogicalJoin.class, operand(RelNode.class, any()),
+                    operand(LookupTableScan.class, none())),
+            "LookupJoinRule");
+
+    static final LookupJoinRule PROJECT = new LookupJoinRule(
+            operand(LogicalJoin.class, operand(RelNode.class, any()),
+                    operand(LogicalProject.class, operand(LookupTableScan.class, none()))),
+            "LookupJoinRule:project");
+
+    static final LookupJoinRule SWAP = new LookupJoinRule(
+            operand(LogicalJoin.class, operand(LookupTableScan.class, none()),
+                    operand(RelNode.class, any())),
+            "LookupJoinRule:swap");
+
+    private LookupJoinRule(RelOptRuleOperand operand, String description) {
+        super(operand, description);
+    }
+
+    @Override
+    public void onMatch(RelOptRuleCall call) {
+        final LogicalJoin join = call.rel(0);
+        if (this == SWAP) {
+            if (join.getJoinType() == JoinRelType.INNER) {
+                final RelNode swapped = JoinCommuteRule.swap(join, false);
+                if (swapped != null) {
+                    call.transformTo(swapped);
+                }
+            }
+            return;
+        }
+        if (join.getJoinType() != JoinRelType.INNER && join.getJoinType() != JoinRelType.LEFT) {
+            return;
+        }
+
+        final RelNode left = call.rel(1);
+        final LogicalProject project = this == PROJECT ? call.<LogicalProject>rel(2) : null;
+        final LookupTableScan scan = call.rel(this == PROJECT ? 3 : 2);
+        final LookupTable lookupTable = scan.getLookupTable();
+
+        // Right fields are scanned columns, or expressions of them
+        final List<RexNode> rightExprs = new ArrayList<>();
+        if (project == null) {
+            for (int i = 0; i < scan.getRowType().getFieldCount(); i++) {
+                rightExprs.add(RexInputRef.of(i, scan.getRowType()));
+            }
+        } else {
+            rightExprs.addAll(project.getProjects());
+        }
+        if (join.getJoinType() == JoinRelType.LEFT) {
+            // Expressions must be null for left rows without matched rows
+            for (RexNode expr : rightExprs) {
+                if (!(expr instanceof RexInputRef) && !(expr.isA(SqlKind.CAST)
+                        && ((RexCall) expr).getOperands().get(0) instanceof RexInputRef)) {
+                    return;
+                }
+            }
+        }
+
+        // Finds an equality of a left field and the key column
+        final JoinInfo joinInfo = join.analyzeCondition();
+        IntPair keys = null;
+        for (IntPair pair : joinInfo.pairs()) {
+            if (isKeyColumn(lookupTable, rightExprs.get(pair.target))
+                    && lookupTable.canLookUp(
+                            left.getRowType().getFieldList().get(pair.source).getType())) {
+                keys = pair;
+                break;
+            }
+        }
+        if (keys == null) {
+            return;
+        }
+        final boolean exact = joinInfo.isEqui() && joinInfo.pairs().size() == 1;
+        if (!exact && join.getJoinType() != JoinRelType.INNER) {
+            return;
+        }
+
+        final RexBuilder rexBuilder = join.getCluster().getRexBuilder();
+        final int leftFieldCount = left.getRowType().getFieldCount();
+        final RelNode convertedLeft = convert(join.getLeft(),
+                join.getLeft().getTraitSet().replace(EnumerableConvention.INSTANCE));
+        final RexNode condition = rexBuilder.makeCall(SqlStdOperatorTable.EQUALS,
+                RexInputRef.of(keys.source, left.getRowType()),
+                new RexInputRef(leftFieldCount + lookupTable.getKeyField(),
+                        scan.getRowType().getFieldList().get(lookupTable.getKeyField()).getType()));
+        final LookupJoin lookupJoin = new LookupJoin(join.getCluster(),
+                join.getTraitSet().replace(EnumerableConvention.INSTANCE),
+                convertedLeft, scan, condition, join.getJoinType(), lookupTable);
+        if (project == null && exact) {
+            call.transformTo(lookupJoin);
+            return;
+        }
+
+        final RelBuilder builder = call.builder().push(lookupJoin);
+        if (project != null) {
+            // Evaluates the projection of the right side on the joined rows
+            final List<RelDataTypeField> fields = join.getRowType().getFieldList();
+            final RexShuttle shift = new RexShuttle() {
+                @Override
+                public RexNode visitInputRef(RexInputRef inputRef) {
+                    return rexBuilder.makeInputRef(lookupJoin,
+                            leftFieldCount + inputRef.getIndex());
+                }
+            };
+            final List<RexNode> exprs = new ArrayList<>();
+            for (int i = 0; i < fields.size(); i++) {
+                final RexNode expr = i < leftFieldCount
+                        ? rexBuilder.makeInputRef(lookupJoin, i)
+                        : rightExprs.get(i - leftFieldCount).accept(shift);
+                exprs.add(rexBuilder.ensureType(fields.get(i).getType(), expr, true));
+            }
+            builder.project(exprs, join.getRowType().getFieldNames(), true);
+        }
+        if (!exact) {
+            builder.filter(join.getCondition());
+        }
+        call.transformTo(builder.build());
+    }
+
+    // The key column, or a cast of it that keeps values to be looked up
+    private static boolean isKeyColumn(LookupTable lookupTable, RexNode expr) {
+        if (expr.isA(SqlKind.CAST) && lookupTable.canLookUp(expr.getType())) {
+            expr = ((RexCall) expr).getOperands().get(0);
+        }
+        return expr instanceof RexInputRef
+                && ((RexInputRef) expr).getIndex() == lookupTable.getKeyField();
+    }
+}
@@ -0,0 +1,518 @@
+package org.embulk.filter.calcite.adapter.page;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import org.apache.calcite.adapter.java.JavaTypeFactory;
+import org.apache.calcite.linq4j.AbstractEnumerable;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.linq4j.Linq4j;
+import org.apache.calcite.plan.RelOptTable;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.schema.Statistic;
+import org.apache.calcite.schema.Statistics;
+import org.apache.calcite.schema.TranslatableTable;
+import org.apache.calcite.schema.impl.AbstractTable;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.apache.calcite.util.ImmutableBitSet;
+import org.apache.calcite.util.Pair;
+import org.embulk.spi.Column;
+import org.embulk.spi.Schema;
+
+/**
+ * A read-only table loaded from a local CSV or JSON Lines file. Its rows are held in memory in
+ * Calcite's internal representation, and indexed by a key column.
+ *
+ * <p>A join of a scan of {@code $PAGES} with the table on the key column is planned as
+ * {@code LookupJoin}, which probes the index for each row instead of building a hash table of the
+ * table for each execution. A {@code LookupTable} doesn't have any mutable state after it's
+ * loaded, and can be shared by tasks.
+ */
+public class LookupTable extends AbstractTable implements TranslatableTable {
+
+    private final Schema schema;
+    private final int keyField;
+    private final Object[][] rows;
+    private final Index index;
+    private final boolean uniqueKeys;
+
+    private LookupTable(Schema schema, int keyField, Object[][] rows) {
+        this.schema = schema;
+        this.keyField = keyField;
+        this.rows = rows;
+        this.index = newIndex(schema.getColumn(keyField), rows.length);
+
+        // Rows of the same key are chained in the order of the file
+        for (int i = rows.length - 1; i >= 0; i--) {
+            if (rows[i][keyField] != null) {
+                index.push(rows[i][keyField], i);
+            }
+        }
+        this.uniqueKeys = index.size() == rows.length;
+    }
+
+    /**
+     * Loads a table from a local file. A CSV file must have a header line, and its values are
+     * mapped into columns by the names in it. Lines of a JSON Lines file are objects, and their
+     * values are mapped into columns by their keys. Empty values, nulls and missing ones are null.
+     *
+     * <p>Timestamps are strings in ISO 8601. Those without offsets are local times of
+     * {@code timeZone}, the time zone of the connection.
+     *
+     * @param path     a path of the file
+     * @param format   'csv' or 'jsonl'
+     * @param schema   columns of the table
+     * @param key      a name of the key column
+     * @param timeZone a time zone of the connection
+     * @return a {@code LookupTable} object
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the file doesn't match the schema
+     */
+    public static LookupTable load(Path path, String format, Schema schema, String key,
+                                   TimeZone timeZone) throws IOException {
+        final int keyField = indexOf(schema, key);
+        if (keyField < 0) {
+            throw new IllegalArgumentException(String.format(Locale.ENGLISH,
+                    "Key column '%s' is not declared in columns", key));
+        }
+        for (Column column : schema.getColumns()) {
+            if (PageFieldType.of(column.getType().getName()) == null) {
+                throw new IllegalArgumentException(String.format(Locale.ENGLISH,
+                        "Unsupported type '%s' of column '%s'", column.getType(),
+                        column.getName()));
+            }
+        }
+
+        final List<Object[]> rows;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            switch (format) {
+                case "csv":
+                    rows = readCsv(reader, schema, timeZone);
+                    break;
+                case "jsonl":
+                    rows = readJsonLines(reader, schema, timeZone);
+                    break;
+                default:
+                    throw new IllegalArgumentException(String.format(Locale.ENGLISH,
+                            "Unknown format '%s'. Supported formats are 'csv' and 'jsonl'.",
+                            format));
+            }
+        }
+        return new LookupTable(schema, keyField, rows.toArray(new Object[rows.size()][]));
+    }
+
+    private static int indexOf(Schema schema, String name) {
+        for (Column column : schema.getColumns()) {
+            if (column.getName().equals(name)) {
+                return column.getIndex();
+            }
+        }
+        return -1;
+    }
+
+    private static List<Object[]> readCsv(BufferedReader reader, Schema schema, TimeZone timeZone)
+            throws IOException {
+        final CsvRecordReader records = new CsvRecordReader(reader);
+        final List<String> header = records.next();
+        if (header == null) {
+            throw new IllegalArgumentException("A CSV file must have a header line");
+        }
+        final int[] positions = new int[schema.getColumnCount()];
+        for (Column column : schema.getColumns()) {
+            positions[column.getIndex()] = header.indexOf(column.getName());
+            if (positions[column.getIndex()] < 0) {
+                throw new IllegalArgumentException(String.format(Locale.ENGLISH,
+                        "Column '%s' is not found in the header line", column.getName()));
+            }
+        }
+
+        final ArrayList<Object[]> rows = new ArrayList<>();
+        List<String> record;
+        while ((record = records.next()) != null) {
+            final Object[] row = new Object[schema.getColumnCount()];
+            for (Column column : schema.getColumns()) {
+                final int position = positions[column.getIndex()];
+                final String value = position < record.size() ? record.get(position) : null;
+                row[column.getIndex()] = value == null
+                        ? null : parse(column, value, timeZone, records.getLineNumber());
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static List<Object[]> readJsonLines(BufferedReader reader, Schema schema,
+                                                TimeZone timeZone) throws IOException {
+        final ObjectMapper mapper = new ObjectMapper();
+        final ArrayList<Object[]> rows = new ArrayList<>();
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            final JsonNode object = mapper.readTree(line);
+            if (!object.isObject()) {
+                throw new IllegalArgumentException(String.format(Locale.ENGLISH,
+                        "Line %d is not a JSON object", lineNumber));
+            }
+            final Object[] row = new Object[schema.getColumnCount()];
+            for (Column column : schema.getColumns()) {
+                row[column.getIndex()] = toValue(column, object.get(column.getName()), timeZone,
+                        lineNumber);
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static Object toValue(Column column, JsonNode node, TimeZone timeZone, int lineNumber) {
+        if (node == null || node.isNull()) {
+            return null;
+        }
+        switch (PageFieldType.of(column.getType().getName())) {
+            case BOOLEAN:
+                if (node.isBoolean()) {
+                    return node.booleanValue();
+                }
+                break;
+            case LONG:
+                if (node.isIntegralNumber()) {
+                    return node.longValue();
+                }
+                break;
+            case DOUBLE:
+                if (node.isNumber()) {
+                    return node.doubleValue();
+                }
+                break;
+            case STRING:
+                return node.isTextual() ? node.textValue() : node.toString();
+            default:
+                break;
+        }
+        if (node.isTextual()) {
+            return parse(column, node.textValue(), timeZone, lineNumber);
+        }
+        throw invalidValue(column, node.toString(), lineNumber);
+    }
+
+    private static Object parse(Column column, String value, TimeZone timeZone, int lineNumber) {
+        try {
+            switch (PageFieldType.of(column.getType().getName())) {
+                case BOOLEAN:
+                    if (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false")) {
+                        return Boolean.valueOf(value);
+                    }
+                    throw invalidValue(column, value, lineNumber);
+                case LONG:
+                    return Long.parseLong(value);
+                case DOUBLE:
+                    return Double.parseDouble(value);
+                case TIMESTAMP:
+                    return parseTimestamp(value, timeZone);
+                default:
+                    return value;
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            throw invalidValue(column, value, lineNumber);
+        }
+    }
+
+    // Returns milliseconds since epoch as PageConverter does
+    private static long parseTimestamp(String value, TimeZone timeZone) {
+        final String text = value.replace(' ', 'T');
+        try {
+            return OffsetDateTime.parse(text).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return LocalDateTime.parse(text).atZone(timeZone.toZoneId()).toInstant().toEpochMilli();
+        }
+    }
+
+    private static IllegalArgumentException invalidValue(Column column, String value,
+                                                         int lineNumber) {
+        return new IllegalArgumentException(String.format(Locale.ENGLISH,
+                "Invalid %s value '%s' of column '%s' at line %d",
+                column.getType(), value, column.getName(), lineNumber));
+    }
+
+    private static Index newIndex(Column key, int rowCount) {
+        switch (PageFieldType.of(key.getType().getName())) {
+            case LONG:
+            case TIMESTAMP:
+                return new LongIndex(rowCount);
+            default:
+                return new ObjectIndex(rowCount);
+        }
+    }
+
+    @Override
+    public RelDataType getRowType(RelDataTypeFactory typeFactory) {
+        final List<RelDataType> types = new ArrayList<>(schema.getColumnCount());
+        final List<String> names = new ArrayList<>(schema.getColumnCount());
+        for (Column column : schema.getColumns()) {
+            names.add(column.getName());
+            types.add(PageFieldType.of(column.getType().getName())
+                    .toType((JavaTypeFactory) typeFactory));
+        }
+        return typeFactory.createStructType(Pair.zip(names, types));
+    }
+
+    @Override
+    public Statistic getStatistic() {
+        return Statistics.of(rows.length, uniqueKeys
+                ? ImmutableList.of(ImmutableBitSet.of(keyField))
+                : ImmutableList.<ImmutableBitSet>of());
+    }
+
+    @Override
+    public RelNode toRel(RelOptTable.ToRelContext context, RelOptTable relOptTable) {
+        return new LookupTableScan(context.getCluster(), relOptTable, this);
+    }
+
+    int getKeyField() {
+        return keyField;
+    }
+
+    /**
+     * Returns whether a value of a type can be looked up in the index. Integral values are
+     * looked up by their long values, and others are looked up by their equality.
+     *
+     * @param type a type of a value
+     * @return {@code true} if the value can be looked up
+     */
+    boolean canLookUp(RelDataType type) {
+        final SqlTypeName typeName = type.getSqlTypeName();
+        switch (PageFieldType.of(schema.getColumn(keyField).getType().getName())) {
+            case LONG:
+                return SqlTypeName.INT_TYPES.contains(typeName);
+            case TIMESTAMP:
+                return typeName == SqlTypeName.TIMESTAMP;
+            case DOUBLE:
+                return typeName == SqlTypeName.DOUBLE;
+            case BOOLEAN:
+                return typeName == SqlTypeName.BOOLEAN;
+            default:
+                return SqlTypeName.CHAR_TYPES.contains(typeName);
+        }
+    }
+
+    /**
+     * Returns all rows of the table. A row is an {@code Object[]}, or an {@code Object} when the
+     * table has only a column.
+     *
+     * @return a {@code Enumerable} of rows
+     */
+    public Enumerable<Object> scan() {
+        if (schema.getColumnCount() == 1) {
+            final ArrayList<Object> values = new ArrayList<>(rows.length);
+            for (Object[] row : rows) {
+                values.add(row[0]);
+            }
+            return Linq4j.asEnumerable(values);
+        }
+        return Linq4j.<Object>asEnumerable(rows);
+    }
+
+    /**
+     * Joins rows with the table by probing the index with their values of a field. A result row
+     * is a left row followed by a matched row of the table. Rows whose values are null don't
+     * match any rows.
+     *
+     * @param left       left rows. A row is an {@code Object[]}, or an {@code Object} if
+     *                   {@code scalarLeft} is true.
+     * @param leftKey    an index of the field of left rows to be looked up
+     * @param leftOuter  whether left rows without matched rows are returned with nulls
+     * @param scalarLeft whether left rows have only a field and are represented as its values
+     * @return a {@code Enumerable} of joined rows
+     */
+    public Enumerable<Object[]> join(final Enumerable<?> left, final int leftKey,
+                                     final boolean leftOuter, final boolean scalarLeft) {
+        return new AbstractEnumerable<Object[]>() {
+            public Enumerator<Object[]> enumerator() {
+                return new JoinEnumerator(left.enumerator(), leftKey, leftOuter, scalarLeft);
+            }
+        };
+    }
+
+    private class JoinEnumerator implements Enumerator<Object[]> {
+
+        private final Enumerator<?> left;
+        private final int leftKey;
+        private final boolean leftOuter;
+        private final boolean scalarLeft;
+
+        private Object[] leftRow;
+        private int nextMatch;
+        private Object[] current;
+
+        private JoinEnumerator(Enumerator<?> left, int leftKey, boolean leftOuter,
+                               boolean scalarLeft) {
+            this.left = left;
+            this.leftKey = leftKey;
+            this.leftOuter = leftOuter;
+            this.scalarLeft = scalarLeft;
+            this.nextMatch = -1;
+        }
+
+        @Override
+        public Object[] current() {
+            return current;
+        }
+
+        @Override
+        public boolean moveNext() {
+            while (nextMatch < 0) {
+                if (!left.moveNext()) {
+                    return false;
+                }
+                leftRow = scalarLeft ? new Object[] {left.current()} : (Object[]) left.current();
+                final Object key = leftRow[leftKey];
+                nextMatch = key == null ? -1 : index.first(key);
+                if (nextMatch < 0 && leftOuter) {
+                    current = Arrays.copyOf(leftRow, leftRow.length + schema.getColumnCount());
+                    return true;
+                }
+            }
+            final Object[] row = rows[nextMatch];
+            current = Arrays.copyOf(leftRow, leftRow.length + row.length);
+            System.arraycopy(row, 0, current, leftRow.length, row.length);
+            nextMatch = index.next(nextMatch);
+            return true;
+        }
+
+        @Override
+        public void reset() {
+            left.reset();
+            nextMatch = -1;
+        }
+
+        @Override
+        public void close() {
+            left.close();
+        }
+    }
+
+    // Chains rows by their keys. A chain starts from the first row of a key, and each row links
+    // to the next row of the same key.
+    private abstract static class Index {
+
+        private final int[] next;
+
+        Index(int rowCount) {
+            this.next = new int[rowCount];
+        }
+
+        abstract int first(Object key);
+
+        abstract int size();
+
+        abstract int replaceFirst(Object key, int row);
+
+        void push(Object key, int row) {
+            next[row] = replaceFirst(key, row);
+        }
+
+        int next(int row) {
+            return next[row];
+        }
+    }
+
+    // An open addressing hash table of primitive long keys without boxing them
+    private static final class LongIndex extends Index {
+
+        private final long[] keys;
+        private final int[] firsts;
+        private final int shift;
+        private int size;
+
+        private LongIndex(int rowCount) {
+            super(rowCount);
+            int capacity = 16;
+            while (capacity < rowCount * 2) {
+                capacity <<= 1;
+            }
+            this.keys = new long[capacity];
+            this.firsts = new int[capacity];
+            Arrays.fill(firsts, -1);
+            this.shift = 64 - Integer.numberOfTrailingZeros(capacity);
+        }
+
+        private int slotOf(long key) {
+            final int mask = keys.length - 1;
+            int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+            while (firsts[slot] >= 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        @Override
+        int first(Object key) {
+            return firsts[slotOf(((Number) key).longValue())];
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        int replaceFirst(Object key, int row) {
+            final long value = ((Number) key).longValue();
+            final int slot = slotOf(value);
+            final int previous = firsts[slot];
+            if (previous < 0) {
+                keys[slot] = value;
+                size++;
+            }
+            firsts[slot] = row;
+            return previous;
+        }
+    }
+
+    private static final class ObjectIndex extends Index {
+
+        private final HashMap<Object, Integer> firsts;
+
+        private ObjectIndex(int rowCount) {
+            super(rowCount);
+            this.firsts = new HashMap<>(Math.max(16, rowCount * 2));
+        }
+
+        @Override
+        int first(Object key) {
+            final Integer first = firsts.get(key);
+            return first == null ? -1 : first;
+        }
+
+        @Override
+        int size() {
+            return firsts.size();
+        }
+
+        @Override
+        int replaceFirst(Object key, int row) {
+            final Integer previous = firsts.put(key, row);
+            return previous == null ? -1 : previous;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.embulk.filter.calcite.adapter.page;
+
+import java.util.List;
+import org.apache.calcite.adapter.enumerable.EnumerableConvention;
+import org.apache.calcite.adapter.enumerable.EnumerableRel;
+import org.apache.calcite.adapter.enumerable.EnumerableRelImplementor;
+import org.apache.calcite.adapter.enumerable.JavaRowFormat;
+import org.apache.calcite.adapter.enumerable.PhysType;
+import org.apache.calcite.adapter.enumerable.PhysTypeImpl;
+import org.apache.calcite.linq4j.tree.Blocks;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.plan.RelOptCluster;
+import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelOptTable;
+import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.TableScan;
+
+/**
+ * A scan of {@link LookupTable}. It registers {@link LookupJoinRule}s to the planner so that joins
+ * with the table are planned as {@link LookupJoin}s.
+ *
+ * @see https://github.com/apache/calcite/blob/master/example/csv/src/main/java/org/apache/calcite/adapter/csv/CsvTableScan.java
+ */
+class LookupTableScan extends TableScan implements EnumerableRel {
+
+    private final LookupTable lookupTable;
+
+    LookupTableScan(RelOptCluster cluster, RelOptTable table, LookupTable lookupTable) {
+        super(cluster, cluster.traitSetOf(EnumerableConvention.INSTANCE), table);
+        this.lookupTable = lookupTable;
+    }
+
+    LookupTable getLookupTable() {
+        return lookupTable;
+    }
+
+    @Override
+    public RelNode copy(RelTraitSet traitSet, List<RelNode> inputs) {
+        assert inputs.isEmpty();
+        return new LookupTableScan(getCluster(), table, lookupTable);
+    }
+
+    @Override
+    public void register(RelOptPlanner planner) {
+        planner.addRule(LookupJoinRule.INSTANCE);
+        planner.addRule(LookupJoinRule.PROJECT);
+        planner.addRule(LookupJoinRule.SWAP);
+    }
+
+    @Override
+    public Result implement(EnumerableRelImplementor implementor, Prefer pref) {
+        final PhysType physType = PhysTypeImpl.of(implementor.getTypeFactory(), getRowType(),
+                JavaRowFormat.ARRAY);
+        return implementor.result(physType, Blocks.toBlock(
+                Expressions.call(implementor.stash(lookupTable, LookupTable.class), "scan")));
+    }
+}
@@ -0,0 +1,140 @@
+package org.embulk.filter.calcite.adapter.page;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.TimeZone;
+import org.apache.calcite.util.ImmutableBitSet;
+import org.embulk.filter.calcite.PageConverter;
+import org.embulk.filter.calcite.StringDictionary;
+import org.embulk.filter.calcite.TaskMetrics;
+import org.embulk.spi.Page;
+import org.embulk.spi.Schema;
+
+/**
+ * Binds {@code Page} objects to scans of {@code $PAGES}. It also pools {@code PageEnumerator}s,
+ * and their {@code PageReader}s and rows, so that they are reused over executions of a query.
+ *
+ * <p>This is not thread-safe. A binding is expected to be owned by a single task.
+ */
+public class PageBinding implements AutoCloseable {
+
+    private final Schema schema;
+    private final TimeZone defaultTimeZone;
+    private final ImmutableBitSet referencedColumns;
+    private final TaskMetrics metrics;
+    private final StringDictionary stringDictionary;
+    private final ArrayDeque<PageEnumerator> idleEnumerators;
+    private final ArrayList<PageEnumerator> enumerators;
+    private List<Page> pages;
+    private double sampleRatio;
+    private SplittableRandom sampleRandom;
+
+    /**
+     * Creates a binding that doesn't have any {@code Page} objects yet.
+     *
+     * @param schema          a {@code Schema} that is used for reading {@code Page} objects.
+     * @param defaultTimeZone a time zone passed to {@code PageConverter}s.
+     */
+    public PageBinding(Schema schema, TimeZone defaultTimeZone) {
+        this(schema, defaultTimeZone, ImmutableBitSet.range(schema.getColumnCount()));
+    }
+
+    /**
+     * Creates a binding whose {@code PageEnumerator}s decode only columns referenced by a query.
+     * Values of the other columns are null in rows.
+     *
+     * @param schema            a {@code Schema} that is used for reading {@code Page} objects.
+     * @param defaultTimeZone   a time zone passed to {@code PageConverter}s.
+     * @param referencedColumns indexes of columns referenced by a query.
+     */
+    public PageBinding(Schema schema, TimeZone defaultTimeZone, ImmutableBitSet referencedColumns) {
+        this(schema, defaultTimeZone, referencedColumns, new TaskMetrics(0));
+    }
+
+    /**
+     * Creates a binding whose {@code PageEnumerator}s also measure decoding of sampled Pages.
+     *
+     * @param schema            a {@code Schema} that is used for reading {@code Page} objects.
+     * @param defaultTimeZone   a time zone passed to {@code PageConverter}s.
+     * @param referencedColumns indexes of columns referenced by a query.
+     * @param metrics           metrics of the task that owns the binding.
+     */
+    public PageBinding(Schema schema, TimeZone defaultTimeZone, ImmutableBitSet referencedColumns,
+                       TaskMetrics metrics) {
+        this(schema, defaultTimeZone, referencedColumns, metrics, null);
+    }
+
+    /**
+     * Creates a binding whose {@code PageEnumerator}s decode strings into canonical instances.
+     *
+     * @param schema            a {@code Schema} that is used for reading {@code Page} objects.
+     * @param defaultTimeZone   a time zone passed to {@code PageConverter}s.
+     * @param referencedColumns indexes of columns referenced by a query.
+     * @param metrics           metrics of the task that owns the binding.
+     * @param stringDictionary  a dictionary shared by {@code PageConverter}s, or null.
+     */
+    public PageBinding(Schema schema, TimeZone defaultTimeZone, ImmutableBitSet referencedColumns,
+                       TaskMetrics metrics, StringDictionary stringDictionary) {
+        this.schema = schema;
+        this.defaultTimeZone = defaultTimeZone;
+        this.referencedColumns = referencedColumns;
+        this.metrics = metrics;
+        this.stringDictionary = stringDictionary;
+        this.idleEnumerators = new ArrayDeque<>();
+        this.enumerators = new ArrayList<>();
+        this.pages = Collections.emptyList();
+    }
+
+    public Schema getSchema() {
+        return schema;
+    }
+
+    public TaskMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setPages(List<Page> pages) {
+        this.pages = pages;
+    }
+
+    /**
+     * Makes scans of {@code $PAGES} read a random sample of records. Other records are skipped
+     * before they are filtered and decoded.
+     *
+     * @param sampleRatio  a probability that a record is read, in (0, 1].
+     * @param sampleRandom a random number generator owned by the binding.
+     */
+    public void setSampler(double sampleRatio, SplittableRandom sampleRandom) {
+        this.sampleRatio = sampleRatio;
+        this.sampleRandom = sampleRatio < 1.0 ? sampleRandom : null;
+    }
+
+    PageEnumerator acquireEnumerator(PageFilter filter) {
+        PageEnumerator enumerator = idleEnumerators.poll();
+        if (enumerator == null) {
+            enumerator = new PageEnumerator(schema, referencedColumns,
+                    new PageConverter(schema, defaultTimeZone, stringDictionary), this, metrics);
+            enumerators.add(enumerator);
+        }
+        enumerator.setFilter(filter);
+        enumerator.setSampler(sampleRatio, sampleRandom);
+        enumerator.setPages(pages);
+        return enumerator;
+    }
+
+    void releaseEnumerator(PageEnumerator enumerator) {
+        idleEnumerators.push(enumerator);
+    }
+
+    @Override
+    public void close() {
+        for (PageEnumerator enumerator : enumerators) {
+            enumerator.closePageReader();
+        }
+        enumerators.clear();
+        idleEnumerators.clear();
+    }
+}
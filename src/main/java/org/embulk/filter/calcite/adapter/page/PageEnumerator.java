@@ -1,7 +1,13 @@
 package org.embulk.filter.calcite.adapter.page;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
 import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.util.ImmutableBitSet;
 import org.embulk.filter.calcite.PageConverter;
+import org.embulk.filter.calcite.TaskMetrics;
+import org.embulk.spi.Column;
 import org.embulk.spi.Exec;
 import org.embulk.spi.Page;
 import org.embulk.spi.PageReader;
@@ -9,9 +15,18 @@ import org.embulk.spi.Schema;
 
 public class PageEnumerator implements Enumerator<Object[]> {
 
-    private final Schema schema;
+    private final Column[] columns; // columns decoded into a row. Others are left null.
     private final PageConverter pageConverter;
     private final PageReader pageReader;
+    private final PageBinding binding;
+    private final TaskMetrics metrics;
+
+    private PageFilter filter; // null if all records are accepted
+    private double sampleRatio;
+    private SplittableRandom sampleRandom; // null if all records are read
+    private List<Page> pages;
+    private int pageIndex;
+    private boolean sampling; // true while rows of a sampled Page are decoded
 
     /**
      * Creates an enumerator to read {@code Page} objects
@@ -20,26 +35,99 @@ public class PageEnumerator implements Enumerator<Object[]> {
      * @param pageConverter a converter to translate values from Embulk types to Calcite types.
      */
     public PageEnumerator(Schema schema, PageConverter pageConverter) {
-        this.schema = schema;
+        this(schema, ImmutableBitSet.range(schema.getColumnCount()), pageConverter, null,
+                new TaskMetrics(0));
+    }
+
+    // Creates an enumerator that decodes only referenced columns, and is returned to the pool in
+    // {@code PageBinding} when it's closed.
+    PageEnumerator(Schema schema, ImmutableBitSet referencedColumns, PageConverter pageConverter,
+                   PageBinding binding, TaskMetrics metrics) {
+        this.columns = new Column[referencedColumns.cardinality()];
+        int i = 0;
+        for (int index : referencedColumns) {
+            this.columns[i++] = schema.getColumn(index);
+        }
         this.pageReader = getPageReader(schema);
         this.pageConverter = pageConverter;
+        this.binding = binding;
+        this.metrics = metrics;
+        this.pages = Collections.emptyList();
+        this.pageIndex = 0;
+    }
+
+    // Sets a filter by which records are skipped before they are converted into rows
+    void setFilter(PageFilter filter) {
+        this.filter = filter;
+    }
+
+    // Sets a ratio of records that are read. Others are skipped before the filter.
+    void setSampler(double sampleRatio, SplittableRandom sampleRandom) {
+        this.sampleRatio = sampleRatio;
+        this.sampleRandom = sampleRandom;
     }
 
     public void setPage(Page page) {
-        this.pageReader.setPage(page);
+        setPages(Collections.singletonList(page));
+    }
+
+    /**
+     * Sets {@code Page} objects that are read in order as if they were a single {@code Page}.
+     *
+     * @param pages a list of {@code Page} objects to be read.
+     */
+    public void setPages(List<Page> pages) {
+        this.pages = pages;
+        this.pageIndex = 0;
+        if (!pages.isEmpty()) {
+            this.pageReader.setPage(pages.get(0));
+            this.pageConverter.startPage();
+            this.sampling = metrics.startPage();
+        }
         this.pageConverter.setPageReader(pageReader);
     }
 
     @Override
     public Object[] current() {
         // this is called from org.apache.calcite.linq4j.EnumerableDefaults
-        schema.visitColumns(pageConverter);
+        if (sampling) {
+            final long start = System.nanoTime();
+            decode();
+            metrics.addDecodeNanos(System.nanoTime() - start);
+        } else {
+            decode();
+        }
         return pageConverter.getRow();
     }
 
+    private void decode() {
+        for (Column column : columns) {
+            column.visit(pageConverter);
+        }
+    }
+
     @Override
     public boolean moveNext() {
-        return pageReader.nextRecord();
+        while (pageIndex < pages.size()) {
+            while (pageReader.nextRecord()) {
+                if (sampleRandom != null && sampleRandom.nextDouble() >= sampleRatio) {
+                    continue;
+                }
+                if (filter == null || filter.accept(pageReader)) {
+                    return true;
+                }
+            }
+
+            // move to the next page when all records in the current page have been read
+            endPage();
+            pageIndex++;
+            if (pageIndex < pages.size()) {
+                pageReader.setPage(pages.get(pageIndex));
+                pageConverter.startPage();
+                sampling = metrics.startPage();
+            }
+        }
+        return false;
     }
 
     @Override
@@ -47,8 +135,29 @@ public class PageEnumerator implements Enumerator<Object[]> {
         throw new UnsupportedOperationException();
     }
 
+    private void endPage() {
+        if (sampling) {
+            sampling = false;
+            metrics.endPage();
+        }
+    }
+
     @Override
     public void close() {
+        endPage();
+        if (binding != null) {
+            // keep the page reader open to reuse the enumerator for next pages
+            this.filter = null;
+            this.sampleRandom = null;
+            this.pages = Collections.emptyList();
+            this.pageIndex = 0;
+            binding.releaseEnumerator(this);
+        } else {
+            closePageReader();
+        }
+    }
+
+    void closePageReader() {
         if (pageReader != null) {
             pageReader.close();
         }
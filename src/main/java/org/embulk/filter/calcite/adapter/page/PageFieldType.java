@@ -4,13 +4,15 @@ import java.util.HashMap;
 import java.util.Map;
 import org.apache.calcite.adapter.java.JavaTypeFactory;
 import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.sql.type.SqlTypeName;
 
 enum PageFieldType {
     STRING(String.class, "string"),
     BOOLEAN(Boolean.class, Boolean.TYPE.getSimpleName()),
     LONG(Long.class, Long.TYPE.getSimpleName()),
     DOUBLE(Double.class, Double.TYPE.getSimpleName()),
-    TIMESTAMP(java.sql.Timestamp.class, "timestamp");
+    TIMESTAMP(Long.class, "timestamp"),
+    JSON(Object.class, "json");
 
     private static final Map<String, PageFieldType> MAP = new HashMap<>();
 
@@ -33,6 +35,19 @@ enum PageFieldType {
     }
 
     public RelDataType toType(JavaTypeFactory typeFactory) {
+        if (this == TIMESTAMP) {
+            // TIMESTAMP is represented as milliseconds since epoch in a long, and declared as the
+            // SQL type of millisecond precision so that Calcite doesn't treat values as
+            // java.sql.Timestamp.
+            return typeFactory.createTypeWithNullability(
+                    typeFactory.createSqlType(SqlTypeName.TIMESTAMP, 3), true);
+        }
+        if (this == JSON) {
+            // JSON is msgpack Value as it is, and declared as ANY so that functions of
+            // JsonFunctions and casts accept it.
+            return typeFactory.createTypeWithNullability(
+                    typeFactory.createSqlType(SqlTypeName.ANY), true);
+        }
         return typeFactory.createJavaType(clazz);
     }
 }
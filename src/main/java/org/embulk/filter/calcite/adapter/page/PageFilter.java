@@ -0,0 +1,499 @@
+package org.embulk.filter.calcite.adapter.page;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.rex.RexInputRef;
+import org.apache.calcite.rex.RexLiteral;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.sql.SqlKind;
+import org.apache.calcite.sql.fun.SqlLikeOperator;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.embulk.filter.calcite.PageConverter;
+import org.embulk.spi.Column;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.BooleanType;
+import org.embulk.spi.type.DoubleType;
+import org.embulk.spi.type.LongType;
+import org.embulk.spi.type.StringType;
+import org.embulk.spi.type.TimestampType;
+import org.embulk.spi.type.Type;
+
+/**
+ * A filter condition that is evaluated against the current record of {@code PageReader} before
+ * the record is converted into a row. It's translated from a condition that Calcite pushes down
+ * to {@code PageTable}.
+ *
+ * <p>Evaluation follows SQL's three-valued logic. {@code null} means UNKNOWN, and a record is
+ * accepted only when the condition is TRUE.
+ */
+abstract class PageFilter {
+
+    abstract Boolean evaluate(PageReader pageReader);
+
+    boolean accept(PageReader pageReader) {
+        return evaluate(pageReader) == Boolean.TRUE;
+    }
+
+    /**
+     * Translates a condition into a {@code PageFilter}. It supports comparisons between a column
+     * and a literal, IS [NOT] NULL, boolean columns, AND, OR and NOT. IN lists are also supported
+     * because Calcite expands them into ORs of equalities. LIKE and SIMILAR TO are supported for
+     * patterns of literals, which are compiled once by {@code LikePattern}.
+     *
+     * @param schema    a {@code Schema} of {@code Page} objects.
+     * @param condition a condition whose input references are column indexes in {@code schema}.
+     * @return a {@code PageFilter}, or null if the condition cannot be translated
+     */
+    static PageFilter translate(Schema schema, RexNode condition) {
+        switch (condition.getKind()) {
+            case AND:
+            case OR:
+                final List<PageFilter> operands = new ArrayList<>();
+                for (RexNode operand : ((RexCall) condition).getOperands()) {
+                    final PageFilter filter = translate(schema, operand);
+                    if (filter == null) {
+                        return null;
+                    }
+                    operands.add(filter);
+                }
+                return condition.getKind() == SqlKind.AND ? new And(operands) : new Or(operands);
+            case NOT:
+                final PageFilter operand = translate(schema,
+                        ((RexCall) condition).getOperands().get(0));
+                return operand != null ? new Not(operand) : null;
+            case IS_TRUE:
+            case IS_NOT_TRUE:
+            case IS_FALSE:
+            case IS_NOT_FALSE:
+                final PageFilter truth = translate(schema,
+                        ((RexCall) condition).getOperands().get(0));
+                return truth != null ? new Is(truth, condition.getKind()) : null;
+            case IS_NULL:
+            case IS_NOT_NULL:
+                final RexNode nullOperand = ((RexCall) condition).getOperands().get(0);
+                if (!(nullOperand instanceof RexInputRef)) {
+                    return null;
+                }
+                return new IsNull(((RexInputRef) nullOperand).getIndex(),
+                        condition.getKind() == SqlKind.IS_NOT_NULL);
+            case INPUT_REF:
+                final Column column = schema.getColumn(((RexInputRef) condition).getIndex());
+                return column.getType() instanceof BooleanType
+                        ? new BooleanColumn(column.getIndex())
+                        : null;
+            case EQUALS:
+            case NOT_EQUALS:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQUAL:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQUAL:
+                return translateComparison(schema, (RexCall) condition);
+            case LIKE:
+            case SIMILAR:
+                return translatePatternMatch(schema, (RexCall) condition);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns a conjunction of filters.
+     *
+     * @param filters a list of filters
+     * @return a {@code PageFilter}, or null if {@code filters} is empty
+     */
+    static PageFilter and(List<PageFilter> filters) {
+        switch (filters.size()) {
+            case 0:
+                return null;
+            case 1:
+                return filters.get(0);
+            default:
+                return new And(filters);
+        }
+    }
+
+    // Calcite casts a column to the SQL type of the same name, e.g. from java.sql.Timestamp to
+    // TIMESTAMP, or to change its nullability or collation. Such casts don't change the value.
+    private static RexNode unwrapCast(RexNode node) {
+        if (node.getKind() == SqlKind.CAST) {
+            final RexNode operand = ((RexCall) node).getOperands().get(0);
+            if (operand instanceof RexInputRef
+                    && operand.getType().getSqlTypeName() == node.getType().getSqlTypeName()) {
+                return operand;
+            }
+        }
+        return node;
+    }
+
+    private static PageFilter translateComparison(Schema schema, RexCall call) {
+        final RexNode left = unwrapCast(call.getOperands().get(0));
+        final RexNode right = unwrapCast(call.getOperands().get(1));
+        if (left instanceof RexInputRef && right instanceof RexLiteral) {
+            return translateComparison(schema, call.getKind(), (RexInputRef) left,
+                    (RexLiteral) right);
+        } else if (left instanceof RexLiteral && right instanceof RexInputRef) {
+            return translateComparison(schema, call.getKind().reverse(), (RexInputRef) right,
+                    (RexLiteral) left);
+        } else {
+            return null;
+        }
+    }
+
+    private static PageFilter translateComparison(Schema schema, SqlKind kind, RexInputRef ref,
+                                                  RexLiteral literal) {
+        if (RexLiteral.isNullLiteral(literal)) {
+            return null;
+        }
+
+        final int index = ref.getIndex();
+        final Type type = schema.getColumn(index).getType();
+        final SqlTypeName literalType = literal.getType().getSqlTypeName();
+        if (type instanceof LongType && SqlTypeName.EXACT_TYPES.contains(literalType)) {
+            final BigDecimal value = literal.getValueAs(BigDecimal.class);
+            try {
+                return new LongComparison(index, kind,
+                        value.setScale(0, RoundingMode.FLOOR).longValueExact(),
+                        value.stripTrailingZeros().scale() > 0);
+            } catch (ArithmeticException e) {
+                return null; // out of range of long
+            }
+        } else if (type instanceof DoubleType && SqlTypeName.NUMERIC_TYPES.contains(literalType)) {
+            return new DoubleComparison(index, kind,
+                    literal.getValueAs(BigDecimal.class).doubleValue());
+        } else if (type instanceof BooleanType && literalType == SqlTypeName.BOOLEAN
+                && (kind == SqlKind.EQUALS || kind == SqlKind.NOT_EQUALS)) {
+            return new BooleanComparison(index, kind, literal.getValueAs(Boolean.class));
+        } else if (type instanceof StringType && SqlTypeName.CHAR_TYPES.contains(literalType)) {
+            return new StringComparison(index, kind, literal.getValueAs(String.class));
+        } else if (type instanceof TimestampType && literalType == SqlTypeName.TIMESTAMP) {
+            return new TimestampComparison(index, kind, literal.getValueAs(Long.class));
+        } else {
+            return null;
+        }
+    }
+
+    private static PageFilter translatePatternMatch(Schema schema, RexCall call) {
+        final List<RexNode> operands = call.getOperands();
+        final RexNode value = unwrapCast(operands.get(0));
+        if (!(value instanceof RexInputRef)
+                || !(schema.getColumn(((RexInputRef) value).getIndex()).getType()
+                        instanceof StringType)) {
+            return null;
+        }
+        final String pattern = getStringLiteral(operands.get(1));
+        final String escape = operands.size() > 2 ? getStringLiteral(operands.get(2)) : null;
+        if (pattern == null || operands.size() > 2 && escape == null) {
+            return null;
+        }
+
+        final LikePattern compiled = call.getKind() == SqlKind.LIKE
+                ? LikePattern.like(pattern, escape)
+                : LikePattern.similar(pattern, escape);
+        if (compiled == null) {
+            return null;
+        }
+        final PageFilter filter = new PatternMatch(((RexInputRef) value).getIndex(), compiled);
+        final boolean negated = call.getOperator() instanceof SqlLikeOperator
+                && ((SqlLikeOperator) call.getOperator()).isNegated();
+        return negated ? new Not(filter) : filter;
+    }
+
+    // Returns the value of a non-null character literal, or null
+    private static String getStringLiteral(RexNode node) {
+        if (!(node instanceof RexLiteral) || RexLiteral.isNullLiteral(node)
+                || !SqlTypeName.CHAR_TYPES.contains(node.getType().getSqlTypeName())) {
+            return null;
+        }
+        return ((RexLiteral) node).getValueAs(String.class);
+    }
+
+    private static boolean compare(SqlKind kind, int c) {
+        switch (kind) {
+            case EQUALS:
+                return c == 0;
+            case NOT_EQUALS:
+                return c != 0;
+            case LESS_THAN:
+                return c < 0;
+            case LESS_THAN_OR_EQUAL:
+                return c <= 0;
+            case GREATER_THAN:
+                return c > 0;
+            case GREATER_THAN_OR_EQUAL:
+                return c >= 0;
+            default:
+                throw new AssertionError(kind);
+        }
+    }
+
+    private static final class And extends PageFilter {
+        private final PageFilter[] operands;
+
+        private And(List<PageFilter> operands) {
+            this.operands = operands.toArray(new PageFilter[0]);
+        }
+
+        @Override
+        Boolean evaluate(PageReader pageReader) {
+            Boolean result = Boolean.TRUE;
+            for (PageFilter operand : operands) {
+                final Boolean value = operand.evaluate(pageReader);
+                if (value == Boolean.FALSE) {
+                    return Boolean.FALSE;
+                } else if (value == null) {
+                    result = null;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class Or extends PageFilter {
+        private final PageFilter[] operands;
+
+        private Or(List<PageFilter> operands) {
+            this.operands = operands.toArray(new PageFilter[0]);
+        }
+
+        @Override
+        Boolean evaluate(PageReader pageReader) {
+            Boolean result = Boolean.FALSE;
+            for (PageFilter operand : operands) {
+                final Boolean value = operand.evaluate(pageReader);
+                if (value == Boolean.TRUE) {
+                    return Boolean.TRUE;
+                } else if (value == null) {
+                    result = null;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class Not extends PageFilter {
+        private final PageFilter operand;
+
+        private Not(PageFilter operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        Boolean evaluate(PageReader pageReader) {
+            final Boolean value = operand.evaluate(pageReader);
+            return value == null ? null : !value;
+        }
+    }
+
+    private static final class Is extends PageFilter {
+        private final PageFilter operand;
+        private final SqlKind kind;
+
+        private Is(PageFilter operand, SqlKind kind) {
+            this.operand = operand;
+            this.kind = kind;
+        }
+
+        @Override
+        Boolean evaluate(PageReader pageReader) {
+            final Boolean value = operand.evaluate(pageReader);
+            switch (kind) {
+                case IS_TRUE:
+                    return value == Boolean.TRUE;
+                case IS_NOT_TRUE:
+                    return value != Boolean.TRUE;
+                case IS_FALSE:
+                    return value == Boolean.FALSE;
+                default: // IS_NOT_FALSE
+                    return value != Boolean.FALSE;
+            }
+        }
+    }
+
+    private static final class IsNull extends PageFilter {
+        private final int index;
+        private final boolean negated;
+
+        private IsNull(int index, boolean negated) {
+            this.index = index;
+            this.negated = negated;
+        }
+
+        @Override
+        Boolean evaluate(PageReader pageReader) {
+            return pageReader.isNull(index) != negated;
+        }
+    }
+
+    private static final class BooleanColumn extends PageFilter {
+        private final int index;
+
+        private BooleanColumn(int index) {
+            this.index = index;
+        }
+
+        @Override
+        Boolean evaluate(PageReader pageReader) {
+            return pageReader.isNull(index) ? null : pageReader.getBoolean(index);
+        }
+    }
+
+    private abstract static class Comparison extends PageFilter {
+        final int index;
+        final SqlKind kind;
+
+        private Comparison(int index, SqlKind kind) {
+            this.index = index;
+            this.kind = kind;
+        }
+
+        @Override
+        Boolean evaluate(PageReader pageReader) {
+            return pageReader.isNull(index) ? null : compareTo(pageReader);
+        }
+
+        // Compares the non-null column value with the literal
+        abstract boolean compareTo(PageReader pageReader);
+    }
+
+    private static final class LongComparison extends Comparison {
+        private final long floor; // the literal rounded toward negative infinity
+        private final boolean fractional; // true if the literal has a fractional part
+
+        private LongComparison(int index, SqlKind kind, long floor, boolean fractional) {
+            super(index, kind);
+            this.floor = floor;
+            this.fractional = fractional;
+        }
+
+        @Override
+        boolean compareTo(PageReader pageReader) {
+            final long v = pageReader.getLong(index);
+            if (fractional) {
+                // a long value never equals to the literal, and is less than it iff v <= floor
+                return compare(kind, v <= floor ? -1 : 1);
+            }
+            return compare(kind, Long.compare(v, floor));
+        }
+    }
+
+    private static final class DoubleComparison extends Comparison {
+        private final double value;
+
+        private DoubleComparison(int index, SqlKind kind, double value) {
+            super(index, kind);
+            this.value = value;
+        }
+
+        @Override
+        boolean compareTo(PageReader pageReader) {
+            // Primitive comparisons as generated code does. Any comparisons with NaN are false.
+            final double v = pageReader.getDouble(index);
+            switch (kind) {
+                case EQUALS:
+                    return v == value;
+                case NOT_EQUALS:
+                    return v != value;
+                case LESS_THAN:
+                    return v < value;
+                case LESS_THAN_OR_EQUAL:
+                    return v <= value;
+                case GREATER_THAN:
+                    return v > value;
+                default: // GREATER_THAN_OR_EQUAL
+                    return v >= value;
+            }
+        }
+    }
+
+    private static final class BooleanComparison extends Comparison {
+        private final boolean value;
+
+        private BooleanComparison(int index, SqlKind kind, boolean value) {
+            super(index, kind);
+            this.value = value;
+        }
+
+        @Override
+        boolean compareTo(PageReader pageReader) {
+            return compare(kind, Boolean.compare(pageReader.getBoolean(index), value));
+        }
+    }
+
+    private static final class StringComparison extends Comparison {
+        private static final int MAX_CACHED_RESULTS = 1024;
+
+        private final String value;
+        // Results by strings of Pages. PageReader returns the same String object for an entry in
+        // the string table of a Page, so that repeated values are compared only once.
+        private final IdentityHashMap<String, Boolean> results;
+
+        private StringComparison(int index, SqlKind kind, String value) {
+            super(index, kind);
+            this.value = value;
+            this.results = new IdentityHashMap<>();
+        }
+
+        @Override
+        boolean compareTo(PageReader pageReader) {
+            final String v = pageReader.getString(index);
+            Boolean result = results.get(v);
+            if (result == null) {
+                result = compare(kind, v.compareTo(value));
+                if (results.size() >= MAX_CACHED_RESULTS) {
+                    results.clear();
+                }
+                results.put(v, result);
+            }
+            return result;
+        }
+    }
+
+    private static final class PatternMatch extends Comparison {
+        private static final int MAX_CACHED_RESULTS = 1024;
+
+        private final LikePattern pattern;
+        // Results by strings of Pages as StringComparison has
+        private final IdentityHashMap<String, Boolean> results;
+
+        private PatternMatch(int index, LikePattern pattern) {
+            super(index, SqlKind.LIKE);
+            this.pattern = pattern;
+            this.results = new IdentityHashMap<>();
+        }
+
+        @Override
+        boolean compareTo(PageReader pageReader) {
+            final String v = pageReader.getString(index);
+            Boolean result = results.get(v);
+            if (result == null) {
+                result = pattern.matches(v);
+                if (results.size() >= MAX_CACHED_RESULTS) {
+                    results.clear();
+                }
+                results.put(v, result);
+            }
+            return result;
+        }
+    }
+
+    private static final class TimestampComparison extends Comparison {
+        private final long value; // milliseconds since the epoch
+
+        private TimestampComparison(int index, SqlKind kind, long value) {
+            super(index, kind);
+            this.value = value;
+        }
+
+        @Override
+        boolean compareTo(PageReader pageReader) {
+            return compare(kind,
+                    Long.compare(PageConverter.getEpochMilli(pageReader, index), value));
+        }
+    }
+}
@@ -1,24 +1,73 @@
 package org.embulk.filter.calcite.adapter.page;
 
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Multimap;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import org.apache.calcite.schema.Function;
 import org.apache.calcite.schema.Table;
 import org.apache.calcite.schema.impl.AbstractSchema;
 import org.embulk.spi.Schema;
 
+/**
+ * A schema that has {@code $PAGES}, lookup tables and functions of {@link JsonFunctions} and
+ * {@link TimestampFunctions}. Each connection or planner has its own
+ * {@code PageSchema}, so that filters with different input schemas can run in the same JVM.
+ */
 public class PageSchema extends AbstractSchema {
 
-    public static Schema schema;
+    private final Map<String, Table> tableMap;
+    private final Multimap<String, Function> functions;
 
-    public PageSchema() {
+    /**
+     * Creates a schema whose functions are in UTC.
+     *
+     * @param schema       an input schema that {@code $PAGES} has
+     * @param lookupTables tables that queries can join with {@code $PAGES} by their names
+     */
+    public PageSchema(Schema schema, Map<String, LookupTable> lookupTables) {
+        this(schema, lookupTables, ZoneOffset.UTC);
+    }
+
+    /**
+     * Creates a schema.
+     *
+     * @param schema          an input schema that {@code $PAGES} has
+     * @param lookupTables    tables that queries can join with {@code $PAGES} by their names
+     * @param defaultTimeZone a time zone of timestamps that functions return
+     */
+    public PageSchema(Schema schema, Map<String, LookupTable> lookupTables,
+                      ZoneId defaultTimeZone) {
         super();
+        final HashMap<String, Table> tableMap = new HashMap<>();
+        tableMap.putAll(lookupTables);
+        tableMap.put("$PAGES", new PageTable(schema, null));
+        this.tableMap = Collections.unmodifiableMap(tableMap);
+        this.functions = ImmutableMultimap.<String, Function>builder()
+                .putAll(JsonFunctions.FUNCTIONS)
+                .putAll(TimestampFunctions.functions(defaultTimeZone))
+                .build();
     }
 
     @Override
     protected Map<String, Table> getTableMap() {
-        final HashMap<String, Table> tableMap = new HashMap<>();
-        tableMap.put("$PAGES", new PageTable(schema, null));
-        return Collections.unmodifiableMap(tableMap);
+        return tableMap;
+    }
+
+    @Override
+    protected Multimap<String, Function> getFunctionMultimap() {
+        return functions;
+    }
+
+    /**
+     * Returns {@code $PAGES} of this schema.
+     *
+     * @return a {@code PageTable} object
+     */
+    public PageTable getPageTable() {
+        return (PageTable) tableMap.get("$PAGES");
     }
 }
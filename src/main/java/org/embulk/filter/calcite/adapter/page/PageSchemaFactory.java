@@ -1,11 +1,17 @@
 package org.embulk.filter.calcite.adapter.page;
 
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Collections;
 import java.util.Map;
 import org.apache.calcite.schema.SchemaFactory;
 import org.apache.calcite.schema.SchemaPlus;
+import org.embulk.spi.Schema;
 
 /**
- * Factory that creates a {@link PageSchema}.
+ * Factory that creates a {@link PageSchema}. The input schema and lookup tables are passed in
+ * {@code operand} by {@link #SCHEMA} and {@link #LOOKUP_TABLES}, so that schemas of connections
+ * don't share any state.
  *
  * @see https://github.com/apache/calcite/blob/master/example/csv/src/main/java/org/apache/calcite/adapter/csv/CsvSchemaFactory.java
  */
@@ -14,12 +20,32 @@ public class PageSchemaFactory
 
     public static final PageSchemaFactory INSTANCE = new PageSchemaFactory();
 
+    // An embulk Schema of $PAGES
+    public static final String SCHEMA = "schema";
+
+    // A Map of names to LookupTables. It's optional.
+    public static final String LOOKUP_TABLES = "lookupTables";
+
+    // A ZoneId of timestamps that functions return. It's optional, and UTC by default.
+    public static final String TIME_ZONE = "timeZone";
+
     private PageSchemaFactory() {
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public org.apache.calcite.schema.Schema create(SchemaPlus parentSchema, String name,
                                                    Map<String, Object> operand) {
-        return new PageSchema();
+        final Schema schema = (Schema) operand.get(SCHEMA);
+        if (schema == null) {
+            throw new IllegalArgumentException(
+                    "PageSchema requires an input schema in operand '" + SCHEMA + "'");
+        }
+        final Map<String, LookupTable> lookupTables =
+                (Map<String, LookupTable>) operand.get(LOOKUP_TABLES);
+        final ZoneId timeZone = (ZoneId) operand.get(TIME_ZONE);
+        return new PageSchema(schema,
+                lookupTables != null ? lookupTables : Collections.<String, LookupTable>emptyMap(),
+                timeZone != null ? timeZone : ZoneOffset.UTC);
     }
 }
@@ -1,33 +1,41 @@
 package org.embulk.filter.calcite.adapter.page;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import org.apache.calcite.DataContext;
 import org.apache.calcite.adapter.java.JavaTypeFactory;
 import org.apache.calcite.linq4j.AbstractEnumerable;
 import org.apache.calcite.linq4j.Enumerable;
 import org.apache.calcite.linq4j.Enumerator;
+import org.apache.calcite.plan.RelOptUtil;
 import org.apache.calcite.rel.type.RelDataType;
 import org.apache.calcite.rel.type.RelDataTypeFactory;
 import org.apache.calcite.rel.type.RelProtoDataType;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.schema.FilterableTable;
 import org.apache.calcite.schema.ScannableTable;
 import org.apache.calcite.schema.impl.AbstractTable;
 import org.apache.calcite.util.Pair;
-import org.embulk.filter.calcite.PageConverter;
 import org.embulk.spi.Column;
-import org.embulk.spi.Page;
 import org.embulk.spi.Schema;
 
 /**
  * Base class for table that reads Pages.
+ *
+ * <p>Pages are bound to an execution by a {@code PageBinding} in the {@link #BINDING} variable of
+ * its {@code DataContext}. Executions by JDBC cannot put variables into the context, so the
+ * binding can also be set to the table by {@link #bind(PageBinding)}. Such a table must be owned
+ * by a single connection.
  */
-public class PageTable extends AbstractTable implements ScannableTable {
+public class PageTable extends AbstractTable implements ScannableTable, FilterableTable {
 
-    public static ThreadLocal<PageConverter> pageConverter = new ThreadLocal<>();
-    public static ThreadLocal<Page> page = new ThreadLocal<>();
+    // A name of the DataContext variable that has a PageBinding
+    public static final String BINDING = "pageBinding";
 
     private final Schema schema;
     private final RelProtoDataType protoRowType;
+    private PageBinding binding;
 
     // Creates a {@code PageTable} object.
     PageTable(Schema schema, RelProtoDataType protoRowType) {
@@ -35,6 +43,20 @@ public class PageTable extends AbstractTable implements ScannableTable {
         this.protoRowType = protoRowType;
     }
 
+    public Schema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Binds Pages to executions of the connection that owns this table. Bindings in
+     * {@code DataContext} take precedence over it.
+     *
+     * @param binding a {@code PageBinding}, or null to unbind
+     */
+    public void bind(PageBinding binding) {
+        this.binding = binding;
+    }
+
     /**
      * Returns a {@code RelDataType} by a given {@code RelDataTypeFactory}.
      *
@@ -58,21 +80,64 @@ public class PageTable extends AbstractTable implements ScannableTable {
     }
 
     /**
-     * Creates and returns a {@code Enumerable} object to read a {@code Page} object.
+     * Creates and returns a {@code Enumerable} object to read {@code Page} objects bound to the
+     * execution by {@code PageBinding}.
      *
-     * @param root a {@code DataContext} object that can be used during scanning a {@code Page}
-     *             object.
+     * @param root a {@code DataContext} object that can be used during scanning {@code Page}
+     *             objects.
      * @return a {@code Enumerable} object
      */
     public Enumerable<Object[]> scan(DataContext root) {
+        return newEnumerable(root, null);
+    }
+
+    /**
+     * Creates and returns a {@code Enumerable} object to read {@code Page} objects bound to the
+     * execution by {@code PageBinding}. Records are filtered by pushed-down conditions before
+     * they are converted into rows. Conditions that are fully evaluated while reading are removed
+     * from {@code filters}. Others remain to be evaluated by Calcite, while their conjuncts that
+     * can be evaluated are still used to skip records early.
+     *
+     * @param root    a {@code DataContext} object that can be used during scanning {@code Page}
+     *                objects.
+     * @param filters a mutable list of filter conditions.
+     * @return a {@code Enumerable} object
+     */
+    public Enumerable<Object[]> scan(DataContext root, List<RexNode> filters) {
+        final List<PageFilter> pageFilters = new ArrayList<>();
+        for (Iterator<RexNode> it = filters.iterator(); it.hasNext(); ) {
+            boolean translated = true;
+            for (RexNode conjunction : RelOptUtil.conjunctions(it.next())) {
+                final PageFilter pageFilter = PageFilter.translate(schema, conjunction);
+                if (pageFilter != null) {
+                    pageFilters.add(pageFilter);
+                } else {
+                    translated = false;
+                }
+            }
+            if (translated) {
+                it.remove();
+            }
+        }
+        return newEnumerable(root, PageFilter.and(pageFilters));
+    }
+
+    private Enumerable<Object[]> newEnumerable(final DataContext root, final PageFilter filter) {
         return new AbstractEnumerable<Object[]>() {
             public Enumerator<Object[]> enumerator() {
-                PageEnumerator enumerator = new PageEnumerator(schema, pageConverter.get());
-                if (page.get() != null) {
-                    enumerator.setPage(page.get());
-                }
-                return enumerator;
+                return getBinding(root).acquireEnumerator(filter);
             }
         };
     }
+
+    private PageBinding getBinding(DataContext root) {
+        final PageBinding bound = (PageBinding) root.get(BINDING);
+        if (bound != null) {
+            return bound;
+        }
+        if (binding == null) {
+            throw new IllegalStateException("No Pages are bound to $PAGES");
+        }
+        return binding;
+    }
 }
@@ -0,0 +1,508 @@
+package org.embulk.filter.calcite.adapter.page;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
+import java.lang.reflect.Method;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+import java.time.temporal.TemporalQueries;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.calcite.adapter.enumerable.CallImplementor;
+import org.apache.calcite.adapter.enumerable.NullPolicy;
+import org.apache.calcite.adapter.enumerable.ReflectiveCallNotNullImplementor;
+import org.apache.calcite.adapter.enumerable.RexImpTable;
+import org.apache.calcite.adapter.enumerable.RexToLixTranslator;
+import org.apache.calcite.linq4j.tree.Expression;
+import org.apache.calcite.linq4j.tree.Expressions;
+import org.apache.calcite.linq4j.tree.Types;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeFactory;
+import org.apache.calcite.rex.RexCall;
+import org.apache.calcite.schema.Function;
+import org.apache.calcite.schema.FunctionParameter;
+import org.apache.calcite.schema.ImplementableFunction;
+import org.apache.calcite.schema.ScalarFunction;
+import org.apache.calcite.sql.type.SqlTypeName;
+
+/**
+ * Functions that parse strings into timestamps. A timestamp in a query is milliseconds since
+ * epoch, as {@code PageConverter} reads timestamp columns, and these functions return the same.
+ * They're registered for each time zone because strings without offsets are in
+ * {@code default_timezone}.
+ *
+ * <ul>
+ * <li>{@code TO_TIMESTAMP(string)} parses ISO 8601, e.g. {@code 2015-01-27T19:23:49.123+09:00},
+ * and Embulk's format, e.g. {@code 2015-01-27 19:23:49.123000 +0000} or {@code ... UTC}.
+ * <li>{@code TO_TIMESTAMP(string, format)} parses by a pattern of {@code DateTimeFormatter}, or
+ * {@code 'iso8601'}, {@code 'epoch'} of seconds with an optional fraction, or
+ * {@code 'epoch_millis'}.
+ * <li>{@code TO_TIMESTAMP(string, format, zone)} parses strings without offsets in the zone.
+ * </ul>
+ *
+ * <p>Strings without offsets are in {@code default_timezone} unless a zone is given. ISO 8601
+ * and epoch strings are parsed by hand-written parsers without allocation, and patterns are
+ * compiled once for each distinct string.
+ */
+public class TimestampFunctions {
+
+    private static final ConcurrentHashMap<ZoneId, ImmutableMultimap<String, Function>> FUNCTIONS =
+            new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, DateTimeFormatter> FORMATTERS =
+            new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Zone> ZONES = new ConcurrentHashMap<>();
+    private static final int MAX_CACHED_ENTRIES = 1024;
+
+    private static final long NOT_PARSED = Long.MIN_VALUE;
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private TimestampFunctions() {
+    }
+
+    /**
+     * Returns functions that are registered into {@code PageSchema} of a time zone.
+     *
+     * @param defaultTimeZone {@code default_timezone} of a task
+     * @return functions by their names
+     */
+    static ImmutableMultimap<String, Function> functions(ZoneId defaultTimeZone) {
+        return FUNCTIONS.computeIfAbsent(defaultTimeZone, zone ->
+                ImmutableMultimap.<String, Function>builder()
+                        .put("TO_TIMESTAMP", new ZonedFunction(
+                                method("toTimestamp", String.class), zone))
+                        .put("TO_TIMESTAMP", new ZonedFunction(
+                                method("toTimestamp", String.class, String.class), zone))
+                        .put("TO_TIMESTAMP", new ZonedFunction(
+                                method("toTimestamp", String.class, String.class, String.class),
+                                zone))
+                        .build());
+    }
+
+    /**
+     * Implements {@code TO_TIMESTAMP(text)} of ISO 8601 strings.
+     */
+    public static Long toTimestamp(String text, String defaultTimeZone) {
+        if (text == null) {
+            return null;
+        }
+        return parseIso8601(text, null, zone(defaultTimeZone));
+    }
+
+    /**
+     * Implements {@code TO_TIMESTAMP(text, format)}.
+     */
+    public static Long toTimestamp(String text, String format, String defaultTimeZone) {
+        if (text == null || format == null) {
+            return null;
+        }
+        return parse(text, format, null, zone(defaultTimeZone));
+    }
+
+    /**
+     * Implements {@code TO_TIMESTAMP(text, format, zone)}. Strings that have offsets or zones
+     * are parsed in them instead of {@code zone}.
+     */
+    public static Long toTimestamp(String text, String format, String zone,
+                                   String defaultTimeZone) {
+        if (text == null || format == null || zone == null) {
+            return null;
+        }
+        return parse(text, format, zone(zone), zone(defaultTimeZone));
+    }
+
+    private static long parse(String text, String format, Zone zone, Zone defaultZone) {
+        switch (format) {
+            case "iso8601":
+                return parseIso8601(text, zone, defaultZone);
+            case "epoch":
+                return parseEpochSeconds(text);
+            case "epoch_millis":
+                try {
+                    return Long.parseLong(text.trim());
+                } catch (NumberFormatException e) {
+                    throw invalidTimestamp(text, format);
+                }
+            default:
+                return parseByPattern(text, format, zone, defaultZone);
+        }
+    }
+
+    // Parses yyyy-MM-dd[(T| )HH:mm[:ss[(.|,)fraction]][[ ](Z|UTC|+HH[:][mm]|-HH[:][mm])]], and
+    // falls back to DateTimeFormatter for others, e.g. with zone IDs.
+    private static long parseIso8601(String text, Zone zone, Zone defaultZone) {
+        final long parsed = parseIso8601Fast(text, zone, defaultZone);
+        if (parsed != NOT_PARSED) {
+            return parsed;
+        }
+        try {
+            return resolve(DateTimeFormatter.ISO_DATE_TIME.parse(text), zone, defaultZone);
+        } catch (DateTimeException e) {
+            try {
+                return resolve(DateTimeFormatter.ISO_DATE.parse(text), zone, defaultZone);
+            } catch (DateTimeException ignored) {
+                throw invalidTimestamp(text, "iso8601");
+            }
+        }
+    }
+
+    private static long parseIso8601Fast(String text, Zone zone, Zone defaultZone) {
+        final int length = text.length();
+        if (length < 10 || text.charAt(4) != '-' || text.charAt(7) != '-') {
+            return NOT_PARSED;
+        }
+        final int year = digits(text, 0, 4);
+        final int month = digits(text, 5, 2);
+        final int day = digits(text, 8, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            return NOT_PARSED;
+        }
+        long millis = epochDay(year, month, day) * MILLIS_PER_DAY;
+        int i = 10;
+
+        if (i < length && (text.charAt(i) == 'T' || text.charAt(i) == 't' || text.charAt(i) == ' ')
+                && i + 6 <= length && text.charAt(i + 3) == ':') {
+            final int hour = digits(text, i + 1, 2);
+            final int minute = digits(text, i + 4, 2);
+            if (hour < 0 || hour > 23 || minute < 0 || minute > 59) {
+                return NOT_PARSED;
+            }
+            millis += hour * 3600000L + minute * 60000L;
+            i += 6;
+            if (i < length && text.charAt(i) == ':') {
+                final int second = digits(text, i + 1, 2);
+                if (second < 0 || second > 59) {
+                    return NOT_PARSED;
+                }
+                millis += second * 1000L;
+                i += 3;
+                if (i < length && (text.charAt(i) == '.' || text.charAt(i) == ',')) {
+                    // Digits after milliseconds are truncated
+                    int fraction = 0;
+                    int scale = 100;
+                    int j = i + 1;
+                    while (j < length && j - i <= 9 && isDigit(text.charAt(j))) {
+                        fraction += (text.charAt(j) - '0') * scale;
+                        scale /= 10;
+                        j++;
+                    }
+                    if (j == i + 1) {
+                        return NOT_PARSED;
+                    }
+                    millis += fraction;
+                    i = j;
+                }
+            }
+        }
+
+        if (i == length) {
+            return (zone != null ? zone : defaultZone).toEpochMilli(millis);
+        }
+        if (text.charAt(i) == ' ') {
+            i++;
+        }
+        final int offsetSeconds;
+        if (text.regionMatches(i, "Z", 0, 1) || text.regionMatches(i, "z", 0, 1)) {
+            offsetSeconds = 0;
+            i += 1;
+        } else if (text.regionMatches(i, "UTC", 0, 3)) {
+            offsetSeconds = 0;
+            i += 3;
+        } else if (i + 3 <= length && (text.charAt(i) == '+' || text.charAt(i) == '-')) {
+            final int hours = digits(text, i + 1, 2);
+            int minutes = 0;
+            int j = i + 3;
+            if (j < length && text.charAt(j) == ':') {
+                j++;
+            }
+            if (j < length) {
+                minutes = digits(text, j, 2);
+                j += 2;
+            }
+            if (hours < 0 || hours > 18 || minutes < 0 || minutes > 59) {
+                return NOT_PARSED;
+            }
+            offsetSeconds = (text.charAt(i) == '-' ? -1 : 1) * (hours * 3600 + minutes * 60);
+            i = j;
+        } else {
+            return NOT_PARSED;
+        }
+        if (i != length) {
+            return NOT_PARSED;
+        }
+        return millis - offsetSeconds * 1000L;
+    }
+
+    // Parses [-]seconds[.fraction] into milliseconds since epoch
+    private static long parseEpochSeconds(String text) {
+        final String trimmed = text.trim();
+        final int dot = trimmed.indexOf('.');
+        try {
+            if (dot < 0) {
+                return Math.multiplyExact(Long.parseLong(trimmed), 1000L);
+            }
+            final long seconds = Long.parseLong(trimmed.substring(0, dot));
+            int fraction = 0;
+            int scale = 100;
+            for (int i = dot + 1; i < trimmed.length(); i++) {
+                if (!isDigit(trimmed.charAt(i))) {
+                    throw invalidTimestamp(text, "epoch");
+                }
+                fraction += (trimmed.charAt(i) - '0') * scale;
+                scale /= 10;
+            }
+            final long millis = Math.multiplyExact(seconds, 1000L);
+            return trimmed.startsWith("-") ? millis - fraction : millis + fraction;
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw invalidTimestamp(text, "epoch");
+        }
+    }
+
+    private static long parseByPattern(String text, String pattern, Zone zone, Zone defaultZone) {
+        final TemporalAccessor parsed;
+        try {
+            parsed = formatter(pattern).parse(text);
+        } catch (DateTimeException e) {
+            throw invalidTimestamp(text, pattern);
+        }
+        try {
+            return resolve(parsed, zone, defaultZone);
+        } catch (DateTimeException e) {
+            throw invalidTimestamp(text, pattern);
+        }
+    }
+
+    // Resolves a parsed date and time by its offset or zone, or by the given zone. Otherwise it's
+    // a local time of the default time zone.
+    private static long resolve(TemporalAccessor parsed, Zone zone, Zone defaultZone) {
+        final LocalDate date = parsed.query(TemporalQueries.localDate());
+        if (date == null) {
+            throw new DateTimeException("No date");
+        }
+        final LocalTime time = parsed.query(TemporalQueries.localTime());
+        final LocalDateTime dateTime = LocalDateTime.of(date,
+                time != null ? time : LocalTime.MIDNIGHT);
+        final ZoneId parsedZone = parsed.query(TemporalQueries.zone());
+        if (parsedZone != null) {
+            return ZonedDateTime.of(dateTime, parsedZone).toInstant().toEpochMilli();
+        }
+        final long millis = date.toEpochDay() * MILLIS_PER_DAY
+                + dateTime.toLocalTime().toNanoOfDay() / 1000000L;
+        return (zone != null ? zone : defaultZone).toEpochMilli(millis);
+    }
+
+    private static DateTimeFormatter formatter(String pattern) {
+        final DateTimeFormatter cached = FORMATTERS.get(pattern);
+        if (cached != null) {
+            return cached;
+        }
+        final DateTimeFormatter formatter;
+        try {
+            formatter = DateTimeFormatter.ofPattern(pattern, Locale.ENGLISH);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(String.format(Locale.ENGLISH,
+                    "Invalid timestamp format: %s", pattern), e);
+        }
+        if (FORMATTERS.size() < MAX_CACHED_ENTRIES) {
+            FORMATTERS.put(pattern, formatter);
+        }
+        return formatter;
+    }
+
+    private static Zone zone(String id) {
+        final Zone cached = ZONES.get(id);
+        if (cached != null) {
+            return cached;
+        }
+        final Zone zone;
+        try {
+            zone = new Zone(ZoneId.of(id));
+        } catch (DateTimeException e) {
+            throw new IllegalArgumentException(String.format(Locale.ENGLISH,
+                    "Invalid time zone: %s", id), e);
+        }
+        if (ZONES.size() < MAX_CACHED_ENTRIES) {
+            ZONES.put(id, zone);
+        }
+        return zone;
+    }
+
+    // Returns the value of digits, or -1 if they're not digits
+    private static int digits(String text, int start, int count) {
+        if (start + count > text.length()) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            final char c = text.charAt(i);
+            if (!isDigit(c)) {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    // Days since 1970-01-01 of a date in the proleptic Gregorian calendar
+    private static long epochDay(int year, int month, int day) {
+        final long y = month <= 2 ? year - 1 : year;
+        final long era = Math.floorDiv(y, 400);
+        final long yearOfEra = y - era * 400;
+        final long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static IllegalArgumentException invalidTimestamp(String text, String format) {
+        return new IllegalArgumentException(String.format(Locale.ENGLISH,
+                "Cannot parse '%s' into a timestamp by '%s'", text, format));
+    }
+
+    private static Method method(String name, Class<?>... parameterTypes) {
+        final Class<?>[] types = new Class<?>[parameterTypes.length + 1];
+        System.arraycopy(parameterTypes, 0, types, 0, parameterTypes.length);
+        types[parameterTypes.length] = String.class; // the default time zone
+        return Types.lookupMethod(TimestampFunctions.class, name, types);
+    }
+
+    // A time zone whose offset is found without allocation when it's fixed
+    private static final class Zone {
+
+        private final ZoneId zoneId;
+        private final ZoneRules rules;
+        private final long fixedOffsetMillis;
+        private final boolean fixed;
+
+        private Zone(ZoneId zoneId) {
+            this.zoneId = zoneId;
+            this.rules = zoneId.getRules();
+            this.fixed = rules.isFixedOffset();
+            this.fixedOffsetMillis = fixed
+                    ? rules.getOffset(Instant.EPOCH).getTotalSeconds() * 1000L
+                    : 0;
+        }
+
+        // Converts a local time of this zone into milliseconds since epoch
+        long toEpochMilli(long localMillis) {
+            if (fixed) {
+                return localMillis - fixedOffsetMillis;
+            }
+            final LocalDateTime dateTime = LocalDateTime.ofEpochSecond(
+                    Math.floorDiv(localMillis, 1000L),
+                    (int) Math.floorMod(localMillis, 1000L) * 1000000, ZoneOffset.UTC);
+            return ZonedDateTime.of(dateTime, zoneId).toInstant().toEpochMilli();
+        }
+    }
+
+    // A function whose method takes the default time zone as its last argument. It's a constant
+    // of the query, so that the function is evaluated in the time zone of the task.
+    private static class ZonedFunction implements ScalarFunction, ImplementableFunction {
+
+        private final Method method;
+        private final List<FunctionParameter> parameters;
+        private final CallImplementor implementor;
+
+        ZonedFunction(Method method, ZoneId defaultTimeZone) {
+            this.method = method;
+            final ArrayList<FunctionParameter> parameters = new ArrayList<>();
+            final Class<?>[] types = method.getParameterTypes();
+            for (int i = 0; i < types.length - 1; i++) {
+                parameters.add(new Parameter(i, types[i]));
+            }
+            this.parameters = ImmutableList.copyOf(parameters);
+            final Expression zone = Expressions.constant(defaultTimeZone.getId());
+            final ReflectiveCallNotNullImplementor zoned =
+                    new ReflectiveCallNotNullImplementor(method) {
+                        @Override
+                        public Expression implement(RexToLixTranslator translator, RexCall call,
+                                                    List<Expression> translatedOperands) {
+                            final ArrayList<Expression> operands =
+                                    new ArrayList<>(translatedOperands);
+                            operands.add(zone);
+                            return super.implement(translator, call, operands);
+                        }
+                    };
+            this.implementor = RexImpTable.createImplementor(zoned, NullPolicy.NONE, false);
+        }
+
+        @Override
+        public RelDataType getReturnType(RelDataTypeFactory typeFactory) {
+            return typeFactory.createTypeWithNullability(
+                    typeFactory.createSqlType(SqlTypeName.TIMESTAMP), true);
+        }
+
+        @Override
+        public List<FunctionParameter> getParameters() {
+            return parameters;
+        }
+
+        @Override
+        public CallImplementor getImplementor() {
+            return implementor;
+        }
+
+        @Override
+        public String toString() {
+            return method.getName();
+        }
+    }
+
+    private static class Parameter implements FunctionParameter {
+
+        private final int ordinal;
+        private final Class<?> type;
+
+        Parameter(int ordinal, Class<?> type) {
+            this.ordinal = ordinal;
+            this.type = type;
+        }
+
+        @Override
+        public int getOrdinal() {
+            return ordinal;
+        }
+
+        @Override
+        public String getName() {
+            return "arg" + ordinal;
+        }
+
+        @Override
+        public RelDataType getType(RelDataTypeFactory typeFactory) {
+            return typeFactory.createJavaType(type);
+        }
+
+        @Override
+        public boolean isOptional() {
+            return false;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.embulk.filter.calcite.getter;
 
+import java.sql.Types;
 import java.time.ZoneId;
 import org.embulk.input.jdbc.AbstractJdbcInputPlugin;
 import org.embulk.input.jdbc.JdbcColumn;
@@ -13,8 +14,6 @@ import org.embulk.spi.type.Type;
 public class FilterColumnGetterFactory
         extends ColumnGetterFactory {
 
-    private final ZoneId defaultTimeZone;
-
     /**
      * Creates a factory object to create {@code ColumnGetter}s for converting JdbcType to Embulk
      * type.
@@ -25,8 +24,6 @@ public class FilterColumnGetterFactory
      */
     public FilterColumnGetterFactory(final PageBuilder to, final ZoneId defaultTimeZone) {
         super(to, defaultTimeZone);
-        // TODO make change super.defaultTimeZone field protected
-        this.defaultTimeZone = defaultTimeZone;
     }
 
     @Override
@@ -36,13 +33,26 @@ public class FilterColumnGetterFactory
                                         JdbcColumnOption option) {
         String valueType = option.getValueType();
         Type toType = getToType(option);
-        if (valueType.equals("coalesce") && sqlTypeToValueType(column, column.getSqlType())
+        if (valueType.equals("coalesce") && isAnyType(column.getSqlType())) {
+            return new FilterJsonColumnGetter(to, toType);
+        } else if (valueType.equals("coalesce") && sqlTypeToValueType(column, column.getSqlType())
                 .equals("timestamp")) {
-            return new FilterTimestampColumnGetter(to,
-                    toType,
-                    option.getTimeZone().orElse(defaultTimeZone));
+            return new FilterTimestampColumnGetter(to, toType);
         } else {
             return super.newColumnGetter(con, task, column, option);
         }
     }
+
+    @Override
+    protected String sqlTypeToValueType(JdbcColumn column, int sqlType) {
+        if (isAnyType(sqlType)) {
+            return "json"; // json columns of $PAGES and results of JsonFunctions
+        }
+        return super.sqlTypeToValueType(column, sqlType);
+    }
+
+    // Calcite's ANY is JAVA_OBJECT in JDBC
+    private static boolean isAnyType(int sqlType) {
+        return sqlType == Types.JAVA_OBJECT || sqlType == Types.OTHER;
+    }
 }
@@ -0,0 +1,49 @@
+package org.embulk.filter.calcite.getter;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import org.embulk.filter.calcite.adapter.page.JsonFunctions;
+import org.embulk.input.jdbc.getter.AbstractColumnGetter;
+import org.embulk.spi.Column;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
+import org.msgpack.value.Value;
+
+/**
+ * Gets {@code ANY} values, e.g. json columns of {@code $PAGES} and results of
+ * {@code JsonFunctions}, from a {@code ResultSet} as objects. msgpack {@code Value}s are set into
+ * json columns as they are without serializing and parsing JSON text.
+ */
+public class FilterJsonColumnGetter
+        extends AbstractColumnGetter {
+
+    private Value value;
+
+    public FilterJsonColumnGetter(PageBuilder to, Type toType) {
+        super(to, toType);
+    }
+
+    @Override
+    protected void fetch(ResultSet from, int fromIndex)
+            throws SQLException {
+        final Object object = from.getObject(fromIndex);
+        value = object == null ? null : JsonFunctions.toJsonValue(object);
+    }
+
+    @Override
+    protected Type getDefaultToType() {
+        return Types.JSON;
+    }
+
+    @Override
+    public void jsonColumn(Column column) {
+        to.setJson(column, value);
+    }
+
+    @Override
+    public void stringColumn(Column column) {
+        to.setString(column,
+                value.isStringValue() ? value.asStringValue().asString() : value.toJson());
+    }
+}
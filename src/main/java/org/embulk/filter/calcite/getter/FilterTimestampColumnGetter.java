@@ -3,30 +3,27 @@ package org.embulk.filter.calcite.getter;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Instant;
-import java.time.ZoneId;
-import java.util.Calendar;
-import java.util.TimeZone;
-
 import org.embulk.input.jdbc.getter.TimestampColumnGetter;
 import org.embulk.spi.PageBuilder;
 import org.embulk.spi.type.Type;
 
+/**
+ * Gets TIMESTAMP values from a {@code ResultSet} as primitive longs. They're milliseconds since
+ * epoch in a query, as {@code PageConverter} reads timestamp columns.
+ */
 public class FilterTimestampColumnGetter
         extends TimestampColumnGetter {
 
-    private static final ThreadLocal<Calendar> calendar = new ThreadLocal<>();
-
-    public FilterTimestampColumnGetter(PageBuilder to, Type toType, ZoneId timeZone) {
+    public FilterTimestampColumnGetter(PageBuilder to, Type toType) {
         super(to, toType, null);
-        calendar.set(Calendar.getInstance(TimeZone.getTimeZone(timeZone))); // set TLS here
     }
 
     @Override
     protected void fetch(ResultSet from, int fromIndex)
             throws SQLException {
-        java.sql.Timestamp timestamp = from.getTimestamp(fromIndex, calendar.get());
-        if (timestamp != null) {
-            value = Instant.ofEpochSecond(timestamp.getTime() / 1000, timestamp.getNanos());
+        final long millis = from.getLong(fromIndex);
+        if (!from.wasNull()) {
+            value = Instant.ofEpochMilli(millis);
         }
     }
 }
@@ -0,0 +1,16 @@
+package org.embulk.filter.calcite.writer;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.PageBuilder;
+
+class BooleanColumnWriter extends ColumnWriter {
+
+    BooleanColumnWriter(PageBuilder to, Column column) {
+        super(to, column);
+    }
+
+    @Override
+    protected void writeNonNull(Object value) {
+        to.setBoolean(column, (Boolean) value);
+    }
+}
@@ -0,0 +1,35 @@
+package org.embulk.filter.calcite.writer;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.PageBuilder;
+
+/**
+ * Writes values of a column in rows that Calcite's {@code Enumerable} returns into a
+ * {@code PageBuilder} directly. Writers are chosen once for each column from the output
+ * {@code Schema} and the row type of a query so that they don't need any per-value type dispatch.
+ */
+public abstract class ColumnWriter {
+
+    protected final PageBuilder to;
+    protected final Column column;
+
+    protected ColumnWriter(PageBuilder to, Column column) {
+        this.to = to;
+        this.column = column;
+    }
+
+    /**
+     * Writes a value in Calcite's internal representation into the column.
+     *
+     * @param value a value. {@code null} is written as Embulk's null.
+     */
+    public void write(Object value) {
+        if (value == null) {
+            to.setNull(column);
+        } else {
+            writeNonNull(value);
+        }
+    }
+
+    protected abstract void writeNonNull(Object value);
+}
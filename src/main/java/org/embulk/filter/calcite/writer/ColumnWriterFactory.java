@@ -0,0 +1,86 @@
+package org.embulk.filter.calcite.writer;
+
+import java.util.Locale;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.embulk.spi.Column;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.type.BooleanType;
+import org.embulk.spi.type.DoubleType;
+import org.embulk.spi.type.JsonType;
+import org.embulk.spi.type.LongType;
+import org.embulk.spi.type.StringType;
+import org.embulk.spi.type.TimestampType;
+import org.embulk.spi.type.Type;
+
+public class ColumnWriterFactory {
+
+    private final PageBuilder to;
+
+    /**
+     * Creates a factory object to create {@code ColumnWriter}s for writing Calcite's values into
+     * Embulk's {@code Page}s.
+     *
+     * @param to a {@code PageBuilder} object that is passed to column writers.
+     */
+    public ColumnWriterFactory(final PageBuilder to) {
+        this.to = to;
+    }
+
+    /**
+     * Creates a {@code ColumnWriter} for the column.
+     *
+     * @param column an output column
+     * @param type   a Calcite type of the corresponding field in query results
+     * @return a {@code ColumnWriter} object
+     * @throws UnsupportedOperationException if the combination of the types is not supported
+     */
+    public ColumnWriter newColumnWriter(Column column, RelDataType type) {
+        final Type toType = column.getType();
+        final SqlTypeName sqlType = type.getSqlTypeName();
+        switch (sqlType) {
+            case TINYINT:
+            case SMALLINT:
+            case INTEGER:
+            case BIGINT:
+                if (toType instanceof LongType) {
+                    return new LongColumnWriter(to, column);
+                }
+                break;
+            case FLOAT:
+            case REAL:
+            case DOUBLE:
+            case DECIMAL:
+                if (toType instanceof DoubleType) {
+                    return new DoubleColumnWriter(to, column);
+                }
+                break;
+            case BOOLEAN:
+                if (toType instanceof BooleanType) {
+                    return new BooleanColumnWriter(to, column);
+                }
+                break;
+            case CHAR:
+            case VARCHAR:
+                if (toType instanceof StringType) {
+                    return new StringColumnWriter(to, column);
+                }
+                break;
+            case TIMESTAMP:
+                if (toType instanceof TimestampType) {
+                    return new TimestampColumnWriter(to, column);
+                }
+                break;
+            case ANY:
+                if (toType instanceof JsonType) {
+                    return new JsonColumnWriter(to, column);
+                }
+                break;
+            default:
+                break;
+        }
+        throw new UnsupportedOperationException(String.format(Locale.ENGLISH,
+                "Cannot write '%s' values into '%s' column as %s", sqlType, column.getName(),
+                toType));
+    }
+}
@@ -0,0 +1,17 @@
+package org.embulk.filter.calcite.writer;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.PageBuilder;
+
+// Calcite represents FLOAT, REAL, DOUBLE and DECIMAL values as java.lang.Number subclasses
+class DoubleColumnWriter extends ColumnWriter {
+
+    DoubleColumnWriter(PageBuilder to, Column column) {
+        super(to, column);
+    }
+
+    @Override
+    protected void writeNonNull(Object value) {
+        to.setDouble(column, ((Number) value).doubleValue());
+    }
+}
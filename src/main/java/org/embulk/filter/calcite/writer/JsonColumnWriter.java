@@ -0,0 +1,18 @@
+package org.embulk.filter.calcite.writer;
+
+import org.embulk.filter.calcite.adapter.page.JsonFunctions;
+import org.embulk.spi.Column;
+import org.embulk.spi.PageBuilder;
+
+class JsonColumnWriter extends ColumnWriter {
+
+    JsonColumnWriter(PageBuilder to, Column column) {
+        super(to, column);
+    }
+
+    @Override
+    protected void writeNonNull(Object value) {
+        // json values of input columns and JsonFunctions are written without serializing them
+        to.setJson(column, JsonFunctions.toJsonValue(value));
+    }
+}
@@ -0,0 +1,17 @@
+package org.embulk.filter.calcite.writer;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.PageBuilder;
+
+// Calcite represents TINYINT, SMALLINT, INTEGER and BIGINT values as java.lang.Number subclasses
+class LongColumnWriter extends ColumnWriter {
+
+    LongColumnWriter(PageBuilder to, Column column) {
+        super(to, column);
+    }
+
+    @Override
+    protected void writeNonNull(Object value) {
+        to.setLong(column, ((Number) value).longValue());
+    }
+}
@@ -0,0 +1,16 @@
+package org.embulk.filter.calcite.writer;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.PageBuilder;
+
+class StringColumnWriter extends ColumnWriter {
+
+    StringColumnWriter(PageBuilder to, Column column) {
+        super(to, column);
+    }
+
+    @Override
+    protected void writeNonNull(Object value) {
+        to.setString(column, value.toString());
+    }
+}
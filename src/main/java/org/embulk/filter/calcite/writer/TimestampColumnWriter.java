@@ -0,0 +1,21 @@
+package org.embulk.filter.calcite.writer;
+
+import java.time.Instant;
+import org.embulk.spi.Column;
+import org.embulk.spi.PageBuilder;
+
+/**
+ * Writes TIMESTAMP values. They're milliseconds since epoch in a query, as {@code PageConverter}
+ * reads timestamp columns.
+ */
+class TimestampColumnWriter extends ColumnWriter {
+
+    TimestampColumnWriter(PageBuilder to, Column column) {
+        super(to, column);
+    }
+
+    @Override
+    protected void writeNonNull(Object value) {
+        to.setTimestamp(column, Instant.ofEpochMilli(((Number) value).longValue()));
+    }
+}
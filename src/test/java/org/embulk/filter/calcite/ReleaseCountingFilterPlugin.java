@@ -0,0 +1,185 @@
+package org.embulk.filter.calcite;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskSource;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.FilterPlugin;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.Schema;
+import org.msgpack.value.ImmutableValue;
+
+/**
+ * A filter that passes Pages through, and counts them and how many of them are released by the
+ * following filter. A Page is released by either of {@code Page#release()} or the release of its
+ * buffer, which is how a {@code PageReader} releases it.
+ */
+public class ReleaseCountingFilterPlugin implements FilterPlugin {
+
+    static final AtomicInteger ADDED_PAGES = new AtomicInteger();
+    static final AtomicInteger RELEASED_PAGES = new AtomicInteger();
+
+    static void reset() {
+        ADDED_PAGES.set(0);
+        RELEASED_PAGES.set(0);
+    }
+
+    @Override
+    public void transaction(ConfigSource config, Schema inputSchema, FilterPlugin.Control control) {
+        control.run(CalciteFilterPlugin.CONFIG_MAPPER_FACTORY.newTaskSource(), inputSchema);
+    }
+
+    @Override
+    public PageOutput open(TaskSource taskSource, Schema inputSchema, Schema outputSchema,
+                           PageOutput output) {
+        return new PageOutput() {
+            @Override
+            public void add(Page page) {
+                ADDED_PAGES.incrementAndGet();
+                output.add(new CountingPage(page));
+            }
+
+            @Override
+            public void finish() {
+                output.finish();
+            }
+
+            @Override
+            public void close() {
+                output.close();
+            }
+        };
+    }
+
+    private static final class CountingPage extends Page {
+
+        private final Page page;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private final CountingBuffer buffer;
+
+        private CountingPage(Page page) {
+            this.page = page;
+            this.buffer = new CountingBuffer(this);
+        }
+
+        private void countRelease() {
+            if (released.compareAndSet(false, true)) {
+                RELEASED_PAGES.incrementAndGet();
+            }
+        }
+
+        @Override
+        public Page setStringReferences(List<String> values) {
+            return page.setStringReferences(values);
+        }
+
+        @Override
+        public Page setValueReferences(List<ImmutableValue> values) {
+            return page.setValueReferences(values);
+        }
+
+        @Override
+        public List<String> getStringReferences() {
+            return page.getStringReferences();
+        }
+
+        @Override
+        public List<ImmutableValue> getValueReferences() {
+            return page.getValueReferences();
+        }
+
+        @Override
+        public String getStringReference(int index) {
+            return page.getStringReference(index);
+        }
+
+        @Override
+        public ImmutableValue getValueReference(int index) {
+            return page.getValueReference(index);
+        }
+
+        @Override
+        public void release() {
+            countRelease();
+            page.release();
+        }
+
+        @Override
+        public Buffer buffer() {
+            return buffer;
+        }
+    }
+
+    private static final class CountingBuffer extends Buffer {
+
+        private final CountingPage page;
+        private final Buffer buffer;
+
+        private CountingBuffer(CountingPage page) {
+            this.page = page;
+            this.buffer = page.page.buffer();
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public byte[] array() {
+            return buffer.array();
+        }
+
+        @Override
+        public int offset() {
+            return buffer.offset();
+        }
+
+        @Override
+        public Buffer offset(int offset) {
+            buffer.offset(offset);
+            return this;
+        }
+
+        @Override
+        public int limit() {
+            return buffer.limit();
+        }
+
+        @Override
+        public Buffer limit(int limit) {
+            buffer.limit(limit);
+            return this;
+        }
+
+        @Override
+        public int capacity() {
+            return buffer.capacity();
+        }
+
+        @Override
+        public void setBytes(int index, byte[] source, int sourceIndex, int length) {
+            buffer.setBytes(index, source, sourceIndex, length);
+        }
+
+        @Override
+        public void setBytes(int index, Buffer source, int sourceIndex, int length) {
+            buffer.setBytes(index, source, sourceIndex, length);
+        }
+
+        @Override
+        public void getBytes(int index, byte[] dest, int destIndex, int length) {
+            buffer.getBytes(index, dest, destIndex, length);
+        }
+
+        @Override
+        public void getBytes(int index, Buffer dest, int destIndex, int length) {
+            buffer.getBytes(index, dest, destIndex, length);
+        }
+
+        @Override
+        public void release() {
+            page.countRelease();
+            buffer.release();
+        }
+    }
+}
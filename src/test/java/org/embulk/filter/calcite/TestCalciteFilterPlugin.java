@@ -1,8 +1,18 @@
 package org.embulk.filter.calcite;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
 import org.embulk.formatter.csv.CsvFormatterPlugin;
 import org.embulk.input.file.LocalFileInputPlugin;
@@ -13,6 +23,8 @@ import org.embulk.spi.FileOutputPlugin;
 import org.embulk.spi.FilterPlugin;
 import org.embulk.spi.FormatterPlugin;
 import org.embulk.spi.ParserPlugin;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Types;
 import org.embulk.test.EmbulkTests;
 import org.embulk.test.TestingEmbulk;
 import org.hamcrest.Matchers;
@@ -32,6 +44,8 @@ public class TestCalciteFilterPlugin {
             .registerPlugin(FileOutputPlugin.class, "file", LocalFileOutputPlugin.class)
             .registerPlugin(ParserPlugin.class, "csv", CsvParserPlugin.class)
             .registerPlugin(FilterPlugin.class, "calcite", CalciteFilterPlugin.class)
+            .registerPlugin(FilterPlugin.class, "release_counting",
+                    ReleaseCountingFilterPlugin.class)
             .build();
 
     private ConfigSource baseConfig;
@@ -66,6 +80,19 @@ public class TestCalciteFilterPlugin {
                         RESOURCE_NAME_PREFIX + resultCsvResourceName)));
     }
 
+    // Lookup tables are loaded from a copy of the resource because their paths must be absolute
+    private ConfigSource newLookupTableConfig(String name, String csvResourceName, String key,
+                                              List<ImmutableMap<String, String>> columns)
+            throws IOException {
+        Path lookupPath = embulk.createTempFile("csv");
+        EmbulkTests.copyResource(RESOURCE_NAME_PREFIX + csvResourceName, lookupPath);
+        return embulk.newConfig()
+                .set("name", name)
+                .set("path", lookupPath.toAbsolutePath().toString())
+                .set("columns", columns)
+                .set("key", key);
+    }
+
     @Before
     public void setup() {
         baseConfig = embulk.newConfig();
@@ -96,6 +123,15 @@ public class TestCalciteFilterPlugin {
                 "test_timestamp_conv_expected.csv");
     }
 
+    @Test
+    public void testTimestampOperators() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_timestamp_conv_in.yml",
+                "test_timestamp_ops_filter.yml",
+                "test_timestamp_conv_source.csv",
+                "test_timestamp_ops_expected.csv");
+    }
+
     @Test
     public void testIntOperators() throws Exception {
         assertRecordsByResource(embulk,
@@ -114,6 +150,15 @@ public class TestCalciteFilterPlugin {
                 "test_where_int_cond_expected.csv");
     }
 
+    @Test
+    public void testDoubleOperators() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_double_ops_in.yml",
+                "test_double_ops_filter.yml",
+                "test_double_ops_source.csv",
+                "test_double_ops_expected.csv");
+    }
+
     @Test
     public void testStringOperators() throws Exception {
         assertRecordsByResource(embulk,
@@ -131,4 +176,590 @@ public class TestCalciteFilterPlugin {
                 "test_where_string_cond_source.csv",
                 "test_where_string_cond_expected.csv");
     }
+
+    @Test
+    public void testBatchRows() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_where_int_cond_in.yml",
+                "test_batch_rows_filter.yml",
+                "test_where_int_cond_source.csv",
+                "test_where_int_cond_expected.csv");
+    }
+
+    @Test
+    public void testWorkerThreads() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_where_int_cond_in.yml",
+                "test_worker_threads_filter.yml",
+                "test_where_int_cond_source.csv",
+                "test_where_int_cond_expected.csv");
+    }
+
+    @Test
+    public void testWorkerThreadsKeepOrder() throws Exception {
+        // Rows of many Pages, each of which is a batch that one of the workers executes
+        Path inputPath = embulk.createTempFile("csv");
+        Path outputPath = embulk.createTempFile("csv");
+        StringBuilder input = new StringBuilder("id,account,time,purchase,comment\n");
+        StringBuilder expected = new StringBuilder();
+        for (int id = 1; id <= 20000; id++) {
+            input.append(id).append(",32864,2015-01-27 19:23:49,20150127,embulk\n");
+            if (id % 2 == 0) {
+                expected.append(id)
+                        .append(",32864,2015-01-27 19:23:49.000000 +0000,20150127,embulk\n");
+            }
+        }
+        Files.write(inputPath, input.toString().getBytes(StandardCharsets.UTF_8));
+        ConfigSource inConfig = embulk.loadYamlResource(
+                RESOURCE_NAME_PREFIX + "test_where_int_cond_in.yml")
+                .set("path_prefix", inputPath.toAbsolutePath().toString());
+        ConfigSource filterConfig = embulk.loadYamlResource(
+                RESOURCE_NAME_PREFIX + "test_worker_threads_filter.yml")
+                .set("worker_threads", 4);
+
+        embulk.inputBuilder()
+                .in(inConfig)
+                .filters(ImmutableList.of(filterConfig))
+                .outputPath(outputPath)
+                .run();
+
+        // Results are emitted in the order of the batches, and so the output is not sorted here
+        Assert.assertThat(new String(Files.readAllBytes(outputPath), StandardCharsets.UTF_8),
+                Matchers.is(expected.toString()));
+    }
+
+    @Test
+    public void testBatchPagesReleasedByLimit() throws Exception {
+        // A batch of many Pages of which the query reads only the first one
+        Path inputPath = embulk.createTempFile("csv");
+        StringBuilder input = new StringBuilder("id,account,time,purchase,comment\n");
+        for (int id = 1; id <= 20000; id++) {
+            input.append(id).append(",32864,2015-01-27 19:23:49,20150127,embulk\n");
+        }
+        Files.write(inputPath, input.toString().getBytes(StandardCharsets.UTF_8));
+        ConfigSource inConfig = embulk.loadYamlResource(
+                RESOURCE_NAME_PREFIX + "test_where_int_cond_in.yml")
+                .set("path_prefix", inputPath.toAbsolutePath().toString());
+
+        for (int workerThreads : new int[] {0, 2}) {
+            ReleaseCountingFilterPlugin.reset();
+            Path outputPath = embulk.createTempFile("csv");
+            ConfigSource filterConfig = embulk.newConfig()
+                    .set("type", "calcite")
+                    .set("query", "SELECT * FROM $PAGES LIMIT 1")
+                    .set("batch_rows", 100000)
+                    .set("worker_threads", workerThreads);
+
+            embulk.inputBuilder().in(inConfig)
+                    .filters(ImmutableList.of(
+                            embulk.newConfig().set("type", "release_counting"), filterConfig))
+                    .outputPath(outputPath).run();
+
+            Assert.assertThat(ReleaseCountingFilterPlugin.ADDED_PAGES.get(),
+                    Matchers.greaterThan(1));
+            Assert.assertThat(ReleaseCountingFilterPlugin.RELEASED_PAGES.get(),
+                    Matchers.is(ReleaseCountingFilterPlugin.ADDED_PAGES.get()));
+        }
+    }
+
+    @Test
+    public void testJsonOps() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_json_ops_in.yml",
+                "test_json_ops_filter.yml",
+                "test_json_ops_source.csv",
+                "test_json_ops_expected.csv");
+    }
+
+    @Test
+    public void testMetricsSampling() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_where_int_cond_in.yml",
+                "test_metrics_sampling_filter.yml",
+                "test_where_int_cond_source.csv",
+                "test_where_int_cond_expected.csv");
+    }
+
+    @Test
+    public void testTaskMetrics() {
+        // Every second Page read by queries is sampled
+        TaskMetrics sampled = new TaskMetrics(2);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertThat(sampled.startPage(), Matchers.is(i % 2 == 0));
+            if (sampled.isSampling()) {
+                sampled.addDecodeNanos(100);
+                sampled.addWriteNanos(300);
+            }
+            sampled.endPage();
+            Assert.assertThat(sampled.isSampling(), Matchers.is(false));
+        }
+        sampled.addInput(10, 100);
+        sampled.addOutput(5);
+        sampled.addMemoLookups(3, 1);
+
+        TaskMetrics notSampled = new TaskMetrics(0);
+        Assert.assertThat(notSampled.startPage(), Matchers.is(false));
+        notSampled.endPage();
+        notSampled.addInput(10, 200);
+        notSampled.addOutput(5);
+
+        // Metrics of tasks are summed up by their job
+        String jobId = "testTaskMetrics";
+        TaskMetrics.startJob(jobId);
+        TaskMetrics.addToJob(jobId, sampled);
+        TaskMetrics.addToJob(jobId, notSampled);
+        String job = TaskMetrics.endJob(jobId).toString();
+        Assert.assertThat(job, Matchers.startsWith(
+                "pages_in=2, rows_in=20, bytes_in=300, rows_out=10, selectivity=0.5000, "
+                        + "batches=0, "));
+        Assert.assertThat(job, Matchers.containsString(
+                ", memo_hits=3, memo_misses=1, memo_hit_rate=0.7500"));
+        Assert.assertThat(job, Matchers.endsWith(
+                ", sampled_pages=2, decode_ns_per_row=100.0, write_ns_per_row=300.0"));
+
+        // Metrics of a job that has ended are ignored
+        TaskMetrics.addToJob(jobId, sampled);
+        Assert.assertThat(TaskMetrics.endJob(jobId).toString(),
+                Matchers.startsWith("pages_in=0, rows_in=0, "));
+    }
+
+    @Test
+    public void testColumnPruning() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_where_string_cond_in.yml",
+                "test_column_pruning_filter.yml",
+                "test_where_string_cond_source.csv",
+                "test_column_pruning_expected.csv");
+    }
+
+    @Test
+    public void testChainedFilters() throws Exception {
+        Path inputPath = embulk.createTempFile("csv");
+        Path outputPath = embulk.createTempFile("csv");
+        EmbulkTests.copyResource(RESOURCE_NAME_PREFIX + "test_where_string_cond_source.csv",
+                inputPath);
+        ConfigSource inConfig = embulk.loadYamlResource(
+                RESOURCE_NAME_PREFIX + "test_where_string_cond_in.yml")
+                .set("path_prefix", inputPath.toAbsolutePath().toString());
+
+        // Filters in a pipeline have different input schemas
+        embulk.inputBuilder()
+                .in(inConfig)
+                .filters(ImmutableList.of(
+                        embulk.loadYamlResource(
+                                RESOURCE_NAME_PREFIX + "test_column_pruning_filter.yml"),
+                        embulk.loadYamlResource(
+                                RESOURCE_NAME_PREFIX + "test_chained_filters_filter.yml")))
+                .outputPath(outputPath)
+                .run();
+
+        Assert.assertThat(EmbulkTests.readSortedFile(outputPath),
+                Matchers.is(EmbulkTests.readResource(
+                        RESOURCE_NAME_PREFIX + "test_chained_filters_expected.csv")));
+    }
+
+    @Test
+    public void testWherePushdown() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_where_int_cond_in.yml",
+                "test_where_pushdown_filter.yml",
+                "test_where_int_cond_source.csv",
+                "test_where_pushdown_expected.csv");
+    }
+
+    @Test
+    public void testDirectExecution() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_simple_in.yml",
+                "test_direct_simple_filter.yml",
+                "test_simple_source.csv",
+                "test_simple_expected.csv");
+    }
+
+    @Test
+    public void testDirectExecutionIntOperators() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_int_ops_in.yml",
+                "test_direct_int_ops_filter.yml",
+                "test_int_ops_source.csv",
+                "test_int_ops_expected.csv");
+    }
+
+    @Test
+    public void testDirectExecutionJsonOperators() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_json_ops_in.yml",
+                "test_direct_json_ops_filter.yml",
+                "test_json_ops_source.csv",
+                "test_json_ops_expected.csv");
+    }
+
+    @Test
+    public void testTaskAggregation() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_where_int_cond_in.yml",
+                "test_task_aggregation_filter.yml",
+                "test_where_int_cond_source.csv",
+                "test_task_aggregation_expected.csv");
+    }
+
+    @Test
+    public void testTumbleWindow() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_where_int_cond_in.yml",
+                "test_tumble_window_filter.yml",
+                "test_where_int_cond_source.csv",
+                "test_tumble_window_expected.csv");
+    }
+
+    @Test
+    public void testTumbleWindowOfMonths() throws Exception {
+        // Months have no fixed length in milliseconds
+        Path inputPath = embulk.createTempFile("csv");
+        EmbulkTests.copyResource(RESOURCE_NAME_PREFIX + "test_where_int_cond_source.csv",
+                inputPath);
+        ConfigSource inConfig = embulk.loadYamlResource(
+                RESOURCE_NAME_PREFIX + "test_where_int_cond_in.yml")
+                .set("path_prefix", inputPath.toAbsolutePath().toString());
+        ConfigSource filterConfig = embulk.loadYamlResource(
+                RESOURCE_NAME_PREFIX + "test_tumble_window_filter.yml")
+                .set("query", "SELECT TUMBLE_START(\"time\", INTERVAL '1' MONTH) AS \"month\", "
+                        + "COUNT(*) AS cnt FROM $PAGES "
+                        + "GROUP BY TUMBLE(\"time\", INTERVAL '1' MONTH)");
+
+        try {
+            embulk.inputBuilder().in(inConfig).filters(ImmutableList.of(filterConfig))
+                    .outputPath(embulk.createTempFile("csv")).run();
+            Assert.fail("A window of months is not rejected");
+        } catch (Exception e) {
+            Throwable cause = e;
+            while (cause != null && !(cause instanceof ConfigException)) {
+                cause = cause.getCause();
+            }
+            Assert.assertThat(cause, Matchers.instanceOf(ConfigException.class));
+        }
+    }
+
+    @Test
+    public void testTaskSort() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_where_int_cond_in.yml",
+                "test_task_sort_filter.yml",
+                "test_where_int_cond_source.csv",
+                "test_task_sort_expected.csv");
+    }
+
+    @Test
+    public void testTaskSortByJson() throws Exception {
+        // json values are not comparable
+        Path inputPath = embulk.createTempFile("csv");
+        EmbulkTests.copyResource(RESOURCE_NAME_PREFIX + "test_json_ops_source.csv", inputPath);
+        ConfigSource inConfig = embulk.loadYamlResource(
+                RESOURCE_NAME_PREFIX + "test_json_ops_in.yml")
+                .set("path_prefix", inputPath.toAbsolutePath().toString());
+        ConfigSource filterConfig = embulk.loadYamlResource(
+                RESOURCE_NAME_PREFIX + "test_task_sort_filter.yml")
+                .set("query", "SELECT id FROM $PAGES ORDER BY payload");
+
+        try {
+            embulk.inputBuilder().in(inConfig).filters(ImmutableList.of(filterConfig))
+                    .outputPath(embulk.createTempFile("csv")).run();
+            Assert.fail("Sort by json values is not rejected");
+        } catch (Exception e) {
+            Throwable cause = e;
+            while (cause != null && !(cause instanceof ConfigException)) {
+                cause = cause.getCause();
+            }
+            Assert.assertThat(cause, Matchers.instanceOf(ConfigException.class));
+            Assert.assertThat(cause.getCause().getMessage(), Matchers.containsString("ANY"));
+        }
+    }
+
+    @Test
+    public void testExternalSorterMergesManyRuns() throws Exception {
+        // Every row is spilled into a run, and runs are merged in more than one pass
+        final int count = ExternalSorter.MAX_FAN_IN * ExternalSorter.MAX_FAN_IN + 3;
+        final Comparator<Object[]> comparator = Comparator.comparing(row -> (Long) row[0]);
+        final List<Object[]> sorted = new ArrayList<>();
+        try (ExternalSorter sorter = new ExternalSorter(comparator, false, 1)) {
+            for (int i = 0; i < count; i++) {
+                sorter.add(new Object[] {(long) ((i * 7) % 10), (long) i});
+            }
+            Assert.assertThat(sorter.getRunCount(), Matchers.is(count));
+            final Iterator<Object[]> iterator = sorter.sorted();
+            while (iterator.hasNext()) {
+                sorted.add(iterator.next());
+            }
+        }
+
+        Assert.assertThat(sorted.size(), Matchers.is(count));
+        for (int i = 1; i < sorted.size(); i++) {
+            final Object[] previous = sorted.get(i - 1);
+            final Object[] row = sorted.get(i);
+            final int c = comparator.compare(previous, row);
+            // The sort is stable
+            Assert.assertThat(c < 0 || (c == 0 && (Long) previous[1] < (Long) row[1]),
+                    Matchers.is(true));
+        }
+    }
+
+    @Test
+    public void testLikePatterns() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_where_string_cond_in.yml",
+                "test_like_patterns_filter.yml",
+                "test_like_patterns_source.csv",
+                "test_like_patterns_expected.csv");
+    }
+
+    @Test
+    public void testStringDictionary() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_where_string_cond_in.yml",
+                "test_string_dictionary_filter.yml",
+                "test_where_string_cond_source.csv",
+                "test_string_dictionary_expected.csv");
+    }
+
+    @Test
+    public void testDedup() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_where_string_cond_in.yml",
+                "test_dedup_filter.yml",
+                "test_where_string_cond_source.csv",
+                "test_dedup_expected.csv");
+    }
+
+    @Test
+    public void testLimitScope() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_where_string_cond_in.yml",
+                "test_limit_scope_filter.yml",
+                "test_where_string_cond_source.csv",
+                "test_limit_scope_expected.csv");
+    }
+
+    @Test
+    public void testSampleRatio() throws Exception {
+        // Records are sampled by the seed reproducibly
+        assertRecordsByResource(embulk,
+                "test_where_string_cond_in.yml",
+                "test_sample_ratio_filter.yml",
+                "test_where_string_cond_source.csv",
+                "test_sample_ratio_expected.csv");
+    }
+
+    @Test
+    public void testToTimestamp() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_where_string_cond_in.yml",
+                "test_to_timestamp_filter.yml",
+                "test_where_string_cond_source.csv",
+                "test_to_timestamp_expected.csv");
+    }
+
+    @Test
+    public void testToTimestampInDefaultTimeZone() throws Exception {
+        // Timestamps parsed in a non-UTC default_timezone are compared with timestamp columns
+        assertRecordsByResource(embulk,
+                "test_where_string_cond_in.yml",
+                "test_to_timestamp_zone_filter.yml",
+                "test_where_string_cond_source.csv",
+                "test_to_timestamp_zone_expected.csv");
+    }
+
+    @Test
+    public void testMemoizedExpressions() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_where_string_cond_in.yml",
+                "test_memo_filter.yml",
+                "test_where_string_cond_source.csv",
+                "test_memo_expected.csv");
+    }
+
+    @Test
+    public void testMemoizedExpressionsDisabled() throws Exception {
+        // Expressions are evaluated as they are without the memo
+        assertRecordsByResource(embulk,
+                "test_where_string_cond_in.yml",
+                "test_memo_disabled_filter.yml",
+                "test_where_string_cond_source.csv",
+                "test_memo_expected.csv");
+    }
+
+    @Test
+    public void testExplain() throws Exception {
+        assertRecordsByResource(embulk,
+                "test_where_string_cond_in.yml",
+                "test_explain_filter.yml",
+                "test_where_string_cond_source.csv",
+                "test_explain_expected.csv");
+    }
+
+    @Test
+    public void testHighWaterMark() throws Exception {
+        Path inputPath = embulk.createTempFile("csv");
+        EmbulkTests.copyResource(RESOURCE_NAME_PREFIX + "test_where_int_cond_source.csv",
+                inputPath);
+        ConfigSource inConfig = embulk.loadYamlResource(
+                RESOURCE_NAME_PREFIX + "test_where_int_cond_in.yml")
+                .set("path_prefix", inputPath.toAbsolutePath().toString());
+        Path statePath = embulk.createTempFile("json");
+        Files.delete(statePath);
+        ConfigSource filterConfig = embulk.loadYamlResource(
+                RESOURCE_NAME_PREFIX + "test_high_water_mark_filter.yml")
+                .set("state_file", statePath.toAbsolutePath().toString());
+
+        // The first run processes all rows, and the next run skips them
+        Path firstOutputPath = embulk.createTempFile("csv");
+        embulk.inputBuilder()
+                .in(inConfig)
+                .filters(ImmutableList.of(filterConfig))
+                .outputPath(firstOutputPath)
+                .run();
+        Assert.assertThat(EmbulkTests.readSortedFile(firstOutputPath),
+                Matchers.is(EmbulkTests.readResource(
+                        RESOURCE_NAME_PREFIX + "test_high_water_mark_expected.csv")));
+        Assert.assertThat(new String(Files.readAllBytes(statePath), StandardCharsets.UTF_8),
+                Matchers.containsString("2015-01-29T11:54:36Z"));
+
+        Path secondOutputPath = embulk.createTempFile("csv");
+        embulk.inputBuilder()
+                .in(inConfig)
+                .filters(ImmutableList.of(filterConfig))
+                .outputPath(secondOutputPath)
+                .run();
+        Assert.assertThat(EmbulkTests.readSortedFile(secondOutputPath), Matchers.is(""));
+    }
+
+    @Test
+    public void testHighWaterMarkPlaceholder() {
+        HighWaterMark highWaterMark = HighWaterMark.of(
+                Schema.builder().add("id", Types.LONG).build(), "id");
+
+        // Placeholders in string literals, quoted identifiers and comments are kept
+        Assert.assertThat(highWaterMark.replacePlaceholder(
+                "SELECT '$HIGH_WATER_MARK' AS \"$HIGH_WATER_MARK\" FROM $PAGES "
+                        + "WHERE id > $HIGH_WATER_MARK -- $HIGH_WATER_MARK", 10L),
+                Matchers.is("SELECT '$HIGH_WATER_MARK' AS \"$HIGH_WATER_MARK\" FROM $PAGES "
+                        + "WHERE id > 10 -- $HIGH_WATER_MARK"));
+        Assert.assertThat(highWaterMark.replacePlaceholder(
+                "SELECT * FROM $PAGES WHERE 'it''s $HIGH_WATER_MARK' <> '' "
+                        + "AND id > $HIGH_WATER_MARK", null),
+                Matchers.is("SELECT * FROM $PAGES WHERE 'it''s $HIGH_WATER_MARK' <> '' "
+                        + "AND id > " + (Long.MIN_VALUE + 1)));
+
+        try {
+            highWaterMark.replacePlaceholder(
+                    "SELECT * FROM $PAGES WHERE comment <> '$HIGH_WATER_MARK'", 10L);
+            Assert.fail("A query without placeholders is not rejected");
+        } catch (ConfigException e) {
+            Assert.assertThat(e.getMessage(), Matchers.containsString("$HIGH_WATER_MARK"));
+        }
+    }
+
+    @Test
+    public void testHighWaterMarkWithSampleRatio() throws Exception {
+        Path inputPath = embulk.createTempFile("csv");
+        EmbulkTests.copyResource(RESOURCE_NAME_PREFIX + "test_where_int_cond_source.csv",
+                inputPath);
+        ConfigSource inConfig = embulk.loadYamlResource(
+                RESOURCE_NAME_PREFIX + "test_where_int_cond_in.yml")
+                .set("path_prefix", inputPath.toAbsolutePath().toString());
+        Path statePath = embulk.createTempFile("json");
+        Files.delete(statePath);
+        ConfigSource filterConfig = embulk.loadYamlResource(
+                RESOURCE_NAME_PREFIX + "test_high_water_mark_filter.yml")
+                .set("state_file", statePath.toAbsolutePath().toString())
+                .set("sample_ratio", 0.5);
+
+        // Records that are not sampled would be skipped by the next runs
+        try {
+            embulk.inputBuilder().in(inConfig).filters(ImmutableList.of(filterConfig))
+                    .outputPath(embulk.createTempFile("csv")).run();
+            Assert.fail("sample_ratio with high_water_mark_column is not rejected");
+        } catch (Exception e) {
+            Throwable cause = e;
+            while (cause != null && !(cause instanceof ConfigException)) {
+                cause = cause.getCause();
+            }
+            Assert.assertThat(cause, Matchers.instanceOf(ConfigException.class));
+        }
+        Assert.assertThat(Files.exists(statePath), Matchers.is(false));
+    }
+
+    @Test
+    public void testLookupTable() throws Exception {
+        Path inputPath = embulk.createTempFile("csv");
+        Path outputPath = embulk.createTempFile("csv");
+        EmbulkTests.copyResource(RESOURCE_NAME_PREFIX + "test_where_int_cond_source.csv",
+                inputPath);
+        ConfigSource inConfig = embulk.loadYamlResource(
+                RESOURCE_NAME_PREFIX + "test_where_int_cond_in.yml")
+                .set("path_prefix", inputPath.toAbsolutePath().toString());
+        ConfigSource lookupConfig = newLookupTableConfig("accounts",
+                "test_lookup_table_accounts.csv", "account", ImmutableList.of(
+                        ImmutableMap.of("name", "account", "type", "long"),
+                        ImmutableMap.of("name", "owner", "type", "string"),
+                        ImmutableMap.of("name", "vip", "type", "boolean")));
+        ConfigSource filterConfig = embulk.loadYamlResource(
+                RESOURCE_NAME_PREFIX + "test_lookup_table_filter.yml")
+                .set("lookup_tables", ImmutableList.of(lookupConfig));
+
+        embulk.inputBuilder()
+                .in(inConfig)
+                .filters(ImmutableList.of(filterConfig))
+                .outputPath(outputPath)
+                .run();
+
+        Assert.assertThat(EmbulkTests.readSortedFile(outputPath),
+                Matchers.is(EmbulkTests.readResource(
+                        RESOURCE_NAME_PREFIX + "test_lookup_table_expected.csv")));
+
+        // The table is loaded again when its file is modified
+        Path lookupPath = Paths.get(lookupConfig.get(String.class, "path"));
+        FileTime lastModified = Files.getLastModifiedTime(lookupPath);
+        EmbulkTests.copyResource(RESOURCE_NAME_PREFIX + "test_lookup_table_modified_accounts.csv",
+                lookupPath);
+        Files.setLastModifiedTime(lookupPath, FileTime.fromMillis(lastModified.toMillis() + 60000));
+        Path modifiedOutputPath = embulk.createTempFile("csv");
+        embulk.inputBuilder()
+                .in(inConfig)
+                .filters(ImmutableList.of(filterConfig))
+                .outputPath(modifiedOutputPath)
+                .run();
+
+        Assert.assertThat(EmbulkTests.readSortedFile(modifiedOutputPath), Matchers.is(
+                EmbulkTests.readResource(
+                        RESOURCE_NAME_PREFIX + "test_lookup_table_modified_expected.csv")));
+    }
+
+    @Test
+    public void testLookupTableTimestampsInDefaultTimeZone() throws Exception {
+        // Timestamps of the table with and without offsets are joined with a timestamp column
+        Path inputPath = embulk.createTempFile("csv");
+        Path outputPath = embulk.createTempFile("csv");
+        EmbulkTests.copyResource(RESOURCE_NAME_PREFIX + "test_where_int_cond_source.csv",
+                inputPath);
+        ConfigSource inConfig = embulk.loadYamlResource(
+                RESOURCE_NAME_PREFIX + "test_where_int_cond_in.yml")
+                .set("path_prefix", inputPath.toAbsolutePath().toString());
+        ConfigSource lookupConfig = newLookupTableConfig("times", "test_lookup_table_times.csv",
+                "time", ImmutableList.of(
+                        ImmutableMap.of("name", "time", "type", "timestamp"),
+                        ImmutableMap.of("name", "label", "type", "string")));
+        ConfigSource filterConfig = embulk.loadYamlResource(
+                RESOURCE_NAME_PREFIX + "test_lookup_table_zone_filter.yml")
+                .set("lookup_tables", ImmutableList.of(lookupConfig));
+
+        embulk.inputBuilder()
+                .in(inConfig)
+                .filters(ImmutableList.of(filterConfig))
+                .outputPath(outputPath)
+                .run();
+
+        Assert.assertThat(EmbulkTests.readSortedFile(outputPath),
+                Matchers.is(EmbulkTests.readResource(
+                        RESOURCE_NAME_PREFIX + "test_lookup_table_zone_expected.csv")));
+    }
 }